@@ -5,8 +5,12 @@ import gov.sandia.rbb.Timeseries.Sample;
 import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,11 +25,28 @@ import java.util.Set;
  * To do event-driven processing, see addEventListener.  It will be invoked
  * by this cache after it updates itself first, and the Event instance in the
  * RBBEventChange will reference the instance from this cache.
+ *<p>
+ * findEvents uses secondary indexes (by tag and by time) maintained as Events are
+ * added, modified and removed, so it only examines Events that could match.
+ * Modifying a cached Event other than through the RBB is not reflected in the indexes.
+ *<p>
+ * Reads (findEvents, getEventsByID etc.) are made from an immutable Snapshot (see getSnapshot),
+ * so they don't wait for updates in progress.  Each change publishes a new Snapshot, which shares
+ * everything but what the change touched with the previous one.
+ *<p>
+ * To bound the memory used for Samples, see setMaxBytes.  The Event / Timeseries instances
+ * (times and tags) are always kept, but the Samples of the least recently used Timeseries are
+ * discarded as needed, and reloaded by getTimeseriesWithSamples.
  *
  */
 public class EventCache implements RBBEventListener {
+    /**
+     * The Events and index of the latest Snapshot.  These are never modified once published;
+     * see publish().
+     */
     protected Map<Long, Event> events;
-    protected boolean isInitialized = false;
+    private EventIndex index;
+    protected volatile boolean isInitialized = false;
     protected RBBFilter filter;
     protected RBB rbb;
 
@@ -61,11 +82,31 @@ public class EventCache implements RBBEventListener {
 
         this.filter = new RBBFilter(filter);
 
-        this.events = new java.util.TreeMap<Long, Event>();
+        Map<Long, Event> initialEvents = new HashMap<Long, Event>();
+        EventIndex initialIndex = new EventIndex();
+        releaseAll();
 
-        // get the initial set of Events
-        for(Event event : Event.find(rbb.db(), this.filter))
-            addEvent(rbb, event);
+        // get the initial set of Events.  Unlike addEvent, this gets the dimensions and samples
+        // of all the Timeseries in bulk, rather than with several queries for each one.
+        synchronized(rbb.db()) {
+            Event[] found = Event.find(rbb.db(), this.filter);
+            if(found.length > 0)
+                found = Timeseries.promoteTimeseries(rbb.db(), found);
+            ArrayList<Event> initial = new ArrayList<Event>();
+            ArrayList<Timeseries> loadAll = new ArrayList<Timeseries>();
+            for(Event event : found) {
+                final Integer dim = event instanceof Timeseries ? ((Timeseries) event).getDim() : null;
+                Event newEvent = copyForCache(rbb, event, dim, maxSamples != null);
+                initial.add(newEvent);
+                if(newEvent instanceof Timeseries)
+                    loadAll.add((Timeseries) newEvent);
+            }
+            if(maxBytes == null && maxSamples == null)
+                Timeseries.loadAllSamples(rbb.db(), loadAll.toArray(new Timeseries[0]));
+            for(Event newEvent : initial)
+                put(initialEvents, initialIndex, newEvent);
+        }
+        publish(initialEvents, initialIndex);
 
         System.err.println("Eventcache for "+filter+" found "+events.size()+" initial Events");
 
@@ -79,7 +120,10 @@ public class EventCache implements RBBEventListener {
         if(rbb!=null)
             rbb.removeEventListener(this);
         events = null;
+        index = null;
+        releaseAll();
         isInitialized = false;
+        published = null;
     }
 
     /*
@@ -88,23 +132,165 @@ public class EventCache implements RBBEventListener {
      * <p>
      * The returned array is sorted by event start time (as with Event.find())
      */
-    public synchronized Event[] findEvents(RBBFilter... filters) throws SQLException {
-        RBBFilter f = new RBBFilter(filters);
-        ArrayList<Event> result = new ArrayList<Event>();
+    public Event[] findEvents(RBBFilter... filters) throws SQLException {
+        return getSnapshot().findEvents(filters);
+    }
 
-        if(!isInitialized)
-            throw new IllegalStateException("EventCache.findEvents error: initCache has not been called");
+    /**
+     * An immutable view of the set of Events in the cache as of one version, so a reader
+     * can make several queries (e.g. to draw one frame) and get consistent results
+     * without holding up (or being held up by) the thread updating the cache.
+     *<p>
+     * The Event (and Timeseries) instances themselves are shared with the cache, so as documented for
+     * eventModified they still reflect later changes to times and tags, and Samples added since.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final RBB rbb;
+        private final Map<Long, Event> events;
+        private final EventIndex index;
+
+        /**
+         * events and index must not be modified after this.
+         */
+        private Snapshot(long version, RBB rbb, Map<Long, Event> events, EventIndex index) {
+            this.version = version;
+            this.rbb = rbb;
+            this.events = events;
+            this.index = index;
+        }
 
-        synchronized(rbb.db()) { // synchronized on the connection because f.matches may need to access the RBB
-            for(Event e : events.values()) {
-                if(f.matches(rbb.db(), e))
-                    result.add(e);
+        /**
+         * The version of the cache this is a snapshot of.  Versions increase with every
+         * Event added to, removed from, or modified in the cache.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * As EventCache.findEvents, but only the Events in the snapshot.
+         */
+        public Event[] findEvents(RBBFilter... filters) throws SQLException {
+            RBBFilter f = new RBBFilter(filters);
+            ArrayList<Event> result = new ArrayList<Event>();
+
+            Collection<Long> ids = index.candidates(f);
+            Collection<Event> candidates = events.values();
+            if(ids != null) {
+                candidates = new ArrayList<Event>(ids.size());
+                for(Long id : ids)
+                    candidates.add(events.get(id));
+            }
+
+            if(f.needsConnection()) {
+                synchronized(rbb.db()) { // synchronized on the connection because f.matches needs to access the RBB
+                    for(Event e : candidates) {
+                        if(f.matches(rbb.db(), e))
+                            result.add(e);
+                    }
+                }
             }
+            else {
+                for(Event e : candidates) {
+                    if(f.matches(null, e))
+                        result.add(e);
+                }
+            }
+
+            Collections.sort(result);
+
+            return result.toArray(new Event[]{});
         }
 
-        Collections.sort(result);
+        public Timeseries[] findTimeseries(RBBFilter... filters) throws SQLException {
+            return toTimeseries(findEvents(filters), true);
+        }
+
+        public Event[] getEventsByID(Long... IDs) {
+            Event[] result = new Event[IDs.length];
+            for(int i = 0; i < IDs.length; ++i)
+                result[i] = events.get(IDs[i]);
+            return result;
+        }
+
+        public Timeseries[] getTimeseriesByID(Long... IDs) {
+            return toTimeseries(getEventsByID(IDs), false);
+        }
+
+        public int getNumCachedEvents() {
+            return events.size();
+        }
+    }
+
+    /**
+     * If all is true, every Event must be a Timeseries; otherwise those that aren't are left null.
+     */
+    private static Timeseries[] toTimeseries(Event[] events, boolean all) {
+        Timeseries[] result = new Timeseries[events.length];
+        for(int i = 0; i < result.length; ++i) {
+            if(!all && !(events[i] instanceof Timeseries))
+                continue; // leave result[i] as null
+            result[i] = (Timeseries) events[i];
+        }
+        return result;
+    }
+
+    /**
+     * Incremented (while synchronized on this) after every change to events.
+     */
+    private long version;
+
+    /**
+     * The Snapshot returned by getSnapshot, or null if not initialized.
+     */
+    private volatile Snapshot published;
+
+    /**
+     * The number of recent Snapshots that getSnapshot(version) can return.
+     * A reader that falls further behind than this gets null and must start over from
+     * the current Snapshot; each extra slot pins one more old Snapshot in memory.
+     */
+    private static final int snapshotHistory = 16;
+
+    /**
+     * Recent Snapshots, at index version % snapshotHistory.
+     * Snapshots are immutable (with final fields) so this needs no synchronization.
+     */
+    private final Snapshot[] history = new Snapshot[snapshotHistory];
 
-        return result.toArray(new Event[]{});
+    /**
+     * Get an immutable Snapshot of the Events currently in the cache.
+     * This never waits for an update in progress; it returns the Snapshot published by the last one to finish.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot s = published;
+        if(s == null)
+            throw new IllegalStateException("EventCache error: initCache has not been called");
+        return s;
+    }
+
+    /**
+     * Get the Snapshot with the specified version, if it is one of the most recent ones published.
+     * Otherwise returns null.
+     */
+    public Snapshot getSnapshot(long version) {
+        Snapshot s = history[(int) (version % snapshotHistory)];
+        return s != null && s.version == version ? s : null;
+    }
+
+    /**
+     * Make events and index current, and publish a new Snapshot of them.
+     * Called, while synchronized on this, after every change to events.
+     * Rather than modifying the published events or index, a change makes a copy
+     * (of the index, see the EventIndex copy constructor) and passes it to this.
+     */
+    private void publish(Map<Long, Event> events, EventIndex index) {
+        this.events = events;
+        this.index = index;
+        Snapshot s = new Snapshot(++version, rbb, events, index);
+        history[(int) (s.version % snapshotHistory)] = s;
+        published = s;
     }
 
     static boolean equals(Object a, Object b) {
@@ -117,10 +303,15 @@ public class EventCache implements RBBEventListener {
 
     /**
      * Implement EventListener interface to keep the cache up to date when events are created, destroyed, modified.
+     * <p>
+     * Each of these does nothing if the cache is disconnected, since a change that was already
+     * being delivered when disconnect() removed the listener may still arrive.
      */
     @Override
     public synchronized void eventAdded(RBB rbb, RBBEventChange.Added ec)
     {
+        if(events == null)
+            return;
         try
         {
             addEvent(rbb, ec.event);
@@ -137,14 +328,19 @@ public class EventCache implements RBBEventListener {
 
 
     @Override
-    public void eventModified(RBB rbb, RBBEventChange.Modified ec)
+    public synchronized void eventModified(RBB rbb, RBBEventChange.Modified ec)
     {
+        if(events == null)
+            return;
         try
         {
             Event oldEvent = events.get(ec.event.getID());
             if(oldEvent != null) { // if we already had it, update the old instead of using a new, this way anybody holding a reference to the old one will see the update.
                 oldEvent.setInstanceTimes(ec.event.getStart(), ec.event.getEnd());
                 oldEvent.tagset = ec.event.tagset;
+                EventIndex newIndex = new EventIndex(index);
+                newIndex.add(oldEvent);
+                publish(events, newIndex);
             }
             else {
                 addEvent(rbb, ec.event);
@@ -161,22 +357,54 @@ public class EventCache implements RBBEventListener {
     @Override
     public synchronized void eventRemoved(RBB rbb, RBBEventChange.Removed ec)
     {
+        if(events == null)
+            return;
+
         // for eventRemoved, dispatch to listeners first since after that the Event won't exist.
         dispatchToListeners(ec);
 
-        events.remove(ec.event.getID());
+        Map<Long, Event> newEvents = new HashMap<Long, Event>(events);
+        newEvents.remove(ec.event.getID());
+        EventIndex newIndex = new EventIndex(index);
+        newIndex.remove(ec.event.getID());
+        release(ec.event.getID());
+        publish(newEvents, newIndex);
     }
 
     @Override
     public synchronized void eventDataAdded(RBB rbb, RBBEventChange.DataAdded ec)
+    {
+        if(events == null)
+            return;
+        if(addSamples(rbb, ec.event, ec.schemaName, new Object[][]{ ec.data }))
+            dispatchToListeners(ec);
+    }
+
+    /**
+     * All the rows are added before trimming the Timeseries to maxSamples, and
+     * the listeners of this EventCache get the batch as a whole.
+     */
+    @Override
+    public synchronized void eventDataBatchAdded(RBB rbb, RBBEventChange.DataBatchAdded ec)
+    {
+        if(events == null)
+            return;
+        if(addSamples(rbb, ec.event, ec.schemaName, ec.rows))
+            dispatchToListeners(ec);
+    }
+
+    /**
+     * Returns false if the change should not be passed on to the listeners of this EventCache.
+     */
+    private boolean addSamples(RBB rbb, Event event, String schemaName, Object[][] rows)
     {
         try {
             // this is a timeseries so we know it has timeseries data attached,
             // but it might also have other schema attached so we could get notifications for those.
-            if(!ec.schemaName.equals(H2STimeseries.schemaName))
-                return;
+            if(!schemaName.equals(H2STimeseries.schemaName))
+                return false;
 
-            Timeseries ts = (Timeseries) events.get(ec.event.getID());
+            Timeseries ts = (Timeseries) events.get(event.getID());
             if(ts == null) synchronized(rbb.db()) {
                 // We got notified of data added to a timeseries we don't know about, which
                 // is normally prevented because initCache() gets all timeseries that
@@ -184,32 +412,42 @@ public class EventCache implements RBBEventListener {
                 // But this does happen if a timeseries is created just after the cache is initialized
                 // because the server operates in its own thread, on the network, and didn't
                 // receive the subscription request until after the timeseries was created.
-                System.err.println("Got Event data for event not in this cache: " + ec.event);
-                addEvent(rbb, ec.event);
-                ts = getTimeseriesByID(ec.event.getID())[0];
+                System.err.println("Got Event data for event not in this cache: " + event);
+                addEvent(rbb, event);
+                ts = (Timeseries) events.get(event.getID());
                 // we may also have missed the first few samples for the timeseries.
-                // this call to getAllSamples will probably get the sample we're currently
+                // addEvent will probably have gotten the sample we're currently
                 // processing, but that's OK due to the call to alreadyContains, below.
-                ts.loadAllSamples(rbb.db());
             }
 
             if(maxSamples != null && maxSamples == 0) {
                 ts.keepNewest(0);
-                return;
+                return false;
             }
 
-            Sample sample = new Sample(H2STimeseries.getTimeFromRow(ec.data), H2STimeseries.getSampleFromRow(ec.data));
+            // if the samples were evicted, or only a window of them is loaded, new samples outside it
+            // are not kept; getTimeseriesWithSamples will get them from the RBB if needed.
+            Window w = windows.get(ts.getID());
+            if(w == null)
+                return true;
 
-            if(!alreadyContains(ts, sample))
-                ts.addWithoutTimeConversion(sample); // store as received... time conversion is done for presentation.
+            for(Object[] row : rows) {
+                Sample sample = new Sample(H2STimeseries.getTimeFromRow(row), H2STimeseries.getSampleFromRow(row));
+
+                if(!w.contains(sample.getTime()))
+                    continue;
+
+                if(!alreadyContains(ts, sample))
+                    ts.addWithoutTimeConversion(sample); // store as received... time conversion is done for presentation.
+            }
             if(maxSamples != null)
                 ts.keepNewest(maxSamples);
+            grew(ts, w);
         }
         catch (SQLException ex){
             System.err.println("TimeseriesCache.eventDataAdded exception: "+ex.getMessage());
         }
-
-        dispatchToListeners(ec);
+        return true;
     }
 
     /*
@@ -223,55 +461,87 @@ public class EventCache implements RBBEventListener {
         Event newEvent;
 
         synchronized(rbb.db()) {
-
             // is this a Timeseries?
-            Integer dim = H2STimeseries.getDim(rbb.db(), event.getID());
+            newEvent = copyForCache(rbb, event, H2STimeseries.getDim(rbb.db(), event.getID()), true);
+        }
 
-            if(dim == null) { // no, just an Event
-                try {
-                    // make a copy to reflect the EventCache time coordinate (if necessary) and to set isPersistent
-                    newEvent = new Event(event, filter, rbb.db());
-                    } catch(SQLException e) {
-                        System.err.println("EventCache.addEvent Warning: Error retrieving time coordinate "+filter.timeCoordinate+" for event "+event+"; using unconverted times");
-                        newEvent = event.clone();
-                        newEvent.timeConverter = null;
-                    }
-            }
-            else {
-                Timeseries newTs = new Timeseries(event, dim);
-                newEvent = newTs;
+        put(newEvent);
+    }
+
+    /**
+     * Make the instance of the Event to keep in the cache, which is a Timeseries if dim is non-null.
+     * If loadSamples is true, its samples are also retrieved (unless limited by maxSamples or maxBytes)
+     * Called while synchronized on rbb.db()
+     */
+    private Event copyForCache(RBB rbb, Event event, Integer dim, boolean loadSamples) throws SQLException {
+
+        Event newEvent;
+
+        if(dim == null) { // no, just an Event
+            try {
+                // make a copy to reflect the EventCache time coordinate (if necessary) and to set isPersistent
+                newEvent = new Event(event, filter, rbb.db());
+                } catch(SQLException e) {
+                    System.err.println("EventCache.addEvent Warning: Error retrieving time coordinate "+filter.timeCoordinate+" for event "+event+"; using unconverted times");
+                    newEvent = event.clone();
+                    newEvent.timeConverter = null;
+                }
+        }
+        else {
+            Timeseries newTs = new Timeseries(event, dim);
+            newEvent = newTs;
+            if(loadSamples && maxBytes == null) { // otherwise samples are loaded only when requested from getTimeseriesWithSamples.
                 if(maxSamples==null) // no set max = get all.
                     newTs.loadAllSamples(rbb.db());
                 else if(maxSamples > 0)
                     newTs.loadRecentSamples(rbb.db(), maxSamples);
+            }
 
-                if(filter.timeCoordinate != null)
-                    try {
-                        newTs = new Timeseries(newTs, filter, rbb.db());
-                    } catch(SQLException e) {
-                        System.err.println("EventCache.addEvent Warning: Error retrieving time coordinate "+filter.timeCoordinate+" for timeseries "+newTs+"; using unconverted times");
-                        newTs.timeConverter = null;
-                    }
+            if(filter.timeCoordinate != null)
+                try {
+                    newTs = new Timeseries(newTs, filter, rbb.db());
+                } catch(SQLException e) {
+                    System.err.println("EventCache.addEvent Warning: Error retrieving time coordinate "+filter.timeCoordinate+" for timeseries "+newTs+"; using unconverted times");
+                    newTs.timeConverter = null;
                 }
-        }
+            }
 
         // We will consider this copy to be "persistent" since the idea of the TimeseriesCache
         // is for the Timeseries to maintain consistency with the RBB.
         newEvent.isPersistent = true;
 
+        return newEvent;
+    }
+
+    private void put(Event newEvent) {
         // System.err.println("TimeseriesCache adding new Timeseries: "+ts);
 
         synchronized(this) { // protect this.events.
-            events.put(event.getID(), newEvent);
+            Map<Long, Event> newEvents = new HashMap<Long, Event>(events);
+            EventIndex newIndex = new EventIndex(index);
+            put(newEvents, newIndex, newEvent);
+            publish(newEvents, newIndex);
         }
     }
 
+    /**
+     * Add newEvent to events and index, which are not yet published.
+     * Called while synchronized on this.
+     */
+    private void put(Map<Long, Event> events, EventIndex index, Event newEvent) {
+        events.put(newEvent.getID(), newEvent);
+        index.add(newEvent);
+        release(newEvent.getID()); // in case it replaces a Timeseries already in the cache.
+        if(newEvent instanceof Timeseries && maxBytes == null)
+            resized((Timeseries) newEvent, new Window(null, null));
+    }
+
 
     /**
      * Returns the number of Events in the RBB that match the filter tags.
      */
-    public synchronized int getNumCachedEvents() {
-        return events.size();
+    public int getNumCachedEvents() {
+        return getSnapshot().getNumCachedEvents();
     }
 
     /**
@@ -279,11 +549,8 @@ public class EventCache implements RBBEventListener {
      * Events matching the arguments for the previous call to initEventCache.
      * The result array will include null values for any IDs not in the cache.
      */
-    public synchronized Event[] getEventsByID(Long... IDs) throws SQLException {
-        ArrayList<Event> results = new ArrayList<Event>();
-        for(Long ID : IDs)
-            results.add(events.get(ID));
-        return results.toArray(new Event[0]);
+    public Event[] getEventsByID(Long... IDs) throws SQLException {
+        return getSnapshot().getEventsByID(IDs);
     }
 
     private Integer maxSamples;
@@ -309,6 +576,208 @@ public class EventCache implements RBBEventListener {
         this.maxSamples = maxSamples;
     }
 
+    private Long maxBytes;
+
+    /**
+     * The (inclusive) range of times, in the native time coordinate of a Timeseries,
+     * for which its Samples are held in memory; null for unbounded.
+     */
+    private static class Window {
+        final Double start, end;
+        long bytes;
+        Window(Double start, Double end) {
+            this.start = start;
+            this.end = end;
+        }
+        boolean contains(double t) {
+            return (start == null || t >= start) && (end == null || t <= end);
+        }
+        boolean contains(Window w) {
+            return (start == null || (w.start != null && w.start >= start)) && (end == null || (w.end != null && w.end <= end));
+        }
+    }
+
+    /**
+     * The Timeseries whose Samples are held in memory, in order from least to most recently used.
+     * Only reads (getTimeseriesWithSamples) count as use, so this is accessed only by them and
+     * to add or remove entries; other code gets the Window from windows instead.
+     */
+    private final LinkedHashMap<Long, Window> resident = new LinkedHashMap<Long, Window>(16, 0.75f, true);
+
+    /**
+     * The same Windows as resident, for looking one up without making it the most recently used,
+     * e.g. when new Samples arrive.
+     */
+    private final Map<Long, Window> windows = new HashMap<Long, Window>();
+
+    /**
+     * The sum of the bytes for the Windows in resident.
+     */
+    private long sampleBytes;
+
+    private long evictions, reloads;
+
+    /*
+     * If set non-null, the Samples of the least recently used Timeseries are discarded
+     * whenever the memory used for Samples exceeds approximately this many bytes,
+     * though the Samples of the most recently used Timeseries are always kept.
+     * The Timeseries instances themselves (times and tags) are always kept.
+     * <p>
+     * Be sure to call this *before* initCache.  With a limit, initCache and addEvent
+     * don't load any samples, and new samples are kept only for a Timeseries whose samples were
+     * loaded (up to the present) by getTimeseriesWithSamples.
+     */
+    public synchronized void setMaxBytes(Long maxBytes) {
+        if(isInitialized && (maxBytes == null) != (this.maxBytes == null)) {
+            System.err.println("EventCache warning: setMaxBytes(" + maxBytes + ") called on EventCache "+filter+" after initCache was already called.  Samples will not be loaded (or left unloaded) accordingly until next call to initCache.");
+        }
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /*
+     * Get the cached Timeseries with the specified ID, making sure its Samples in the specified
+     * (inclusive) time range are loaded, or null if it isn't in the cache or is not a Timeseries.
+     * Use null for start and/or end for an unbounded range.  An end of null means the Samples
+     * added later (while the Timeseries is held in memory) are also kept.
+     * <p>
+     * If the samples were evicted (see setMaxBytes), or only a different range was loaded, they are
+     * retrieved from the RBB.  Otherwise this only marks the Timeseries as recently used.
+     * <p>
+     * Any instance returned earlier (e.g. by findTimeseries) is updated, not replaced.
+     */
+    public Timeseries getTimeseriesWithSamples(Long id, Double start, Double end) throws SQLException {
+        synchronized(this) {
+            if(!isInitialized)
+                throw new IllegalStateException("EventCache error: initCache has not been called");
+            Event e = events.get(id);
+            if(!(e instanceof Timeseries))
+                return null;
+            Timeseries ts = (Timeseries) e;
+
+            Window w = new Window(start == null ? null : ts.unMapTime(start), end == null ? null : ts.unMapTime(end));
+            Window loaded = resident.get(id);
+            if(loaded != null && loaded.contains(w))
+                return ts;
+
+            synchronized(rbb.db()) {
+                ts.loadSamples(rbb.db(), w.start, w.end);
+            }
+            if(maxSamples != null)
+                ts.keepNewest(maxSamples);
+            ++reloads;
+            resized(ts, w);
+            return ts;
+        }
+    }
+
+    /**
+     * Memory usage of an EventCache, from getMemoryStats()
+     */
+    public static class MemoryStats {
+        /**
+         * The number of Events (including Timeseries) in the cache
+         */
+        public final int events;
+        /**
+         * The number of Timeseries whose Samples are held in memory
+         */
+        public final int residentTimeseries;
+        /**
+         * Approximate bytes of memory allocated for the Samples of the resident Timeseries
+         */
+        public final long sampleBytes;
+        /**
+         * As set by setMaxBytes, possibly null.
+         */
+        public final Long maxBytes;
+        /**
+         * The number of times the Samples of a Timeseries were discarded to stay within maxBytes.
+         */
+        public final long evictions;
+        /**
+         * The number of times getTimeseriesWithSamples had to get Samples from the RBB.
+         */
+        public final long reloads;
+
+        MemoryStats(int events, int residentTimeseries, long sampleBytes, Long maxBytes, long evictions, long reloads) {
+            this.events = events;
+            this.residentTimeseries = residentTimeseries;
+            this.sampleBytes = sampleBytes;
+            this.maxBytes = maxBytes;
+            this.evictions = evictions;
+            this.reloads = reloads;
+        }
+
+        @Override public String toString() {
+            return "EventCache: "+events+" Events, "+residentTimeseries+" Timeseries with "+sampleBytes+" bytes of Samples (max "+maxBytes+"), "+evictions+" evictions, "+reloads+" reloads";
+        }
+    }
+
+    public synchronized MemoryStats getMemoryStats() {
+        return new MemoryStats(events == null ? 0 : events.size(), resident.size(), sampleBytes, maxBytes, evictions, reloads);
+    }
+
+    /**
+     * Record that the samples of ts in the Window are in memory, and are the most recently used.
+     * Called while synchronized on this.
+     */
+    private void resized(Timeseries ts, Window w) {
+        release(ts.getID());
+        resident.put(ts.getID(), w);
+        windows.put(ts.getID(), w);
+        grew(ts, w);
+    }
+
+    /**
+     * Update the bytes for the Window of ts, which is already resident, after Samples were added to it,
+     * without making it the most recently used.
+     * Called while synchronized on this.
+     */
+    private void grew(Timeseries ts, Window w) {
+        sampleBytes -= w.bytes;
+        w.bytes = ts.getSampleBytes();
+        sampleBytes += w.bytes;
+        evict();
+    }
+
+    /**
+     * Discard the samples of the least recently used Timeseries until within maxBytes.
+     * Called while synchronized on this.
+     */
+    private void evict() {
+        if(maxBytes == null)
+            return;
+        Iterator<Map.Entry<Long, Window>> i = resident.entrySet().iterator();
+        while(sampleBytes > maxBytes && resident.size() > 1) {
+            Map.Entry<Long, Window> eldest = i.next();
+            sampleBytes -= eldest.getValue().bytes;
+            i.remove();
+            windows.remove(eldest.getKey());
+            Event e = events.get(eldest.getKey());
+            if(e instanceof Timeseries)
+                ((Timeseries) e).releaseSamples();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Forget the samples of the specified Event are in memory (if they were).
+     * Called while synchronized on this.
+     */
+    private void release(Long id) {
+        resident.remove(id);
+        Window old = windows.remove(id);
+        if(old != null)
+            sampleBytes -= old.bytes;
+    }
+
+    private void releaseAll() {
+        resident.clear();
+        windows.clear();
+        sampleBytes = 0;
+    }
+
 
     /*
      * Find all the timeseries that match the previous call to initCache,
@@ -316,12 +785,8 @@ public class EventCache implements RBBEventListener {
      *
      */
     public Timeseries[] findTimeseries(RBBFilter... filters) throws SQLException {
-        Event[] ev = findEvents(filters);
-        // the events we just found were all created by addEvent, below, so they are Timeseries instances.
-        Timeseries[] timeseries = new Timeseries[ev.length];
-        for(int i = 0; i < ev.length; ++i)
-            timeseries[i] = (Timeseries) ev[i];
-        return timeseries;
+        // the events we find were all created by addEvent, so they are Timeseries instances if they have samples.
+        return getSnapshot().findTimeseries(filters);
     }
 
     private void dispatchToListeners(RBBEventChange ec) {
@@ -346,11 +811,11 @@ public class EventCache implements RBBEventListener {
         // this looks like a linear search, but unless data is added in the wrong order
         // the loop will never even run once.
         for(int i = timeseries.getNumSamples()-1; i >= 0; --i) {
-            Sample s1 = timeseries.getSampleWithoutTimeConversion(i);
-            if(s1.getTime() < s0.getTime())
+            final double t1 = timeseries.getTimeWithoutTimeConversion(i);
+            if(t1 < s0.getTime())
                 return false;
-            if(s1.getTime().equals(s0.getTime())) // since we got the sample with no time conversion, should match exactly if it's really the same sample.
-                return s1.equals(s0);
+            if(t1 == s0.getTime()) // since we got the sample with no time conversion, should match exactly if it's really the same sample.
+                return timeseries.getSampleWithoutTimeConversion(i).equals(s0);
         }
         return false;
     }
@@ -360,14 +825,7 @@ public class EventCache implements RBBEventListener {
      * The result array will include null values for any IDs not in the cache, or that are not timeSeries
      */
     public Timeseries[] getTimeseriesByID(Long... IDs) throws SQLException {
-        Event[] events = getEventsByID(IDs);
-        Timeseries[] result = new Timeseries[events.length];
-        for(int i = 0; i < result.length; ++i) {
-            if(!(events[i] instanceof Timeseries))
-                continue; // leave result[i] as null
-            result[i] = (Timeseries) events[i];
-        }
-        return result;
+        return getSnapshot().getTimeseriesByID(IDs);
     }
 
     Set<RBBEventListener> listeners;
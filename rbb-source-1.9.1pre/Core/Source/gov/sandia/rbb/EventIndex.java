@@ -0,0 +1,259 @@
+package gov.sandia.rbb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over the Events in an EventCache, by tag name/value and by start / end time,
+ * so findEvents only has to check the Events that could possibly match the filter.
+ *<p>
+ * The index remembers the tags and times each Event had when it was added, so it
+ * can be removed correctly even if the Event instance has since been modified.
+ * The caller must call remove() and add() again when an Event changes.
+ *<p>
+ * Not thread-safe.  EventCache never modifies an EventIndex once it is published in a Snapshot;
+ * instead it makes a copy, which shares the posting sets with the original and only copies
+ * each one the first time the copy modifies it.
+ *
+ * @author rgabbot
+ */
+class EventIndex {
+
+    private static class Keys {
+        Keys(Event e) {
+            tagset = e.getTagset().clone();
+            // as in RBBFilter.matches, a NaN time never excludes the Event from a time window.
+            start = e.getStart() == null || e.getStart().isNaN() ? Double.NEGATIVE_INFINITY : key(e.getStart());
+            end = e.getEnd() == null || e.getEnd().isNaN() ? Double.POSITIVE_INFINITY : key(e.getEnd());
+        }
+        final Tagset tagset;
+        final double start, end;
+    }
+
+    private final Map<Long, Keys> keys = new HashMap<Long, Keys>();
+
+    /**
+     * tag name -> tag value -> IDs of Events with that tag.
+     */
+    private final Map<String, Map<String, Set<Long>>> byTag = new HashMap<String, Map<String, Set<Long>>>();
+
+    /**
+     * tag name -> IDs of Events with that tag name (and any value)
+     */
+    private final Map<String, Set<Long>> byName = new HashMap<String, Set<Long>>();
+
+    private final TreeMap<Double, Set<Long>> byStart = new TreeMap<Double, Set<Long>>();
+
+    private final TreeMap<Double, Set<Long>> byEnd = new TreeMap<Double, Set<Long>>();
+
+    /**
+     * The posting sets (and byTag value maps) created by this EventIndex, which it may modify in place.
+     * Any others are shared with another EventIndex, so are copied before being modified.
+     */
+    private final Set<Object> owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    EventIndex() {
+    }
+
+    /**
+     * A copy that is unaffected by later changes to the original, and vice versa.
+     * Only the top-level maps are copied here; each posting set is shared until one of them modifies it.
+     */
+    EventIndex(EventIndex other) {
+        keys.putAll(other.keys); // Keys are immutable, so can be shared.
+        byTag.putAll(other.byTag);
+        byName.putAll(other.byName);
+        byStart.putAll(other.byStart);
+        byEnd.putAll(other.byEnd);
+        other.owned.clear(); // they are now shared.
+    }
+
+    /**
+     * Add the Event, replacing any previous entry for its ID.
+     */
+    void add(Event e) {
+        final Long id = e.getID();
+        remove(id);
+        Keys k = new Keys(e);
+        keys.put(id, k);
+        for(String name : k.tagset.getNames()) {
+            posting(byName, name).add(id);
+            Map<String, Set<Long>> values = values(name);
+            for(String value : k.tagset.getValues(name))
+                posting(values, value).add(id);
+        }
+        posting(byStart, k.start).add(id);
+        posting(byEnd, k.end).add(id);
+    }
+
+    void remove(Long id) {
+        Keys k = keys.remove(id);
+        if(k == null)
+            return;
+        for(String name : k.tagset.getNames()) {
+            unpost(byName, name, id);
+            Map<String, Set<Long>> values = values(name);
+            for(String value : k.tagset.getValues(name))
+                unpost(values, value, id);
+            if(values.isEmpty())
+                owned.remove(byTag.remove(name));
+        }
+        unpost(byStart, k.start, id);
+        unpost(byEnd, k.end, id);
+    }
+
+    /**
+     * The IDs of the Events that might match the filter, or null if the index can't narrow it down
+     * (i.e. any of the Events might match).
+     * The caller must still check each candidate with RBBFilter.matches.
+     */
+    Collection<Long> candidates(RBBFilter f) {
+        Collection<Long> result = null;
+
+        if(f.IDs != null) {
+            result = new ArrayList<Long>();
+            for(Long id : new HashSet<Long>(Arrays.asList(f.IDs)))
+                if(keys.containsKey(id))
+                    result.add(id);
+        }
+
+        if(f.tags != null) {
+            Set<Long> any = new HashSet<Long>();
+            for(Tagset t : f.tags) {
+                Set<Long> c = candidates(t);
+                if(c == null) { // this tagset matches everything, so the disjunction does too.
+                    any = null;
+                    break;
+                }
+                any.addAll(c);
+            }
+            if(any != null)
+                result = result == null ? any : intersect(result, any);
+        }
+
+        // with a time coordinate the times must be converted to compare them, so the index doesn't help.
+        if(f.timeCoordinate != null || (f.start == null && f.end == null))
+            return result;
+
+        if(result == null) {
+            // time windows are usually recent, so fewer Events end after the start of the window than start before its end.
+            result = new ArrayList<Long>();
+            Map<Double, Set<Long>> m = f.start != null ? byEnd.tailMap(key(f.start), true) : byStart.headMap(key(f.end), true);
+            for(Set<Long> ids : m.values())
+                result.addAll(ids);
+            if(f.start == null || f.end == null)
+                return result;
+        }
+
+        ArrayList<Long> inWindow = new ArrayList<Long>();
+        for(Long id : result) {
+            Keys k = keys.get(id);
+            if((f.start == null || k.end >= f.start) && (f.end == null || k.start <= f.end))
+                inWindow.add(id);
+        }
+        return inWindow;
+    }
+
+    /**
+     * The IDs of the Events having all the tags in t, or null for all.
+     */
+    private Set<Long> candidates(Tagset t) {
+        Set<Long> smallest = null;
+        ArrayList<Set<Long>> postings = new ArrayList<Set<Long>>();
+        for(String name : t.getNames()) {
+            for(String value : t.getValues(name)) {
+                Set<Long> p;
+                if(value == null) { // a null value is a wildcard, as in Tagset.isSubsetOf
+                    p = byName.get(name);
+                }
+                else {
+                    Map<String, Set<Long>> values = byTag.get(name);
+                    p = values == null ? null : values.get(value);
+                }
+                if(p == null)
+                    return new HashSet<Long>();
+                postings.add(p);
+                if(smallest == null || p.size() < smallest.size())
+                    smallest = p;
+            }
+        }
+        if(smallest == null)
+            return null;
+
+        Set<Long> result = new HashSet<Long>();
+        candidate: for(Long id : smallest) {
+            for(Set<Long> p : postings)
+                if(p != smallest && !p.contains(id))
+                    continue candidate;
+            result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * Double.compareTo (used by TreeMap) puts -0.0 before 0.0, but RBBFilter.matches considers them equal.
+     */
+    private static double key(double t) {
+        return t + 0.0;
+    }
+
+    private static Collection<Long> intersect(Collection<Long> a, Set<Long> b) {
+        ArrayList<Long> result = new ArrayList<Long>();
+        for(Long id : a)
+            if(b.contains(id))
+                result.add(id);
+        return result;
+    }
+
+    /**
+     * The map of tag value -> IDs for the tag name, which this EventIndex may modify, creating or copying it if necessary.
+     */
+    private Map<String, Set<Long>> values(String name) {
+        Map<String, Set<Long>> values = byTag.get(name);
+        if(values == null)
+            values = new HashMap<String, Set<Long>>();
+        else if(!owned.contains(values))
+            values = new HashMap<String, Set<Long>>(values); // the posting sets are still shared.
+        else
+            return values;
+        owned.add(values);
+        byTag.put(name, values);
+        return values;
+    }
+
+    /**
+     * The posting set for the key, which this EventIndex may modify, creating or copying it if necessary.
+     */
+    private <K> Set<Long> posting(Map<K, Set<Long>> m, K key) {
+        Set<Long> s = m.get(key);
+        if(s == null)
+            s = new HashSet<Long>();
+        else if(!owned.contains(s))
+            s = new HashSet<Long>(s);
+        else
+            return s;
+        owned.add(s);
+        m.put(key, s);
+        return s;
+    }
+
+    private <K> void unpost(Map<K, Set<Long>> m, K key, Long id) {
+        Set<Long> s = m.get(key);
+        if(s == null || !s.contains(id))
+            return;
+        if(s.size() == 1) {
+            m.remove(key);
+            owned.remove(s);
+            return;
+        }
+        posting(m, key).remove(id);
+    }
+}
@@ -5,14 +5,16 @@
 
 package gov.sandia.rbb;
 
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is useful when you have some code that builds up complex queries,
@@ -33,28 +35,33 @@ import java.util.Random;
  * conn.createStatement().executeQuery(q.toString());
  * but note this won't work if any of the parameters need to be quoted / escaped.
  *<p>
- * THREADING Note:  If multiple threads are operating on a  Connection, bad things 
- * will happen if they execute the same PreparedStatement since they will be sharing
- * the same ResultSet instance.  When using this class, if there are other threads
- * accessing the Connection, you don't normally know whether they are executing the
- * same queries (and thus using the same PreparedStatement instance) as you.  So
- * the convention for multi-threaded code in RBB is you must synchronize on the
- * Connection instance from when you call Query.getPreparedStatement() until you
- * are done with the result set.
+ * THREADING Note:  If multiple threads executed the same PreparedStatement they would
+ * share the same ResultSet instance, so getPreparedStatement leases a PreparedStatement to
+ * the calling thread, and the cache keeps a pool of them for each query.  A lease ends when
+ * the thread calls Query.release(), or has finished (the cache holds only a weak reference to the thread itself),
+ * and then the PreparedStatement goes to the next thread that wants it, e.g. the next task of a thread-per-task
+ * Executor.  Until then the thread gets the same PreparedStatement again each time it runs the query.
+ * Two threads can therefore run the same query on a Connection at the same
+ * time, and it is no longer necessary to synchronize on the Connection
+ * from when you call Query.getPreparedStatement() until you are done with the result set
+ * just to protect the PreparedStatement.  (But synchronize anyway if the thread needs a consistent
+ * view across several queries, or while iterating a ResultSet with other threads modifying the same tables.)
  *<p>
  * NOTE: in H2, executing a preparedStatemnt closes the ResultSet from the previous
  * execution.  That means you can't use PreparedStatement for nested executions of the
- * same query.
+ * same query in the same thread.
  *<p>
- * NOTE: this class does not ever actually call close() on a PreparedStatement because
- * it has no way to know if it is in a subquery and the outer query is using a given
- * PreparedStatement.  Instead it just randomly evicts PreparedStatements from the cache.
- * It also randomly evicts Connections from the cache.  This is important because
+ * NOTE: The cache for each Connection holds the PreparedStatements of the most recently used queries,
+ * and the least recently used Connections are evicted entirely.  This is important because
  * connection.isClosed() never returns true in many cases; I think H2 is creating
  * temporary Connection instances for subqueries etc, which are attached to a lower-level
  * object that is not closed so long as the database itself is open.  So these
  * temporary Connection instances pile up and can't be garbage collected unless they
  * are un-cached.
+ * An evicted PreparedStatement is closed unless it is leased, or the ResultSet of its last execution is
+ * still open, because then it might be in an outer query still being read.  In that case
+ * it is simply forgotten, and the garbage collector reclaims it once the caller is done with it.
+ * Call forget(conn) before closing a Connection to close all of its PreparedStatements.
  *<p>
  * Hypothetical bug: h2 seems to re-use Connection instances from a pool.
  * (Because in the test code for this class, this cache doesn't always create a
@@ -66,35 +73,46 @@ import java.util.Random;
  */
 public class PreparedStatementCache {
 
-    public static synchronized Query startQuery(Connection conn) throws SQLException {
+    public static Query startQuery(Connection conn) throws SQLException {
         if(conn==null)
             throw new SQLException("PreparedStatementCache.startQuery: null connection specified.");
-        PreparedStatementCache psCache = perConnection.get(conn);
-        if(psCache==null) {
-            trimConnections();
-            psCache = new PreparedStatementCache(conn);
-            perConnection.put(conn, psCache);
+        PreparedStatementCache psCache;
+        synchronized(perConnection) {
+            psCache = perConnection.get(conn);
+            if(psCache==null) {
+                psCache = new PreparedStatementCache(conn);
+                perConnection.put(conn, psCache);
+                ++numConnections;
+                trimConnections();
+            }
         }
 
         return psCache.newQuery();
     }
 
-    private static void trimConnections() throws SQLException {
-        final int maxSize = 1000; // no particular effort went into chosing the value of 1000
-        
-        if(perConnection.size() < maxSize)
-            return; // is small enough
-
-        // remove some of the Prepared Statements for each Connection,
-        // and remove the entire connection if it is then empty, or if it is closed.
-        Random rand = new Random(); // each prepared statement will be ejected from cache with 10% probability.
-        Iterator<Map.Entry<Connection,PreparedStatementCache>> connIter = perConnection.entrySet().iterator();
-        while(connIter.hasNext()) {
-            PreparedStatementCache psc = connIter.next().getValue();
-            psc.trimPreparedStatements(rand);
-            if(psc.stmts.isEmpty() || rand.nextInt(10)==0) {
-                connIter.remove();
-            }
+    /**
+     * Close and forget all the PreparedStatements for the Connection, e.g. before closing it.
+     * Any ResultSets from them are closed too, so don't call this while some other thread is still using the Connection.
+     */
+    public static void forget(Connection conn) {
+        PreparedStatementCache psCache;
+        synchronized(perConnection) {
+            psCache = perConnection.remove(conn);
+        }
+        if(psCache != null)
+            psCache.clear(true);
+    }
+
+    /**
+     * Evict the least recently used Connections if there are too many.
+     * Called while synchronized on perConnection.
+     */
+    private static void trimConnections() {
+        Iterator<PreparedStatementCache> i = perConnection.values().iterator();
+        while(perConnection.size() > maxConnections) {
+            PreparedStatementCache psCache = i.next();
+            i.remove();
+            psCache.clear(false);
         }
     }
 
@@ -107,6 +125,11 @@ public class PreparedStatementCache {
          */
         private ArrayList<Integer> paramIndexes = new ArrayList<Integer>();
 
+        /**
+         * The Lease from the last call to getPreparedStatement, until release() is called.
+         */
+        private Lease lease;
+
         public void add(String... a) {
             for(String s : a)
                 elem.add(s);
@@ -146,12 +169,16 @@ public class PreparedStatementCache {
          * recycling the PreparedStatement if possible,
          * loaded up with the parameter values specified while building the query.
          * <p>
+         * The PreparedStatement is leased to the calling thread, so no other thread will get it
+         * until this thread calls release() or finishes.
+         * <p>
          * Do not call close() on the returned PreparedStatement(), since the whole
          * point of this class is to return the same instance later if possible.
          * However, it is fine to call close() on the ResultSet from the query.
          */
         public PreparedStatement getPreparedStatement() throws SQLException {
             final String query = toString(false);
+            final Thread thread = Thread.currentThread();
             PreparedStatement ps;
 
             // check whether this query was already in stmts (the cache), and if not,
@@ -159,24 +186,32 @@ public class PreparedStatementCache {
             // checking its state then altering its state based on the result.
             synchronized(stmts) {
 
-                ps = stmts.get(query);
-
-    //            if(ps != null)
-    //                System.err.println("Re-using preparedStatement "+query);
-
-                if(ps==null) { // was not found in cache
-    //                System.err.println("New preparedStatement "+query);
-                    if(stmts.size() >= 1000) // no particular effort went into chosing the value of 1000
-                        trimPreparedStatements(new Random(10));
-                    ps = conn.prepareStatement(query);
-                    stmts.put(query, ps);
+                ArrayList<Lease> pool = stmts.get(query);
+                Lease l = pool == null ? null : checkOut(pool, thread);
+
+                if(l==null) { // no PreparedStatement for the query is available to this thread.
+                    misses.incrementAndGet();
+                    l = new Lease(conn.prepareStatement(query));
+                    l.holder = new WeakReference<Thread>(thread); // before trimming, so it won't be closed.
+                    if(pool == null) {
+                        pool = new ArrayList<Lease>(1);
+                        stmts.put(query, pool);
+                    }
+                    pool.add(l);
+                    ++size;
+                    prepares.incrementAndGet();
                     ++numPreparedStatements;
+                    trimPreparedStatements();
                 }
                 else {// re-use an old one
-                    if(ps.isClosed())
+                    hits.incrementAndGet();
+                    if(l.ps.isClosed())
                         throw new SQLException("PreparedStatementCache.getPreparedStatement error: found a cached prepared statement for " + toString() + " but it was closed");
                 }
-
+                if(l.holder == null || l.holder.get() != thread)
+                    l.holder = new WeakReference<Thread>(thread);
+                lease = l;
+                ps = l.ps;
             }
 
             for(int i = 0; i < paramIndexes.size(); ++i) {
@@ -187,6 +222,20 @@ public class PreparedStatementCache {
             return ps;
         }
 
+        /**
+         * End the lease of the PreparedStatement from getPreparedStatement, so another thread may use it.
+         * Call this once done with the PreparedStatement and its ResultSet, e.g. in a task run by
+         * an Executor whose threads run many different tasks.
+         * It is not necessary to call this if the thread is about to finish.
+         */
+        public void release() {
+            synchronized(stmts) {
+                if(lease != null && lease.holder != null && lease.holder.get() == Thread.currentThread())
+                    lease.holder = null;
+                lease = null;
+            }
+        }
+
         @Override
         public String toString() {
             return toString(true);
@@ -230,31 +279,159 @@ public class PreparedStatementCache {
         }
     }
 
-    private void trimPreparedStatements(Random rand) throws SQLException {
-        if(conn.isClosed()) { // if the connection is closed, all the PreparedStatements on it are invalidated, and trying to call close() on them just raises an exception.
+    /**
+     * A cached PreparedStatement, and the thread it is leased to (if any).
+     */
+    private static class Lease {
+        Lease(PreparedStatement ps) {
+            this.ps = ps;
+        }
+        final PreparedStatement ps;
+
+        /**
+         * Null if not leased.  Only weakly referenced, so a lease doesn't keep a finished thread from being garbage collected.
+         * Guarded by stmts.
+         */
+        WeakReference<Thread> holder;
+
+        /**
+         * True if the lease has ended, because it was released or the thread has finished.
+         */
+        boolean isIdle() {
+            if(holder == null)
+                return true;
+            final Thread t = holder.get();
+            return t == null || !t.isAlive();
+        }
+    }
+
+    /**
+     * Get the Lease in the pool that may be leased to the thread:
+     * the one already leased to it, or else one whose lease has ended.
+     * Returns null if there is none.
+     * Called while synchronized on stmts.
+     */
+    private static Lease checkOut(ArrayList<Lease> pool, Thread thread) {
+        Lease idle = null;
+        for(Lease l : pool) {
+            if(l.holder != null && l.holder.get() == thread)
+                return l;
+            if(idle == null && l.isIdle())
+                idle = l;
+        }
+        return idle;
+    }
+
+    /**
+     * Evict the PreparedStatements of the least recently used queries if there are too many.
+     * A leased PreparedStatement is never closed, since its thread may not have executed it yet;
+     * those whose lease has ended are evicted first, and leased ones are only forgotten if that isn't enough.
+     * Called while synchronized on stmts.
+     */
+    private void trimPreparedStatements() {
+        for(int pass = 0; pass < 2 && size > maxPreparedStatements; ++pass) {
+            Iterator<ArrayList<Lease>> i = stmts.values().iterator();
+            while(size > maxPreparedStatements && i.hasNext()) {
+                ArrayList<Lease> pool = i.next();
+                for(Iterator<Lease> j = pool.iterator(); size > maxPreparedStatements && j.hasNext(); ) {
+                    Lease l = j.next();
+                    final boolean idle = l.isIdle();
+                    if(pass == 0 && !idle)
+                        continue;
+                    j.remove();
+                    --size;
+                    evictions.incrementAndGet();
+                    if(idle)
+                        retire(l.ps, false);
+                }
+                if(pool.isEmpty())
+                    i.remove();
+            }
+        }
+    }
+
+    /**
+     * Empty the cache for this Connection.
+     * If force is false, PreparedStatements that might still be in use are not closed (see retire)
+     */
+    private void clear(boolean force) {
+        synchronized(stmts) {
+            boolean connClosed;
+            try {
+                connClosed = conn.isClosed();
+            }
+            catch(SQLException e) {
+                connClosed = true;
+            }
+            for(ArrayList<Lease> pool : stmts.values()) {
+                for(Lease l : pool) {
+                    if(!force)
+                        evictions.incrementAndGet();
+                    // if the connection is closed, all the PreparedStatements on it are invalidated, and trying to call close() on them just raises an exception.
+                    if(!connClosed && (force || l.isIdle()))
+                        retire(l.ps, force);
+                }
+            }
             stmts.clear();
-//            System.err.println("connection was closed - ");
-            return;
+            size = 0;
         }
-    //    System.err.println("initial size was: "+stmts.size());
-        Iterator<Map.Entry<String,PreparedStatement>> iter = stmts.entrySet().iterator();
-        while(iter.hasNext()) {
-            PreparedStatement ps = iter.next().getValue();
-            if(rand != null && rand.nextInt(10) != 0)
-                continue; // we are randomly picking losers and this one got lucky.
-            iter.remove();
+    }
+
+    /**
+     * Close a PreparedStatement that is no longer in the cache.
+     * Unless force is true, it is left open if the ResultSet from its last execution is still open,
+     * since the caller may be in a subquery while an outer query is still reading it.
+     */
+    private static void retire(PreparedStatement ps, boolean force) {
+        try {
+            if(!force) {
+                ResultSet rs = ps.getResultSet();
+                if(rs != null && !rs.isClosed())
+                    return;
+            }
+            ps.close();
+            closes.incrementAndGet();
+        }
+        catch(SQLException e) {
+            System.err.println("PreparedStatementCache: exception closing a PreparedStatement: " + e.toString());
         }
-//        System.err.println("size after trimming now: "+stmts.size());
     }
 
-    private static Map<Connection, PreparedStatementCache> perConnection = new HashMap<Connection, PreparedStatementCache>();
+    /**
+     * The maximum number of Connections with cached PreparedStatements.
+     * Past this the cache is trimmed, closing statements that may still be wanted
+     * but keeping an application that opens many Connections from leaking them.
+     */
+    private static final int maxConnections = 1000;
 
-    private Connection conn;
-    private Map<String, PreparedStatement> stmts;
+    /**
+     * The maximum number of PreparedStatements cached for each Connection (counting each one in a query's pool).
+     * Each open statement holds H2 resources, so this bounds the cost of an application
+     * that builds many distinct query strings.
+     */
+    private static final int maxPreparedStatements = 1000;
+
+    /**
+     * The cache for each Connection, from least to most recently used.
+     */
+    private static final Map<Connection, PreparedStatementCache> perConnection = new LinkedHashMap<Connection, PreparedStatementCache>(16, 0.75f, true);
+
+    private final Connection conn;
+
+    /**
+     * The pool of PreparedStatements for each query (with ? for the parameters) on this Connection,
+     * from least to most recently used query.
+     */
+    private final Map<String, ArrayList<Lease>> stmts;
+
+    /**
+     * The number of PreparedStatements in all the pools in stmts.  Guarded by stmts.
+     */
+    private int size;
 
     private PreparedStatementCache(Connection conn) {
         this.conn = conn;
-        stmts = new HashMap<String, PreparedStatement>();
+        stmts = new LinkedHashMap<String, ArrayList<Lease>>(16, 0.75f, true);
     }
 
     /*
@@ -271,6 +448,72 @@ public class PreparedStatementCache {
     static int numConnections;
     static int numPreparedStatements;
 
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), prepares = new AtomicLong(),
+        evictions = new AtomicLong(), closes = new AtomicLong();
+
+    /**
+     * Counters for all the PreparedStatementCaches in the process, from getStats()
+     */
+    public static class Stats {
+        /**
+         * The number of Connections with PreparedStatements in the cache
+         */
+        public final int connections;
+        /**
+         * The number of PreparedStatements in the cache, for all Connections and threads.
+         */
+        public final int preparedStatements;
+        /**
+         * Calls to getPreparedStatement that re-used a cached PreparedStatement
+         */
+        public final long hits;
+        /**
+         * Calls to getPreparedStatement that did not find one in the cache
+         */
+        public final long misses;
+        /**
+         * The number of times a PreparedStatement was created
+         */
+        public final long prepares;
+        /**
+         * The number of PreparedStatements evicted from the cache to make room for others.
+         */
+        public final long evictions;
+        /**
+         * The number of PreparedStatements closed by the cache.
+         */
+        public final long closes;
+
+        Stats(int connections, int preparedStatements, long hits, long misses, long prepares, long evictions, long closes) {
+            this.connections = connections;
+            this.preparedStatements = preparedStatements;
+            this.hits = hits;
+            this.misses = misses;
+            this.prepares = prepares;
+            this.evictions = evictions;
+            this.closes = closes;
+        }
+
+        @Override public String toString() {
+            return "PreparedStatementCache: "+connections+" Connections, "+preparedStatements+" PreparedStatements, "+hits+" hits, "+misses+" misses, "+prepares+" prepares, "+evictions+" evictions, "+closes+" closes";
+        }
+    }
+
+    public static Stats getStats() {
+        int connections = 0, preparedStatements = 0;
+        ArrayList<PreparedStatementCache> caches;
+        synchronized(perConnection) {
+            caches = new ArrayList<PreparedStatementCache>(perConnection.values());
+        }
+        for(PreparedStatementCache psCache : caches) {
+            ++connections;
+            synchronized(psCache.stmts) {
+                preparedStatements += psCache.size;
+            }
+        }
+        return new Stats(connections, preparedStatements, hits.get(), misses.get(), prepares.get(), evictions.get(), closes.get());
+    }
+
     /*
      * This is a utility class for building delimited lists.
      * It is constructed with a list of strings.  The first call to get()
@@ -1,8 +1,13 @@
 package gov.sandia.rbb;
 
+import gov.sandia.rbb.impl.h2.H2EventDispatcher;
+import gov.sandia.rbb.impl.h2.H2EventQueue;
 import gov.sandia.rbb.impl.h2.H2EventTCPClient;
+import gov.sandia.rbb.impl.h2.H2EventTCPMultiplexClient;
 import gov.sandia.rbb.impl.h2.H2EventTrigger;
 import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import gov.sandia.rbb.impl.h2.statics.H2SString;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseriesChunks;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.sql.Connection;
@@ -12,6 +17,7 @@ import java.sql.Statement;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 
 public class RBB
@@ -166,18 +172,36 @@ public class RBB
             return;
         }
 //        System.err.println("RBB.disconnect: Disconnecting from db " + db.toString());
+        H2SRBB.forgetUUID(db);
+        PreparedStatementCache.forget(db);
         db.close();
         db = null;
     }
 
     private final Set<H2EventTCPClient> tcpClients = new HashSet<H2EventTCPClient>();
 
+    /**
+     * Carries the subscriptions of the listeners added with addEventListener(listener, f).
+     * Synchronize on tcpClients to access.
+     */
+    private H2EventTCPMultiplexClient tcpMultiplexClient;
+
+    /**
+     * Whether the server supports H2EventTCPMultiplexClient, or null if not yet known.
+     * Synchronize on tcpClients to access.
+     */
+    private Boolean multiplexing;
+
     /**
      * <pre>
-     * Each listener will be notified through its own thread,
-     * through an H2EventTCPClient (even if the server is in the same process).
+     * Listeners will be notified through a separate thread,
+     * through an H2EventTCPMultiplexClient (even if the server is in the same process).
+     * All the listeners of this RBB instance share one connection and thread, so a
+     * slow listener delays the others.
      * This makes the semantics consistent whether the server is embedded or remote.
      * (If this isn't what you want, see addLocalEventListener.)
+     * If the server doesn't support multiplexing, each listener gets its own
+     * H2EventTCPClient connection and thread instead.
      * This means that listeners must NOT make un-coordinated access to this
      * RBB instance (or others sharing the same h2 Connection via fromOpenRBB).
      * For example if the listener executes a query during a notification it must
@@ -193,14 +217,107 @@ public class RBB
      * </pre>
      */
     public void addEventListener(RBBEventListener listener, RBBFilter f) throws SQLException
+    {
+        synchronized(tcpClients) {
+            if(isMultiplexing()) {
+                getTCPMultiplexClient().subscribe(listener, f);
+                return;
+            }
+        }
+        addEventListener(listener, f, H2EventQueue.defaultCapacity, H2EventQueue.defaultPolicy);
+    }
+
+    /**
+     * Like addEventListener(listener, f), but the listener is notified by tasks run on the executor
+     * (e.g. a pool belonging to the application) instead of the thread receiving changes from the server,
+     * so a slow listener doesn't delay the others.
+     * The listener is still notified of one change at a time, in order.
+     * <p>
+     * To also run the threads receiving changes from the server on an Executor, see H2EventTCPClient.setReaderExecutor.
+     * <p>
+     * If the server doesn't support multiplexing, the listener gets its own connection and thread
+     * (so it doesn't delay the others either) and the executor is not used.
+     */
+    public void addEventListener(RBBEventListener listener, RBBFilter f, Executor executor) throws SQLException
+    {
+        synchronized(tcpClients) {
+            if(isMultiplexing()) {
+                getTCPMultiplexClient().subscribe(listener, f, executor);
+                return;
+            }
+        }
+        addEventListener(listener, f, H2EventQueue.defaultCapacity, H2EventQueue.defaultPolicy);
+    }
+
+    /**
+     * Like addEventListener(listener, f), but the listener is first notified of
+     * the changes it missed since resumeFrom, which is the RBBEventChange.journalSeq
+     * of the last change it received (or 0 for all the changes still in the journal).
+     * This requires the H2SEventJournal to be enabled for the RBB.
+     * Throws SQLException if the journal no longer holds all the changes since resumeFrom,
+     * in which case the listener was not added and must start over (e.g. with EventCache.initCache).
+     * Also throws SQLException if the server doesn't support multiplexing, which this requires.
+     */
+    public void addEventListener(RBBEventListener listener, RBBFilter f, long resumeFrom) throws SQLException
+    {
+        H2EventTCPMultiplexClient client;
+        synchronized(tcpClients) {
+            if(!isMultiplexing())
+                throw new SQLException("RBB.addEventListener: the server is too old to resume a listener from the journal.");
+            client = getTCPMultiplexClient();
+        }
+        // not holding tcpClients while waiting for the server, since a listener may call removeEventListener meanwhile.
+        client.subscribe(listener, f, resumeFrom);
+    }
+
+    /**
+     * Like addEventListener(listener, f), but specifying the size of the queue in the server
+     * for changes not yet sent to this listener, and what to do when it fills up.
+     * The listener gets its own connection and thread, since the queue is per connection.
+     */
+    public void addEventListener(RBBEventListener listener, RBBFilter f, int queueCapacity, H2EventQueue.OverflowPolicy policy) throws SQLException
     {
         H2EventTCPClient tcp = new H2EventTCPClient(this, listener, f);
+        tcp.queueCapacity = queueCapacity;
+        tcp.overflowPolicy = policy;
         tcp.start();
         synchronized(tcpClients) {
             tcpClients.add(tcp);
         }
     }
 
+    /**
+     * See multiplexing.  The caller must synchronize on tcpClients.
+     */
+    private boolean isMultiplexing() throws SQLException
+    {
+        if(multiplexing == null)
+            multiplexing = H2EventTCPMultiplexClient.isSupported(this);
+        return multiplexing;
+    }
+
+    /**
+     * Get the H2EventTCPMultiplexClient, creating it if necessary.  The caller must synchronize on tcpClients.
+     */
+    private H2EventTCPMultiplexClient getTCPMultiplexClient() throws SQLException
+    {
+        if(tcpMultiplexClient == null) {
+            tcpMultiplexClient = new H2EventTCPMultiplexClient(this);
+            tcpMultiplexClient.start();
+        }
+        return tcpMultiplexClient;
+    }
+
+    /**
+     * The changes to Events matching all the filters, as a java.util.concurrent.Flow.Publisher,
+     * so each subscriber receives changes only as fast as it requests them.
+     * See RBBEventPublisher for batching, conflation, and filtering by type of change.
+     */
+    public RBBEventPublisher changes(RBBFilter... filters)
+    {
+        return new RBBEventPublisher(this, new RBBFilter(filters));
+    }
+
     public void removeEventListener(RBBEventListener listener)
         throws SQLException
     {
@@ -219,6 +336,18 @@ public class RBB
                     i.remove();
                 }
             }
+            if(tcpMultiplexClient != null && tcpMultiplexClient.unsubscribe(listener) && tcpMultiplexClient.isEmpty()) {
+                // close the connection so its thread doesn't keep the process from exiting.
+                try
+                {
+                    tcpMultiplexClient.close();
+                }
+                catch(IOException ex)
+                {
+                    System.err.println(ex);
+                }
+                tcpMultiplexClient = null;
+            }
         }
     }
 
@@ -254,6 +383,45 @@ public class RBB
         H2EventTrigger.addListener(H2SRBB.getUUID(db), listener, filter);
     }
 
+    /**
+     * Like addLocalEventListener(listener, filter), except if asynchronous is true the listener is
+     * notified by one of the H2EventDispatcher threads rather than by the thread modifying the RBB,
+     * so a slow listener doesn't slow down writers.
+     * The changes to any one Event are delivered in order, but changes to different
+     * Events may be delivered out of order.  Use flushLocalEventListeners to wait for delivery.
+     * <p>
+     * Must be removed with removeLocalEventListener.
+     */
+    public void addLocalEventListener(RBBEventListener listener, RBBFilter filter, boolean asynchronous) throws SQLException
+    {
+        if(asynchronous)
+            H2EventTrigger.addAsyncListener(this, listener, filter);
+        else
+            addLocalEventListener(listener, filter);
+    }
+
+    /**
+     * Wait until the asynchronous local listeners have been notified of everything
+     * that happened before this call (e.g. the changes in a transaction just committed).
+     */
+    public void flushLocalEventListeners() throws InterruptedException
+    {
+        H2EventDispatcher.flush();
+    }
+
+    /**
+     * Like addLocalEventListener(listener, filter), except the listener is notified from its own thread,
+     * through a queue of at most queueCapacity changes, so a slow listener doesn't slow down
+     * the thread modifying the RBB (unless the policy is BLOCK and the queue fills up).
+     * The counters for the queue can be retrieved with H2SRBB.getEventQueueStats.
+     * <p>
+     * Must be removed with removeLocalEventListener.
+     */
+    public void addLocalEventListener(RBBEventListener listener, RBBFilter filter, int queueCapacity, H2EventQueue.OverflowPolicy policy) throws SQLException
+    {
+        H2EventTrigger.addListener(this, listener, filter, queueCapacity, policy);
+    }
+
     public void removeLocalEventListener(RBBEventListener listener) throws SQLException
     {
         H2EventTrigger.removeListener(H2SRBB.getUUID(db), listener);
@@ -280,7 +448,7 @@ public class RBB
         Statement s2 = db.createStatement();
         while(rs.next()) {
             final String tsTable = rs.getString(1);
-            ResultSet rs2 = s2.executeQuery("select count(*) from RBB_TIMESERIES."+tsTable);
+            ResultSet rs2 = s2.executeQuery((H2STimeseriesChunks.isChunkTable(tsTable) ? "select sum(N)" : "select count(*)")+" from RBB_TIMESERIES."+tsTable);
             rs2.next();
             totalSamples =+ rs2.getLong(1);
         }
@@ -311,6 +479,7 @@ public class RBB
     public void deleteRBB()
         throws SQLException
     {
+        H2SString.clearCache(db);
         db.createStatement().execute("DROP ALL OBJECTS DELETE FILES;");
         disconnect();
     }
@@ -28,7 +28,7 @@ public abstract class RBBEventChange implements Cloneable {
         }
         @Override public void toString(StringsWriter sw) { super.toString(sw); sw.write("\t"+wasCreated); }
         @Override public void dispatch(RBB rbb, RBBEventListener listener) { listener.eventAdded(rbb, this); }
-        @Override public Added clone() { return new Added(event, wasCreated); }
+        @Override public Added clone() { return withSeqOf(new Added(event, wasCreated)); }
     }
 
     /**
@@ -44,7 +44,7 @@ public abstract class RBBEventChange implements Cloneable {
             super(event);
         }
         @Override public void dispatch(RBB rbb, RBBEventListener listener) { listener.eventModified(rbb, this); }
-        @Override public Modified clone() { return new Modified(event); }
+        @Override public Modified clone() { return withSeqOf(new Modified(event)); }
     }
 
     /**
@@ -63,7 +63,7 @@ public abstract class RBBEventChange implements Cloneable {
 
         @Override public void toString(StringsWriter sw) { super.toString(sw); sw.write("\t"+wasDeleted); }
         @Override public void dispatch(RBB rbb, RBBEventListener listener) { listener.eventRemoved(rbb, this); }
-        @Override public Removed clone() { return new Removed(event, wasDeleted); }
+        @Override public Removed clone() { return withSeqOf(new Removed(event, wasDeleted)); }
     }
 
     /*
@@ -88,11 +88,58 @@ public abstract class RBBEventChange implements Cloneable {
         }
 
         @Override public void dispatch(RBB rbb, RBBEventListener listener) { listener.eventDataAdded(rbb, this); }
-        @Override public DataAdded clone() { return new DataAdded(event, schemaName, tableName, data); }
+        @Override public DataAdded clone() { return withSeqOf(new DataAdded(event, schemaName, tableName, data)); }
+    }
+
+    /*
+     * Generated instead of a DataAdded for each row when many rows are added to a table owned by a
+     * matching Event at once, e.g. by H2STimeseries.addSamples.  The rows are in the order added.
+     * A batch of only one row is sent as a DataAdded.
+     * <p>
+     * Listeners that don't override RBBEventListener.eventDataBatchAdded get a DataAdded for each row instead.
+     */
+    public static class DataBatchAdded extends RBBEventChange implements Cloneable  {
+        public DataBatchAdded(Event event, String schemaName, String tableName, Object[][] rows) {
+            super(event);
+            this.schemaName = schemaName;
+            this.tableName = tableName;
+            this.rows = rows;
+        }
+        public String schemaName;
+        public String tableName;
+        public Object[][] rows;
+
+        /**
+         * Get the i'th row as a DataAdded.
+         * Its journalSeq is that of the batch, which is the journalSeq of the last row.
+         */
+        public DataAdded getRow(int i) {
+            return withSeqOf(new DataAdded(event, schemaName, tableName, rows[i]));
+        }
+
+        /**
+         * The string representation is that of a DataAdded for each row, one per line, since
+         * that's what is understood by H2EventTCPClient with the text protocol.
+         */
+        @Override public void toString(StringsWriter sw) {
+            for(int i = 0; i < rows.length; ++i) {
+                if(i > 0)
+                    sw.write("\n");
+                getRow(i).toString(sw);
+            }
+        }
+
+        @Override public void dispatch(RBB rbb, RBBEventListener listener) { listener.eventDataBatchAdded(rbb, this); }
+        @Override public DataBatchAdded clone() { return withSeqOf(new DataBatchAdded(event, schemaName, tableName, rows)); }
     }
 
     public Event event;
 
+    /**
+     * The sequence number of the change in the event journal of the RBB (see H2SEventJournal),
+     * or 0 if the journal is not enabled (or the change came through the text protocol of H2EventTCPClient).
+     */
+    public long journalSeq;
 
     public void toString(StringsWriter sw) {
         // TODO: change use of StringsWriter to StringBuilder.
@@ -105,5 +152,13 @@ public abstract class RBBEventChange implements Cloneable {
 
     public abstract void dispatch(RBB rbb, RBBEventListener listener);
 
+    /**
+     * Used by clone() to copy the fields of this base class.
+     */
+    protected <T extends RBBEventChange> T withSeqOf(T c) {
+        c.journalSeq = journalSeq;
+        return c;
+    }
+
     @Override public abstract RBBEventChange clone();
 }
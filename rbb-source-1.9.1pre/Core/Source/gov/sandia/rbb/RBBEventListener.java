@@ -26,6 +26,15 @@ public interface RBBEventListener {
 
     void eventDataAdded(RBB rbb, RBBEventChange.DataAdded ec);
 
+    /**
+     * Called when many rows are added at once to a table owned by a matching Event.
+     * By default this calls eventDataAdded for each row; override it to handle them all at once.
+     */
+    default void eventDataBatchAdded(RBB rbb, RBBEventChange.DataBatchAdded ec) {
+        for(int i = 0; i < ec.rows.length; ++i)
+            eventDataAdded(rbb, ec.getRow(i));
+    }
+
 
 
     /**
@@ -34,6 +43,9 @@ public interface RBBEventListener {
      * <p>
      * To ignore types of event changes you are not interested in, you can override
      * the corresponding RBBEventListener method to do nothing.
+     * <p>
+     * A DataBatchAdded is unrolled into a DataAdded for each row (see eventDataBatchAdded),
+     * so eventChanged needn't know about batches.
      */
     public static class Adapter implements RBBEventListener {
         public void eventChanged(RBB rbb, RBBEventChange eventChange) { }
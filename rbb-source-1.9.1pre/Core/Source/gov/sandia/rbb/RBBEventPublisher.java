@@ -0,0 +1,404 @@
+package gov.sandia.rbb;
+
+import gov.sandia.rbb.impl.h2.H2EventQueue;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RBBEventPublisher offers the changes to Events matching a filter as a
+ * java.util.concurrent.Flow.Publisher, as an alternative to implementing RBBEventListener.
+ * Get one from RBB.changes(filter).
+ *<p>
+ * Each Subscriber is an RBBEventListener (see RBB.addEventListener) for as long as
+ * its Subscription isn't cancelled.  Changes are held in an H2EventQueue until the
+ * Subscriber requests them, and onNext is called from a task run on the Executor
+ * (by default ForkJoinPool.commonPool()), never from the thread receiving the changes.
+ *<p>
+ * When the queue is full, its OverflowPolicy applies.  With the default (BLOCK) nothing is lost,
+ * but the changes back up into the server, and meanwhile the other listeners of the same RBB instance
+ * aren't notified either.  If the Subscriber makes no room for H2EventQueue.getBlockTimeoutMillis(),
+ * the Subscription is cancelled and the Subscriber gets onError.  A Subscriber that only wants the latest state, such as a display,
+ * should use conflate() or dropOldest() instead.
+ *<p>
+ * The configuration methods return a new RBBEventPublisher, e.g.
+ * <pre>
+ * rbb.changes(byTags("type=vehicle")).ofType(RBBEventChange.DataAdded.class).conflate(100).subscribe(s);
+ * </pre>
+ *
+ * @author rgabbot
+ */
+public class RBBEventPublisher implements Flow.Publisher<RBBEventChange>
+{
+    private final RBB rbb;
+
+    private final RBBFilter filter;
+
+    private Class<?>[] types;
+
+    private int capacity = H2EventQueue.defaultCapacity;
+
+    private H2EventQueue.OverflowPolicy policy = H2EventQueue.defaultPolicy;
+
+    private Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * Runs the batch() windows.  Created when first needed.
+     */
+    private static Timer timer;
+
+    RBBEventPublisher(RBB rbb, RBBFilter filter)
+    {
+        this.rbb = rbb;
+        this.filter = filter;
+    }
+
+    private RBBEventPublisher copy()
+    {
+        RBBEventPublisher p = new RBBEventPublisher(rbb, filter);
+        p.types = types;
+        p.capacity = capacity;
+        p.policy = policy;
+        p.executor = executor;
+        return p;
+    }
+
+    /**
+     * Publish only changes of the specified types, e.g. RBBEventChange.Added.class
+     * (DataBatchAdded changes are published as one DataAdded per row).
+     */
+    public RBBEventPublisher ofType(Class<?>... types)
+    {
+        for(Class<?> c : types)
+            if(!RBBEventChange.class.isAssignableFrom(c))
+                throw new IllegalArgumentException("RBBEventPublisher.ofType: " + c.getName() + " is not an RBBEventChange");
+        RBBEventPublisher p = copy();
+        p.types = types.clone();
+        return p;
+    }
+
+    /**
+     * When more than 'capacity' changes are waiting for a Subscriber, discard DataAdded changes
+     * in favor of later ones for the same Event and table, so the Subscriber gets only the latest sample
+     * of each Timeseries (see H2EventQueue.OverflowPolicy.COALESCE).
+     */
+    public RBBEventPublisher conflate(int capacity)
+    {
+        return buffer(capacity, H2EventQueue.OverflowPolicy.COALESCE);
+    }
+
+    /**
+     * When more than 'capacity' changes are waiting for a Subscriber, discard the oldest.
+     */
+    public RBBEventPublisher dropOldest(int capacity)
+    {
+        return buffer(capacity, H2EventQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Hold up to 'capacity' changes for each Subscriber, then apply the policy.
+     */
+    public RBBEventPublisher buffer(int capacity, H2EventQueue.OverflowPolicy policy)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("RBBEventPublisher: capacity must be at least 1, not " + capacity);
+        RBBEventPublisher p = copy();
+        p.capacity = capacity;
+        p.policy = policy;
+        return p;
+    }
+
+    /**
+     * Call the Subscribers from tasks run by this Executor.
+     */
+    public RBBEventPublisher executor(Executor executor)
+    {
+        RBBEventPublisher p = copy();
+        p.executor = executor;
+        return p;
+    }
+
+    /**
+     * Publish the changes received during each period of 'millis' milliseconds as one array,
+     * in the order they were received.  Periods in which nothing was received are skipped.
+     * If a Subscriber hasn't requested another array by the end of a period, the changes
+     * go into the array it gets next.
+     */
+    public Flow.Publisher<RBBEventChange[]> batch(final long millis)
+    {
+        if(millis < 1)
+            throw new IllegalArgumentException("RBBEventPublisher.batch: millis must be at least 1, not " + millis);
+        final RBBEventPublisher p = copy();
+        return new Flow.Publisher<RBBEventChange[]>() {
+            @Override public void subscribe(Flow.Subscriber<? super RBBEventChange[]> subscriber) {
+                p.start(new BatchSubscription(p, subscriber, millis));
+            }
+        };
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RBBEventChange> subscriber)
+    {
+        start(new ChangeSubscription(this, subscriber));
+    }
+
+    private void start(Subscription s)
+    {
+        s.subscriber().onSubscribe(s);
+        try {
+            synchronized(s) {
+                if(s.done) // the Subscriber cancelled in onSubscribe.
+                    return;
+                s.q.register(H2SRBB.getUUID(rbb.db()));
+                rbb.addEventListener(s, filter);
+                s.started();
+            }
+        }
+        catch(SQLException e) {
+            s.fail(e);
+        }
+    }
+
+    private static synchronized Timer getTimer()
+    {
+        if(timer == null)
+            timer = new Timer("RBBEventPublisher", true);
+        return timer;
+    }
+
+    /**
+     * The Subscription of a Subscriber, which is also the RBBEventListener receiving changes for it.
+     * Follows the rules of Flow: onNext is never called concurrently, nor more times than requested.
+     */
+    private static abstract class Subscription extends RBBEventListener.Adapter implements Flow.Subscription, Runnable
+    {
+        final RBBEventPublisher publisher;
+
+        final H2EventQueue q;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * The number of times the Subscriber needs to be called back, so a task is running if this is more than 0.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean done;
+
+        private volatile Throwable error;
+
+        Subscription(RBBEventPublisher publisher)
+        {
+            this.publisher = publisher;
+            this.q = new H2EventQueue("Publisher " + publisher.filter, publisher.capacity, publisher.policy);
+        }
+
+        abstract Flow.Subscriber<?> subscriber();
+
+        /**
+         * Called once the listener has been added.
+         */
+        void started()
+        {
+        }
+
+        /**
+         * Return the next item to publish, or null if there is none yet.
+         */
+        abstract Object next();
+
+        /**
+         * Pass the item to the Subscriber.
+         */
+        abstract void onNext(Object item);
+
+        @Override public void eventChanged(RBB rbb, RBBEventChange ec)
+        {
+            if(publisher.types != null) {
+                boolean ok = false;
+                for(Class<?> c : publisher.types)
+                    ok |= c.isInstance(ec);
+                if(!ok)
+                    return;
+            }
+            q.offer(ec);
+            if(q.isClosed()) {
+                // the queue gave up waiting for room.  Cancel from the executor rather than
+                // this thread, which may be the one modifying the RBB.
+                synchronized(this) {
+                    if(!done && error == null)
+                        error = new IllegalStateException("RBBEventPublisher: the Subscriber requested nothing for "
+                            + H2EventQueue.getBlockTimeoutMillis() + " ms while the queue was full, so the Subscription was cancelled");
+                }
+            }
+            drain();
+        }
+
+        @Override public void request(long n)
+        {
+            if(n <= 0) {
+                fail(new IllegalArgumentException("RBBEventPublisher: requested " + n + " items; the Flow specification requires a positive number"));
+                return;
+            }
+            while(true) {
+                final long r = requested.get();
+                final long sum = r + n < 0 ? Long.MAX_VALUE : r + n; // effectively unbounded.
+                if(requested.compareAndSet(r, sum))
+                    break;
+            }
+            drain();
+        }
+
+        @Override public void cancel()
+        {
+            synchronized(this) {
+                if(done)
+                    return;
+                done = true;
+            }
+            q.close(); // first, so a listener waiting for room in the queue doesn't hold up removeEventListener.
+            try {
+                publisher.rbb.removeEventListener(this);
+            }
+            catch(SQLException e) {
+                System.err.println("RBBEventPublisher: exception removing the listener for a cancelled Subscription: " + e.toString());
+            }
+            stopped();
+        }
+
+        /**
+         * Called once when the Subscription is cancelled.
+         */
+        void stopped()
+        {
+        }
+
+        /**
+         * Cancel the Subscription and tell the Subscriber why.
+         */
+        void fail(Throwable t)
+        {
+            error = t;
+            cancel();
+            drain();
+        }
+
+        /**
+         * Run a task to call the Subscriber, unless one is already running.
+         */
+        void drain()
+        {
+            if(pending.getAndIncrement() == 0)
+                publisher.executor.execute(this);
+        }
+
+        @Override public void run()
+        {
+            int missed = 1;
+            while(true) {
+                if(error != null) {
+                    final Throwable t = error;
+                    cancel(); // before clearing error, so eventChanged doesn't set it again.
+                    error = null;
+                    subscriber().onError(t);
+                }
+                while(!done && requested.get() > 0) {
+                    final Object item = next();
+                    if(item == null)
+                        break;
+                    requested.decrementAndGet();
+                    try {
+                        onNext(item);
+                    }
+                    catch(Throwable t) {
+                        // Flow says the Subscriber shouldn't throw; treat it as cancellation.
+                        System.err.println("RBBEventPublisher: cancelling the Subscription because the Subscriber raised " + t.toString());
+                        cancel();
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+                if(missed == 0)
+                    return;
+            }
+        }
+    }
+
+    private static class ChangeSubscription extends Subscription
+    {
+        private final Flow.Subscriber<? super RBBEventChange> subscriber;
+
+        ChangeSubscription(RBBEventPublisher publisher, Flow.Subscriber<? super RBBEventChange> subscriber)
+        {
+            super(publisher);
+            this.subscriber = subscriber;
+        }
+
+        @Override Flow.Subscriber<?> subscriber() { return subscriber; }
+
+        @Override Object next() { return q.poll(); }
+
+        @Override void onNext(Object item) { subscriber.onNext((RBBEventChange) item); }
+    }
+
+    private static class BatchSubscription extends Subscription
+    {
+        private final Flow.Subscriber<? super RBBEventChange[]> subscriber;
+
+        private final long millis;
+
+        /**
+         * Set when a period ends, and cleared when the changes from it are published.
+         */
+        private volatile boolean due;
+
+        private volatile TimerTask window;
+
+        BatchSubscription(RBBEventPublisher publisher, Flow.Subscriber<? super RBBEventChange[]> subscriber, long millis)
+        {
+            super(publisher);
+            this.subscriber = subscriber;
+            this.millis = millis;
+        }
+
+        @Override Flow.Subscriber<?> subscriber() { return subscriber; }
+
+        @Override void started()
+        {
+            window = new TimerTask() {
+                @Override public void run() {
+                    due = true;
+                    drain();
+                }
+            };
+            getTimer().scheduleAtFixedRate(window, millis, millis);
+        }
+
+        @Override void stopped()
+        {
+            if(window != null)
+                window.cancel();
+        }
+
+        @Override Object next()
+        {
+            if(!due)
+                return null;
+            ArrayList<RBBEventChange> batch = new ArrayList<RBBEventChange>();
+            for(RBBEventChange c = q.poll(); c != null; c = q.poll())
+                batch.add(c);
+            due = false;
+            if(batch.isEmpty())
+                return null;
+            return batch.toArray(new RBBEventChange[0]);
+        }
+
+        @Override void onNext(Object item) { subscriber.onNext((RBBEventChange[]) item); }
+    }
+}
@@ -315,6 +315,13 @@ public class RBBFilter {
         return o1.equals(o2);
     }
 
+    /**
+     * True if matches() needs a Connection, i.e. timeCoordinates and start or end, or bySchema is in use.
+     */
+    public boolean needsConnection() {
+        return attachmentInSchema != null || (timeCoordinate != null && (start != null || end != null));
+    }
+
     /*
      * The Connection is used only if timeCoordinates and start or end, or bySchema is in use; otherwise it can be null.
      */
@@ -16,12 +16,12 @@ import java.util.Map;
 import java.util.HashMap;
 import java.sql.Connection;
 import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseriesChunks;
 import gov.sandia.rbb.util.StringsWriter;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import static gov.sandia.rbb.RBBFilter.*;
 
 /**
@@ -39,7 +39,12 @@ import static gov.sandia.rbb.RBBFilter.*;
  */
 public class Timeseries extends Event
 {
-    ArrayList<Sample> samples;
+    /**
+     * The samples are stored in primitive arrays rather than as Sample objects,
+     * which would take several objects and 80+ bytes per 2-D sample.
+     * Sample instances are created only when requested through the Sample API.
+     */
+    SampleArray samples;
     int dim;
 
     final Integer interpolateLinear = 1;
@@ -52,7 +57,7 @@ public class Timeseries extends Event
     public Timeseries(RBB rbb, int dim, double start, Tagset tags) throws SQLException
     {
         this(H2STimeseries.start(rbb.db(), dim, start, tags.toString()), start, H2SRBB.maxDouble(), tags, dim);
-        samples = new ArrayList<Sample>();
+        samples = new SampleArray(dim);
         isPersistent = true;
     }
 
@@ -64,7 +69,7 @@ public class Timeseries extends Event
     public Timeseries(Long id, Double start, Double end, Tagset tagset, int dim) {
         super(id,start,end,tagset);
         this.dim = dim;
-        samples = new ArrayList<Sample>();
+        samples = new SampleArray(dim);
         isPersistent = true;
     }
 
@@ -74,7 +79,7 @@ public class Timeseries extends Event
     public Timeseries(Double start, Double end, Tagset tagset, int dim) {
         super(start,end,tagset);
         this.dim = dim;
-        samples = new ArrayList<Sample>();
+        samples = new SampleArray(dim);
         isPersistent = false;
     }
 
@@ -157,7 +162,75 @@ public class Timeseries extends Event
        ResultSet rs = H2STimeseries.getSamples(conn, getID(), null, null, 0, 0, null, null);
        samples.clear();
        while(rs.next())
-            samples.add(new Sample(rs)); // do not use the public add() method because it would do time conversion.
+            samples.add(rs); // do not use the public add() method because it would do time conversion.
+   }
+
+   /**
+    * The number of IDs in each query made by loadAllSamples(Connection, Timeseries...).
+    * Larger batches make fewer round trips, but the last batch is padded to full size,
+    * so loading only a few Timeseries sends mostly repeated IDs.
+    */
+   private static final int loadBatchSize = 256;
+
+   /*
+    * Same as calling loadAllSamples(conn) on each of the timeseries, but much faster
+    * for many Timeseries, because it makes one query for each batch of Timeseries stored
+    * in the same table instead of several queries for each Timeseries.
+    * The rows are read directly into the sample arrays, in a single pass.
+    * <p>
+    * Chunked Timeseries (see H2STimeseriesChunks) are still loaded one at a time.
+    */
+   public static void loadAllSamples(Connection conn, Timeseries... timeseries) throws SQLException {
+       synchronized(conn) {
+           Map<Long, Timeseries> byID = new HashMap<Long, Timeseries>();
+           for(Timeseries ts : timeseries) {
+               ts.samples.clear();
+               Timeseries first = byID.put(ts.getID(), ts);
+               if(first != null) { // the same Timeseries twice; load this one separately.
+                   byID.put(ts.getID(), first);
+                   ts.loadAllSamples(conn);
+               }
+           }
+           if(byID.isEmpty())
+               return;
+
+           // group the IDs by the table holding their samples.
+           Map<String, ArrayList<Long>> byTable = new HashMap<String, ArrayList<Long>>();
+           ResultSet rs = H2STimeseries.getTableNames(conn, byID.keySet().toArray());
+           while(rs.next()) {
+               ArrayList<Long> ids = byTable.get(rs.getString(2));
+               if(ids == null) {
+                   ids = new ArrayList<Long>();
+                   byTable.put(rs.getString(2), ids);
+               }
+               ids.add(rs.getLong(1));
+           }
+           rs.close();
+
+           for(Map.Entry<String, ArrayList<Long>> table : byTable.entrySet()) {
+               if(H2STimeseriesChunks.isChunkTable(table.getKey())) {
+                   for(Long id : table.getValue())
+                       byID.get(id).loadAllSamples(conn);
+                   continue;
+               }
+               ArrayList<Long> ids = table.getValue();
+               for(int i = 0; i < ids.size(); i += loadBatchSize) {
+                   // pad the last batch by repeating an ID so every query has the same PreparedStatement.
+                   Object[] batch = new Object[loadBatchSize];
+                   for(int j = 0; j < loadBatchSize; ++j)
+                       batch[j] = ids.get(Math.min(i+j, ids.size()-1));
+                   rs = H2STimeseries.getSamplesByIDs(conn, table.getKey(), batch);
+                   Timeseries ts = null;
+                   while(rs.next()) {
+                       final long id = rs.getLong(1);
+                       if(ts == null || ts.getID() != id) // the rows are ordered by ID, so this happens once per Timeseries.
+                           ts = byID.get(id);
+                       ts.samples.add(rs.getDouble(2), rs, 3);
+                   }
+                   rs.close();
+               }
+           }
+       }
    }
 
   /*
@@ -170,9 +243,35 @@ public class Timeseries extends Event
             return;
         ResultSet rs = H2STimeseries.getSamples(conn, getID(), Double.MAX_VALUE, Double.MAX_VALUE, n, 0, null, null);
         while(rs.next())
-            samples.add(new Sample(rs)); // do not use the public add() method because it would do time conversion.
+            samples.add(rs); // do not use the public add() method because it would do time conversion.
    }
 
+    /*
+     * Populate the Timeseries Samples with those from the RBB in the (inclusive) time range,
+     * in the native time coordinate of the Timeseries; null for either bound means unbounded.
+     * Any Samples previously in this timeseries are replaced.
+     */
+    void loadSamples(Connection conn, Double start, Double end) throws SQLException {
+        ResultSet rs = H2STimeseries.getSamples(conn, getID(), start, end, 0, 0, null, null);
+        samples.clear();
+        while(rs.next())
+            samples.add(rs); // do not use the public add() method because it would do time conversion.
+    }
+
+    /*
+     * Discard all the Samples in this copy and free the memory they used.
+     */
+    void releaseSamples() {
+        samples.release();
+    }
+
+    /*
+     * The approximate number of bytes of memory allocated for the Samples in this copy.
+     */
+    long getSampleBytes() {
+        return samples.bytes();
+    }
+
     @Override
     public String toString() {
         return super.toString() + ", numSamples=" + getNumSamples();
@@ -188,7 +287,7 @@ public class Timeseries extends Event
      * (H2STimeseries.getNumSamples())
      */
     public int getNumSamples() {
-        return this.samples.size();
+        return this.samples.n;
     }
 
     /*
@@ -208,7 +307,6 @@ public class Timeseries extends Event
         if(isPersistent != null && !isPersistent) // see comment on declaration of isPersistent
             throw new IllegalArgumentException("Timeseries.add: the instance was created transiently but was then called with an RBB parameter");
         add(new Sample(time, data));
-        Sample s = samples.get(samples.size()-1);
         H2STimeseries.addSampleByID(rbb.db(), id, unMapTime(time), data, null, null);
     }
 
@@ -230,10 +328,10 @@ public class Timeseries extends Event
      * calls this when it receives a new sample from the RBB.
      */
     void addWithoutTimeConversion(Sample s) {
-        if(this.samples.size() > 0 &&
-            s.getTime() <= samples.get(samples.size()-1).getTime())
-           throw new IllegalArgumentException("TimeseriesCopy.add error - data added out of time order to timeseries " + this.getTagset() + "; got t="+s.getTime()+", already had "+samples.get(samples.size()-1).getTime());
-        samples.add(s);
+        if(this.samples.n > 0 &&
+            s.getTime() <= samples.getTime(samples.n-1))
+           throw new IllegalArgumentException("TimeseriesCopy.add error - data added out of time order to timeseries " + this.getTagset() + "; got t="+s.getTime()+", already had "+samples.getTime(samples.n-1));
+        samples.add(s.getTime(), s.getValue());
     }
 
     /*
@@ -255,6 +353,25 @@ public class Timeseries extends Event
      * interpolation, not extrapolation, is still used).
      */
     public Float[] extrapolateValueLinear(double time) {
+        return box(extrapolateValueLinear(time, new float[dim]));
+    }
+
+    /*
+     * Same as valueLinear(double), but stores the value in 'result' instead of allocating a new array.
+     * Returns false (and leaves result unaltered) if the time is outside the start/end of the Event.
+     */
+    public boolean valueLinear(double time, float[] result) {
+        if(time < getStart() || time > getEnd())
+            return false;
+        extrapolateValueLinear(time, result);
+        return true;
+    }
+
+    /*
+     * Same as extrapolateValueLinear(double), but stores the value in 'result' instead of allocating a new array.
+     * Returns result.
+     */
+    public float[] extrapolateValueLinear(double time, float[] result) {
         time = unMapTime(time);
         // bad parameters.
         if(this.getNumSamples()==0)
@@ -262,28 +379,73 @@ public class Timeseries extends Event
 
         // trivial cases
         if(this.getNumSamples()==1)
-            return this.samples.get(samples.size()-1).getValue();
+            return samples.getValue(samples.n-1, result);
         if(this.getNumSamples()==2)
-            return valueLinear(time, 0, 1);
+            return samples.interpolate(0, 1, time, result);
 
-        final int i = Collections.binarySearch(samples, new Sample(time, null));
+        final int i = samples.binarySearch(time);
         if(i >= 0) // the precise getTime was found.
-            return this.samples.get(i).getValue();
-        final int before = Math.max(0, Math.min(-i-2, samples.size()-2));
-        return valueLinear(time, before, before+1);
+            return samples.getValue(i, result);
+        final int before = Math.max(0, Math.min(-i-2, samples.n-2));
+        return samples.interpolate(before, before+1, time, result);
     }
-    
+
     public Float[] valuePrev(double time) {
+        return box(valuePrev(time, new float[dim]));
+    }
+
+    /*
+     * Same as valuePrev(double), but stores the value in 'result' instead of allocating a new array.
+     * Returns result.
+     */
+    public float[] valuePrev(double time, float[] result) {
         time = unMapTime(time);
         if(this.getNumSamples()==0)
             throw new IllegalArgumentException("Timeseries.valuePrev error - called on empty timeseries " + this.getID());
         if(this.getNumSamples()==1)
-            return this.samples.get(0).getValue();
-        final int i = Collections.binarySearch(samples, new Sample(time, null));
+            return samples.getValue(0, result);
+        final int i = samples.binarySearch(time);
         if(i >= 0) // the precise getTime was found.
-            return this.samples.get(i).getValue();
+            return samples.getValue(i, result);
         final int before = Math.max(0, -i-2);
-        return samples.get(before).getValue();
+        return samples.getValue(before, result);
+    }
+
+    /*
+     * Search for the sample at the specified time, with the same result as java.util.Arrays.binarySearch:
+     * the index of the sample if there is one at exactly that time,
+     * otherwise (-(insertion point) - 1) where the insertion point is the index of the first sample after the time.
+     */
+    public int binarySearch(double time) {
+        return samples.binarySearch(unMapTime(time));
+    }
+
+    /*
+     * The time of the i'th sample.  Equivalent to getSample(i).getTime() but without allocating a Sample.
+     */
+    public double getTime(int i) {
+        return mapTime(samples.getTime(i));
+    }
+
+    /*
+     * Dimension j of the value of the i'th sample.
+     */
+    public float getValue(int i, int j) {
+        return samples.getValue(i, j);
+    }
+
+    /*
+     * Copy the value of the i'th sample into result, and return result.
+     */
+    public float[] getValue(int i, float[] result) {
+        return samples.getValue(i, result);
+    }
+
+    private static Float[] box(float[] x) {
+        Float[] result = new Float[x.length];
+        for(int i = 0; i < x.length; ++i)
+            result[i] = x[i];
+        return result;
     }
 
     public Float[] value(double time) {
@@ -307,10 +469,6 @@ public class Timeseries extends Event
              throw new IllegalArgumentException("Timeseries: tried to apply unknown interpolation type " + interpolateString);
     }
 
-    private Float[] valueLinear(double t, int i1, int i2) {
-        return samples.get(i1).interpolateValue(samples.get(i2), t);
-    }
-
     public static class Sample implements Comparable<Sample> {
 
         Float[] value;
@@ -385,16 +543,16 @@ public class Timeseries extends Event
 
         // start time
         int dropOldest = 0;
-        while(dropOldest < getNumSamples() && samples.get(dropOldest).time < start)
+        while(dropOldest < getNumSamples() && samples.getTime(dropOldest) < start)
             ++dropOldest;
         if(dropOldest > 0)
             keepNewest(getNumSamples()-dropOldest);
 
         int dropNewest = 0;
-        while(dropNewest < getNumSamples() && samples.get(samples.size()-1-dropNewest).time > end)
+        while(dropNewest < getNumSamples() && samples.getTime(samples.n-1-dropNewest) > end)
             ++dropNewest;
         if(dropNewest > 0)
-            samples.subList(samples.size()-dropNewest, samples.size()).clear();
+            samples.n -= dropNewest;
     }
 
 
@@ -402,19 +560,23 @@ public class Timeseries extends Event
      * Discard all but the n last values.
      * This affects only the Samples in this copy (even if it is a persistent copy)
      *<p>
-     * I see no efficient way to implement this directly with java.util.* because nothing in
-     * java.util implements both the Queue interface, and the List interface which is necessary for binarySearch
+     * This only advances the index of the first sample, so calling it after each
+     * add() (e.g. to keep a sliding window) doesn't shift the array each time.
      */
     public void keepNewest(int n) {
-        if(samples.size() > n)
-            samples.subList(0, samples.size()-n).clear();
+        if(samples.n > n)
+            samples.dropOldest(samples.n-n);
     }
 
+    /*
+     * This creates a new Sample instance, so in a loop over many samples
+     * it's faster to use getTime(i) and getValue(i, result)
+     */
     public Sample getSample(int i) {
         if(timeConverter == null)
-            return samples.get(i);
+            return samples.getSample(i);
         else
-            return new Sample(mapTime(samples.get(i).getTime()), samples.get(i).getValue());
+            return new Sample(mapTime(samples.getTime(i)), samples.getSample(i).getValue());
     }
 
     public Sample[] getSamples() {
@@ -435,12 +597,12 @@ public class Timeseries extends Event
             throw new IllegalArgumentException("Timeseries.getSamples error - called on empty timeseries " + this.getID());
 
         // i0 will index the first sample at or after t0
-        int i0 = Collections.binarySearch(samples, new Sample(t0, null));
+        int i0 = samples.binarySearch(t0);
         if(i0 < 0) // the exact time was not found, so use the first after.
             i0 = -i0 - 1;
 
         // t1 will index the first sample after t1
-        int i1 = Collections.binarySearch(samples, new Sample(t1, null));
+        int i1 = samples.binarySearch(t1);
         if(i1 >= 0) // t1 was found exactly, so increment by 1 so indexes first after.
             ++i1;
         else // the exact time was not found, so use the first after.
@@ -464,7 +626,155 @@ public class Timeseries extends Event
      * Mainly this is for internal use by the implementation
      */
     Sample getSampleWithoutTimeConversion(int i) {
-        return samples.get(i);
+        return samples.getSample(i);
+    }
+
+    /*
+     * Retrieve a sample time without performing time conversion.
+     */
+    double getTimeWithoutTimeConversion(int i) {
+        return samples.getTime(i);
+    }
+
+    /**
+     * Growable primitive arrays holding the samples of a Timeseries, in time order.
+     * values is flattened, so dimension j of sample i is values[(first+i)*dim+j].
+     * Samples before 'first' have been dropped by dropOldest and are reclaimed
+     * the next time the arrays would otherwise have to grow.
+     *<p>
+     * Timeseries instances for different time coordinates share one SampleArray.
+     */
+    static class SampleArray {
+        private final int dim;
+        private double[] times = new double[4];
+        private float[] values;
+        private int first;
+        int n;
+
+        SampleArray(int dim) {
+            this.dim = dim;
+            values = new float[times.length*dim];
+        }
+
+        void clear() {
+            first = n = 0;
+        }
+
+        /**
+         * Like clear(), but also shrinks the arrays back to their initial size.
+         */
+        void release() {
+            clear();
+            times = new double[4];
+            values = new float[times.length*dim];
+        }
+
+        /**
+         * The size of the arrays, which are usually larger than needed for the n samples.
+         */
+        long bytes() {
+            return 8L*times.length + 4L*values.length;
+        }
+
+        double getTime(int i) {
+            return times[first+i];
+        }
+
+        float getValue(int i, int j) {
+            return values[(first+i)*dim+j];
+        }
+
+        float[] getValue(int i, float[] result) {
+            System.arraycopy(values, (first+i)*dim, result, 0, dim);
+            return result;
+        }
+
+        Sample getSample(int i) {
+            Float[] x = new Float[dim];
+            for(int j = 0; j < dim; ++j)
+                x[j] = values[(first+i)*dim+j];
+            return new Sample(times[first+i], x);
+        }
+
+        void add(double t, Float[] x) {
+            final int k = makeRoom();
+            times[k] = t;
+            for(int j = 0; j < dim; ++j)
+                values[k*dim+j] = x[j];
+        }
+
+        /**
+         * Add a sample whose values are in dim consecutive REAL columns of rs, starting with column firstColumn.
+         */
+        void add(double t, ResultSet rs, int firstColumn) throws SQLException {
+            final int k = makeRoom();
+            times[k] = t;
+            for(int j = 0; j < dim; ++j)
+                values[k*dim+j] = rs.getFloat(firstColumn+j);
+        }
+
+        /**
+         * Add a sample from a ResultSet with columns TIME, SAMPLE such as from H2STimeseries.getSamples
+         */
+        void add(ResultSet rs) throws SQLException {
+            final int k = makeRoom();
+            times[k] = rs.getDouble(1);
+            Object[] a = (Object[]) rs.getArray(2).getArray();
+            for (int j = 0; j < dim; ++j) {
+                if(a[j] instanceof Float)
+                    values[k*dim+j] = (Float) a[j];
+                else
+                    values[k*dim+j] = Float.parseFloat(a[j].toString());
+            }
+        }
+
+        /**
+         * Make room for one more sample at the end, and return its index in the arrays.
+         */
+        private int makeRoom() {
+            if(first+n == times.length) {
+                if(first > 0) { // reclaim the space from dropped samples before growing.
+                    System.arraycopy(times, first, times, 0, n);
+                    System.arraycopy(values, first*dim, values, 0, n*dim);
+                    first = 0;
+                }
+                if(n >= times.length/2) {
+                    times = Arrays.copyOf(times, times.length*2);
+                    values = Arrays.copyOf(values, times.length*dim);
+                }
+            }
+            return first + n++;
+        }
+
+        void dropOldest(int k) {
+            first += k;
+            n -= k;
+        }
+
+        /**
+         * Same as java.util.Arrays.binarySearch on the times.
+         */
+        int binarySearch(double t) {
+            int i = Arrays.binarySearch(times, first, first+n, t);
+            return i >= 0 ? i-first : i+first;
+        }
+
+        /**
+         * Linearly interpolate (or extrapolate) from samples i1 and i2, in the same way as H2STimeseries.interpolate
+         */
+        float[] interpolate(int i1, int i2, double t, float[] result) {
+            final double t1 = getTime(i1);
+            final double t2 = getTime(i2);
+            if(t == t1)
+                return getValue(i1, result);
+            if(t == t2)
+                return getValue(i2, result);
+            final double f = (t - t1) / (t2 - t1);
+            final int k1 = (first+i1)*dim, k2 = (first+i2)*dim;
+            for(int j = 0; j < dim; ++j)
+                result[j] = (float) (values[k1+j] + (values[k2+j] - values[k1+j]) * f);
+            return result;
+        }
     }
 
 
@@ -477,10 +787,15 @@ public class Timeseries extends Event
         RBBFilter filter = new RBBFilter(f);
         filter.also(bySchema(H2STimeseries.schemaName));
         ArrayList<Timeseries> result = new ArrayList<Timeseries>();
-        for(Event ev : Event.find(conn, filter)) {
-            Timeseries ts = new Timeseries(ev, H2STimeseries.getDim(conn, ev.getID()));
-            ts.isPersistent = true;
-            result.add(ts);
+        Event[] events = Event.find(conn, filter);
+        if(events.length == 0)
+            return new Timeseries[0];
+        // promoteTimeseries gets the dimensions of all of them in one query.
+        for(Event ev : promoteTimeseries(conn, events)) {
+            if(!(ev instanceof Timeseries))
+                continue;
+            ev.isPersistent = true;
+            result.add((Timeseries) ev);
         }
         return result.toArray(new Timeseries[0]);
     }
@@ -492,8 +807,7 @@ public class Timeseries extends Event
      */
     public static Timeseries[] findWithSamples(Connection conn, RBBFilter...f) throws SQLException {
         Timeseries[] timeseries = findWithoutSamples(conn, f);
-        for(Timeseries ts : timeseries)
-            ts.loadAllSamples(conn);
+        loadAllSamples(conn, timeseries);
         return timeseries;
     }
 
@@ -507,12 +821,10 @@ public class Timeseries extends Event
         Timeseries[] results = findWithoutSamples(conn, filter);
         if(n != null && n == 0)
             return results;
-        for(Timeseries ts : results) {
-            if(n == null) // get all
-                ts.loadAllSamples(conn);
-            else
-                ts.loadRecentSamples(conn, n);
-        }
+        if(n == null) // get all
+            loadAllSamples(conn, results);
+        else for(Timeseries ts : results)
+            ts.loadRecentSamples(conn, n);
         return results;
     }
 
@@ -528,9 +840,9 @@ public class Timeseries extends Event
         ArrayList<Double> times = new ArrayList<Double>();
         ArrayList<Float[]> data = new ArrayList<Float[]>();
 
-        for(Sample s : samples) {
-            times.add(s.getTime());
-            data.add(s.getValue());
+        for(int i = 0; i < samples.n; ++i) {
+            times.add(samples.getTime(i));
+            data.add(samples.getSample(i).getValue());
         }
 
         id = H2STimeseries.create(conn, dim, start, end, tagset.toString(), times.toArray(), data.toArray());
@@ -4,7 +4,12 @@ package gov.sandia.rbb.impl.h2;
 import gov.sandia.rbb.Event;
 import gov.sandia.rbb.RBB;
 import gov.sandia.rbb.PreparedStatementCache;
+import gov.sandia.rbb.impl.h2.statics.H2SEventJournal;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
 H2EventDataTrigger creates notifications for EventListeners using SQL Triggers from the H2 database.
@@ -65,32 +70,135 @@ public class H2EventDataTrigger extends H2EventTrigger
     {
         // System.err.println("Firing data table update on " + this.fullTableName);
 
-        if(ListenerRegistrations.isEmpty()) // this is a key optimization for bulk inserts during non-event-driven processing, e.g. RBB put
+        if(ListenerRegistrations.isEmpty() && !H2SEventJournal.isRecording(conn, getRBB_UUID(conn))) // this is a key optimization for bulk inserts during non-event-driven processing, e.g. RBB put
             return;
 
+        fireRows(conn, new Object[][]{ newRow });
+    }
+
+    /**
+     * Notify listeners of rows added to the table, which must all belong to the same Event,
+     * and record them in the H2SEventJournal (if enabled).
+     * If a batch has been started in this thread, the notification is deferred until it ends.
+     */
+    protected void fireRows(Connection conn, Object[][] rows) throws SQLException
+    {
         if(eventIDColumnIndex == null && eventID == null)
             identify(conn);
 
         Long currentEventID = eventID;
         if(currentEventID == null)
-            currentEventID = (Long) newRow[eventIDColumnIndex];
+            currentEventID = (Long) rows[0][eventIDColumnIndex];
 
-        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-        q.addAlt("SELECT ID, START_TIME, END_TIME, RBB_ID_TO_TAGSET(TAGSET_ID) as TAGS FROM RBB_EVENTS WHERE ID=", currentEventID);
-        ResultSet rs = q.getPreparedStatement().executeQuery();
+        final long journalSeq = H2SEventJournal.dataAdded(conn, getRBB_UUID(conn), currentEventID, this.schemaName, this.tableName, rows);
 
-        if(!rs.next())
-            throw new java.sql.SQLException("Error getting Event associated with table " + this.schemaName + "." + this.tableName);
+        if(ListenerRegistrations.isEmpty())
+            return;
 
-        //Event event = new Event(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), new TagsetCopy(H2STagset.fromResultSet(rs, "TAGS")));
-        Event event = new Event(rs);
+        Batch b = batch.get();
+        if(b != null)
+            b.add(this, currentEventID, rows, journalSeq);
+        else
+            notifyRows(conn, currentEventID, rows, journalSeq);
+    }
 
-        rs.close();
+    private void notifyRows(Connection conn, Long currentEventID, Object[][] rows, long journalSeq) throws SQLException
+    {
+        final String uuid = getRBB_UUID(conn);
+        Event event = DataOwners.get(uuid, currentEventID);
+        if(event == null) {
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("SELECT ID, START_TIME, END_TIME, RBB_ID_TO_TAGSET(TAGSET_ID) as TAGS FROM RBB_EVENTS WHERE ID=", currentEventID);
+            ResultSet rs = q.getPreparedStatement().executeQuery();
+
+            if(!rs.next())
+                throw new java.sql.SQLException("Error getting Event associated with table " + this.schemaName + "." + this.tableName);
+
+            //Event event = new Event(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), new TagsetCopy(H2STagset.fromResultSet(rs, "TAGS")));
+            event = new Event(rs);
+
+            rs.close();
+
+            DataOwners.put(uuid, event);
+        }
 
         // System.err.println("fire: "+event+" "+StringsWriter.join(" ", newRow));
 
        // notify everybody interested in the Event
-       this.fireEvent(RBB.fromOpenRBB(conn), event, this.schemaName, this.tableName, newRow, null);
+       this.fireEvent(RBB.fromOpenRBB(conn), event, this.schemaName, this.tableName, rows, null, journalSeq);
+    }
+
+    /**
+     * The rows added to one Event through one trigger during a Batch.
+     */
+    private static class BatchRows {
+        final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+
+        /**
+         * The journalSeq of the last of these rows, which is sent with the DataBatchAdded for them.
+         * Not the last in the whole Batch, since a client resuming from that would miss rows of
+         * other Events journaled before it but not yet received.
+         */
+        long journalSeq;
+    }
+
+    /**
+     * Rows added in this thread since startBatch was called, by trigger and Event.
+     */
+    private static class Batch {
+        int depth = 1;
+        final Map<H2EventDataTrigger, Map<Long, BatchRows>> rows = new LinkedHashMap<H2EventDataTrigger, Map<Long, BatchRows>>();
+
+        void add(H2EventDataTrigger trigger, Long eventID, Object[][] newRows, long journalSeq) {
+            Map<Long, BatchRows> m = rows.get(trigger);
+            if(m == null) {
+                m = new LinkedHashMap<Long, BatchRows>();
+                rows.put(trigger, m);
+            }
+            BatchRows a = m.get(eventID);
+            if(a == null) {
+                a = new BatchRows();
+                m.put(eventID, a);
+            }
+            a.rows.addAll(Arrays.asList(newRows));
+            a.journalSeq = Math.max(a.journalSeq, journalSeq);
+        }
+    }
+
+    private static final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Until the matching call to endBatch, defer notifications of data added in this thread, so listeners
+     * receive one RBBEventChange.DataBatchAdded for each Event and table instead of a DataAdded for each row.
+     * Calls may be nested; the notifications are sent when the outermost batch ends.
+     * <p>
+     * H2 fires triggers in the thread executing the statement, so this only has an effect
+     * in the server process, e.g. in a function called through SQL such as H2STimeseries.addSamplesByIDs,
+     * or in a process using an embedded database.
+     */
+    public static void startBatch()
+    {
+        Batch b = batch.get();
+        if(b == null)
+            batch.set(new Batch());
+        else
+            ++b.depth;
+    }
+
+    /**
+     * See startBatch.  This should be called in a finally block, so the thread doesn't
+     * go on deferring notifications indefinitely.
+     */
+    public static void endBatch(Connection conn) throws SQLException
+    {
+        Batch b = batch.get();
+        if(b == null || --b.depth > 0)
+            return;
+        batch.remove();
+
+        for(Map.Entry<H2EventDataTrigger, Map<Long, BatchRows>> t : b.rows.entrySet())
+            for(Map.Entry<Long, BatchRows> e : t.getValue().entrySet())
+                t.getKey().notifyRows(conn, e.getKey(), e.getValue().rows.toArray(new Object[0][]), e.getValue().journalSeq);
     }
 
     /**
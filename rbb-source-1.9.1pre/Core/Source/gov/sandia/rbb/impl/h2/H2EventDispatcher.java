@@ -0,0 +1,256 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.RBB;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBEventListener;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * H2EventDispatcher delivers RBBEventChanges to asynchronous local listeners
+ * (see RBB.addLocalEventListener(listener, filter, true)) from a few dispatcher threads,
+ * so the thread modifying the RBB (which runs the H2 triggers) doesn't wait for the listeners.
+ * <p>
+ * Each dispatcher thread has a lock-free ring buffer into which the triggers publish
+ * changes.  All the changes to a given Event go to the same thread, so each listener
+ * receives the changes to any one Event in the order they were made, though changes
+ * to different Events may be delivered in a different order than they were made.
+ * <p>
+ * Publishing never waits for a listener.  A trigger waiting for room could wait forever,
+ * e.g. if the listener it is waiting on is itself blocked on the H2 locks the trigger holds,
+ * so when a ring is full the changes spill into an overflow list, in order, until the dispatcher
+ * thread has emptied the ring and taken them.
+ * <p>
+ * flush() waits until everything published so far has been delivered, e.g. so a
+ * test can check what a listener received after committing some changes.
+ *
+ * @author rgabbot
+ */
+public class H2EventDispatcher
+{
+    /**
+     * The number of slots in the ring buffer of each dispatcher thread.  Must be a power of 2.
+     * When a ring is full, changes go to its (slower, locked) overflow list instead.
+     * Each ring preallocates this many slots, so a bigger ring rides out longer
+     * listener stalls without locking, at the price of memory held even when idle.
+     */
+    private static final int ringSize = 1 << 16;
+
+    /**
+     * How many times a dispatcher thread checks for more work before going to sleep.
+     * Spinning burns a core briefly but avoids a park/unpark pair when changes arrive back to back.
+     */
+    private static final int spins = 100;
+
+    private static int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static Ring[] rings;
+
+    private static class Entry {
+        Entry(RBB rbb, RBBEventListener listener, RBBEventChange change) {
+            this.rbb = rbb;
+            this.listener = listener;
+            this.change = change;
+        }
+        final RBB rbb;
+        final RBBEventListener listener;
+        final RBBEventChange change;
+    }
+
+    /**
+     * A ring buffer with any number of producers (the triggers) and one consumer (the dispatcher thread).
+     */
+    private static class Ring extends Thread {
+        private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(ringSize);
+
+        /**
+         * The number of slots ever claimed by producers.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * The number of Entries ever taken by the consumer.
+         */
+        private volatile long head;
+
+        /**
+         * The number of Entries ever delivered to their listener.
+         */
+        private volatile long delivered;
+
+        /**
+         * The number of Entries ever published, to slots or the overflow list.
+         */
+        private final AtomicLong published = new AtomicLong();
+
+        /**
+         * Entries published while the ring was full, or while there were already entries here
+         * (so they stay in order).  The consumer takes them all once it has emptied the slots.
+         * Synchronize on overflow to access.
+         */
+        private final ArrayList<Entry> overflow = new ArrayList<Entry>();
+
+        /**
+         * True while overflow is not empty.
+         */
+        private volatile boolean overflowing;
+
+        private volatile boolean sleeping;
+
+        Ring(int i) {
+            super("H2EventDispatcher " + i); // set a Thread name to aid in debugging
+            setDaemon(true);
+        }
+
+        void publish(Entry e) {
+            published.incrementAndGet();
+            long t;
+            while(true) {
+                t = tail.get();
+                if(overflowing || t - head >= ringSize) {
+                    synchronized(overflow) {
+                        // the consumer may have emptied the overflow list and the ring since we looked.
+                        if(overflowing || tail.get() - head >= ringSize) {
+                            overflow.add(e);
+                            overflowing = true;
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                if(tail.compareAndSet(t, t+1)) {
+                    slots.set((int) (t & (ringSize-1)), e);
+                    break;
+                }
+            }
+            if(sleeping)
+                LockSupport.unpark(this);
+        }
+
+        /**
+         * Remove and return everything in the overflow list, provided every slot claimed so far has been consumed
+         * (since those were published first).  Otherwise returns null.
+         */
+        private ArrayList<Entry> takeOverflow() {
+            if(!overflowing || tail.get() != head)
+                return null;
+            synchronized(overflow) {
+                // once overflowing is set, producers add to overflow rather than the slots, so only a publish()
+                // concurrent with the one that started overflowing can claim a slot now, and those are unordered anyway.
+                ArrayList<Entry> result = new ArrayList<Entry>(overflow);
+                overflow.clear();
+                overflowing = false;
+                return result;
+            }
+        }
+
+        @Override public void run() {
+            int idle = 0;
+            while(true) {
+                final int i = (int) (head & (ringSize-1));
+                Entry e = slots.get(i);
+                if(e == null) {
+                    // empty, or a producer has claimed the slot but not yet filled it.
+                    ArrayList<Entry> spilled = takeOverflow();
+                    if(spilled != null) {
+                        for(Entry s : spilled) {
+                            deliver(s);
+                            delivered = delivered + 1;
+                        }
+                        idle = 0;
+                        continue;
+                    }
+                    if(++idle < spins) {
+                        Thread.yield();
+                        continue;
+                    }
+                    // publish() fills the slot (or overflow) before checking sleeping, so it will unpark us if we miss it here.
+                    sleeping = true;
+                    if(slots.get(i) == null && !overflowing)
+                        LockSupport.park();
+                    sleeping = false;
+                    idle = 0;
+                    continue;
+                }
+                idle = 0;
+                slots.set(i, null);
+                head = head + 1;
+                deliver(e);
+                delivered = delivered + 1;
+            }
+        }
+
+        private static void deliver(Entry e) {
+            try {
+                e.change.dispatch(e.rbb, e.listener);
+            }
+            catch (Exception ex) {
+                System.err.println("H2EventDispatcher: ignoring exception the EventListener raised: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Set the number of dispatcher threads.
+     * This has no effect once asynchronous listeners have been notified of anything.
+     */
+    public static synchronized void setNumThreads(int n) {
+        if(n < 1)
+            throw new IllegalArgumentException("H2EventDispatcher.setNumThreads: must be at least 1, not " + n);
+        numThreads = n;
+    }
+
+    private static synchronized Ring[] getRings() {
+        if(rings == null) {
+            Ring[] r = new Ring[numThreads];
+            for(int i = 0; i < r.length; ++i) {
+                r[i] = new Ring(i);
+                r[i].start();
+            }
+            rings = r;
+        }
+        return rings;
+    }
+
+    /**
+     * Queue the change for delivery to the listener by a dispatcher thread.
+     */
+    static void publish(RBB rbb, RBBEventListener listener, RBBEventChange change) {
+        Ring[] r = getRings();
+        final Long id = change.event.getID();
+        final int i = id == null ? 0 : (int) ((id & Long.MAX_VALUE) % r.length);
+        r[i].publish(new Entry(rbb, listener, change));
+    }
+
+    /**
+     * Wait until every change published before this was called has been delivered to its listener.
+     * <p>
+     * Called by a listener (i.e. in a dispatcher thread), this doesn't wait for
+     * that thread, since it couldn't make progress until the listener returns.
+     */
+    public static void flush() throws InterruptedException {
+        Ring[] r;
+        synchronized(H2EventDispatcher.class) {
+            r = rings;
+        }
+        if(r == null)
+            return; // nothing was ever published.
+
+        long[] targets = new long[r.length];
+        for(int i = 0; i < r.length; ++i)
+            targets[i] = r[i].published.get();
+
+        for(int i = 0; i < r.length; ++i) {
+            if(Thread.currentThread() == r[i])
+                continue;
+            while(r[i].delivered < targets[i]) {
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+                LockSupport.unpark(r[i]);
+                Thread.sleep(1);
+            }
+        }
+    }
+}
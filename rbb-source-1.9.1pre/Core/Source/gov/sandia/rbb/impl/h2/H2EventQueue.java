@@ -0,0 +1,451 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.RBB;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBEventListener;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import org.h2.tools.SimpleResultSet;
+
+/**
+ * H2EventQueue is a bounded queue of RBBEventChanges between the thread modifying
+ * an RBB (which fires the H2EventTrigger) and a subscriber that consumes them at
+ * its own pace, such as a remote listener served by H2EventTCPServer, or a local
+ * listener added with RBB.addLocalEventListener(listener, filter, capacity, policy).
+ * <p>
+ * When the queue is full, the OverflowPolicy determines what happens to the next change.
+ * <p>
+ * Counters are kept for each queue, and the queues of an RBB can be listed
+ * from SQL with "call RBB_EVENT_QUEUE_STATS()" or from the command line with
+ * "RBBMain eventQueues <RBB_URL>".
+ *
+ * @author rgabbot
+ */
+public class H2EventQueue
+{
+    public enum OverflowPolicy {
+        /**
+         * The thread modifying the RBB waits until the subscriber catches up.
+         * Nothing is lost, but a slow subscriber slows everybody down.
+         * If the subscriber makes no room for getBlockTimeoutMillis(), it is given up on:
+         * the queue is closed (see getOverruns) so the writer can continue.
+         */
+        BLOCK,
+        /**
+         * The oldest change in the queue is discarded to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Queued DataAdded changes are discarded in favor of later data added to the same
+         * table for the same Event, so the subscriber sees only the latest sample of each Timeseries.
+         * If the queue is still full (i.e. with other kinds of changes), then BLOCK.
+         */
+        COALESCE
+    }
+
+    /**
+     * How long a BLOCK or COALESCE queue waits for room before giving up on the subscriber.
+     * The writer (which holds the H2 locks of its transaction, stalling every other writer
+     * to the RBB) waits at most this long for a subscriber that has stopped reading.
+     * Shorter cuts off subscribers that are merely slow, e.g. during a garbage collection.
+     */
+    private static volatile long blockTimeoutMillis = 10000;
+
+    public static void setBlockTimeoutMillis(long ms) {
+        blockTimeoutMillis = ms;
+    }
+
+    public static long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    private static final java.util.concurrent.atomic.AtomicLong overruns = new java.util.concurrent.atomic.AtomicLong();
+
+    /**
+     * The number of queues (in this process) that have been closed because their
+     * subscriber made no room for getBlockTimeoutMillis().
+     */
+    public static long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * The capacity of a queue if none is specified.
+     * Large enough to absorb a burst from a fast writer without blocking it,
+     * small enough that a stalled listener can't exhaust the heap.
+     */
+    public static final int defaultCapacity = 100000;
+
+    public static final OverflowPolicy defaultPolicy = OverflowPolicy.BLOCK;
+
+    static class Entry {
+        Entry(RBBEventChange change, int[] subscriptions) {
+            this.change = change;
+            this.subscriptions = subscriptions;
+            this.nanoTime = System.nanoTime();
+        }
+        final RBBEventChange change;
+
+        /**
+         * The subscriptions the change matched, if it's for a multiplexed H2EventTCPServer connection.
+         */
+        final int[] subscriptions;
+
+        final long nanoTime;
+    }
+
+    private final String name;
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    /**
+     * Synchronize on this H2EventQueue to access.
+     */
+    private final LinkedList<Entry> q = new LinkedList<Entry>();
+
+    private boolean closed;
+
+    private long maxDepth, offered, delivered, dropped, coalesced, blocked;
+
+    /**
+     * The UUID of the RBB, if registered so it will show up in getStats.
+     */
+    private String RBB_UUID;
+
+    /**
+     * The local listener to which the changes are dispatched by startDispatcher, if any.
+     */
+    private RBBEventListener listener;
+
+    public H2EventQueue(String name, int capacity, OverflowPolicy policy) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("H2EventQueue capacity must be at least 1, not " + capacity);
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy == null ? defaultPolicy : policy;
+    }
+
+    /**
+     * Add a change to the queue, applying the OverflowPolicy if it is full.
+     * Does nothing if the queue has been closed.
+     */
+    public void offer(RBBEventChange change) {
+        offer(change, null);
+    }
+
+    /**
+     * Add a change that matched the specified subscriptions (see H2EventTrigger.addSubscription)
+     */
+    synchronized void offer(RBBEventChange change, int[] subscriptions) {
+        if(closed)
+            return;
+
+        ++offered;
+
+        if(q.size() >= capacity) {
+            if(policy == OverflowPolicy.DROP_OLDEST) {
+                q.removeFirst();
+                ++dropped;
+            }
+            else {
+                if(policy == OverflowPolicy.COALESCE)
+                    coalesce(change, subscriptions);
+                if(q.size() >= capacity) {
+                    ++blocked;
+                    final long deadline = System.nanoTime() + blockTimeoutMillis * 1000000L;
+                    while(q.size() >= capacity && !closed) {
+                        final long remaining = deadline - System.nanoTime();
+                        if(remaining <= 0) {
+                            overrun();
+                            return;
+                        }
+                        try {
+                            wait(remaining / 1000000L + 1);
+                        }
+                        catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            ++dropped;
+                            return;
+                        }
+                    }
+                    if(closed)
+                        return;
+                }
+            }
+        }
+
+        q.addLast(new Entry(change, subscriptions));
+        if(q.size() > maxDepth)
+            maxDepth = q.size();
+        notifyAll();
+    }
+
+    /**
+     * Give up on a subscriber that made no room for blockTimeoutMillis, by closing the queue.
+     * Whoever consumes the queue must notice (see isClosed) and tell the subscriber,
+     * e.g. H2EventTCPServer disconnects the client.
+     */
+    private void overrun() {
+        ++dropped; // the change being offered.
+        overruns.incrementAndGet();
+        System.err.println("H2EventQueue " + name + ": the subscriber made no room for " + blockTimeoutMillis
+            + " ms, so it is being dropped along with the " + q.size() + " changes queued for it.");
+        close();
+    }
+
+    /**
+     * Make room by discarding DataAdded changes that have been superseded by later ones
+     * for the same Event and table (and subscriptions).
+     * First just check whether the new change supersedes a queued one (the usual case for a
+     * high-rate Timeseries), and failing that, compact the whole queue.
+     */
+    private void coalesce(RBBEventChange change, int[] subscriptions) {
+        if(change instanceof RBBEventChange.DataAdded) {
+            final RBBEventChange.DataAdded d = (RBBEventChange.DataAdded) change;
+            for(Iterator<Entry> i = q.descendingIterator(); i.hasNext(); ) {
+                final Entry e = i.next();
+                if(sameData(d, e.change) && Arrays.equals(subscriptions, e.subscriptions)) {
+                    i.remove();
+                    ++coalesced;
+                    return;
+                }
+            }
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for(Iterator<Entry> i = q.descendingIterator(); i.hasNext(); ) {
+            final Entry e = i.next();
+            if(!(e.change instanceof RBBEventChange.DataAdded))
+                continue;
+            if(!seen.add(dataKey((RBBEventChange.DataAdded) e.change) + "\t" + Arrays.toString(e.subscriptions))) {
+                i.remove();
+                ++coalesced;
+            }
+        }
+    }
+
+    private static boolean sameData(RBBEventChange.DataAdded a, RBBEventChange b) {
+        if(!(b instanceof RBBEventChange.DataAdded))
+            return false;
+        RBBEventChange.DataAdded d = (RBBEventChange.DataAdded) b;
+        return a.event.getID().equals(d.event.getID()) && a.tableName.equals(d.tableName) && a.schemaName.equals(d.schemaName);
+    }
+
+    private static String dataKey(RBBEventChange.DataAdded d) {
+        return d.event.getID() + "\t" + d.schemaName + "\t" + d.tableName;
+    }
+
+    /**
+     * Remove and return the oldest change, or null if there is none.
+     */
+    public RBBEventChange poll() {
+        Entry e = pollEntry();
+        return e == null ? null : e.change;
+    }
+
+    /**
+     * Like poll, but also returning the subscriptions of the change.
+     */
+    synchronized Entry pollEntry() {
+        if(q.isEmpty())
+            return null;
+        ++delivered;
+        Entry e = q.removeFirst();
+        notifyAll(); // a producer may be waiting for room.
+        return e;
+    }
+
+    /**
+     * Remove and return the oldest change, waiting until there is one.
+     * Returns null if the queue is closed.
+     */
+    public synchronized RBBEventChange take() throws InterruptedException {
+        while(q.isEmpty() && !closed)
+            wait();
+        if(closed)
+            return null;
+        return poll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return q.isEmpty();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Discard any queued changes and release any threads waiting in offer or take.
+     * Subsequent changes are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        dropped += q.size();
+        q.clear();
+        notifyAll();
+        if(RBB_UUID != null)
+            Registry.remove(RBB_UUID, this);
+    }
+
+    public String getName() { return name; }
+
+    public int getCapacity() { return capacity; }
+
+    public OverflowPolicy getPolicy() { return policy; }
+
+    public synchronized int getDepth() { return q.size(); }
+
+    public synchronized long getMaxDepth() { return maxDepth; }
+
+    public synchronized long getOffered() { return offered; }
+
+    public synchronized long getDelivered() { return delivered; }
+
+    public synchronized long getDropped() { return dropped; }
+
+    public synchronized long getCoalesced() { return coalesced; }
+
+    /**
+     * The number of times offer() had to wait for room.
+     */
+    public synchronized long getBlocked() { return blocked; }
+
+    /**
+     * How long, in milliseconds, the oldest change in the queue has been waiting.  0 if it is empty.
+     */
+    public synchronized double getLagMillis() {
+        if(q.isEmpty())
+            return 0.0;
+        return (System.nanoTime() - q.getFirst().nanoTime) / 1e6;
+    }
+
+    /**
+     * Make this queue show up in getStats for the RBB (until it is closed)
+     */
+    public void register(String RBB_UUID) {
+        synchronized(this) {
+            this.RBB_UUID = RBB_UUID;
+        }
+        Registry.add(RBB_UUID, this);
+    }
+
+    /**
+     * Start a thread that dispatches the changes in this queue to the listener,
+     * until the queue is closed.
+     */
+    public void startDispatcher(final RBB rbb, final RBBEventListener listener) {
+        synchronized(this) {
+            this.listener = listener;
+        }
+        Thread t = new Thread("H2EventQueue: " + name) { // set a Thread name to aid in debugging
+            @Override public void run() {
+                try {
+                    for(RBBEventChange c = take(); c != null; c = take()) {
+                        try {
+                            c.dispatch(rbb, listener);
+                        }
+                        catch (Exception e) {
+                            System.err.println("H2EventQueue " + name + ": ignoring exception the EventListener raised: " + e.toString());
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Close the queue(s) dispatching to the specified listener for the specified RBB, if any.
+     * This is done before removing the listener's registration in H2EventTrigger, since
+     * a thread could be waiting in offer() while holding the lock on the registrations.
+     */
+    static void closeQueuesFor(String RBB_UUID, RBBEventListener listener) {
+        for(H2EventQueue q : Registry.get(RBB_UUID)) {
+            boolean mine;
+            synchronized(q) {
+                mine = q.listener == listener;
+            }
+            if(mine)
+                q.close();
+        }
+    }
+
+    /**
+     * List the H2EventQueues of the RBB, with their counters.
+     * <p>
+     * This is called through the SQL function RBB_EVENT_QUEUE_STATS() so it is
+     * evaluated in the server process, where the H2EventTCPServer queues are.
+     */
+    public static ResultSet getStats(Connection conn) throws SQLException {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("NAME", java.sql.Types.VARCHAR, 255, 0);
+        result.addColumn("CAPACITY", java.sql.Types.INTEGER, 10, 0);
+        result.addColumn("POLICY", java.sql.Types.VARCHAR, 20, 0);
+        result.addColumn("DEPTH", java.sql.Types.INTEGER, 10, 0);
+        result.addColumn("MAX_DEPTH", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("OFFERED", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("DELIVERED", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("DROPPED", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("COALESCED", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("BLOCKED", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("LAG_MS", java.sql.Types.DOUBLE, 20, 0);
+
+        // H2 calls functions returning a ResultSet once just to get the column list.
+        if(conn.getMetaData().getURL().equals("jdbc:columnlist:connection"))
+            return result;
+
+        for(H2EventQueue q : Registry.get(H2SRBB.getUUID(conn))) {
+            synchronized(q) {
+                result.addRow(q.name, q.capacity, q.policy.toString(), q.q.size(), q.maxDepth,
+                    q.offered, q.delivered, q.dropped, q.coalesced, q.blocked, q.getLagMillis());
+            }
+        }
+
+        return result;
+    }
+
+    private static class Registry {
+        private static final Map<String, Set<H2EventQueue>> queues = new HashMap<String, Set<H2EventQueue>>();
+
+        static synchronized void add(String UUID, H2EventQueue q) {
+            Set<H2EventQueue> s = queues.get(UUID);
+            if(s == null) {
+                s = new HashSet<H2EventQueue>();
+                queues.put(UUID, s);
+            }
+            s.add(q);
+        }
+
+        static synchronized void remove(String UUID, H2EventQueue q) {
+            Set<H2EventQueue> s = queues.get(UUID);
+            if(s == null)
+                return;
+            s.remove(q);
+            if(s.isEmpty())
+                queues.remove(UUID);
+        }
+
+        /**
+         * Returns a copy, so the caller needn't synchronize.
+         */
+        static synchronized Set<H2EventQueue> get(String UUID) {
+            Set<H2EventQueue> s = queues.get(UUID);
+            return s == null ? new HashSet<H2EventQueue>() : new HashSet<H2EventQueue>(s);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import gov.sandia.rbb.impl.h2.statics.H2SRBB;
 import java.net.*;
 import java.io.*;
 import java.sql.SQLException;
+import java.util.concurrent.Executor;
 
 /**
  * Together, H2EventTCPServer and H2EventTCPClient allow an EventListener
@@ -27,6 +28,56 @@ public class H2EventTCPClient extends Thread
     RBBFilter filter;
     Socket socket;
 
+    /**
+     * If true (the default) ask the server for the binary protocol described in H2EventTCPProtocol,
+     * which is much faster for high-rate timeseries.  Set this before calling start().
+     * This is ignored if the server predates the binary protocol.
+     */
+    public boolean binaryProtocol = true;
+
+    /**
+     * The size of the queue in the server for changes not yet sent to this client,
+     * and what happens when it fills up.  Set these before calling start().
+     * These are ignored if the server predates the binary protocol, since it doesn't accept them either.
+     */
+    public int queueCapacity = H2EventQueue.defaultCapacity;
+
+    public H2EventQueue.OverflowPolicy overflowPolicy = H2EventQueue.defaultPolicy;
+
+    /**
+     * If not null, start() runs the loops reading from the server (of H2EventTCPClient and H2EventTCPMultiplexClient)
+     * on this instead of a new Thread for each.  On JDK 21 or later, Executors.newVirtualThreadPerTaskExecutor()
+     * makes thousands of clients cheap, since each loop spends nearly all its time blocked reading the socket.
+     * Each loop occupies a thread of the executor until its connection is closed, so a fixed-size pool
+     * must have a thread for every client or the extra ones will not receive anything.
+     */
+    private static volatile Executor readerExecutor;
+
+    /**
+     * Set the Executor used to run clients started after this; null (the default) to start a new Thread for each.
+     */
+    public static void setReaderExecutor(Executor executor)
+    {
+        readerExecutor = executor;
+    }
+
+    /**
+     * Run the reader on the readerExecutor, if there is one.  Returns false if it must be started as a Thread instead.
+     */
+    static boolean execute(Thread reader)
+    {
+        final Executor executor = readerExecutor;
+        if(executor == null)
+            return false;
+        executor.execute(reader); // a Thread is a Runnable; its run() is simply called by a thread of the executor.
+        return true;
+    }
+
+    /**
+     * From H2SRBB.getEventTCPProtocolVersion.
+     */
+    private final int serverVersion;
+
     public H2EventTCPClient(
         RBB rbb,
         RBBEventListener listener,
@@ -35,12 +86,23 @@ public class H2EventTCPClient extends Thread
         this.rbb = rbb;
         this.listener = listener;
         this.filter = filter;
+        // a server that doesn't speak the binary protocol would take the request for it as the filter line.
+        this.serverVersion = H2SRBB.getEventTCPProtocolVersion(rbb.db());
+        this.socket = connect(rbb);
 
+        // System.err.println("H2EventTCPClient established connection.");
+    }
+
+    /**
+     * Connect to the H2EventTCPServer for the RBB, starting it if necessary.
+     */
+    static Socket connect(RBB rbb) throws SQLException
+    {
         final int port = H2SRBB.startEventTCPServer(rbb.db());
         final String hostname = H2SRBB.getServerAddress(rbb.db());
         try
         {
-            this.socket = new Socket(hostname, port);
+            return new Socket(hostname, port);
         }
         catch (UnknownHostException ex)
         {
@@ -50,8 +112,13 @@ public class H2EventTCPClient extends Thread
         {
             throw new SQLException("H2EventTCPClient constructor got IOException: " + ex.toString());
         }
+    }
 
-        // System.err.println("H2EventTCPClient established connection.");
+    @Override
+    public synchronized void start()
+    {
+        if(!execute(this))
+            super.start();
     }
 
     public synchronized void close() throws IOException
@@ -82,29 +149,31 @@ public class H2EventTCPClient extends Thread
             // If this thread is still alive and owns java.io.InputStreamReader and keeping your program alive,
             // you probably forgot to call RBB.removeEventListener after calling RBB.addEventListener.
             // Note these may be called indirectly by other classes (e.g. by RBBReplayControl) that have their own teardown functions.
-            Thread.currentThread().setName("H2EventTCPClient: "+dataTagString);
+            // (On a readerExecutor this names the H2EventTCPClient, not the thread running it.)
+            setName("H2EventTCPClient: "+dataTagString);
 
 
+            final boolean binary = binaryProtocol && serverVersion > 0;
+            if(binary)
+                printStream.println(H2EventTCPProtocol.binaryRequest + H2EventTCPProtocol.version);
+            if(serverVersion > 0)
+                printStream.println(H2EventTCPProtocol.queueRequest + queueCapacity + " " + overflowPolicy);
             printStream.println(dataTagString);
             printStream.flush();
             // System.err.println("Subscribed for " + dataTagString);
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(
-                socket.getInputStream()));
-
-            while (true)
-            {
-                //  System.err.println("Waiting for event update");
-                String line = in.readLine();
-                if(line == null) // this happens when the server closes the connection.
-                    break;
-                // System.err.println(line);
-                synchronized(this) { // close() could be called concurrently.
-                    if(listener == null)
-                        return;
-                    else
-                        dispatch(line);
-                }
+            if(binary) {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                final String reply = readLine(in);
+                if(reply == null)
+                    return;
+                if(reply.equals(H2EventTCPProtocol.binaryRequest + "0")) // the server declined, and is sending text after all.
+                    runText(new BufferedReader(new InputStreamReader(in)));
+                else
+                    runBinary(new DataInputStream(in));
+            }
+            else {
+                runText(new BufferedReader(new InputStreamReader(socket.getInputStream())));
             }
         }
         catch (Exception e)
@@ -114,6 +183,62 @@ public class H2EventTCPClient extends Thread
         }
     }
 
+    /**
+     * Read a line from the stream without reading past it (as BufferedReader would), since binary data may follow.
+     * Returns null at the end of the stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for(int b = in.read(); b != '\n'; b = in.read()) {
+            if(b < 0)
+                return null;
+            if(b != '\r')
+                line.write(b);
+        }
+        return line.toString();
+    }
+
+    private void runBinary(DataInputStream in) throws IOException
+    {
+        H2EventTCPProtocol.Decoder decoder = new H2EventTCPProtocol.Decoder();
+        while (true)
+        {
+            RBBEventChange change = decoder.read(in);
+            if(change == null) // this happens when the server closes the connection.
+                break;
+            synchronized(this) { // close() could be called concurrently.
+                if(listener == null)
+                    return;
+                try
+                {
+                    change.dispatch(rbb, listener);
+                }
+                catch (Exception ex)
+                {
+                    System.err.println("H2EventTCPClient: ignoring exception the EventListener raised while processing change: \"" + change.event + "\": " + ex.toString());
+                }
+            }
+        }
+    }
+
+    private void runText(BufferedReader in) throws Exception
+    {
+        while (true)
+        {
+            //  System.err.println("Waiting for event update");
+            String line = in.readLine();
+            if(line == null) // this happens when the server closes the connection.
+                break;
+            // System.err.println(line);
+            synchronized(this) { // close() could be called concurrently.
+                if(listener == null)
+                    return;
+                else
+                    dispatch(line);
+            }
+        }
+    }
+
     void dispatch(String s) throws Exception
     {
         // System.err.println("H2EventTCPClient Receiving " + s);
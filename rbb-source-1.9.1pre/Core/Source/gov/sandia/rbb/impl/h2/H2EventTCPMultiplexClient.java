@@ -0,0 +1,438 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.RBB;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBEventListener;
+import gov.sandia.rbb.RBBFilter;
+import gov.sandia.rbb.impl.h2.statics.H2SEventJournal;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Like H2EventTCPClient, but carries any number of subscriptions, each with its own
+ * listener and filter, over a single connection and thread.
+ * The server evaluates each change against all the subscriptions and sends it once,
+ * with the IDs of the subscriptions it matched (see H2EventTCPProtocol).
+ * <p>
+ * RBB.addEventListener uses one of these per RBB, so a process with many listeners
+ * (e.g. several EventCaches) doesn't need a socket and thread for each.
+ * Since the listeners share a thread, a slow listener delays the others,
+ * unless it was subscribed with an Executor to notify it.
+ *
+ * @author rgabbot
+ */
+public class H2EventTCPMultiplexClient extends Thread
+{
+    private final RBB rbb;
+
+    private final Socket socket;
+
+    private final PrintStream out;
+
+    /**
+     * The thread running run(), which may belong to the H2EventTCPClient readerExecutor rather than being this.
+     */
+    private volatile Thread reader;
+
+    private static class Subscription {
+        Subscription(RBBEventListener listener, RBBFilter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+        final RBBEventListener listener;
+        final RBBFilter filter;
+
+        /**
+         * If not null, the listener is notified by this instead of the thread reading from the server.
+         */
+        Notifier notifier;
+
+        /**
+         * True once the server has acknowledged the subscription.
+         */
+        boolean acknowledged;
+
+        /**
+         * While subscribe(listener, filter, resumeFrom) is delivering changes from the journal,
+         * changes received for this subscription are held here instead of being delivered.
+         */
+        ArrayList<RBBEventChange> buffer;
+    }
+
+    /**
+     * Synchronize on this H2EventTCPMultiplexClient to access.
+     */
+    private final Map<Integer, Subscription> subscriptions = new LinkedHashMap<Integer, Subscription>();
+
+    private int nextSubscription;
+
+    /**
+     * Held while notifying listeners, so subscribe(listener, filter, resumeFrom) can deliver the changes
+     * from the journal without the listener also being notified of received changes at the same time.
+     */
+    private final Object dispatching = new Object();
+
+    /**
+     * Connects to the H2EventTCPServer of the RBB.  Call start() to begin receiving changes.
+     * Subscriptions may be added before or after calling start().
+     */
+    public H2EventTCPMultiplexClient(RBB rbb) throws SQLException
+    {
+        super("H2EventTCPMultiplexClient"); // set a Thread name to aid in debugging
+        this.rbb = rbb;
+        this.socket = H2EventTCPClient.connect(rbb);
+        try {
+            out = new PrintStream(socket.getOutputStream());
+        }
+        catch (IOException ex) {
+            throw new SQLException("H2EventTCPMultiplexClient constructor got IOException: " + ex.toString());
+        }
+        out.println(H2EventTCPProtocol.binaryRequest + H2EventTCPProtocol.version);
+        out.println(H2EventTCPProtocol.multiplexRequest);
+        out.flush();
+    }
+
+    /**
+     * True if the H2EventTCPServer of the RBB supports multiplexing.
+     * If not, a H2EventTCPMultiplexClient connected to it would receive nothing,
+     * so use an H2EventTCPClient per listener instead.
+     */
+    public static boolean isSupported(RBB rbb) throws SQLException
+    {
+        return H2SRBB.getEventTCPProtocolVersion(rbb.db()) >= H2EventTCPProtocol.multiplexVersion;
+    }
+
+    /**
+     * Notify the listener of changes to Events matching the filter.
+     * Returns the ID of the subscription.
+     */
+    public synchronized int subscribe(RBBEventListener listener, RBBFilter filter)
+    {
+        return subscribe(new Subscription(listener, filter));
+    }
+
+    private synchronized int subscribe(Subscription s)
+    {
+        final int id = nextSubscription++;
+        subscriptions.put(id, s);
+        out.println(H2EventTCPProtocol.subscribeRequest + id + " " + s.filter.toString());
+        out.flush();
+        return id;
+    }
+
+    /**
+     * Like subscribe(listener, filter), but the listener is notified by tasks run on the Executor,
+     * so a slow listener doesn't delay the others.  The listener is still notified of one change at a time,
+     * in the order they were received.
+     */
+    public int subscribe(RBBEventListener listener, RBBFilter filter, Executor executor)
+    {
+        Subscription s = new Subscription(listener, filter);
+        s.notifier = new Notifier(rbb, listener, executor);
+        return subscribe(s);
+    }
+
+    /**
+     * Like subscribe(listener, filter), but the listener is first notified of the changes
+     * since the journal sequence number resumeFrom (see H2SEventJournal and RBBEventChange.journalSeq)
+     * and then of new changes, with none missed or repeated in between.
+     * Throws SQLException if the journal is not enabled or no longer has all the changes since resumeFrom,
+     * in which case the listener has not been subscribed.
+     * <p>
+     * This waits for the server to acknowledge the subscription, so it must not be called by a listener
+     * of this client.
+     */
+    public int subscribe(RBBEventListener listener, RBBFilter filter, long resumeFrom) throws SQLException
+    {
+        if(Thread.currentThread() == reader)
+            throw new SQLException("H2EventTCPMultiplexClient.subscribe: cannot resume a subscription from within a listener of the same client.");
+
+        Subscription s = new Subscription(listener, filter);
+        s.buffer = new ArrayList<RBBEventChange>();
+        final int id = subscribe(s);
+
+        RBBEventChange[] missed;
+        try {
+            // once the subscription is acknowledged, any change not yet in the journal will be received.
+            synchronized(this) {
+                while(!s.acknowledged) {
+                    if(socket.isClosed())
+                        throw new SQLException("H2EventTCPMultiplexClient.subscribe: the connection was closed.");
+                    wait(1000);
+                }
+            }
+            missed = H2SEventJournal.getChanges(rbb.db(), resumeFrom, filter);
+        }
+        catch(InterruptedException e) {
+            unsubscribe(id);
+            throw new SQLException("H2EventTCPMultiplexClient.subscribe: interrupted while waiting for the server.");
+        }
+        catch(SQLException e) {
+            unsubscribe(id);
+            throw e;
+        }
+
+        synchronized(dispatching) {
+            Set<Long> replayed = new HashSet<Long>();
+            for(RBBEventChange c : missed) {
+                replayed.add(c.journalSeq);
+                dispatch(rbb, c, listener);
+            }
+            while(true) {
+                ArrayList<RBBEventChange> buffered;
+                synchronized(this) {
+                    buffered = s.buffer;
+                    s.buffer = buffered.isEmpty() ? null : new ArrayList<RBBEventChange>();
+                }
+                if(buffered.isEmpty())
+                    break;
+                for(RBBEventChange c : buffered)
+                    if(c.journalSeq == 0 || !replayed.contains(c.journalSeq)) // received, but not also in the journal.
+                        dispatch(rbb, c, listener);
+            }
+        }
+
+        return id;
+    }
+
+    private synchronized void unsubscribe(int id)
+    {
+        if(subscriptions.remove(id) != null) {
+            out.println(H2EventTCPProtocol.unsubscribeRequest + id);
+            out.flush();
+        }
+    }
+
+    /**
+     * Remove all the subscriptions for the listener.
+     * Returns false if the listener had no subscriptions.
+     * <p>
+     * This doesn't wait for a notification already in progress in another thread, since that listener may be
+     * blocked on a lock the caller holds (e.g. EventCache.disconnect calls this while synchronized on the
+     * EventCache, whose listener methods are synchronized too).  So the listener may still receive the one
+     * change being delivered when this was called, even after this returns, but no others.
+     */
+    public boolean unsubscribe(RBBEventListener listener)
+    {
+        boolean found = false;
+        ArrayList<Notifier> notifiers = new ArrayList<Notifier>();
+        synchronized(this) {
+            for(Iterator<Map.Entry<Integer, Subscription>> i = subscriptions.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<Integer, Subscription> e = i.next();
+                if(e.getValue().listener != listener)
+                    continue;
+                out.println(H2EventTCPProtocol.unsubscribeRequest + e.getKey());
+                i.remove();
+                found = true;
+                if(e.getValue().notifier != null)
+                    notifiers.add(e.getValue().notifier);
+            }
+            out.flush();
+        }
+        for(Notifier n : notifiers)
+            n.cancel();
+        return found;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return subscriptions.isEmpty();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        subscriptions.clear();
+        socket.close();
+        notifyAll(); // in case subscribe is waiting for an acknowledgement.
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if(!H2EventTCPClient.execute(this))
+            super.start();
+    }
+
+    @Override
+    public void run()
+    {
+        reader = Thread.currentThread();
+        try
+        {
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            final String reply = H2EventTCPClient.readLine(in);
+            if(reply == null)
+                return;
+            int version = 0;
+            try {
+                version = Integer.parseInt(reply.substring(H2EventTCPProtocol.binaryRequest.length()).trim());
+            }
+            catch (Exception e) {
+            }
+            if(version < H2EventTCPProtocol.multiplexVersion) {
+                System.err.println("H2EventTCPMultiplexClient: the H2EventTCPServer doesn't support multiplexing (replied \"" + reply + "\"); no changes will be received.");
+                return;
+            }
+            run(new DataInputStream(in));
+        }
+        catch (Exception e)
+        {
+            if(!socket.isClosed()) // don't complain if socket was explicitly closed.
+              System.err.println("Exception in H2EventTCPMultiplexClient.run: " + e.toString());
+        }
+    }
+
+    private void run(DataInputStream in) throws IOException
+    {
+        H2EventTCPProtocol.Decoder decoder = new H2EventTCPProtocol.Decoder();
+        Set<RBBEventListener> notified = new HashSet<RBBEventListener>();
+        while (true)
+        {
+            RBBEventChange change;
+            try {
+                change = decoder.readFrame(in);
+            }
+            catch(java.io.EOFException e) { // this happens when the server closes the connection.
+                break;
+            }
+            acknowledge(decoder);
+            if(change == null)
+                continue;
+            final int[] ids = decoder.getSubscriptions();
+            if(ids == null)
+                continue;
+            synchronized(dispatching) {
+                notified.clear();
+                for(int id : ids) {
+                    Subscription s;
+                    RBBEventChange c = change;
+                    synchronized(this) {
+                        s = subscriptions.get(id); // null if it was unsubscribed since the change was sent.
+                        if(s == null || !notified.add(s.listener))
+                            continue; // each listener is notified at most once, as with local listeners.
+                        if(notified.size() > 1) { // each listener gets its own copy, since it could modify it.
+                            c = change.clone();
+                            c.event = change.event.clone();
+                        }
+                        if(s.buffer != null) { // the subscription is still catching up from the journal.
+                            s.buffer.add(c);
+                            continue;
+                        }
+                    }
+                    if(s.notifier != null)
+                        s.notifier.add(c);
+                    else if(isSubscribed(id, s)) // check again, in case it was unsubscribed while cloning.
+                        dispatch(rbb, c, s.listener);
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isSubscribed(int id, Subscription s)
+    {
+        return subscriptions.get(id) == s;
+    }
+
+    private synchronized void acknowledge(H2EventTCPProtocol.Decoder decoder)
+    {
+        boolean any = false;
+        for(Integer id = decoder.pollAcknowledged(); id != null; id = decoder.pollAcknowledged()) {
+            Subscription s = subscriptions.get(id);
+            if(s != null)
+                s.acknowledged = true;
+            any = true;
+        }
+        if(any)
+            notifyAll();
+    }
+
+    private static void dispatch(RBB rbb, RBBEventChange change, RBBEventListener listener)
+    {
+        try
+        {
+            change.dispatch(rbb, listener);
+        }
+        catch (Exception ex)
+        {
+            System.err.println("H2EventTCPMultiplexClient: ignoring exception the EventListener raised while processing change: \"" + change.event + "\": " + ex.toString());
+        }
+    }
+
+    /**
+     * Notifies a listener of changes using tasks run on an Executor, one change at a time and in order.
+     * At most one task is queued or running in the Executor at a time for each Notifier.
+     */
+    private static class Notifier implements Runnable {
+        Notifier(RBB rbb, RBBEventListener listener, Executor executor) {
+            this.rbb = rbb;
+            this.listener = listener;
+            this.executor = executor;
+        }
+        private final RBB rbb;
+        private final RBBEventListener listener;
+        private final Executor executor;
+
+        /**
+         * Synchronize on this Notifier to access pending, scheduled, and cancelled.
+         */
+        private final ArrayDeque<RBBEventChange> pending = new ArrayDeque<RBBEventChange>();
+        private boolean scheduled;
+        private boolean cancelled;
+
+        void add(RBBEventChange change) {
+            synchronized(this) {
+                if(cancelled)
+                    return;
+                pending.add(change);
+                if(scheduled)
+                    return;
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            }
+            catch(Exception e) { // e.g. RejectedExecutionException if the executor was shut down.
+                System.err.println("H2EventTCPMultiplexClient: the Executor could not run a task to notify the listener: " + e.toString());
+                synchronized(this) {
+                    pending.clear();
+                    scheduled = false;
+                }
+            }
+        }
+
+        @Override public void run() {
+            while(true) {
+                RBBEventChange change;
+                synchronized(this) {
+                    change = cancelled ? null : pending.poll();
+                    if(change == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                dispatch(rbb, change, listener);
+            }
+        }
+
+        /**
+         * Discard pending changes.  Like unsubscribe, this doesn't wait for a notification in progress.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.Event;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.Tagset;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary protocol optionally used between H2EventTCPServer and H2EventTCPClient.
+ * <p>
+ * The text protocol is one line per RBBEventChange, which means formatting and
+ * re-parsing the tagset and every value of every timeseries sample.
+ * In the binary protocol:
+ * <ul>
+ * <li>The client sends the line "#RBB-BINARY v" (where v is the highest version it speaks) before the filter line
+ *     (and before or after the optional queueRequest line).
+ * <li>The server replies "#RBB-BINARY v" with the version it will use, 0 meaning it will use the text protocol.
+ *     Thereafter the server sends only frames.
+ * <li>Each frame is an int length (of the remainder of the frame), a byte frame type, then the fields of the frame.
+ * <li>Tagsets, schema names and table names are sent once per connection in a STRING frame
+ *     that assigns them a number, and thereafter are referred to by that number.
+ * <li>Values in DataAdded rows are sent as raw doubles, floats, etc. with a type byte.
+ * <li>A DataBatchAdded is sent as a single frame with all its rows.
+ * </ul>
+ * A receiver skips frames of types it doesn't recognize, so new frame types can be added
+ * in later versions without breaking older clients.
+ * <p>
+ * Version 2 adds multiplexing, so one connection can carry the changes for many
+ * listeners in the client process (see H2EventTCPMultiplexClient).
+ * Instead of a filter line, the client sends "#RBB-MULTIPLEX" and then at any time
+ * "#RBB-SUBSCRIBE id filter" or "#RBB-UNSUBSCRIBE id" lines.  Each change is sent once,
+ * preceded by a SUBSCRIPTIONS frame listing the IDs of the subscriptions it matched.
+ * The server sends a SUBSCRIBED frame once a subscription is in effect, so the client
+ * knows any change made after that will be sent (see H2SEventJournal).
+ * <p>
+ * If the RBB has an H2SEventJournal, each change is preceded by a SEQUENCE frame
+ * with its RBBEventChange.journalSeq.
+ *
+ * @author rgabbot
+ */
+class H2EventTCPProtocol
+{
+    /**
+     * The first line sent by a client wanting the binary protocol, followed by the version.
+     */
+    static final String binaryRequest = "#RBB-BINARY ";
+
+    /**
+     * A line sent by a client before the filter line to specify the size and
+     * H2EventQueue.OverflowPolicy of its queue in the server, e.g. "#RBB-QUEUE 1000 COALESCE"
+     * This may be sent with either the text or binary protocol.
+     */
+    static final String queueRequest = "#RBB-QUEUE ";
+
+    /**
+     * Sent by a client instead of the filter line, to add and remove subscriptions
+     * with subscribeRequest and unsubscribeRequest lines.  Requires version 2.
+     */
+    static final String multiplexRequest = "#RBB-MULTIPLEX";
+
+    /**
+     * Followed by the subscription ID (chosen by the client), a space, and the filter.
+     */
+    static final String subscribeRequest = "#RBB-SUBSCRIBE ";
+
+    /**
+     * Followed by the subscription ID.
+     */
+    static final String unsubscribeRequest = "#RBB-UNSUBSCRIBE ";
+
+    /**
+     * The highest version of the binary protocol implemented here.
+     */
+    static final int version = 2;
+
+    /**
+     * The first version supporting multiplexRequest.
+     */
+    static final int multiplexVersion = 2;
+
+    // frame types
+    static final byte STRING = 'S';
+    static final byte CLEAR_STRINGS = 'C';
+    static final byte ADDED = 'A';
+    static final byte MODIFIED = 'M';
+    static final byte REMOVED = 'R';
+    static final byte DATA_ADDED = 'D';
+    static final byte DATA_BATCH_ADDED = 'B';
+    static final byte SUBSCRIPTIONS = 'T';
+    static final byte SUBSCRIBED = 'K';
+    static final byte SEQUENCE = 'Q';
+
+    // types of values in DataAdded rows
+    static final byte NULL_VALUE = 0;
+    static final byte DOUBLE_VALUE = 1;
+    static final byte FLOAT_VALUE = 2;
+    static final byte LONG_VALUE = 3;
+    static final byte INT_VALUE = 4;
+    static final byte BOOLEAN_VALUE = 5;
+    static final byte STRING_VALUE = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Encodes RBBEventChanges for one connection.
+     * Not thread-safe; the caller must serialize calls to encode and also
+     * send the results in the order they were encoded, since a frame may refer
+     * to strings defined in previously encoded frames.
+     */
+    static class Encoder {
+        /**
+         * The maximum number of strings remembered per connection before starting over.
+         * Bounds the memory held on both ends of the connection; starting over only
+         * costs resending each string in full once.
+         */
+        private static final int maxStrings = 10000;
+
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        /**
+         * The frames encoded for the current change.
+         */
+        private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+
+        private final DataOutputStream framesOut = new DataOutputStream(frames);
+
+        /**
+         * The current frame.  Its length isn't known until it's done, so it's
+         * encoded here and then copied to frames.
+         */
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(frame);
+
+        ByteBuffer encode(RBBEventChange change) throws IOException {
+            return encode(change, null);
+        }
+
+        /**
+         * If subscriptions is not null, the change is preceded by a SUBSCRIPTIONS frame.
+         */
+        ByteBuffer encode(RBBEventChange change, int[] subscriptions) throws IOException {
+            frames.reset();
+
+            // start over before, not during, a change, since a change can use up to 3 strings.
+            if(strings.size() + 3 > maxStrings) {
+                strings.clear();
+                startFrame(CLEAR_STRINGS);
+                endFrame();
+            }
+
+            final Event event = change.event;
+            final int tagset = defineString(event.getTagset().toString());
+
+            if(subscriptions != null) {
+                startFrame(SUBSCRIPTIONS);
+                out.writeInt(subscriptions.length);
+                for(int i : subscriptions)
+                    out.writeInt(i);
+                endFrame();
+            }
+
+            if(change.journalSeq != 0) {
+                startFrame(SEQUENCE);
+                out.writeLong(change.journalSeq);
+                endFrame();
+            }
+
+            if(change instanceof RBBEventChange.DataAdded) {
+                RBBEventChange.DataAdded dataAdded = (RBBEventChange.DataAdded) change;
+                final int schema = defineString(dataAdded.schemaName);
+                final int table = defineString(dataAdded.tableName);
+                startFrame(DATA_ADDED);
+                writeEvent(event, tagset);
+                out.writeInt(schema);
+                out.writeInt(table);
+                out.writeInt(dataAdded.data.length);
+                for(Object x : dataAdded.data)
+                    writeValue(x);
+                endFrame();
+            }
+            else if(change instanceof RBBEventChange.DataBatchAdded) {
+                RBBEventChange.DataBatchAdded batch = (RBBEventChange.DataBatchAdded) change;
+                final int schema = defineString(batch.schemaName);
+                final int table = defineString(batch.tableName);
+                startFrame(DATA_BATCH_ADDED);
+                writeEvent(event, tagset);
+                out.writeInt(schema);
+                out.writeInt(table);
+                out.writeInt(batch.rows.length);
+                for(Object[] row : batch.rows) {
+                    out.writeInt(row.length);
+                    for(Object x : row)
+                        writeValue(x);
+                }
+                endFrame();
+            }
+            else if(change instanceof RBBEventChange.Added) {
+                startFrame(ADDED);
+                writeEvent(event, tagset);
+                out.writeBoolean(((RBBEventChange.Added) change).wasCreated);
+                endFrame();
+            }
+            else if(change instanceof RBBEventChange.Removed) {
+                startFrame(REMOVED);
+                writeEvent(event, tagset);
+                out.writeBoolean(((RBBEventChange.Removed) change).wasDeleted);
+                endFrame();
+            }
+            else {
+                startFrame(MODIFIED);
+                writeEvent(event, tagset);
+                endFrame();
+            }
+
+            return ByteBuffer.wrap(frames.toByteArray());
+        }
+
+        /**
+         * Encode a SUBSCRIBED frame acknowledging the subscription.
+         */
+        ByteBuffer encodeSubscribed(int subscription) throws IOException {
+            frames.reset();
+            startFrame(SUBSCRIBED);
+            out.writeInt(subscription);
+            endFrame();
+            return ByteBuffer.wrap(frames.toByteArray());
+        }
+
+        /**
+         * Return the number for the string, first encoding a frame to define it if necessary.
+         */
+        private int defineString(String s) throws IOException {
+            Integer i = strings.get(s);
+            if(i != null)
+                return i;
+
+            i = strings.size();
+            strings.put(s, i);
+            startFrame(STRING);
+            out.writeInt(i);
+            writeString(s);
+            endFrame();
+            return i;
+        }
+
+        private void startFrame(byte type) throws IOException {
+            frame.reset();
+            out.writeByte(type);
+        }
+
+        private void endFrame() throws IOException {
+            out.flush();
+            framesOut.writeInt(frame.size());
+            frame.writeTo(framesOut);
+            framesOut.flush();
+        }
+
+        private void writeEvent(Event event, int tagset) throws IOException {
+            out.writeLong(event.getID());
+            out.writeDouble(event.getStart() == null ? Double.NaN : event.getStart());
+            out.writeDouble(event.getEnd() == null ? Double.NaN : event.getEnd());
+            out.writeInt(tagset);
+        }
+
+        private void writeValue(Object x) throws IOException {
+            if(x == null) {
+                out.writeByte(NULL_VALUE);
+            }
+            else if(x instanceof Double) {
+                out.writeByte(DOUBLE_VALUE);
+                out.writeDouble((Double) x);
+            }
+            else if(x instanceof Float) {
+                out.writeByte(FLOAT_VALUE);
+                out.writeFloat((Float) x);
+            }
+            else if(x instanceof Long) {
+                out.writeByte(LONG_VALUE);
+                out.writeLong((Long) x);
+            }
+            else if(x instanceof Integer) {
+                out.writeByte(INT_VALUE);
+                out.writeInt((Integer) x);
+            }
+            else if(x instanceof Boolean) {
+                out.writeByte(BOOLEAN_VALUE);
+                out.writeBoolean((Boolean) x);
+            }
+            else {
+                // anything else is sent as a string, as in the text protocol.
+                out.writeByte(STRING_VALUE);
+                writeString(x.toString());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            final byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Decodes the frames sent by an Encoder.  One per connection.
+     */
+    static class Decoder {
+        private final ArrayList<String> strings = new ArrayList<String>();
+
+        /**
+         * Parsed copies of the strings used as tagsets, so each is parsed only once.
+         */
+        private final Map<Integer, Tagset> tagsets = new HashMap<Integer, Tagset>();
+
+        /**
+         * From the last SUBSCRIPTIONS frame, until the next change.
+         */
+        private int[] pendingSubscriptions;
+
+        private int[] subscriptions;
+
+        /**
+         * From the last SEQUENCE frame, until the next change.
+         */
+        private long pendingSeq;
+
+        /**
+         * Subscriptions acknowledged by SUBSCRIBED frames and not yet retrieved by pollAcknowledged.
+         */
+        private final ArrayList<Integer> acknowledged = new ArrayList<Integer>();
+
+        /**
+         * Read frames from the stream until one represents an RBBEventChange, and return it.
+         * Returns null at the end of the stream.
+         */
+        RBBEventChange read(DataInputStream in) throws IOException {
+            while(true) {
+                RBBEventChange change;
+                try {
+                    change = readFrame(in);
+                }
+                catch(java.io.EOFException e) {
+                    return null;
+                }
+                if(change != null)
+                    return change;
+            }
+        }
+
+        /**
+         * Read and decode one frame.
+         * Returns null if the frame doesn't represent an RBBEventChange.
+         * Throws EOFException at the end of the stream.
+         */
+        RBBEventChange readFrame(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            return decode(ByteBuffer.wrap(frame));
+        }
+
+        /**
+         * Returns the ID of a subscription acknowledged by a SUBSCRIBED frame, or null if there are no more.
+         */
+        Integer pollAcknowledged() {
+            return acknowledged.isEmpty() ? null : acknowledged.remove(0);
+        }
+
+        /**
+         * The subscriptions matched by the change last returned by read or decode,
+         * or null if it wasn't preceded by a SUBSCRIPTIONS frame.
+         */
+        int[] getSubscriptions() {
+            return subscriptions;
+        }
+
+        /**
+         * Decode one frame.  Returns null if the frame doesn't represent an RBBEventChange.
+         */
+        RBBEventChange decode(ByteBuffer frame) throws IOException {
+            RBBEventChange change = decodeFrame(frame);
+            if(change != null) {
+                subscriptions = pendingSubscriptions;
+                pendingSubscriptions = null;
+                change.journalSeq = pendingSeq;
+                pendingSeq = 0;
+            }
+            return change;
+        }
+
+        private RBBEventChange decodeFrame(ByteBuffer frame) throws IOException {
+            final byte type = frame.get();
+            switch(type) {
+                case STRING: {
+                    final int i = frame.getInt();
+                    if(i != strings.size())
+                        throw new IOException("H2EventTCPProtocol: expected string number " + strings.size() + " but got " + i);
+                    strings.add(readString(frame));
+                    return null;
+                }
+                case SUBSCRIPTIONS: {
+                    pendingSubscriptions = new int[frame.getInt()];
+                    for(int i = 0; i < pendingSubscriptions.length; ++i)
+                        pendingSubscriptions[i] = frame.getInt();
+                    return null;
+                }
+                case SUBSCRIBED:
+                    acknowledged.add(frame.getInt());
+                    return null;
+                case SEQUENCE:
+                    pendingSeq = frame.getLong();
+                    return null;
+                case CLEAR_STRINGS:
+                    strings.clear();
+                    tagsets.clear();
+                    return null;
+                case ADDED:
+                    return new RBBEventChange.Added(readEvent(frame), frame.get() != 0);
+                case MODIFIED:
+                    return new RBBEventChange.Modified(readEvent(frame));
+                case REMOVED:
+                    return new RBBEventChange.Removed(readEvent(frame), frame.get() != 0);
+                case DATA_ADDED: {
+                    final Event event = readEvent(frame);
+                    final String schemaName = getString(frame.getInt());
+                    final String tableName = getString(frame.getInt());
+                    Object[] data = new Object[frame.getInt()];
+                    for(int i = 0; i < data.length; ++i)
+                        data[i] = readValue(frame);
+                    return new RBBEventChange.DataAdded(event, schemaName, tableName, data);
+                }
+                case DATA_BATCH_ADDED: {
+                    final Event event = readEvent(frame);
+                    final String schemaName = getString(frame.getInt());
+                    final String tableName = getString(frame.getInt());
+                    Object[][] rows = new Object[frame.getInt()][];
+                    for(int i = 0; i < rows.length; ++i) {
+                        rows[i] = new Object[frame.getInt()];
+                        for(int j = 0; j < rows[i].length; ++j)
+                            rows[i][j] = readValue(frame);
+                    }
+                    return new RBBEventChange.DataBatchAdded(event, schemaName, tableName, rows);
+                }
+                default:
+                    return null; // a frame type from a later version.
+            }
+        }
+
+        private Event readEvent(ByteBuffer frame) throws IOException {
+            final long id = frame.getLong();
+            final double start = frame.getDouble();
+            final double end = frame.getDouble();
+            final int tagsetNumber = frame.getInt();
+            Tagset tagset = tagsets.get(tagsetNumber);
+            if(tagset == null) {
+                tagset = new Tagset(getString(tagsetNumber));
+                tagsets.put(tagsetNumber, tagset);
+            }
+            // each Event gets its own copy, since the receiver could modify it.
+            return new Event(id, start, end, tagset.clone());
+        }
+
+        private Object readValue(ByteBuffer frame) throws IOException {
+            final byte type = frame.get();
+            switch(type) {
+                case NULL_VALUE: return null;
+                case DOUBLE_VALUE: return frame.getDouble();
+                case FLOAT_VALUE: return frame.getFloat();
+                case LONG_VALUE: return frame.getLong();
+                case INT_VALUE: return frame.getInt();
+                case BOOLEAN_VALUE: return frame.get() != 0;
+                case STRING_VALUE: return readString(frame);
+                default: throw new IOException("H2EventTCPProtocol: unknown value type " + type);
+            }
+        }
+
+        private String getString(int i) throws IOException {
+            if(i < 0 || i >= strings.size())
+                throw new IOException("H2EventTCPProtocol: undefined string number " + i);
+            return strings.get(i);
+        }
+
+        private static String readString(ByteBuffer frame) {
+            byte[] b = new byte[frame.getInt()];
+            frame.get(b);
+            return new String(b, UTF8);
+        }
+    }
+}
@@ -7,112 +7,368 @@ import gov.sandia.rbb.RBBEventListener;
 import gov.sandia.rbb.RBBFilter;
 import gov.sandia.rbb.impl.h2.statics.H2SRBB;
 import gov.sandia.rbb.util.StringsWriter;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-class ClientConnection extends Thread
+/**
+ * The server side of one connection from an H2EventTCPClient.
+ * There is no thread per client; all reads and writes are done by the
+ * H2EventTCPServer thread when its Selector says they won't block.
+ * Changes are queued in an H2EventQueue by whatever thread fires the H2EventTrigger,
+ * and encoded by the server thread when the socket can take them.
+ */
+class ClientConnection
 {
+    final H2EventTCPServer _server;
 
-    Socket _socket;
+    final SocketChannel _channel;
 
-    String _RBB_UUID;
+    final String _RBB_UUID;
 
-    // read the taglist from the socket.
-    // we only send the taglist to the client before using the id for the first time, so we need to keep track of which sequences have already been identified.
-    HashSet<Long> _seq_ids;
+    /**
+     * Bytes of the current line of the initial request, until the filter line is read.
+     * On a multiplexed connection, the current line of the subscribe / unsubscribe requests.
+     */
+    private ByteArrayOutputStream _request = new ByteArrayOutputStream();
+
+    /**
+     * Non-null if the client asked for the binary protocol (see H2EventTCPProtocol).
+     */
+    private H2EventTCPProtocol.Encoder _encoder;
+
+    /**
+     * The version of the binary protocol in use, or 0 for text.
+     */
+    private int _version;
+
+    /**
+     * True if the client asked for multiplexRequest, so the connection carries any
+     * number of subscriptions instead of one filter.
+     */
+    private boolean _multiplexed;
+
+    /**
+     * The size and policy of _q, which the client may specify before the filter line.
+     */
+    private int _queueCapacity = H2EventQueue.defaultCapacity;
+
+    private H2EventQueue.OverflowPolicy _overflowPolicy = H2EventQueue.defaultPolicy;
+
+    /**
+     * Changes not yet encoded.  Created once the filter has been read.
+     */
+    private volatile H2EventQueue _q;
 
-    java.util.concurrent.LinkedBlockingQueue<RBBEventChange> _q;
+    /**
+     * Encoded bytes not yet written to the socket.
+     */
+    private ByteBuffer _pending;
+
+    /**
+     * The maximum number of changes encoded into _pending at once.
+     * Larger batches mean fewer writes, but one busy client holds the selector thread
+     * longer before the others get a turn.
+     */
+    private static final int maxBatch = 256;
+
+    /**
+     * True if the server has been asked to watch for the socket becoming writable, and hasn't yet done so.
+     * Synchronize on this to access.
+     */
+    private boolean _writeRequested;
+
+    private class Listener extends RBBEventListener.Adapter implements H2EventTrigger.SubscriptionListener {
+        @Override public void eventChanged(RBB rbb, RBBEventChange eventChange) {
+            _q.offer(eventChange);
+            requestWrite();
+        }
+        // send the batch as a whole instead of unrolling it.
+        @Override public void eventDataBatchAdded(RBB rbb, RBBEventChange.DataBatchAdded ec) {
+            eventChanged(rbb, ec);
+        }
+        @Override public void subscribedChange(RBB rbb, RBBEventChange change, int[] subscriptions) {
+            _q.offer(change, subscriptions);
+            requestWrite();
+        }
+    }
+
+    private final Listener _listener = new Listener();
 
-    public ClientConnection(String RBB_UUID, Socket socket)
+    /**
+     * Subscriptions on a multiplexed connection that are in effect, but not yet acknowledged to the client.
+     * Synchronize on this to access.
+     */
+    private final ArrayList<Integer> _acks = new ArrayList<Integer>();
+
+    public ClientConnection(H2EventTCPServer server, String RBB_UUID, SocketChannel channel)
     {
-        super("H2EventTCPServer.ClientConnection"); // set a Thread name to aid in debugging
+        _server = server;
         _RBB_UUID = RBB_UUID;
-        _q = new java.util.concurrent.LinkedBlockingQueue<RBBEventChange>();
-        _socket = socket;
-        _seq_ids = new HashSet<Long>();
+        _channel = channel;
     }
 
-    private void startWaitingForClientToClose() {
-        // Start a thread which does nothing but wait to read a -1 byte which indicates the client has exited.
-        // It does seem hugely wasteful to use two threads (r+w) for each client, but there
-        // is no alternative but to switch over to NIO (nonblocking I/O) (which would be a good idea sometime or other)
-        new Thread() {
-            @Override public void run() {
-                Thread.currentThread().setName("H2EventTCPServer ClientConnection Reader"); // set a Thread name to aid in debugging
+    /**
+     * Called by the server thread when the socket is readable.
+     * Before the filter line is complete this accumulates the request; after that the client isn't
+     * expected to send anything more (unless the connection is multiplexed), so this only detects the client disconnecting.
+     * Returns false if the connection should be closed.
+     */
+    boolean read(ByteBuffer buf) throws IOException
+    {
+        buf.clear();
+        final int n = _channel.read(buf);
+        if(n < 0) {
+            if(_request != null)
+                System.err.println("RBBEventListner - client disconnected before sending an initial request.  Listener exiting.");
+            return false;
+        }
+        if(_request == null)
+            return true; // ignore anything after the request.
+
+        buf.flip();
+        while(buf.hasRemaining()) {
+            final byte b = buf.get();
+            if(b != '\n') {
+                _request.write(b);
+                continue;
+            }
+            String tagline = new String(_request.toByteArray());
+            _request.reset();
+            if(tagline.endsWith("\r")) // as BufferedReader.readLine would do.
+                tagline = tagline.substring(0, tagline.length()-1);
+
+            if(tagline.startsWith(H2EventTCPProtocol.binaryRequest)) {
+                // the client speaks the binary protocol; reply with the version we'll use.  The filter is on the next line.
+                int version;
                 try {
-                    int read = _socket.getInputStream().read();
-                    // System.err.println("Server got read() from client: " + read);
+                    version = Math.min(H2EventTCPProtocol.version,
+                        Integer.parseInt(tagline.substring(H2EventTCPProtocol.binaryRequest.length()).trim()));
                 }
-                catch (IOException ex) {
-                    // System.err.println("Server got exception reading from client.");
+                catch (NumberFormatException e) {
+                    version = 0;
                 }
+                if(version > 0)
+                    _encoder = new H2EventTCPProtocol.Encoder();
+                _version = version;
+                _pending = ByteBuffer.wrap((H2EventTCPProtocol.binaryRequest + version + "\n").getBytes());
+                requestWrite();
+                continue;
+            }
 
+            if(tagline.startsWith(H2EventTCPProtocol.queueRequest)) {
+                // the client specified the size and policy for its queue.  The filter is on the next line.
+                String[] words = tagline.substring(H2EventTCPProtocol.queueRequest.length()).trim().split(" ");
                 try {
-                    _socket.close();
+                    _queueCapacity = Integer.parseInt(words[0]);
+                    _overflowPolicy = H2EventQueue.OverflowPolicy.valueOf(words[1]);
+                }
+                catch (Exception e) {
+                    System.err.println("H2EventTCPServer: ignoring invalid queue request \"" + tagline + "\": " + e.toString());
                 }
-                catch (IOException ex1) { }
+                continue;
+            }
+
+            if(_multiplexed) {
+                if(!subscription(tagline))
+                    return false;
+                continue;
+            }
+
+            if(tagline.equals(H2EventTCPProtocol.multiplexRequest)) {
+                if(_version < H2EventTCPProtocol.multiplexVersion) {
+                    System.err.println("H2EventTCPServer: a multiplexed connection requires version " + H2EventTCPProtocol.multiplexVersion + " of the binary protocol; closing the connection.");
+                    return false;
+                }
+                _multiplexed = true;
+                H2EventQueue q = new H2EventQueue("TCP " + _channel.socket().getRemoteSocketAddress() + " multiplexed",
+                    _queueCapacity, _overflowPolicy);
+                q.register(_RBB_UUID);
+                _q = q;
+                continue;
+            }
+
+            _request = null;
+            try {
+                H2EventQueue q = new H2EventQueue("TCP " + _channel.socket().getRemoteSocketAddress() + " " + tagline,
+                    _queueCapacity, _overflowPolicy);
+                q.register(_RBB_UUID);
+                _q = q;
+                H2EventTrigger.addListener(_RBB_UUID, _listener, RBBFilter.fromString(tagline));
+            }
+            catch (Exception e) {
+                System.err.println("Exception on clientconnection: " + e.toString());
+                return false;
             }
-        }.start();
+            break;
+        }
+        return true;
     }
 
-    @Override
-    public void run()
+    /**
+     * Handle a line from a multiplexed client.  Returns false if the connection should be closed.
+     */
+    private boolean subscription(String line)
     {
-        RBBEventListener listener = new RBBEventListener.Adapter () {
-            @Override public void eventChanged(RBB rbb, RBBEventChange eventChange) {
-                _q.offer(eventChange);
+        try {
+            if(line.startsWith(H2EventTCPProtocol.subscribeRequest)) {
+                final String request = line.substring(H2EventTCPProtocol.subscribeRequest.length());
+                final int space = request.indexOf(' ');
+                final int id = Integer.parseInt(request.substring(0, space));
+                H2EventTrigger.addSubscription(_RBB_UUID, _listener, RBBFilter.fromString(request.substring(space+1)), id);
+                synchronized(this) {
+                    _acks.add(id);
+                }
+                requestWrite();
             }
-        };
-        
-        // System.err.println("A client thread is running");
-        try
-        {
-            final BufferedReader in = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
-            String tagline = in.readLine();
-            if(tagline == null) {
-                System.err.println("RBBEventListner - client disconnected before sending an initial request.  Listener exiting.");
-                return;
+            else if(line.startsWith(H2EventTCPProtocol.unsubscribeRequest)) {
+                final int id = Integer.parseInt(line.substring(H2EventTCPProtocol.unsubscribeRequest.length()).trim());
+                H2EventTrigger.removeSubscription(_RBB_UUID, _listener, id);
+            }
+            else {
+                System.err.println("H2EventTCPServer: ignoring invalid request on multiplexed connection: \"" + line + "\"");
             }
-            startWaitingForClientToClose();
-            Thread.currentThread().setName("H2EventTCPServer ClientConnection Writer tags="+tagline); // set a Thread name to aid in debugging
-            RBBFilter filter = RBBFilter.fromString(tagline);
-            H2EventTrigger.addListener(_RBB_UUID, listener, filter);
-            StringsWriter sw = new StringsWriter();
+        }
+        catch (Exception e) {
+            System.err.println("Exception on clientconnection: " + e.toString());
+            return false;
+        }
+        return true;
+    }
 
-            while(!_socket.isClosed()) // this detects if shutdown was initiated by the server side; the server closes the socket.  The socket cannnot be closed by the client, even if it disconnects cleanly.
-            {
-                RBBEventChange c = _q.poll(200, TimeUnit.MILLISECONDS); // come up for air once in a while to see if the socket has been closed.
-                if(c == null)
+    /**
+     * Ask the server to watch for the socket becoming writable, unless that's already been done.
+     * If the queue has been closed because the client stopped reading (see H2EventQueue.OverflowPolicy.BLOCK)
+     * the socket may never become writable, so the request is made regardless, and the server closes the connection.
+     */
+    private void requestWrite()
+    {
+        synchronized(this) {
+            if(_writeRequested && !isOverrun())
+                return;
+            _writeRequested = true;
+        }
+        _server.requestWrite(this);
+    }
+
+    /**
+     * True if the queue was closed before the connection was, i.e. the client stopped reading.
+     */
+    boolean isOverrun()
+    {
+        final H2EventQueue q = _q;
+        return q != null && q.isClosed();
+    }
+
+    /**
+     * Called by the server thread when the socket is writable.
+     * Writes as much as the socket will take without blocking.
+     * Returns true if everything queued so far has been written.
+     */
+    boolean write() throws IOException
+    {
+        while(true) {
+            if(_pending == null || !_pending.hasRemaining()) {
+                _pending = encodeQueued();
+                if(_pending == null) {
+                    synchronized(this) { // a change queued after this would find _writeRequested false, and request it again.
+                        if((_q == null || _q.isEmpty()) && _acks.isEmpty()) {
+                            _writeRequested = false;
+                            return true;
+                        }
+                    }
                     continue;
+                }
+            }
+            _channel.write(_pending);
+            if(_pending.hasRemaining())
+                return false; // socket buffer is full.
+        }
+    }
+
+    /**
+     * Encode up to maxBatch changes from the queue in the protocol requested by the client.
+     * Returns null if there were none.
+     */
+    private ByteBuffer encodeQueued() throws IOException
+    {
+        if(_q == null)
+            return null;
 
+        ByteArrayOutputStream bytes = null;
+        synchronized(this) {
+            for(Integer id : _acks) {
+                if(bytes == null)
+                    bytes = new ByteArrayOutputStream();
+                ByteBuffer b = _encoder.encodeSubscribed(id);
+                bytes.write(b.array(), b.arrayOffset(), b.remaining());
+            }
+            _acks.clear();
+        }
+
+        StringsWriter sw = null;
+        for(int i = 0; i < maxBatch; ++i) {
+            H2EventQueue.Entry e = _q.pollEntry();
+            if(e == null)
+                break;
+            final RBBEventChange c = e.change;
+            if(bytes == null)
+                bytes = new ByteArrayOutputStream();
+            if(_encoder != null) {
+                ByteBuffer b = _encoder.encode(c, e.subscriptions);
+                bytes.write(b.array(), b.arrayOffset(), b.remaining());
+            }
+            else {
                 // write out the change as a string in the format expected by H2EventTCPClient
+                if(sw == null)
+                    sw = new StringsWriter();
                 sw.getBuffer().setLength(0); // erase previous contents
                 c.toString(sw);
                 sw.write("\n");
-                // System.err.println("H2EventTCPServer Sending " + sw.toString());
-                _socket.getOutputStream().write(sw.toString().getBytes());
-             }
-        }
-        catch (Exception e)
-        {
-            System.err.println("Exception on clientconnection: " + e.toString());
+                bytes.write(sw.toString().getBytes());
+            }
         }
-
-        H2EventTrigger.removeListener(_RBB_UUID, listener);
-        // System.err.println("Client thread exiting " + Thread.currentThread().getId());
+        return bytes == null ? null : ByteBuffer.wrap(bytes.toByteArray());
     }
 
+    void close()
+    {
+        // close the queue first, so a writer blocked in offer() (waiting for this thread to drain it) gives up.
+        if(_q != null)
+            _q.close();
+        H2EventTrigger.removeListener(_RBB_UUID, _listener);
+        try {
+            _channel.close();
+        }
+        catch (IOException ex) {
+        }
+    }
 }
 
+/**
+ * H2EventTCPServer sends the changes to Events of interest to remote H2EventTCPClients.
+ *
+ * A single thread serves all the clients of an RBB using a Selector, with
+ * non-blocking writes from a per-client output buffer, so the number of threads
+ * doesn't grow with the number of remote listeners.
+ *
+ * The client sends an RBBFilter on one line, and the server replies with one line per
+ * RBBEventChange, unless the client first asks for the binary protocol described in H2EventTCPProtocol.
+ * With the binary protocol, a client can also multiplex any number of subscriptions over one connection.
+ */
 public class H2EventTCPServer extends Thread
 {
     /**
@@ -127,7 +383,20 @@ public class H2EventTCPServer extends Thread
 
     private String _RBB_UUID;
 
-    private ServerSocket _serverSocket;
+    private ServerSocketChannel _serverSocket;
+
+    private Selector _selector;
+
+    /**
+     * Clients with output queued since the server thread last looked.
+     */
+    private final ConcurrentLinkedQueue<ClientConnection> _writeRequests = new ConcurrentLinkedQueue<ClientConnection>();
+
+    /**
+     * The size of the buffer used to read from clients.
+     * Clients send only a single line, so this needn't be large.
+     */
+    private static final int readBufferSize = 4096;
     
     /**
      * call start() instead of using the constructor.
@@ -138,52 +407,128 @@ public class H2EventTCPServer extends Thread
         _RBB_UUID = H2SRBB.getUUID(db);
         _clients = new HashSet<ClientConnection>();
 
+        try {
+            _selector = Selector.open();
+        }
+        catch(IOException e) {
+            throw new SQLException("H2EventTCPServer failed to initialize; could not open a Selector: " + e.toString());
+        }
+
         // try multiple port numbers, keeping in mind that any could be already
         // claimed by another H2EventTCPServer in this process, in another process,
         // or claimed by a process unrelated to RBB.
         for(int i = 0; i < 100 && _serverSocket == null; ++i) {
+            ServerSocketChannel ssc = null;
             try {
                 _port = _nextServerPort++;
-                _serverSocket = new ServerSocket(_port);
+                ssc = ServerSocketChannel.open();
+                ssc.socket().bind(new InetSocketAddress(_port));
+                ssc.configureBlocking(false);
+                ssc.register(_selector, SelectionKey.OP_ACCEPT);
+                _serverSocket = ssc;
             } catch(IOException e) {
                 // This is OK, just try the next one...
                 // System.err.println("IOException while trying to claim port " + _port + ": " + e.toString());
+                if(ssc != null) {
+                    try { ssc.close(); } catch(IOException ex) { }
+                }
             }
         }
 
-        if(_serverSocket == null)
-            throw new SQLException("H2EventTCPServer failed to initialize; could not claim a server socket!");        
+        if(_serverSocket == null) {
+            try { _selector.close(); } catch(IOException ex) { }
+            throw new SQLException("H2EventTCPServer failed to initialize; could not claim a server socket!");
+        }
+    }
+
+    /**
+     * Called by a ClientConnection (in any thread) when it has output queued.
+     */
+    void requestWrite(ClientConnection client)
+    {
+        _writeRequests.add(client);
+        _selector.wakeup();
     }
 
     @Override
     public void run()
     {
+        final ByteBuffer readBuffer = ByteBuffer.allocate(readBufferSize);
         try
         {
             System.err.println("RBB TCP Event Server listening for connection on port " + _port);
-            while (true)
+            while (_serverSocket.isOpen())
             {
-                Socket cs = _serverSocket.accept();
-                // System.err.println("RBB TCP Event Server client accepted");
-                ClientConnection cc = new ClientConnection(_RBB_UUID, cs);
-                _clients.add(cc);
-                cc.start();
+                _selector.select();
+
+                // start watching for writability of clients with new output.
+                for(ClientConnection client = _writeRequests.poll(); client != null; client = _writeRequests.poll()) {
+                    if(client.isOverrun()) {
+                        if(_clients.remove(client))
+                            client.close();
+                        continue;
+                    }
+                    SelectionKey key = client._channel.keyFor(_selector);
+                    if(key != null && key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                for(SelectionKey key : _selector.selectedKeys()) {
+                    if(!key.isValid())
+                        continue;
+
+                    if(key.isAcceptable()) {
+                        SocketChannel cs = _serverSocket.accept();
+                        if(cs == null)
+                            continue;
+                        // System.err.println("RBB TCP Event Server client accepted");
+                        cs.configureBlocking(false);
+                        ClientConnection cc = new ClientConnection(this, _RBB_UUID, cs);
+                        cs.register(_selector, SelectionKey.OP_READ, cc);
+                        _clients.add(cc);
+                        continue;
+                    }
+
+                    ClientConnection cc = (ClientConnection) key.attachment();
+                    try {
+                        boolean keep = true;
+                        if(key.isReadable())
+                            keep = cc.read(readBuffer);
+                        if(keep && key.isValid() && key.isWritable() && cc.write())
+                            key.interestOps(SelectionKey.OP_READ);
+                        if(!keep) {
+                            _clients.remove(cc);
+                            cc.close();
+                        }
+                    }
+                    catch (IOException e) {
+                        // the client went away.
+                        _clients.remove(cc);
+                        cc.close();
+                    }
+                }
+                _selector.selectedKeys().clear();
             }
         }
+        catch (ClosedSelectorException e)
+        {
+            // stop() was called.
+        }
         catch (Exception e)
         {
-            if(!_serverSocket.isClosed()) // if it was explicitly closed, then the exception was expected.
+            if(_serverSocket.isOpen()) // if it was explicitly closed, then the exception was expected.
                 System.err.println("Server on port " + _port + " exiting on exception: " + e.toString());
         }
         finally {
-            for(ClientConnection client : _clients) {
-                try {
-                    client._socket.close();
-                }
-                catch (IOException ex) {
-                }
-            }
+            for(ClientConnection client : _clients)
+                client.close();
             _clients.clear();
+            try {
+                _serverSocket.close();
+                _selector.close();
+            }
+            catch (IOException ex) {
+            }
         }
         //System.err.println("H2EventTCPServer server socket exiting.");
     }
@@ -207,6 +552,7 @@ public class H2EventTCPServer extends Thread
             try
             {
                 s._serverSocket.close();
+                s._selector.wakeup();
             }
             catch (IOException ex)
             {
@@ -230,6 +576,7 @@ public class H2EventTCPServer extends Thread
             try
             {
                 s._serverSocket.close();
+                s._selector.wakeup();
             }
             catch (IOException ex)
             {
@@ -267,5 +614,15 @@ public class H2EventTCPServer extends Thread
         return s._port;
     }
 
+    /**
+     * The highest version of the binary protocol (see H2EventTCPProtocol) spoken by the server.
+     * <p>
+     * This should normally be called only through a SQL Query "RBB_EVENT_TCP_PROTOCOL_VERSION", or by calling
+     * H2SRBB.getEventTCPProtocolVersion, so it is answered by the server process.
+     */
+    public static int getProtocolVersion()
+    {
+        return H2EventTCPProtocol.version;
+    }
 
 }
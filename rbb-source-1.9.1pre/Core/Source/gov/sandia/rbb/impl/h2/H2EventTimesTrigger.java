@@ -0,0 +1,87 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.impl.h2.statics.H2SEventTimes;
+import gov.sandia.rbb.impl.h2.statics.H2STime;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+H2EventTimesTrigger keeps the times materialized by H2SEventTimes up to date.
+
+H2SEventTimes.materialize registers it on RBB_EVENTS and RBB_TIME_COORDINATES, e.g.:
+create trigger RBB_MATERIALIZED_TIMES_EVENTS after insert, update, delete on RBB_EVENTS for each row call "gov.sandia.rbb.impl.h2.H2EventTimesTrigger"
+
+The triggers are dropped and re-created whenever the set of materialized time
+coordinates changes, so each instance reads that set only once.
+ */
+public class H2EventTimesTrigger
+    implements org.h2.api.Trigger
+{
+    private boolean onEvents;
+
+    /**
+     * The ID and Tagset of each materialized time coordinate.
+     * Initialized lazily, since the trigger may never be fired.
+     */
+    private List<Object[]> coordinates;
+
+    private H2STime.Cache cache;
+
+    /**
+     * The value of H2SEventTimes.getCoordinatesVersion() when cache was created.
+     */
+    private long cacheVersion;
+
+    @Override
+    public void init(Connection conn,
+        String schemaName,
+        String triggerName,
+        String tableName,
+        boolean before,
+        int type)
+    {
+        onEvents = tableName.equals("RBB_EVENTS");
+    }
+
+    @Override
+    public void fire(Connection conn,
+        Object[] oldRow,
+        Object[] newRow)
+        throws SQLException
+    {
+        if(!onEvents) {
+            H2SEventTimes.coordinatesChanged(conn);
+            return;
+        }
+
+        if(coordinates == null)
+            coordinates = H2SEventTimes.getMaterialized(conn);
+
+        if(newRow == null) {
+            H2SEventTimes.eventDeleted(conn, coordinates, (Long) oldRow[0]);
+            return;
+        }
+
+        // discard cached time coordinate parameters if any time coordinates have changed.
+        final long version = H2SEventTimes.getCoordinatesVersion();
+        if(cache == null || cacheVersion != version) {
+            cache = new H2STime.Cache();
+            cacheVersion = version;
+        }
+
+        // RBB_EVENTS columns are ID, START_TIME, END_TIME, TAGSET_ID
+        H2SEventTimes.eventChanged(conn, coordinates, cache,
+            (Long) newRow[0], (Double) newRow[1], (Double) newRow[2], (Long) newRow[3]);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public void remove()
+    {
+    }
+}
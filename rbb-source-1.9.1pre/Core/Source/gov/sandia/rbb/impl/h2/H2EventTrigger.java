@@ -7,14 +7,26 @@ import gov.sandia.rbb.RBBEventChange;
 import gov.sandia.rbb.RBBEventListener;
 import gov.sandia.rbb.RBBFilter;
 import gov.sandia.rbb.Tagset;
+import gov.sandia.rbb.impl.h2.statics.H2SEvent;
+import gov.sandia.rbb.impl.h2.statics.H2SEventJournal;
+import gov.sandia.rbb.impl.h2.statics.H2SIntervalIndex;
 import gov.sandia.rbb.impl.h2.statics.H2SRBB;
 import gov.sandia.rbb.impl.h2.statics.H2STagset;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 H2EventTrigger creates notifications for EventListeners using SQL Triggers from the H2 database.
@@ -70,18 +82,25 @@ public class H2EventTrigger
     }
     /**
      * Send the event to all interested listeners, at most once each.
+     *<p>
+     * The listeners are notified after releasing the lock on the Registrations, since
+     * notifying one may block (e.g. on a full H2EventQueue) until some other thread drains it,
+     * and that thread may need the Registrations to add or remove a listener.
      *
      * @param rbb
      * @param evt
      * @param dataSchema
      * @param dataTable
-     * @param newDataRow
+     * @param newDataRows
      * @param prevTagset
+     * @param journalSeq the sequence number of the change in the H2SEventJournal, or 0
      * @throws java.sql.SQLException
      */
-    protected void fireEvent(RBB rbb, Event evt, String dataSchema, String dataTable, Object[] newDataRow, Event prevEvent) throws SQLException
+    protected void fireEvent(RBB rbb, Event evt, String dataSchema, String dataTable, Object[][] newDataRows, Event prevEvent, long journalSeq) throws SQLException
     {
-        Set<Registration> listeners = ListenerRegistrations.getRegistrations(getRBB_UUID(rbb));
+        Registrations listeners = ListenerRegistrations.getRegistrations(getRBB_UUID(rbb));
+
+        ArrayList<Delivery> deliveries = new ArrayList<Delivery>();
 
         synchronized(listeners) {
 
@@ -95,42 +114,53 @@ public class H2EventTrigger
 
             HashSet<RBBEventListener > willBeNotified = new HashSet<RBBEventListener >();
 
-            for(Registration r : listeners)
+            // a SubscriptionListener gets each change once, with all the subscriptions it matched.
+            Map<RBBEventListener, Map<Class<?>, Subscribed>> subscribed = null;
+
+            // the tags of the Event(s) are converted to interned IDs once, rather than compared as strings for each listener.
+            final EventTags tags = new EventTags(evt);
+            final EventTags prevTags = prevEvent == null ? null : new EventTags(prevEvent);
+
+            for(Registration r : listeners.candidates(evt, prevEvent))
             try
             {
                 if(willBeNotified.contains(r.listener))
                     continue;
 
-                final boolean amInterested = r.interested(rbb.db(), evt);
+                final boolean amInterested = r.interested(rbb.db(), evt, tags, dataSchema);
 
                 // prevTagset is only meaningful for UPDATEs
                 // If it's null, the tagset hasn't changed since last time, so our interest state hasn't changed.
-                final boolean wasInterested = prevEvent == null ? amInterested : r.interested(rbb.db(), prevEvent);
+                final boolean wasInterested = prevEvent == null ? amInterested : r.interested(rbb.db(), prevEvent, prevTags, dataSchema);
 
                 if(!amInterested && !wasInterested)
                     continue;
 
-                willBeNotified.add(r.listener);
-
-                // UPDATE is the interesting case, since it can eventAdded, eventModified, or eventRemoved.
-                if (this.triggerType == org.h2.api.Trigger.UPDATE)
-                {
-                    // there are 4 combinations wasInterested and amInterested.
-                    // both can't be false or we wouldn't have got here so that leaves 3
-                    if(wasInterested && amInterested)
-                        new RBBEventChange.Modified(evt).dispatch(rbb, r.listener); // was changed in some way that didn't affect this listener's interest
-                    // if we get here, one is true and the other is false.
-                    else if(amInterested)
-                        new RBBEventChange.Added(evt, false).dispatch(rbb, r.listener); // event being added, though not newly created.
-                    else
-                        new RBBEventChange.Removed(evt, false).dispatch(rbb, r.listener);
+                RBBEventChange change = makeChange(evt, dataSchema, dataTable, newDataRows, wasInterested, amInterested);
+                if(change == null)
+                    continue;
+                change.journalSeq = journalSeq;
+
+                if(r.subscription < 0) {
+                    willBeNotified.add(r.listener);
+                    deliveries.add(new Direct(r, change));
+                    continue;
                 }
-                else if(newDataRow != null)
-                    new RBBEventChange.DataAdded(evt, dataSchema, dataTable, newDataRow).dispatch(rbb, r.listener);
-                else if (this.triggerType == org.h2.api.Trigger.INSERT)
-                    new RBBEventChange.Added(evt, true).dispatch(rbb, r.listener);
-                else if (this.triggerType == org.h2.api.Trigger.DELETE)
-                    new RBBEventChange.Removed(evt, true).dispatch(rbb, r.listener);
+
+                // with multiple subscriptions, an UPDATE could be an Added for some, a Modified for others, etc.
+                if(subscribed == null)
+                    subscribed = new LinkedHashMap<RBBEventListener, Map<Class<?>, Subscribed>>();
+                Map<Class<?>, Subscribed> byType = subscribed.get(r.listener);
+                if(byType == null) {
+                    byType = new LinkedHashMap<Class<?>, Subscribed>();
+                    subscribed.put(r.listener, byType);
+                }
+                Subscribed s = byType.get(change.getClass());
+                if(s == null) {
+                    s = new Subscribed((SubscriptionListener) r.listener, change);
+                    byType.put(change.getClass(), s);
+                }
+                s.subscriptions.add(r.subscription);
             }
             catch (Exception e)
             {
@@ -139,7 +169,109 @@ public class H2EventTrigger
                     + e.toString());
             }
 
-            // System.err.println("Done firing events - thread " + Thread.currentThread());
+            if(subscribed != null)
+                for(Map<Class<?>, Subscribed> byType : subscribed.values())
+                    deliveries.addAll(byType.values());
+        }
+
+        for(Delivery d : deliveries)
+            d.deliver(rbb);
+
+        // System.err.println("Done firing events - thread " + Thread.currentThread());
+    }
+
+    /**
+     * Returns the change to send to a listener with the specified interest in evt before and after
+     * the change, or null if there is nothing to send.
+     */
+    private RBBEventChange makeChange(Event evt, String dataSchema, String dataTable, Object[][] newDataRows, boolean wasInterested, boolean amInterested)
+    {
+        // UPDATE is the interesting case, since it can eventAdded, eventModified, or eventRemoved.
+        if (this.triggerType == org.h2.api.Trigger.UPDATE)
+        {
+            // there are 4 combinations wasInterested and amInterested.
+            // both can't be false or we wouldn't have got here so that leaves 3
+            if(wasInterested && amInterested)
+                return new RBBEventChange.Modified(evt); // was changed in some way that didn't affect this listener's interest
+            // if we get here, one is true and the other is false.
+            else if(amInterested)
+                return new RBBEventChange.Added(evt, false); // event being added, though not newly created.
+            else
+                return new RBBEventChange.Removed(evt, false);
+        }
+        else if(newDataRows != null && newDataRows.length == 1)
+            return new RBBEventChange.DataAdded(evt, dataSchema, dataTable, newDataRows[0]);
+        else if(newDataRows != null)
+            return new RBBEventChange.DataBatchAdded(evt, dataSchema, dataTable, newDataRows);
+        else if (this.triggerType == org.h2.api.Trigger.INSERT)
+            return new RBBEventChange.Added(evt, true);
+        else if (this.triggerType == org.h2.api.Trigger.DELETE)
+            return new RBBEventChange.Removed(evt, true);
+        return null;
+    }
+
+    /**
+     * A listener for several subscriptions at once (see addSubscription), which
+     * is notified of each change once, along with the subscriptions it matched.
+     */
+    interface SubscriptionListener extends RBBEventListener
+    {
+        void subscribedChange(RBB rbb, RBBEventChange change, int[] subscriptions);
+    }
+
+    /**
+     * A notification decided on by fireEvent, to be made once it has released the Registrations.
+     */
+    static private abstract class Delivery
+    {
+        abstract void deliver(RBB rbb);
+    }
+
+    /**
+     * A change to be sent to a listener registered without a subscription.
+     */
+    static private class Direct extends Delivery
+    {
+        Direct(Registration registration, RBBEventChange change) {
+            this.registration = registration;
+            this.change = change;
+        }
+        final Registration registration;
+        final RBBEventChange change;
+
+        @Override void deliver(RBB rbb) {
+            try {
+                registration.deliver(rbb, change);
+            }
+            catch (Exception e) {
+                System.err.println("H2EventTrigger: ignoring exception the listener raised: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * A change to be sent to a SubscriptionListener, and the subscriptions it matched so far.
+     */
+    static private class Subscribed extends Delivery
+    {
+        Subscribed(SubscriptionListener listener, RBBEventChange change) {
+            this.listener = listener;
+            this.change = change;
+        }
+        final SubscriptionListener listener;
+        final RBBEventChange change;
+        final ArrayList<Integer> subscriptions = new ArrayList<Integer>();
+
+        @Override void deliver(RBB rbb) {
+            int[] a = new int[subscriptions.size()];
+            for(int i = 0; i < a.length; ++i)
+                a[i] = subscriptions.get(i);
+            try {
+                listener.subscribedChange(rbb, change, a);
+            }
+            catch (Exception e) {
+                System.err.println("H2EventTrigger: ignoring exception the SubscriptionListener raised: " + e.toString());
+            }
         }
     }
 
@@ -149,6 +281,18 @@ public class H2EventTrigger
         Object[] newRow)
         throws SQLException {
 
+        // the interval index (if enabled) must be kept current whether or not anybody is listening.
+        H2SIntervalIndex.update(conn, oldRow, newRow);
+
+        // likewise the Events cached for H2EventDataTrigger, since listeners may be added later.
+        if(this.triggerType != org.h2.api.Trigger.INSERT && !DataOwners.isEmpty())
+            DataOwners.remove(getRBB_UUID(conn), (Long) oldRow[0]);
+
+        // and the journal (if enabled) so listeners can later catch up on what they missed.
+        final long journalSeq = H2SEventJournal.eventChanged(conn, getRBB_UUID(conn),
+            this.triggerType == org.h2.api.Trigger.INSERT ? null : oldRow,
+            this.triggerType == org.h2.api.Trigger.DELETE ? null : newRow);
+
         if(ListenerRegistrations.isEmpty())
             return;
 
@@ -167,7 +311,7 @@ public class H2EventTrigger
 
         Event evt = eventFromRow(conn, eventRow);
 
-        fireEvent(RBB.fromOpenRBB(conn), evt, null, null, null, prevEvent);
+        fireEvent(RBB.fromOpenRBB(conn), evt, null, null, null, prevEvent, journalSeq);
     }
 
     private Event eventFromRow(Connection conn, Object[] row) throws SQLException {
@@ -189,33 +333,319 @@ public class H2EventTrigger
     static private class Registration
     {
 
-        Registration(RBBEventListener listener, RBBFilter filter)
+        Registration(RBBEventListener listener, RBBFilter filter, H2EventQueue queue, RBB asyncRBB)
         {
             this.listener = listener;
             this.filter = filter;
+            this.queue = queue;
+            this.asyncRBB = asyncRBB;
+            this.seq = nextSeq.getAndIncrement();
+
+            if(filter.tags != null) {
+                tagNames = new int[filter.tags.length][];
+                tagValues = new int[filter.tags.length][];
+                for(int i = 0; i < filter.tags.length; ++i) {
+                    ArrayList<Integer> names = new ArrayList<Integer>();
+                    ArrayList<Integer> values = new ArrayList<Integer>();
+                    for(String name : filter.tags[i].getNames()) {
+                        for(String value : filter.tags[i].getValues(name)) {
+                            names.add(TagIDs.intern(name));
+                            values.add(value == null ? -1 : TagIDs.intern(value));
+                        }
+                    }
+                    tagNames[i] = toArray(names);
+                    tagValues[i] = toArray(values);
+                }
+            }
+
+            if(filter.start != null || filter.end != null) {
+                // the tags and schema are checked separately, so don't check them again.
+                otherConditions = new RBBFilter(filter);
+                otherConditions.tags = null;
+                otherConditions.attachmentInSchema = null;
+            }
         }
 
-        boolean interested(Connection conn, Event e) throws SQLException { return filter.matches(conn, e); }
+        /**
+         * dataSchema is the schema to which data was just added for the Event, if any.
+         */
+        boolean interested(Connection conn, Event e, EventTags tags, String dataSchema) throws SQLException {
+            if(tagNames != null && !tags.matches(tagNames, tagValues))
+                return false;
+            if(filter.IDs != null && !Arrays.asList(filter.IDs).contains(e.getID()))
+                return false;
+            // if data was just added in the schema of interest, the Event obviously has data there.
+            if(filter.attachmentInSchema != null && !filter.attachmentInSchema.equals(dataSchema)
+                && H2SEvent.attachedDataTables(conn,e.getID(),filter.attachmentInSchema).length == 0)
+                return false;
+            if(otherConditions != null && !otherConditions.matches(conn, e))
+                return false;
+            return true;
+        }
+
+        boolean isFor(RBBEventListener listener, Integer subscription) {
+            return this.listener == listener && (subscription == null || this.subscription == subscription);
+        }
+
+        /**
+         * Notify the listener directly, or through its queue or H2EventDispatcher if it has one.
+         */
+        void deliver(RBB rbb, RBBEventChange change) {
+            if(queue != null)
+                queue.offer(change);
+            else if(asyncRBB != null)
+                H2EventDispatcher.publish(asyncRBB, listener, change);
+            else
+                change.dispatch(rbb, listener);
+        }
 
         RBBEventListener listener;
         RBBFilter filter;
+        H2EventQueue queue;
+
+        /**
+         * If not negative, the listener is a SubscriptionListener and this is the subscription.
+         */
+        int subscription = -1;
+
+        /**
+         * If not null, the listener is notified by H2EventDispatcher, and passed this RBB.
+         */
+        RBB asyncRBB;
+
+        /**
+         * The order in which the Registrations were created, so listeners are notified in that order.
+         */
+        final long seq;
+        private static final AtomicLong nextSeq = new AtomicLong();
+
+        /**
+         * For each tagset in the filter, the interned IDs of its tag names and values (-1 for a null value)
+         */
+        int[][] tagNames, tagValues;
+
+        /**
+         * The conditions of the filter not otherwise checked by interested(), if any.
+         */
+        private RBBFilter otherConditions;
+
+        private static int[] toArray(ArrayList<Integer> a) {
+            int[] result = new int[a.size()];
+            for(int i = 0; i < result.length; ++i)
+                result[i] = a.get(i);
+            return result;
+        }
+    }
+
+    /**
+     * Interned IDs for the tag names and values used in the filters of listeners,
+     * so the tags of Events can be compared to them without string comparisons.
+     * Only the strings in filters are interned; a tag of an Event that was never
+     * interned can't be of interest to any listener.
+     */
+    static private class TagIDs {
+        private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+        static synchronized int intern(String s) {
+            Integer id = ids.get(s);
+            if(id == null) {
+                id = ids.size();
+                ids.put(s, id);
+            }
+            return id;
+        }
+
+        static synchronized Integer get(String s) {
+            return ids.get(s);
+        }
+
+        static long pair(int nameID, int valueID) {
+            return ((long) nameID << 32) | (valueID & 0xffffffffL);
+        }
+    }
+
+    /**
+     * The tags of an Event, as interned IDs.
+     */
+    static private class EventTags {
+        final Set<Integer> names = new HashSet<Integer>();
+        final Set<Long> pairs = new HashSet<Long>();
+
+        EventTags(Event e) {
+            Tagset t = e.getTagset();
+            for(String name : t.getNames()) {
+                Integer nameID = TagIDs.get(name);
+                if(nameID == null)
+                    continue;
+                names.add(nameID);
+                for(String value : t.getValues(name)) {
+                    Integer valueID = value == null ? null : TagIDs.get(value);
+                    if(valueID != null)
+                        pairs.add(TagIDs.pair(nameID, valueID));
+                }
+            }
+        }
+
+        /**
+         * True if the tags include all the tags of any of the tagsets.
+         */
+        boolean matches(int[][] tagNames, int[][] tagValues) {
+            for(int i = 0; i < tagNames.length; ++i) {
+                boolean all = true;
+                for(int j = 0; j < tagNames[i].length && all; ++j)
+                    all = tagValues[i][j] == -1 ? names.contains(tagNames[i][j]) : pairs.contains(TagIDs.pair(tagNames[i][j], tagValues[i][j]));
+                if(all)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The Registrations for one RBB, indexed so fireEvent needn't evaluate every
+     * filter for every change.  Each Registration is indexed under
+     * the IDs in its filter, or if none, under one tag (or failing that, tag name)
+     * from each tagset in its filter, or if none, is a candidate for every Event.
+     *<p>
+     * The caller must synchronize on this to access it.
+     */
+    static protected class Registrations {
+        private final Set<Registration> all = new HashSet<Registration>();
+        private final Map<Long, List<Registration>> byID = new HashMap<Long, List<Registration>>();
+        private final Map<Long, List<Registration>> byTag = new HashMap<Long, List<Registration>>();
+        private final Map<Integer, List<Registration>> byName = new HashMap<Integer, List<Registration>>();
+        private final List<Registration> unindexed = new ArrayList<Registration>();
+
+        boolean isEmpty() {
+            return all.isEmpty();
+        }
+
+        void add(Registration r) {
+            all.add(r);
+            if(r.filter.IDs != null) {
+                for(Long id : r.filter.IDs)
+                    index(byID, id, r);
+            }
+            else if(r.tagNames != null) {
+                for(int i = 0; i < r.tagNames.length; ++i) {
+                    if(r.tagNames[i].length == 0) { // an empty tagset matches anything.
+                        unindexed.add(r);
+                        continue;
+                    }
+                    int j = 0;
+                    while(j < r.tagValues[i].length && r.tagValues[i][j] == -1)
+                        ++j;
+                    if(j < r.tagValues[i].length)
+                        index(byTag, TagIDs.pair(r.tagNames[i][j], r.tagValues[i][j]), r);
+                    else
+                        index(byName, r.tagNames[i][0], r);
+                }
+            }
+            else {
+                unindexed.add(r);
+            }
+        }
+
+        /**
+         * Remove the Registrations for the specified listener.
+         */
+        void remove(RBBEventListener listener) {
+            remove(listener, null);
+        }
+
+        /**
+         * Remove the Registrations for the specified listener and subscription,
+         * or all its subscriptions if subscription is null.
+         */
+        void remove(RBBEventListener listener, Integer subscription) {
+            for(Iterator<Registration> i = all.iterator(); i.hasNext(); )
+                if(i.next().isFor(listener, subscription))
+                    i.remove();
+            unindex(byID, listener, subscription);
+            unindex(byTag, listener, subscription);
+            unindex(byName, listener, subscription);
+            for(Iterator<Registration> i = unindexed.iterator(); i.hasNext(); )
+                if(i.next().isFor(listener, subscription))
+                    i.remove();
+        }
+
+        /**
+         * Get the Registrations that could be interested in e (and/or prev, if not null), in the order they were registered.
+         */
+        Collection<Registration> candidates(Event e, Event prev) {
+            TreeSet<Registration> result = new TreeSet<Registration>(bySeq);
+            result.addAll(unindexed);
+            addCandidates(e, result);
+            if(prev != null)
+                addCandidates(prev, result);
+            return result;
+        }
+
+        private void addCandidates(Event e, TreeSet<Registration> result) {
+            addAll(byID.get(e.getID()), result);
+            if(byTag.isEmpty() && byName.isEmpty())
+                return;
+            Tagset t = e.getTagset();
+            for(String name : t.getNames()) {
+                Integer nameID = TagIDs.get(name);
+                if(nameID == null)
+                    continue;
+                addAll(byName.get(nameID), result);
+                for(String value : t.getValues(name)) {
+                    Integer valueID = value == null ? null : TagIDs.get(value);
+                    if(valueID != null)
+                        addAll(byTag.get(TagIDs.pair(nameID, valueID)), result);
+                }
+            }
+        }
+
+        private static void addAll(List<Registration> a, TreeSet<Registration> result) {
+            if(a != null)
+                result.addAll(a);
+        }
+
+        private static <K> void index(Map<K, List<Registration>> m, K key, Registration r) {
+            List<Registration> a = m.get(key);
+            if(a == null) {
+                a = new ArrayList<Registration>();
+                m.put(key, a);
+            }
+            a.add(r);
+        }
+
+        private static <K> void unindex(Map<K, List<Registration>> m, RBBEventListener listener, Integer subscription) {
+            for(Iterator<List<Registration>> i = m.values().iterator(); i.hasNext(); ) {
+                List<Registration> a = i.next();
+                for(Iterator<Registration> j = a.iterator(); j.hasNext(); )
+                    if(j.next().isFor(listener, subscription))
+                        j.remove();
+                if(a.isEmpty())
+                    i.remove();
+            }
+        }
+
+        private static final Comparator<Registration> bySeq = new Comparator<Registration>() {
+            @Override public int compare(Registration a, Registration b) {
+                return a.seq < b.seq ? -1 : a.seq > b.seq ? 1 : 0;
+            }
+        };
     }
 
     static protected class ListenerRegistrations {
 
-        private static final Map<String, Set<Registration>> reg = new HashMap<String, Set<Registration>>();
+        private static final Map<String, Registrations> reg = new HashMap<String, Registrations>();
 
         /**
-         * Get the set of registrations for the RBB with the specified UUID.
+         * Get the registrations for the RBB with the specified UUID.
          * If it did not exist it is implicitly created.
          *
-         * The caller must not add or remove any entries to the returned Set without synchronizing on it.
+         * The caller must synchronize on the returned object to use it.
          */
-        static Set<Registration> getRegistrations(String UUID) {
+        static Registrations getRegistrations(String UUID) {
             synchronized(reg) {
-                Set<Registration> s = reg.get(UUID);
+                Registrations s = reg.get(UUID);
                 if(s == null) {
-                    s = new HashSet<Registration>();
+                    s = new Registrations();
                     reg.put(UUID, s);
                 }
                 return s;
@@ -224,9 +654,13 @@ public class H2EventTrigger
 
         static void removeIfEmpty(String UUID) {
             synchronized(reg) {
-                Set<Registration> s = reg.get(UUID);
-                if(s != null && s.isEmpty())
-                    reg.remove(UUID);
+                Registrations s = reg.get(UUID);
+                if(s != null) {
+                    synchronized(s) {
+                        if(s.isEmpty())
+                            reg.remove(UUID);
+                    }
+                }
             }
         }
 
@@ -238,35 +672,153 @@ public class H2EventTrigger
         }
     }
 
+    /**
+     * A cache of the Events owning data tables, so H2EventDataTrigger needn't
+     * query RBB_EVENTS for every row inserted into a data table (such as each timeseries sample).
+     * An Event is removed when its row in RBB_EVENTS is updated or deleted,
+     * so the next DataAdded notification retrieves it again.
+     */
+    static protected class DataOwners {
+
+        /**
+         * The maximum number of Events cached per RBB.
+         * Enough to cover the Events receiving data at once in a typical recording;
+         * beyond that a miss costs one query against RBB_EVENTS.
+         */
+        private static final int maxSize = 10000;
+
+        private static final Map<String, Map<Long, Event>> owners = new HashMap<String, Map<Long, Event>>();
+
+        static synchronized Event get(String UUID, long eventID) {
+            Map<Long, Event> m = owners.get(UUID);
+            return m == null ? null : m.get(eventID);
+        }
+
+        static synchronized void put(String UUID, Event event) {
+            Map<Long, Event> m = owners.get(UUID);
+            if(m == null) {
+                m = new LinkedHashMap<Long, Event>(16, 0.75f, true) {
+                    @Override protected boolean removeEldestEntry(Map.Entry<Long, Event> eldest) {
+                        return size() > maxSize;
+                    }
+                };
+                owners.put(UUID, m);
+            }
+            m.put(event.getID(), event);
+        }
+
+        static synchronized void remove(String UUID, long eventID) {
+            Map<Long, Event> m = owners.get(UUID);
+            if(m == null)
+                return;
+            m.remove(eventID);
+            if(m.isEmpty())
+                owners.remove(UUID);
+        }
+
+        /*
+         * Triggers can quickly check this.. if empty, there is nothing to invalidate.
+         */
+        static synchronized boolean isEmpty() {
+            return owners.isEmpty();
+        }
+    }
+
     public static void addListener(String UUID,
         RBBEventListener  listener,
         RBBFilter filter)
         throws java.sql.SQLException
     {
-        Set<Registration> r = ListenerRegistrations.getRegistrations(UUID);
+        addListener(UUID, new Registration(listener, filter, null, null));
+    }
+
+    /**
+     * Add a listener that is notified from its own thread through a bounded queue,
+     * instead of directly by the thread modifying the RBB.
+     * The queue is closed when the listener is removed.
+     * The listener is passed the specified rbb, rather than one for the Connection that made the change.
+     */
+    public static void addListener(RBB rbb,
+        RBBEventListener  listener,
+        RBBFilter filter,
+        int queueCapacity,
+        H2EventQueue.OverflowPolicy policy)
+        throws java.sql.SQLException
+    {
+        final String UUID = H2SRBB.getUUID(rbb.db());
+        H2EventQueue queue = new H2EventQueue("local " + listener.getClass().getName() + " " + filter, queueCapacity, policy);
+        queue.register(UUID);
+        queue.startDispatcher(rbb, listener);
+        addListener(UUID, new Registration(listener, filter, queue, null));
+    }
+
+    /**
+     * Add a listener that is notified asynchronously by the H2EventDispatcher threads,
+     * instead of directly by the thread modifying the RBB.
+     * The listener is passed the specified rbb, rather than one for the Connection that made the change.
+     */
+    public static void addAsyncListener(RBB rbb,
+        RBBEventListener  listener,
+        RBBFilter filter)
+        throws java.sql.SQLException
+    {
+        addListener(H2SRBB.getUUID(rbb.db()), new Registration(listener, filter, null, rbb));
+    }
+
+    /**
+     * Add a subscription for a listener with many subscriptions, e.g. the connection
+     * of an H2EventTCPMultiplexClient.  Each change is sent to the listener once, along with the
+     * IDs of all its subscriptions that matched.
+     */
+    static void addSubscription(String UUID,
+        SubscriptionListener listener,
+        RBBFilter filter,
+        int subscription)
+    {
+        if(subscription < 0)
+            throw new IllegalArgumentException("H2EventTrigger.addSubscription: the subscription must not be negative, but got " + subscription);
+        Registration registration = new Registration(listener, filter, null, null);
+        registration.subscription = subscription;
+        addListener(UUID, registration);
+    }
+
+    static void removeSubscription(String UUID, SubscriptionListener listener, int subscription)
+    {
+        Registrations r = ListenerRegistrations.getRegistrations(UUID);
+        synchronized(r) {
+            r.remove(listener, subscription);
+        }
+        ListenerRegistrations.removeIfEmpty(UUID);
+    }
+
+    private static void addListener(String UUID, Registration registration)
+    {
+        Registrations r = ListenerRegistrations.getRegistrations(UUID);
         synchronized(r) {
-            r.add(new Registration(listener, filter));
+            r.add(registration);
         }
     }
 
     public static void removeListener(String UUID, RBBEventListener listener)
     {
-        Set<Registration> r = ListenerRegistrations.getRegistrations(UUID);
+        H2EventQueue.closeQueuesFor(UUID, listener); // otherwise a thread blocked in offer() holds the lock on the registrations.
+
+        Registrations r = ListenerRegistrations.getRegistrations(UUID);
         synchronized(r) {
             // System.err.println("Removing listener - thread " + Thread.currentThread());
-            Set<Registration> goners = new HashSet<Registration>();
-            for(Registration r0 : r)
-                if(r0.listener == listener)
-                    goners.add(r0);
-            r.removeAll(goners);
+            r.remove(listener);
         }
 
         ListenerRegistrations.removeIfEmpty(UUID);
     }
 
     private String getRBB_UUID(RBB rbb) throws SQLException {
+        return getRBB_UUID(rbb.db());
+    }
+
+    protected String getRBB_UUID(Connection conn) throws SQLException {
         if(RBB_UUID == null)
-            RBB_UUID = H2SRBB.getUUID(rbb.db());
+            RBB_UUID = H2SRBB.getUUID(conn);
         return RBB_UUID;
     }
 }
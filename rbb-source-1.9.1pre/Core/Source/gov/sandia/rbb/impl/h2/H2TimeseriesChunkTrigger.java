@@ -0,0 +1,47 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.impl.h2.statics.H2SEventJournal;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseriesChunks;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+H2TimeseriesChunkTrigger is the data trigger for tables of chunked Timeseries samples
+(see H2STimeseriesChunks).  It is registered for both insert and update, since
+samples are usually appended by updating the last chunk.
+<p>
+Listeners are notified of the new samples with rows in the same format
+as a row of an un-chunked timeseries table (EVENT_ID, TIME, C1...Cn), so they
+needn't know which format the Timeseries uses.  If several samples are added to
+a chunk at once, they are sent as one RBBEventChange.DataBatchAdded.
+ */
+public class H2TimeseriesChunkTrigger extends H2EventDataTrigger
+{
+    private String tableName;
+
+    @Override
+    public void init(Connection conn,
+        String schemaName,
+        String triggerName,
+        String tableName,
+        boolean before,
+        int type)
+    {
+        this.tableName = tableName;
+        super.init(conn, schemaName, triggerName, tableName, before, type);
+    }
+
+    @Override
+    public void fire(Connection conn,
+        Object[] oldRow,
+        Object[] newRow)
+        throws SQLException
+    {
+        if(newRow == null || (ListenerRegistrations.isEmpty() && !H2SEventJournal.isRecording(conn, getRBB_UUID(conn))))
+            return;
+
+        Object[][] rows = H2STimeseriesChunks.getNewRows(tableName, oldRow, newRow);
+        if(rows.length > 0)
+            fireRows(conn, rows);
+    }
+}
@@ -0,0 +1,100 @@
+package gov.sandia.rbb.impl.h2;
+
+import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseriesChunks;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseriesRollups;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+H2TimeseriesRollupTrigger keeps the summaries kept by H2STimeseriesRollups up to date.
+
+H2STimeseriesRollups.enable registers it on the table holding the Timeseries, e.g.:
+create trigger RBB_TIMESERIES.RBBTF2ROLLUP after insert, update, delete on RBB_TIMESERIES.TF2 for each row call "gov.sandia.rbb.impl.h2.H2TimeseriesRollupTrigger"
+
+The trigger is dropped and re-created whenever the set of summarized Timeseries
+in the table changes, so each instance reads that set only once.
+ */
+public class H2TimeseriesRollupTrigger
+    implements org.h2.api.Trigger
+{
+    private String tableName;
+
+    private boolean chunked;
+
+    /**
+     * Map from the ID of each summarized Timeseries in the table to its WIDTH and LEVELS.
+     * Initialized lazily, since the trigger may never be fired.
+     */
+    private Map<Long, double[]> enabled;
+
+    @Override
+    public void init(Connection conn,
+        String schemaName,
+        String triggerName,
+        String tableName,
+        boolean before,
+        int type)
+    {
+        this.tableName = tableName;
+        chunked = H2STimeseriesChunks.isChunkTable(tableName);
+    }
+
+    @Override
+    public void fire(Connection conn,
+        Object[] oldRow,
+        Object[] newRow)
+        throws SQLException
+    {
+        if(enabled == null)
+            enabled = H2STimeseriesRollups.getEnabled(conn, tableName);
+
+        // the first column of both TF and TC tables is EVENT_ID
+        final Long id = (Long) (newRow == null ? oldRow[0] : newRow[0]);
+        final double[] rollup = enabled.get(id);
+        if(rollup == null)
+            return;
+
+        Object[][] added;
+        if(newRow == null)
+            added = null; // deleted
+        else if(!chunked)
+            added = oldRow == null ? new Object[][]{ newRow } : null; // rows of a TF table are not normally updated.
+        else {
+            added = H2STimeseriesChunks.getNewRows(tableName, oldRow, newRow);
+            // a chunk with fewer samples than before plus those added has had some removed.
+            // The 5th column of a TC table is N, the number of samples in the chunk.
+            final int oldN = oldRow == null ? 0 : (Integer) oldRow[4];
+            if((Integer) newRow[4] != oldN + added.length)
+                added = null;
+        }
+
+        if(added == null) {
+            H2STimeseriesRollups.samplesRemoved(conn, id);
+            return;
+        }
+
+        // e.g. the samples added to a chunk are written to each bucket once.
+        H2STimeseriesRollups.startBatch();
+        try {
+            for(Object[] row : added)
+                H2STimeseriesRollups.sampleAdded(conn, id, rollup[0], (int) rollup[1],
+                    H2STimeseries.getTimeFromRow(row), Arrays.copyOfRange(row, 2, row.length));
+        }
+        finally {
+            H2STimeseriesRollups.endBatch(conn);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public void remove()
+    {
+    }
+}
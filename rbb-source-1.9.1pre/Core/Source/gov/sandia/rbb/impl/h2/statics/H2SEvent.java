@@ -17,7 +17,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import org.h2.tools.SimpleResultSet;
@@ -193,7 +197,7 @@ public class H2SEvent
      *   The returned tagset contains the specified timeCoordinate, replacing any previous value of this tag.
      *
      * Using time conversions de-optimizes time filtering, so this implementation is slow in situations  when many sequences match the filter tags
-     * but only a few match the time constraints.
+     * but only a few match the time constraints, unless the time coordinate has been materialized with H2SEventTimes.materialize.
      *</pre>
      * @param taglist: If not null, results are limited to Events having at least these tags.  Tag names may not be be null, but a null tag value will match on name only (regardless of value).  The taglist can also be an array of tagsets (each of which is an array), which returns the set of events matching any of the tagsets.
      * @param start: If not null, results are limited to Events ending at or after this time.
@@ -273,6 +277,14 @@ public class H2SEvent
         if(filter.timeCoordinate == null)
             return findWithoutTimeCoordinate(conn, new RBBFilter(filter));
 
+        // If times in this time coordinate are materialized, the time bounds and ordering can be done in SQL.
+        final Long materializedID = H2SEventTimes.findMaterialized(conn, filter.timeCoordinate);
+        if(materializedID != null) {
+            ResultSet rs = findWithMaterializedTimes(conn, filter, materializedID);
+            if(rs != null)
+                return rs;
+        }
+
         /**
          * Implement searching involving a time coordinate by first
          * doing a search with no time conditions (start and end are null) and then
@@ -340,19 +352,17 @@ public class H2SEvent
             q.add(", SCHEMA_NAME as DATA_SCHEMA, TABLE_NAME as DATA_TABLE, (SELECT count(*) FROM information_schema.columns where TABLE_SCHEMA = D.SCHEMA_NAME and TABLE_NAME = D.TABLE_NAME) as DATA_COLS");
         q.add(" from RBB_EVENTS E");
 
-        if(f.IDs != null) {
-            q.add(" join table(IDS LONG=");
-            q.addParamArray((Object[])f.IDs);
-            q.add(") on E.ID=IDS");
-        }
+        addFilterJoins(conn, f, q);
 
-        if(f.attachmentInSchema != null)
-            q.add(" join RBB_EVENT_DATA D on D.EVENT_ID = E.ID and D.SCHEMA_NAME = '"+f.attachmentInSchema+"'");
-
-        if(f.tags != null && f.tags.length > 0) { // taglist is null or empty means the same thing - all events match.
-            q.add(" join (");
-            H2STagset.hasTagsQuery(conn, f.getTagsString(), q);
-            q.add(") T on T.TAGSET_ID = E.TAGSET_ID");
+        if(f.IDs == null && (f.start != null || f.end != null)) {
+            // use the interval index (if enabled) to find the events in the time window.
+            // The time constraints are still applied below, so this only narrows the search.
+            Long[] inWindow = H2SIntervalIndex.find(conn, f.start, f.end);
+            if(inWindow != null) {
+                q.add(" join table(WINDOW_IDS LONG=");
+                q.addParam(inWindow); // a single array parameter, so the PreparedStatement can be re-used for any number of IDs.
+                q.add(") on E.ID=WINDOW_IDS");
+            }
         }
 
         // time constraints
@@ -380,6 +390,75 @@ public class H2SEvent
         return q.getPreparedStatement().executeQuery();
     }
 
+    /**
+     * Add joins to q restricting the RBB_EVENTS E to those matching the IDs,
+     * attachment schema, and tags of the filter (but not time).
+     * If the filter has an attachment schema, RBB_EVENT_DATA is joined as D.
+     */
+    private static void addFilterJoins(Connection conn, RBBFilter f, PreparedStatementCache.Query q) throws SQLException {
+        if(f.IDs != null) {
+            q.add(" join table(IDS LONG=");
+            q.addParamArray((Object[])f.IDs);
+            q.add(") on E.ID=IDS");
+        }
+
+        if(f.attachmentInSchema != null)
+            q.add(" join RBB_EVENT_DATA D on D.EVENT_ID = E.ID and D.SCHEMA_NAME = '"+f.attachmentInSchema+"'");
+
+        if(f.tags != null && f.tags.length > 0) { // taglist is null or empty means the same thing - all events match.
+            q.add(" join (");
+            H2STagset.hasTagsQuery(conn, f.getTagsString(), q);
+            q.add(") T on T.TAGSET_ID = E.TAGSET_ID");
+        }
+    }
+
+    /**
+     * Find events using the times materialized by H2SEventTimes, so the time
+     * bounds and ordering are done by SQL.
+     * Returns null if the materialized times turn out to be out of date.
+     */
+    private static ResultSet findWithMaterializedTimes(Connection conn, RBBFilter filter, long timeCoordinateID) throws SQLException {
+        // Events whose times couldn't be converted have null times.  Without materialization,
+        // finding them raises an error, so convert one to raise the same error here.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select E.START_TIME, RBB_ID_TO_TAGSET(E.TAGSET_ID) as TAGS from RBB_MATERIALIZED_TIMES M join RBB_EVENTS E on E.ID = M.EVENT_ID");
+        addFilterJoins(conn, filter, q);
+        q.addAlt(" where M.TIME_COORDINATE_ID = ", timeCoordinateID, " and M.START_TIME is null limit 1");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        if(rs.next()) {
+            filter.getTimeCache().convert(conn, rs.getDouble(1), new Tagset(rs.getString(2)), filter.timeCoordinate);
+            return null; // it converted after all, so the materialized times must be out of date.
+        }
+        rs.close();
+
+        q = PreparedStatementCache.startQuery(conn);
+        q.add("select E.ID, M.START_TIME, M.END_TIME, RBB_ID_TO_TAGSET(E.TAGSET_ID) as TAGS");
+        if(filter.attachmentInSchema != null)
+            q.add(", SCHEMA_NAME as DATA_SCHEMA, TABLE_NAME as DATA_TABLE, (SELECT count(*) FROM information_schema.columns where TABLE_SCHEMA = D.SCHEMA_NAME and TABLE_NAME = D.TABLE_NAME) as DATA_COLS");
+        q.add(" from RBB_MATERIALIZED_TIMES M join RBB_EVENTS E on E.ID = M.EVENT_ID");
+        addFilterJoins(conn, filter, q);
+        q.addAlt(" where M.TIME_COORDINATE_ID = ", timeCoordinateID);
+        if(filter.start != null)
+            q.addAlt(" and M.END_TIME >= ", filter.start);
+        if(filter.end != null)
+            q.addAlt(" and M.START_TIME <= ", filter.end);
+        q.add(" order by M.START_TIME");
+        rs = q.getPreparedStatement().executeQuery();
+
+        SimpleResultSet rsOut = createResultSet(filter.attachmentInSchema != null);
+        while(rs.next()) {
+            Tagset resultTags = new Tagset(rs.getString("TAGS"));
+            resultTags.set(filter.timeCoordinate); // alter the resultTags to reflect the time coordinate in which data was retrieved.
+            if(filter.attachmentInSchema != null)
+                rsOut.addRow(rs.getObject(1), rs.getDouble(2), rs.getDouble(3), resultTags.toString(), rs.getObject(5), rs.getObject(6), rs.getObject(7));
+            else
+                rsOut.addRow(rs.getObject(1), rs.getDouble(2), rs.getDouble(3), resultTags.toString());
+        }
+        rs.close();
+
+        return rsOut;
+    }
+
     /**
      * Find the first event that matches the tagset and
      * starts after 'startsAfter,' by at least minTimeDelta.
@@ -511,6 +590,10 @@ public class H2SEvent
             deleteLinks.addParam(schema);
         }
         deleteLinks.getPreparedStatement().execute();
+
+        H2STimeseries.forgetTableNames(conn);
+        if(schema == null || schema.equals(H2STimeseries.schemaName))
+            H2STimeseriesRollups.dataDeleted(conn, eventID);
     }
 
     public static int deleteByID(Connection conn, long id)
@@ -535,6 +618,9 @@ public class H2SEvent
 
         conn.createStatement().execute(q.toString());
 
+        H2STimeseries.forgetTableNames(conn);
+        H2STimeseriesRollups.dataDeleted(conn, id);
+
         ////////// cleanup the tagset, and strings table
 //        if (!H2SRBB.tagsetInUse(conn, TAGSET_ID))
 //        {
@@ -940,6 +1026,11 @@ public class H2SEvent
                 while(rsAttachments.next()) { // for each table in which the source event has attached data...
                     final String schemaTable =  "\"" + rsAttachments.getString("SCHEMA_NAME") + "\".\"" + rsAttachments.getString("TABLE_NAME") + "\"";
 
+                    if(isChunkTable(rsAttachments.getString("SCHEMA_NAME"), rsAttachments.getString("TABLE_NAME"))) {
+                        H2STimeseriesChunks.deleteSamplesOutside(conn, rsAttachments.getString("TABLE_NAME"), id, startTime, endTime);
+                        continue;
+                    }
+
                     PreparedStatementCache.Query psDelete = PreparedStatementCache.startQuery(conn);
                     psDelete.addAlt("delete from "+schemaTable+" where EVENT_ID = ", id, " and ");
 
@@ -1027,7 +1118,7 @@ public class H2SEvent
         String schema)
         throws SQLException
     {
-        org.h2.tools.SimpleResultSet result = new org.h2.tools.SimpleResultSet();
+        final org.h2.tools.SimpleResultSet result = new org.h2.tools.SimpleResultSet();
         result.addColumn("START_TIME", java.sql.Types.DOUBLE, 20, 0);
         result.addColumn("END_TIME", java.sql.Types.DOUBLE, 20, 0);
         result.addColumn("IDS", java.sql.Types.ARRAY, 20, 0);
@@ -1036,6 +1127,44 @@ public class H2SEvent
             return result;
         }
 
+        findConcurrent(conn, filterArray, skip, start, end, timeCoordinate, schema,
+            new ConcurrentEventsHandler() {
+                public void found(double start, double end, Long[] ids) {
+                    result.addRow(start, end, ids);
+                }
+            });
+
+        return result;
+    }
+
+    /**
+     * Receives the results of findConcurrent as they are found.
+     */
+    public interface ConcurrentEventsHandler {
+        /**
+         * ids is a new array for each call, so it may be retained.
+         */
+        void found(double start, double end, Long[] ids) throws SQLException;
+    }
+
+    /**
+     * This is findConcurrent, but instead of accumulating the results in a ResultSet,
+     * each is passed to the handler as soon as it is found.
+     *<p>
+     * Unless setRecursiveFindConcurrent(true) was called, results are found in order of
+     * increasing START_TIME.
+     */
+    public static void findConcurrent(
+        Connection conn,
+        Object[] filterArray,
+        Object[] skip,
+        Double start,
+        Double end,
+        String timeCoordinate,
+        String schema,
+        ConcurrentEventsHandler handler)
+        throws SQLException
+    {
 //        Tagset[][] filterTags = new Tagset[filterTagsArray.length][];
 //        for(int i = 0; i < filterTags.length; ++i) {
 //            filterTags[i] = Tagset.toTagsets(filterTagsArray[i]);
@@ -1067,15 +1196,31 @@ public class H2SEvent
         if(timeCoordinate != null)
             rbbFind.also(withTimeCoordinate(timeCoordinate));
 
-        findConcurrentHelper(conn, rbbFind, 0,
-            filters,
-            new Tagset(),
-            new Long[filters.length],
-            result,
-            skipSet);
+        if(filters.length == 0)
+            return;
 
-        return result;
+        if(recursiveFindConcurrent)
+            findConcurrentHelper(conn, rbbFind, 0,
+                filters,
+                new Tagset(),
+                new Long[filters.length],
+                handler,
+                skipSet);
+        else
+            findConcurrentSweep(conn, rbbFind, filters, skipSet, handler);
     }
+
+    /**
+     * If true, findConcurrent uses its original implementation, which queries for the
+     * Events in each column separately for every combination of Events in the previous columns.
+     * The results are the same (other than their order) so this is mainly for verification.
+     */
+    private static boolean recursiveFindConcurrent = false;
+
+    public static void setRecursiveFindConcurrent(boolean recursive) {
+        recursiveFindConcurrent = recursive;
+    }
+
 // byTime(start, end), withTimeCoordinate(outputTimeCoordinate), byData(schema)
     /**
      * This is a recursive function used by findConcurrent.
@@ -1095,7 +1240,7 @@ public class H2SEvent
         RBBFilter[] filters,
         Tagset contextTags,
         Long[] ids,
-        org.h2.tools.SimpleResultSet result,
+        ConcurrentEventsHandler result,
         Set<Set<Long>> permutations)
         throws SQLException
     {
@@ -1169,10 +1314,10 @@ public class H2SEvent
 
                 if (depth + 1 == ids.length)
                 { // we have a result
-                    // the clone here is very important because addRow doesn't make a copy of the array...
+                    // the clone here is very important because the handler may retain the array...
                     // ids is used as a stack and will change over time, so without clone, every row of the
                     // resultSet has the same array of ids!
-                    result.addRow(latestStart, earliestEnd, ids.clone());
+                    result.found(latestStart, earliestEnd, ids.clone());
                 }
                 else
                 { // need to recurse
@@ -1187,6 +1332,296 @@ public class H2SEvent
         }
     }
 
+    /**
+     * This implements findConcurrent by retrieving the candidate Events for each column
+     * only once, then sweeping through them in order of start time.  When an Event
+     * starts, every combination of it with the Events that started previously and haven't
+     * yet ended is a result, so each result is found once - when its last Event starts.
+     *<p>
+     * Empty-valued tags can't be bound until the Events in the previous columns are known,
+     * so for retrieving the candidates they are replaced with null (i.e. any value),
+     * and the binding is checked for each combination.
+     */
+    private static void findConcurrentSweep(Connection conn,
+        RBBFilter rbbFind,
+        RBBFilter[] filters,
+        Set<Set<Long>> skip,
+        ConcurrentEventsHandler handler)
+        throws SQLException
+    {
+        final int n = filters.length;
+
+        // the candidates for each column, and the names of the empty-valued tags of each of its disjuncts.
+        ArrayList<Map<Long, ConcurrentCandidate>> candidates = new ArrayList<Map<Long, ConcurrentCandidate>>();
+        ArrayList<String[][]> emptyTags = new ArrayList<String[][]>();
+        Map<String, Event[]> found = new HashMap<String, Event[]>(); // the same filter is often used in several columns.
+        ArrayList<ConcurrentCandidate> sweep = new ArrayList<ConcurrentCandidate>();
+        for(int col = 0; col < n; ++col) {
+            RBBFilter[] disjuncts = filters[col].getTagDisjunction();
+            if(disjuncts.length == 0)
+                return; // nothing can match this column.
+            Map<Long, ConcurrentCandidate> c = new HashMap<Long, ConcurrentCandidate>();
+            String[][] empty = new String[disjuncts.length][];
+            for(int k = 0; k < disjuncts.length; ++k) {
+                Tagset t = disjuncts[k].tags[0]; // has exactly 1 element because it was produced by getTagDisjunction
+                ArrayList<String> names = new ArrayList<String>();
+                for(String name : t.getNames())
+                    if(t.contains(name, ""))
+                        names.add(name);
+                if(col == 0 && !names.isEmpty())
+                    throw new SQLException("Error: Tagset "+t+" has an empty-valued tag, but no tagsets to its left specify a value for that tag");
+                for(String name : names)
+                    t.set(name, null);
+                empty[k] = names.toArray(new String[names.size()]);
+
+                final String key = disjuncts[k].toString();
+                Event[] events = found.get(key);
+                if(events == null) {
+                    events = Event.find(conn, rbbFind, disjuncts[k]);
+                    found.put(key, events);
+                }
+                for(int i = 0; i < events.length; ++i) {
+                    ConcurrentCandidate cand = c.get(events[i].getID());
+                    if(cand == null) {
+                        cand = new ConcurrentCandidate(col, events[i], disjuncts.length);
+                        c.put(events[i].getID(), cand);
+                        sweep.add(cand);
+                    }
+                    cand.position[k] = i;
+                }
+            }
+            candidates.add(c);
+            emptyTags.add(empty);
+        }
+
+        Collections.sort(sweep, new Comparator<ConcurrentCandidate>() {
+            public int compare(ConcurrentCandidate a, ConcurrentCandidate b) {
+                if(a.start != b.start)
+                    return a.start < b.start ? -1 : 1;
+                if(a.id != b.id)
+                    return a.id < b.id ? -1 : 1;
+                return a.col - b.col;
+            }
+        });
+
+        // for each column, the candidates that have started, in order of start time.
+        ArrayList<ArrayList<ConcurrentCandidate>> active = new ArrayList<ArrayList<ConcurrentCandidate>>();
+        for(int col = 0; col < n; ++col)
+            active.add(new ArrayList<ConcurrentCandidate>());
+
+        ConcurrentSearch search = new ConcurrentSearch(rbbFind, emptyTags, skip, handler);
+        for(ConcurrentCandidate cand : sweep) {
+            // drop those that ended before this one started.  They can't overlap anything after it either.
+            for(ArrayList<ConcurrentCandidate> a : active) {
+                int j = 0;
+                for(ConcurrentCandidate x : a)
+                    if(x.end >= cand.start)
+                        a.set(j++, x);
+                a.subList(j, a.size()).clear();
+            }
+
+            search.add(active, cand);
+
+            active.get(cand.col).add(cand);
+        }
+        search.flush();
+    }
+
+    /**
+     * An Event that matches the filter for a column of findConcurrent.
+     */
+    private static class ConcurrentCandidate {
+        final int col;
+        final long id;
+        final double start, end;
+        final Tagset tags;
+        /**
+         * position[k] is the index of the Event in the results for the kth disjunct of the column's
+         * filter (with any empty-valued tags replaced by null), or -1 if it didn't match.
+         */
+        final int[] position;
+
+        ConcurrentCandidate(int col, Event ev, int numDisjuncts) {
+            this.col = col;
+            id = ev.getID();
+            start = ev.getStart();
+            end = ev.getEnd();
+            tags = ev.getTagset();
+            position = new int[numDisjuncts];
+            Arrays.fill(position, -1);
+        }
+    }
+
+    /**
+     * The state of findConcurrentSweep while finding the combinations ending with a particular Event.
+     */
+    private static class ConcurrentSearch {
+        final RBBFilter rbbFind;
+        final ArrayList<String[][]> emptyTags;
+        final Set<Set<Long>> skip;
+        final ConcurrentEventsHandler handler;
+        final ConcurrentCandidate[] chosen;
+        /**
+         * chosenDisjunct[i] is the first disjunct of the filter for column i matched by chosen[i]
+         */
+        final int[] chosenDisjunct;
+        int numFound = 0;
+
+        /**
+         * The most recently started Event, which is in every combination currently being found.
+         */
+        ConcurrentCandidate last;
+
+        /**
+         * The combinations including 'last' (and otherwise only Events that started before it).
+         * Since the same Event may match more than one column, the same combination may be found
+         * in different orders, in which case the one the recursive implementation would
+         * have found first is kept.
+         */
+        final Map<Set<Long>, ConcurrentCombination> pending = new HashMap<Set<Long>, ConcurrentCombination>();
+
+        ConcurrentSearch(RBBFilter rbbFind, ArrayList<String[][]> emptyTags, Set<Set<Long>> skip, ConcurrentEventsHandler handler) {
+            this.rbbFind = rbbFind;
+            this.emptyTags = emptyTags;
+            this.skip = skip;
+            this.handler = handler;
+            chosen = new ConcurrentCandidate[emptyTags.size()];
+            chosenDisjunct = new int[chosen.length];
+        }
+
+        /**
+         * Find the combinations including cand, which is the latest-starting candidate so far.
+         */
+        void add(ArrayList<ArrayList<ConcurrentCandidate>> active, ConcurrentCandidate cand) throws SQLException {
+            // The candidates for the same Event in different columns are consecutive, since they
+            // are ordered by start time then ID.  Combinations are pending until all are done.
+            if(last != null && last.id != cand.id)
+                flush();
+            last = cand;
+            combine(active, 0, new Tagset(), cand.start, cand.end);
+        }
+
+        /**
+         * Report the pending combinations, in the order the recursive implementation would find them.
+         */
+        void flush() throws SQLException {
+            ArrayList<ConcurrentCombination> found = new ArrayList<ConcurrentCombination>(pending.values());
+            pending.clear();
+            Collections.sort(found);
+            for(ConcurrentCombination c : found) {
+                handler.found(rbbFind.start == null ? c.start : Math.max(rbbFind.start, c.start),
+                    rbbFind.end == null ? c.end : Math.min(rbbFind.end, c.end), c.ids);
+                // finding a huge number of permutations is often a sign of accidentally specifying
+                // an over-general tagset
+                if(++numFound % 10000 == 0)
+                    System.err.println("findConcurrent: "+numFound+" permutations so far...");
+            }
+        }
+
+        /**
+         * Choose an Event for column 'col', and recurse for the following columns.
+         * contextTags is the tags of the Events chosen for the previous columns,
+         * for binding empty-valued tags, and start / end is the time they all overlap.
+         */
+        private void combine(ArrayList<ArrayList<ConcurrentCandidate>> active, int col, Tagset contextTags, double start, double end) throws SQLException {
+            if(col == chosen.length) {
+                ConcurrentCombination c = new ConcurrentCombination(chosen, chosenDisjunct, start, end);
+                Set<Long> idSet = new HashSet<Long>(Arrays.asList(c.ids));
+                ConcurrentCombination prev = pending.get(idSet);
+                if(prev == null || c.compareTo(prev) < 0)
+                    pending.put(idSet, c);
+                return;
+            }
+
+            if(col == last.col)
+                choose(active, col, contextTags, start, end, last);
+            else
+                for(ConcurrentCandidate cand : active.get(col))
+                    choose(active, col, contextTags, start, end, cand);
+        }
+
+        private void choose(ArrayList<ArrayList<ConcurrentCandidate>> active, int col, Tagset contextTags, double start, double end, ConcurrentCandidate cand) throws SQLException {
+            // don't report that an Event is concurrent with itself.
+            for(int i = 0; i < col; ++i)
+                if(chosen[i].id == cand.id)
+                    return;
+            if(col != last.col && cand.id == last.id)
+                return;
+
+            final int k = firstMatchingDisjunct(col, contextTags, cand);
+            if(k < 0)
+                return;
+
+            chosen[col] = cand;
+            chosenDisjunct[col] = k;
+
+            // the same as the recursive implementation, skip combinations starting with a skipped set.
+            if(!skip.isEmpty()) {
+                Set<Long> idSet = new HashSet<Long>();
+                for(int i = 0; i <= col; ++i)
+                    idSet.add(chosen[i].id);
+                if(skip.contains(idSet))
+                    return;
+            }
+
+            Tagset newContextTags = contextTags.clone();
+            newContextTags.set(cand.tags);
+            combine(active, col+1, newContextTags, Math.max(start, cand.start), Math.min(end, cand.end));
+        }
+
+        /**
+         * The first of the disjuncts matched by the Event that it still matches once
+         * the empty-valued tags are bound to values from contextTags, or -1 if none.
+         */
+        private int firstMatchingDisjunct(int col, Tagset contextTags, ConcurrentCandidate cand) throws SQLException {
+            final String[][] empty = emptyTags.get(col);
+            DISJUNCTS:
+            for(int k = 0; k < empty.length; ++k) {
+                if(cand.position[k] < 0)
+                    continue;
+                for(String name : empty[k]) {
+                    String value = contextTags.getValue(name);
+                    if(value == null)
+                        throw new SQLException("Error: the filter for column "+col+" has an empty-valued tag "+name+", but no tagsets to its left specify a value for that tag");
+                    if(!cand.tags.contains(name, value))
+                        continue DISJUNCTS;
+                }
+                return k;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A result of findConcurrentSweep.  These are ordered the same as the recursive implementation
+     * would find them: by the disjunct matched in the first column, then the position of the Event
+     * in the results for that disjunct (i.e. by start time), then the same for the second column, and so on.
+     */
+    private static class ConcurrentCombination implements Comparable<ConcurrentCombination> {
+        final Long[] ids;
+        final double start, end;
+        final int[] key;
+
+        ConcurrentCombination(ConcurrentCandidate[] chosen, int[] chosenDisjunct, double start, double end) {
+            this.start = start;
+            this.end = end;
+            ids = new Long[chosen.length];
+            key = new int[2*chosen.length];
+            for(int i = 0; i < chosen.length; ++i) {
+                ids[i] = chosen[i].id;
+                key[2*i] = chosenDisjunct[i];
+                key[2*i+1] = chosen[i].position[chosenDisjunct[i]];
+            }
+        }
+
+        @Override public int compareTo(ConcurrentCombination c) {
+            for(int i = 0; i < key.length; ++i)
+                if(key[i] != c.key[i])
+                    return key[i] < c.key[i] ? -1 : 1;
+            return 0;
+        }
+    }
+
     /***
      * <pre>
      * Attach rows from a table to an event.
@@ -1322,8 +1757,11 @@ public class H2SEvent
 
                 psCloneData.addAlt(" from "+schemaTable+" where EVENT_ID = ", sourceID);
 
+                // chunked timeseries samples have no TIME column; they are copied and then trimmed.
+                final boolean chunked = isChunkTable(rsAttachments.getString("SCHEMA_NAME"), rsAttachments.getString("TABLE_NAME"));
+
                 // time restriction for attached data.
-                if(newStart != null || newEnd != null) {
+                if(!chunked && (newStart != null || newEnd != null)) {
                     psCloneData.add(" and (TIME is NULL or ");
                     if(newStart != null && newEnd != null)
                         psCloneData.addAlt("TIME between ", newStart, " and ", newEnd);
@@ -1337,6 +1775,9 @@ public class H2SEvent
                 psCloneData.add(");");
                 // System.err.println(psCloneData.toString());
                 psCloneData.getPreparedStatement().execute();
+
+                if(chunked && (newStart != null || newEnd != null))
+                    H2STimeseriesChunks.deleteSamplesOutside(conn, rsAttachments.getString("TABLE_NAME"), newEvt.getID(), newStart, newEnd);
             }
             rsAttachments.close();
 
@@ -1345,6 +1786,10 @@ public class H2SEvent
     }
 
 
+    private static boolean isChunkTable(String schemaName, String tableName) {
+        return H2STimeseries.schemaName.equals(schemaName) && H2STimeseriesChunks.isChunkTable(tableName);
+    }
+
     /*
      * Get names of the specified table, in order.
      */
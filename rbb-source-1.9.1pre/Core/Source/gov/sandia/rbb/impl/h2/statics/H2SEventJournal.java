@@ -0,0 +1,394 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.Event;
+import gov.sandia.rbb.PreparedStatementCache;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBFilter;
+import gov.sandia.rbb.Tagset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.h2.tools.SimpleResultSet;
+
+/**
+ *
+ * H2SEventJournal optionally records every change to the Events of an RBB (and data added to them)
+ * in the table RBB_EVENT_JOURNAL, with a sequence number, so a listener that was disconnected
+ * or started late can catch up on the changes it missed with getChanges, instead of
+ * re-reading everything of interest (e.g. EventCache.initCache).
+ *<p>
+ * The sequence number of each change is also in the RBBEventChange sent to listeners (RBBEventChange.journalSeq),
+ * so a listener knows where to resume from.  RBB.addEventListener(listener, filter, resumeFrom)
+ * combines the two, delivering the missed changes and then the new ones without a gap.
+ *<p>
+ * The journal is bounded; once it holds more than the specified number of changes, the oldest are deleted.
+ * A listener that has missed more than that gets an SQLException from getChanges and must start over.
+ *<p>
+ * The journal is written by H2EventTrigger and H2EventDataTrigger, which run in the process hosting the database,
+ * so enable() and disable() are called through SQL to take effect there.
+ * Rows of the journal become visible to others when the transaction making the changes is committed,
+ * but they are numbered when the change is made, so changes in a transaction that is still open
+ * while resuming may be missed.
+ *<p>
+ * The public functions here only accept / return datatypes for which H2 has a SQL mapping.
+ *
+ * @author rgabbot
+ */
+public class H2SEventJournal {
+
+    /**
+     * The number of changes kept if none is specified.
+     * A longer journal lets a client resume after a longer disconnect, at the cost of disk space.
+     */
+    public static final long defaultMaxChanges = 1000000;
+
+    /**
+     * The oldest changes are deleted after every trimInterval changes, rather than one per change.
+     * The journal may overshoot its limit by this many rows between trims.
+     */
+    private static final int trimInterval = 1000;
+
+    // values of the KIND column
+    private static final String INSERT = "I";
+    private static final String UPDATE = "U";
+    private static final String DELETE = "D";
+    private static final String DATA = "A";
+
+    /**
+     * Start recording changes to the RBB, keeping at most maxChanges of them.
+     * If the journal was already enabled, this only changes maxChanges.
+     */
+    public static void enable(Connection conn, long maxChanges) throws SQLException {
+        // Call through a query because this must be run server-side, as with H2SRBB.startEventTCPServer().
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("call RBB_ENABLE_EVENT_JOURNAL(", maxChanges, ")");
+        q.getPreparedStatement().execute();
+    }
+
+    /**
+     * Stop recording changes, and delete the journal.
+     */
+    public static void disable(Connection conn) throws SQLException {
+        conn.createStatement().execute("call RBB_DISABLE_EVENT_JOURNAL()");
+    }
+
+    /**
+     * Do not call this directly; it is called through SQL by enable() so it takes effect in the server process.
+     */
+    public static void serverEnable(Connection conn, long maxChanges) throws SQLException {
+        if(maxChanges < 1)
+            throw new SQLException("H2SEventJournal.enable: maxChanges must be at least 1, not " + maxChanges);
+
+        Statement s = conn.createStatement();
+        s.execute("create table if not exists RBB_EVENT_JOURNAL(SEQ BIGINT PRIMARY KEY, KIND CHAR(1), EVENT_ID BIGINT, "
+            + "START_TIME DOUBLE, END_TIME DOUBLE, TAGSET_ID BIGINT, PREV_START_TIME DOUBLE, PREV_END_TIME DOUBLE, PREV_TAGSET_ID BIGINT, "
+            + "SCHEMA_NAME VARCHAR, TABLE_NAME VARCHAR, DATA ARRAY)");
+        s.execute("create table if not exists RBB_EVENT_JOURNAL_CONFIG(MAX_CHANGES BIGINT)");
+        s.execute("delete from RBB_EVENT_JOURNAL_CONFIG");
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("insert into RBB_EVENT_JOURNAL_CONFIG values(", maxChanges, ")");
+        q.getPreparedStatement().execute();
+
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(journals) {
+            journals.remove(uuid); // so it's loaded again with the new settings.
+        }
+    }
+
+    /**
+     * Do not call this directly; it is called through SQL by disable() so it takes effect in the server process.
+     */
+    public static void serverDisable(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(journals) {
+            journals.put(uuid, notEnabled);
+        }
+        Statement s = conn.createStatement();
+        s.execute("drop table if exists RBB_EVENT_JOURNAL");
+        s.execute("drop table if exists RBB_EVENT_JOURNAL_CONFIG");
+    }
+
+    public static boolean isEnabled(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(
+            "select count(*) from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA='PUBLIC' and TABLE_NAME='RBB_EVENT_JOURNAL_CONFIG'");
+        rs.next();
+        return rs.getInt(1) > 0;
+    }
+
+    /**
+     * True if changes to the RBB are being recorded.  This is cheap enough for triggers to call for every row.
+     */
+    public static boolean isRecording(Connection conn, String uuid) throws SQLException {
+        return getJournal(conn, uuid) != notEnabled;
+    }
+
+    /**
+     * Record a change to RBB_EVENTS.  This is called by H2EventTrigger with the old and/or new row of RBB_EVENTS
+     * (ID, START_TIME, END_TIME, TAGSET_ID)
+     * Returns the sequence number of the change, or 0 if the journal is not enabled.
+     */
+    public static long eventChanged(Connection conn, String uuid, Object[] oldRow, Object[] newRow) throws SQLException {
+        Journal j = getJournal(conn, uuid);
+        if(j == notEnabled)
+            return 0;
+
+        final long seq = j.next();
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        if(newRow == null)
+            q.addAlt("insert into RBB_EVENT_JOURNAL(SEQ, KIND, EVENT_ID, START_TIME, END_TIME, TAGSET_ID) values(", seq,
+                ",", DELETE, ",", oldRow[0], ",", oldRow[1], ",", oldRow[2], ",", oldRow[3], ")");
+        else if(oldRow == null)
+            q.addAlt("insert into RBB_EVENT_JOURNAL(SEQ, KIND, EVENT_ID, START_TIME, END_TIME, TAGSET_ID) values(", seq,
+                ",", INSERT, ",", newRow[0], ",", newRow[1], ",", newRow[2], ",", newRow[3], ")");
+        else
+            q.addAlt("insert into RBB_EVENT_JOURNAL(SEQ, KIND, EVENT_ID, START_TIME, END_TIME, TAGSET_ID, PREV_START_TIME, PREV_END_TIME, PREV_TAGSET_ID) values(", seq,
+                ",", UPDATE, ",", newRow[0], ",", newRow[1], ",", newRow[2], ",", newRow[3], ",", oldRow[1], ",", oldRow[2], ",", oldRow[3], ")");
+        q.getPreparedStatement().execute();
+
+        j.trim(conn, seq);
+        return seq;
+    }
+
+    /**
+     * Record rows added to a table of data owned by an Event, e.g. samples of a Timeseries.
+     * This is called by H2EventDataTrigger.
+     * Returns the sequence number of the last row, or 0 if the journal is not enabled.
+     */
+    public static long dataAdded(Connection conn, String uuid, long eventID, String schemaName, String tableName, Object[][] rows) throws SQLException {
+        Journal j = getJournal(conn, uuid);
+        if(j == notEnabled)
+            return 0;
+
+        long seq = 0;
+        for(Object[] row : rows) {
+            seq = j.next();
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("insert into RBB_EVENT_JOURNAL(SEQ, KIND, EVENT_ID, SCHEMA_NAME, TABLE_NAME, DATA) values(", seq,
+                ",", DATA, ",", eventID, ",", schemaName, ",", tableName, ",", row, ")");
+            q.getPreparedStatement().execute();
+            j.trim(conn, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Get the sequence number of the latest change in the journal, or 0 if there are none.
+     */
+    public static long getLastSeq(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery("select max(SEQ) from RBB_EVENT_JOURNAL");
+        rs.next();
+        return rs.getLong(1);
+    }
+
+    /**
+     * Get the changes after sequence number 'since' to Events matching the filter,
+     * as they would have been sent to a listener with that filter.
+     * Each RBBEventChange.journalSeq is set.
+     * DataAdded changes for Events that have since been deleted are omitted.
+     *<p>
+     * Throws SQLException if some of the changes after 'since' are no longer in the journal,
+     * in which case the caller must start over, e.g. with EventCache.initCache.
+     */
+    public static RBBEventChange[] getChanges(Connection conn, long since, RBBFilter filter) throws SQLException {
+        // Call through a query so the filter is evaluated server-side.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("call RBB_EVENT_JOURNAL_CHANGES(", since, ",", filter.toString(), ")");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        ArrayList<RBBEventChange> result = new ArrayList<RBBEventChange>();
+        while(rs.next())
+            result.add(fromRow(rs));
+        rs.close();
+        return result.toArray(new RBBEventChange[0]);
+    }
+
+    /**
+     * getChanges for calling through SQL, with one row per change:
+     * SEQ, CHANGE ('Added', 'Modified', 'Removed' or 'DataAdded'), CREATED_OR_DELETED (for Added or Removed),
+     * ID, START_TIME, END_TIME, TAGS, SCHEMA_NAME, TABLE_NAME, DATA (for DataAdded)
+     *<p>
+     * call RBB_EVENT_JOURNAL_CHANGES(0, 'type=car');
+     */
+    public static ResultSet getChangesResultSet(Connection conn, long since, String filterTags) throws SQLException {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("SEQ", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("CHANGE", java.sql.Types.VARCHAR, 20, 0);
+        result.addColumn("CREATED_OR_DELETED", java.sql.Types.BOOLEAN, 1, 0);
+        result.addColumn("ID", java.sql.Types.BIGINT, 20, 0);
+        result.addColumn("START_TIME", java.sql.Types.DOUBLE, 20, 0);
+        result.addColumn("END_TIME", java.sql.Types.DOUBLE, 20, 0);
+        result.addColumn("TAGS", java.sql.Types.VARCHAR, 1024, 0);
+        result.addColumn("SCHEMA_NAME", java.sql.Types.VARCHAR, 255, 0);
+        result.addColumn("TABLE_NAME", java.sql.Types.VARCHAR, 255, 0);
+        result.addColumn("DATA", java.sql.Types.ARRAY, 0, 0);
+
+        // H2 calls functions returning a ResultSet once just to get the column list.
+        if(conn.getMetaData().getURL().equals("jdbc:columnlist:connection"))
+            return result;
+
+        if(!isEnabled(conn))
+            throw new SQLException("H2SEventJournal.getChanges: the event journal is not enabled for this RBB.");
+
+        // if the change right after 'since' has been deleted, changes have been missed.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select min(SEQ) from RBB_EVENT_JOURNAL");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        rs.next();
+        final long first = rs.getLong(1);
+        rs.close();
+        if(first > since+1)
+            throw new SQLException("H2SEventJournal.getChanges: the changes after " + since + " are no longer in the journal, which starts at " + first);
+
+        final RBBFilter filter = RBBFilter.fromString(filterTags);
+        Map<Long, Tagset> tagsets = new HashMap<Long, Tagset>();
+
+        q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select J.SEQ, J.KIND, J.EVENT_ID, J.START_TIME, J.END_TIME, J.TAGSET_ID, J.PREV_START_TIME, J.PREV_END_TIME, J.PREV_TAGSET_ID, "
+            + "J.SCHEMA_NAME, J.TABLE_NAME, J.DATA, E.START_TIME, E.END_TIME, E.TAGSET_ID "
+            + "from RBB_EVENT_JOURNAL J left join RBB_EVENTS E on J.KIND='" + DATA + "' and E.ID=J.EVENT_ID where J.SEQ > ", since, " order by J.SEQ");
+        rs = q.getPreparedStatement().executeQuery();
+        while(rs.next()) {
+            final long seq = rs.getLong(1);
+            final String kind = rs.getString(2);
+            final long id = rs.getLong(3);
+
+            if(kind.equals(DATA)) {
+                rs.getLong(15);
+                if(rs.wasNull())
+                    continue; // the Event has since been deleted.
+                Event e = new Event(id, rs.getDouble(13), rs.getDouble(14), getTagset(conn, tagsets, rs.getLong(15)));
+                if(filter.matches(conn, e))
+                    result.addRow(seq, "DataAdded", null, id, e.getStart(), e.getEnd(), e.getTagset().toString(),
+                        rs.getString(10), rs.getString(11), rs.getArray(12).getArray());
+                continue;
+            }
+
+            Event e = new Event(id, rs.getDouble(4), rs.getDouble(5), getTagset(conn, tagsets, rs.getLong(6)));
+            final boolean amInterested = filter.matches(conn, e);
+            String change = null;
+            Boolean createdOrDeleted = null;
+            if(kind.equals(INSERT)) {
+                if(amInterested) {
+                    change = "Added";
+                    createdOrDeleted = true;
+                }
+            }
+            else if(kind.equals(DELETE)) {
+                if(amInterested) {
+                    change = "Removed";
+                    createdOrDeleted = true;
+                }
+            }
+            else {
+                // as in H2EventTrigger.fireEvent, an update may add the Event to, or remove it from, the set of interest.
+                Event prev = new Event(id, rs.getDouble(7), rs.getDouble(8), getTagset(conn, tagsets, rs.getLong(9)));
+                final boolean wasInterested = filter.matches(conn, prev);
+                if(wasInterested && amInterested)
+                    change = "Modified";
+                else if(amInterested) {
+                    change = "Added";
+                    createdOrDeleted = false;
+                }
+                else if(wasInterested) {
+                    change = "Removed";
+                    createdOrDeleted = false;
+                    e = prev; // as the listener last knew it.
+                }
+            }
+
+            if(change != null)
+                result.addRow(seq, change, createdOrDeleted, id, e.getStart(), e.getEnd(), e.getTagset().toString(), null, null, null);
+        }
+        rs.close();
+
+        return result;
+    }
+
+    private static Tagset getTagset(Connection conn, Map<Long, Tagset> tagsets, long tagsetID) throws SQLException {
+        Tagset t = tagsets.get(tagsetID);
+        if(t == null) {
+            t = new Tagset(H2STagset.fromID(conn, tagsetID));
+            tagsets.put(tagsetID, t);
+        }
+        return t.clone();
+    }
+
+    private static RBBEventChange fromRow(ResultSet rs) throws SQLException {
+        final Event e = new Event(rs.getLong("ID"), rs.getDouble("START_TIME"), rs.getDouble("END_TIME"), new Tagset(rs.getString("TAGS")));
+        final String change = rs.getString("CHANGE");
+        RBBEventChange c;
+        if(change.equals("Added"))
+            c = new RBBEventChange.Added(e, rs.getBoolean("CREATED_OR_DELETED"));
+        else if(change.equals("Removed"))
+            c = new RBBEventChange.Removed(e, rs.getBoolean("CREATED_OR_DELETED"));
+        else if(change.equals("Modified"))
+            c = new RBBEventChange.Modified(e);
+        else
+            c = new RBBEventChange.DataAdded(e, rs.getString("SCHEMA_NAME"), rs.getString("TABLE_NAME"), (Object[]) rs.getArray("DATA").getArray());
+        c.journalSeq = rs.getLong("SEQ");
+        return c;
+    }
+
+    /**
+     * The state of the journal of an RBB in this process.
+     */
+    private static class Journal {
+        private long seq;
+        private final long maxChanges;
+        private int sinceTrim;
+
+        Journal(long seq, long maxChanges) {
+            this.seq = seq;
+            this.maxChanges = maxChanges;
+        }
+
+        synchronized long next() {
+            return ++seq;
+        }
+
+        /**
+         * Delete the oldest changes, every trimInterval calls.
+         */
+        void trim(Connection conn, long seq) throws SQLException {
+            synchronized(this) {
+                if(++sinceTrim < trimInterval)
+                    return;
+                sinceTrim = 0;
+            }
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("delete from RBB_EVENT_JOURNAL where SEQ <= ", seq - maxChanges);
+            q.getPreparedStatement().execute();
+        }
+    }
+
+    private static final Journal notEnabled = new Journal(0, 0);
+
+    /**
+     * Map from the RBB UUID to its Journal, or notEnabled.
+     */
+    private static final Map<String, Journal> journals = new HashMap<String, Journal>();
+
+    /**
+     * Get the Journal for the RBB, checking the database only the first time.
+     */
+    private static Journal getJournal(Connection conn, String uuid) throws SQLException {
+        synchronized(journals) {
+            Journal j = journals.get(uuid);
+            if(j != null)
+                return j;
+
+            j = notEnabled;
+            if(isEnabled(conn)) {
+                ResultSet rs = conn.createStatement().executeQuery("select MAX_CHANGES from RBB_EVENT_JOURNAL_CONFIG");
+                final long maxChanges = rs.next() ? rs.getLong(1) : defaultMaxChanges;
+                rs.close();
+                j = new Journal(getLastSeq(conn), maxChanges);
+            }
+            journals.put(uuid, j);
+            return j;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.PreparedStatementCache;
+import gov.sandia.rbb.Tagset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * H2SEventTimes optionally materializes the start and end times of every Event
+ * converted to a specified time coordinate (e.g. "timeCoordinate=sessionSeconds"),
+ * so finding Events with RBBFilter.withTimeCoordinate can apply the time bounds
+ * and ordering in indexed SQL, instead of retrieving every Event matching the tags,
+ * converting its times, and sorting.
+ *<p>
+ * The converted times are stored in RBB_MATERIALIZED_TIMES, and the materialized
+ * time coordinates in RBB_MATERIALIZED_TIME_COORDINATES.  Both are created by
+ * the first call to materialize().
+ *<p>
+ * Converted times are updated by H2EventTimesTrigger when an Event is created,
+ * modified, or deleted.  When RBB_TIME_COORDINATES changes, the VERSION of each
+ * materialized time coordinate is incremented, and the converted times are
+ * refreshed by the next find() in that time coordinate.
+ *<p>
+ * An Event whose time cannot be converted (e.g. because it lacks a tag on which
+ * its time coordinate is conditioned) is stored with null times, and finding it
+ * raises the same error as it would without materialization.
+ *<p>
+ * The public functions here only accept / return datatypes for which H2 has a SQL mapping.
+ *
+ * @author rgabbot
+ */
+public class H2SEventTimes {
+
+    /**
+     * Start materializing times in the specified time coordinate, e.g. "timeCoordinate=sessionSeconds"
+     * This computes the times for all existing Events, so it may take a while.
+     */
+    public static void materialize(Connection conn, String timeCoordinate) throws SQLException {
+        final Tagset tc = new Tagset(timeCoordinate);
+        if(tc.getValue("timeCoordinate") == null)
+            throw new SQLException("H2SEventTimes.materialize: "+timeCoordinate+" has no timeCoordinate tag.");
+
+        Statement s = conn.createStatement();
+        s.execute("create table if not exists RBB_MATERIALIZED_TIME_COORDINATES(TIME_COORDINATE_ID BIGINT PRIMARY KEY, VERSION BIGINT, REFRESHED_VERSION BIGINT)");
+        s.execute("create table if not exists RBB_MATERIALIZED_TIMES(TIME_COORDINATE_ID BIGINT, EVENT_ID BIGINT, START_TIME DOUBLE, END_TIME DOUBLE, PRIMARY KEY(TIME_COORDINATE_ID, EVENT_ID))");
+        s.execute("create index if not exists RBB_MATERIALIZED_TIMES_START on RBB_MATERIALIZED_TIMES(TIME_COORDINATE_ID, START_TIME)");
+        s.execute("create index if not exists RBB_MATERIALIZED_TIMES_END on RBB_MATERIALIZED_TIMES(TIME_COORDINATE_ID, END_TIME)");
+        setTablesExist(conn);
+
+        final long id = H2SString.toID(conn, tc.toString());
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("merge into RBB_MATERIALIZED_TIME_COORDINATES key(TIME_COORDINATE_ID) values(", id, ", 1, 0)");
+        q.getPreparedStatement().execute();
+
+        createTriggers(conn);
+
+        refresh(conn, id, tc);
+    }
+
+    /**
+     * Stop materializing times in the specified time coordinate.
+     */
+    public static void dematerialize(Connection conn, String timeCoordinate) throws SQLException {
+        final Long id = H2SString.find(conn, new Tagset(timeCoordinate).toString());
+        if(id == null || !tablesExist(conn))
+            return;
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("delete from RBB_MATERIALIZED_TIME_COORDINATES where TIME_COORDINATE_ID=", id);
+        q.getPreparedStatement().execute();
+
+        q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("delete from RBB_MATERIALIZED_TIMES where TIME_COORDINATE_ID=", id);
+        q.getPreparedStatement().execute();
+
+        createTriggers(conn);
+    }
+
+    /**
+     * Return the ID of the specified time coordinate if it is materialized, refreshing
+     * the times first if they are out of date.
+     * Returns null if it is not materialized.
+     */
+    public static Long findMaterialized(Connection conn, Tagset timeCoordinate) throws SQLException {
+        if(!tablesExist(conn))
+            return null; // nothing was ever materialized in this RBB.
+
+        final Long id = H2SString.find(conn, timeCoordinate.toString());
+        if(id == null)
+            return null;
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select VERSION, REFRESHED_VERSION from RBB_MATERIALIZED_TIME_COORDINATES where TIME_COORDINATE_ID=", id);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+
+        if(!rs.next())
+            return null;
+        final boolean upToDate = rs.getLong(1) == rs.getLong(2);
+        rs.close();
+
+        if(!upToDate)
+            refresh(conn, id, timeCoordinate);
+
+        return id;
+    }
+
+    /**
+     * Get the ID and Tagset of each materialized time coordinate.
+     * This is for H2EventTimesTrigger.
+     */
+    public static List<Object[]> getMaterialized(Connection conn) throws SQLException {
+        // the trigger exists, so the tables do too, though perhaps materialize was called in another process.
+        setTablesExist(conn);
+        List<Object[]> result = new ArrayList<Object[]>();
+        ResultSet rs = conn.createStatement().executeQuery("select TIME_COORDINATE_ID, RBB_ID_TO_STRING(TIME_COORDINATE_ID) from RBB_MATERIALIZED_TIME_COORDINATES");
+        while(rs.next())
+            result.add(new Object[]{ rs.getLong(1), new Tagset(rs.getString(2)) });
+        rs.close();
+        return result;
+    }
+
+    /**
+     * Incremented whenever RBB_TIME_COORDINATES of any RBB is changed in this process,
+     * so H2EventTimesTrigger knows to discard its H2STime.Cache.
+     */
+    private static long coordinatesVersion = 0;
+
+    public static synchronized long getCoordinatesVersion() {
+        return coordinatesVersion;
+    }
+
+    /**
+     * Called by H2EventTimesTrigger when RBB_TIME_COORDINATES changes,
+     * which may change the converted times of any Event.
+     */
+    public static void coordinatesChanged(Connection conn) throws SQLException {
+        synchronized(H2SEventTimes.class) {
+            ++coordinatesVersion;
+        }
+        conn.createStatement().execute("update RBB_MATERIALIZED_TIME_COORDINATES set VERSION=VERSION+1");
+    }
+
+    /**
+     * Store the converted times of an Event in each of the materialized time coordinates.
+     * This is called by H2EventTimesTrigger when an Event is created or modified.
+     * @param coordinates is from getMaterialized()
+     */
+    public static void eventChanged(Connection conn, List<Object[]> coordinates, H2STime.Cache cache,
+        long eventID, double start, double end, long tagsetID) throws SQLException {
+        if(coordinates.isEmpty())
+            return;
+        final Tagset tags = new Tagset(H2STagset.fromID(conn, tagsetID));
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("merge into RBB_MATERIALIZED_TIMES key(TIME_COORDINATE_ID, EVENT_ID) values(", null, ", ", null, ", ", null, ", ", null, ")");
+        PreparedStatement ps = q.getPreparedStatement();
+        for(Object[] coordinate : coordinates)
+            addBatch(conn, ps, cache, (Long) coordinate[0], (Tagset) coordinate[1], eventID, start, end, tags);
+        ps.executeBatch();
+    }
+
+    /**
+     * This is called by H2EventTimesTrigger when an Event is deleted.
+     */
+    public static void eventDeleted(Connection conn, List<Object[]> coordinates, long eventID) throws SQLException {
+        for(Object[] coordinate : coordinates) {
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("delete from RBB_MATERIALIZED_TIMES where TIME_COORDINATE_ID=", coordinate[0], " and EVENT_ID=", eventID);
+            q.getPreparedStatement().execute();
+        }
+    }
+
+    /**
+     * Re-compute the converted times of all Events.
+     */
+    private static void refresh(Connection conn, long id, Tagset timeCoordinate) throws SQLException {
+        // note the version before starting, so if RBB_TIME_COORDINATES is changed while
+        // we are working, the times will be out of date again when we are done.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select VERSION from RBB_MATERIALIZED_TIME_COORDINATES where TIME_COORDINATE_ID=", id);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        if(!rs.next())
+            return; // it was dematerialized concurrently.
+        final long version = rs.getLong(1);
+        rs.close();
+
+        H2STime.Cache cache = new H2STime.Cache();
+        PreparedStatement ps = conn.prepareStatement("merge into RBB_MATERIALIZED_TIMES key(TIME_COORDINATE_ID, EVENT_ID) values(?, ?, ?, ?)");
+        rs = conn.createStatement().executeQuery("select ID, START_TIME, END_TIME, RBB_ID_TO_TAGSET(TAGSET_ID) from RBB_EVENTS");
+        int n = 0;
+        while(rs.next()) {
+            addBatch(conn, ps, cache, id, timeCoordinate, rs.getLong(1), rs.getDouble(2), rs.getDouble(3), new Tagset(rs.getString(4)));
+            if(++n % 1000 == 0) // bounds the pending batch's memory while still amortizing round trips
+                ps.executeBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+        rs.close();
+
+        q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("update RBB_MATERIALIZED_TIME_COORDINATES set REFRESHED_VERSION=", version, " where TIME_COORDINATE_ID=", id);
+        q.getPreparedStatement().execute();
+    }
+
+    private static void addBatch(Connection conn, PreparedStatement ps, H2STime.Cache cache,
+        long id, Tagset timeCoordinate,
+        long eventID, double start, double end, Tagset tags) throws SQLException {
+        Double tcStart, tcEnd;
+        try {
+            tcStart = cache.convert(conn, start, tags, timeCoordinate);
+            tcEnd = cache.convert(conn, end, tags, timeCoordinate);
+        }
+        catch(SQLException e) {
+            tcStart = tcEnd = null; // find() will discover this and report the error.
+        }
+        ps.setLong(1, id);
+        ps.setLong(2, eventID);
+        ps.setObject(3, tcStart);
+        ps.setObject(4, tcEnd);
+        ps.addBatch();
+    }
+
+    /**
+     * (Re-)create the triggers that maintain RBB_MATERIALIZED_TIMES, or drop them if nothing is materialized.
+     * This is done every time the set of materialized coordinates changes, since each
+     * trigger reads the set only once.
+     */
+    private static void createTriggers(Connection conn) throws SQLException {
+        Statement s = conn.createStatement();
+        s.execute("drop trigger if exists RBB_MATERIALIZED_TIMES_EVENTS");
+        s.execute("drop trigger if exists RBB_MATERIALIZED_TIMES_COORDINATES");
+
+        ResultSet rs = s.executeQuery("select count(*) from RBB_MATERIALIZED_TIME_COORDINATES");
+        rs.next();
+        final boolean any = rs.getLong(1) > 0;
+        rs.close();
+        if(!any)
+            return;
+
+        s.execute("create trigger RBB_MATERIALIZED_TIMES_EVENTS after insert, update, delete on RBB_EVENTS for each row call \"gov.sandia.rbb.impl.h2.H2EventTimesTrigger\"");
+        s.execute("create trigger RBB_MATERIALIZED_TIMES_COORDINATES after insert, update, delete on RBB_TIME_COORDINATES for each row call \"gov.sandia.rbb.impl.h2.H2EventTimesTrigger\"");
+    }
+
+    /**
+     * True if RBB_MATERIALIZED_TIME_COORDINATES and RBB_MATERIALIZED_TIMES have been created in this RBB,
+     * i.e. anything was ever materialized in it.
+     * This is checked in INFORMATION_SCHEMA only once per RBB, since the tables are never dropped.
+     */
+    private static boolean tablesExist(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(tablesExist) {
+            Boolean exist = tablesExist.get(uuid);
+            if(exist != null)
+                return exist;
+        }
+        ResultSet rs = conn.createStatement().executeQuery("select count(*) from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA='PUBLIC' and TABLE_NAME='RBB_MATERIALIZED_TIME_COORDINATES'");
+        rs.next();
+        final boolean exist = rs.getLong(1) > 0;
+        rs.close();
+        synchronized(tablesExist) {
+            if(!tablesExist.containsKey(uuid))
+                tablesExist.put(uuid, exist);
+            return tablesExist.get(uuid);
+        }
+    }
+
+    private static void setTablesExist(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(tablesExist) {
+            tablesExist.put(uuid, true);
+        }
+    }
+
+    /**
+     * Map from the RBB UUID to whether the materialization tables exist in that RBB.
+     */
+    private static final Map<String, Boolean> tablesExist = new HashMap<String, Boolean>();
+}
@@ -0,0 +1,332 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.PreparedStatementCache;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ *
+ * H2SIntervalIndex is an optional in-memory index of the START_TIME and END_TIME
+ * of RBB_EVENTS, for finding the Events that overlap a time window.
+ *<p>
+ * A B-tree index on START_TIME or END_TIME alone can't efficiently answer
+ * END_TIME >= start and START_TIME <= end, so for a small window in a long-running RBB
+ * most of RBB_EVENTS is scanned.  Here, Events are grouped by the binary exponent
+ * of their duration (so within a group, durations differ by at most a factor of 2)
+ * and ordered by START_TIME within each group.  Then for each group only the Events
+ * starting between (start - maximum duration in the group) and end need be examined,
+ * nearly all of which overlap the window.  Open-ended Events (END_TIME of H2SRBB.maxDouble())
+ * all fall into a single group.
+ *<p>
+ * When enabled for an RBB, H2SEvent.findWithoutTimeCoordinate (and thus
+ * Event.find, findConcurrent, EventCache etc.) uses it to find the IDs of candidate Events.
+ *<p>
+ * The index is kept current by H2EventTrigger, which is called for every insert, update and
+ * delete on RBB_EVENTS.  Triggers are run in the process hosting the database,
+ * so the index can only be enabled in that process.
+ *<p>
+ * Triggers are called before the transaction commits, and H2 does not call them again if it
+ * is rolled back, so a rolled-back change leaves the index out of date.  To catch this, the
+ * times of the candidates found are compared to those in RBB_EVENTS, and the number of
+ * indexed Events to the number of rows, and if they disagree the index is rebuilt (with the
+ * query falling back to SQL meanwhile).  This can't detect a rolled-back change to an Event
+ * that isn't a candidate and leaves the number of Events unchanged, e.g. an update that would
+ * have moved an Event out of the window, so if START_TIME or END_TIME may be changed in
+ * transactions that are rolled back, the index should only be enabled while they are not.
+ *
+ * @author rgabbot
+ */
+public class H2SIntervalIndex {
+
+    /**
+     * Build the index for this RBB (if it wasn't already) and keep it current from then on.
+     * This can only be called in the process hosting the database, since that is where
+     * H2EventTrigger is called to keep it up to date.
+     */
+    public static void enable(Connection conn) throws SQLException {
+        if(!H2SRBB.isLocal(conn))
+            throw new SQLException("H2SIntervalIndex.enable: the index can only be enabled in the process hosting the database.");
+
+        final String uuid = H2SRBB.getUUID(conn);
+        Index index;
+        synchronized(indexes) {
+            if(indexes.containsKey(uuid))
+                return;
+            // register it before loading so changes made while loading are captured.
+            index = new Index();
+            indexes.put(uuid, index);
+        }
+        load(conn, index);
+    }
+
+    /**
+     * Replace the index for this RBB with one newly loaded from RBB_EVENTS,
+     * unless it has been disabled or replaced already.
+     */
+    private static void rebuild(Connection conn, Index old) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        Index index;
+        synchronized(indexes) {
+            if(indexes.get(uuid) != old)
+                return;
+            index = new Index();
+            indexes.put(uuid, index);
+        }
+        System.err.println("H2SIntervalIndex: the index disagreed with RBB_EVENTS (probably due to a rollback) so it is being rebuilt.");
+        load(conn, index);
+    }
+
+    private static void load(Connection conn, Index index) throws SQLException {
+        // the lock is not held while querying, since triggers may be waiting to update the index.
+        ResultSet rs = conn.createStatement().executeQuery("select ID, START_TIME, END_TIME from RBB_EVENTS");
+        while(rs.next())
+            index.load(rs.getLong(1), rs.getDouble(2), rs.getDouble(3));
+        rs.close();
+        index.doneLoading();
+    }
+
+    /**
+     * Discard the index for this RBB (if any).
+     */
+    public static void disable(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(indexes) {
+            indexes.remove(uuid);
+        }
+    }
+
+    public static boolean isEnabled(Connection conn) throws SQLException {
+        return getIndex(conn) != null;
+    }
+
+    /**
+     * Update the index (if any) for a change to RBB_EVENTS.
+     * This is called by H2EventTrigger with the old and/or new row of RBB_EVENTS
+     * (ID, START_TIME, END_TIME, TAGSET_ID)
+     */
+    public static void update(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        Index index = getIndex(conn);
+        if(index == null)
+            return;
+        if(newRow == null)
+            index.remove((Long) oldRow[0]);
+        else
+            index.put((Long) newRow[0], (Double) newRow[1], (Double) newRow[2]);
+    }
+
+    /**
+     * Get the IDs of Events that overlap the time window,
+     * i.e. END_TIME >= start and START_TIME <= end.
+     * Either may be null for no limit.
+     *<p>
+     * Returns null if the index is not enabled for this RBB, if the window contains
+     * so many of the Events that querying the database directly would be faster,
+     * or if the index was found to be out of date and is being rebuilt.
+     */
+    static Long[] find(Connection conn, Double start, Double end) throws SQLException {
+        Index index = getIndex(conn);
+        if(index == null)
+            return null;
+        Found found = index.find(start == null ? Double.NEGATIVE_INFINITY : start,
+            end == null ? Double.POSITIVE_INFINITY : end);
+        if(found == null)
+            return null;
+
+        // A change committed between reading the index and querying RBB_EVENTS also makes them
+        // disagree, so check again against the index as it is now before concluding it is wrong.
+        if(!agrees(conn, found) && !agrees(conn, index.recheck(found))) {
+            rebuild(conn, index);
+            return null;
+        }
+
+        Long[] result = new Long[found.intervals.length];
+        for(int i = 0; i < result.length; ++i)
+            result[i] = found.intervals[i].id;
+        return result;
+    }
+
+    /**
+     * True if RBB_EVENTS has the same number of rows as were indexed, and the same
+     * START_TIME and END_TIME for each of the Intervals found.
+     */
+    private static boolean agrees(Connection conn, Found found) throws SQLException {
+        final int n = found.intervals.length;
+        Object[] ids = new Object[n], starts = new Object[n], ends = new Object[n];
+        for(int i = 0; i < n; ++i) {
+            ids[i] = found.intervals[i].id;
+            starts[i] = found.intervals[i].start;
+            ends[i] = found.intervals[i].end;
+        }
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select (select count(*) from RBB_EVENTS), (select count(*) from RBB_EVENTS E join table(INDEXED_ID LONG=");
+        q.addParam(ids);
+        q.add(", INDEXED_START DOUBLE=");
+        q.addParam(starts);
+        q.add(", INDEXED_END DOUBLE=");
+        q.addParam(ends);
+        q.add(") on E.ID=INDEXED_ID and E.START_TIME=INDEXED_START and E.END_TIME=INDEXED_END)");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        rs.next();
+        final boolean result = rs.getLong(1) == found.numIndexed && rs.getLong(2) == n;
+        rs.close();
+        return result;
+    }
+
+    private static Index getIndex(Connection conn) throws SQLException {
+        synchronized(indexes) {
+            if(indexes.isEmpty())
+                return null; // avoid getUUID in the usual case of no indexes at all.
+        }
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(indexes) {
+            return indexes.get(uuid);
+        }
+    }
+
+    /**
+     * Map from the RBB UUID to the Index for that RBB.
+     */
+    private static final Map<String, Index> indexes = new HashMap<String, Index>();
+
+    private static class Interval implements Comparable<Interval> {
+        final long id;
+        final double start, end;
+
+        Interval(long id, double start, double end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override public int compareTo(Interval x) {
+            if(start < x.start)
+                return -1;
+            if(start > x.start)
+                return 1;
+            return id < x.id ? -1 : id > x.id ? 1 : 0;
+        }
+
+        /**
+         * The Intervals with durations in [2^group, 2^(group+1)) are in the same group.
+         */
+        int group() {
+            return Math.getExponent(Math.max(0.0, end-start));
+        }
+    }
+
+    /**
+     * The Intervals an Index found, and the number of Intervals indexed at the time.
+     */
+    private static class Found {
+        final Interval[] intervals;
+        final long numIndexed;
+
+        Found(Interval[] intervals, long numIndexed) {
+            this.intervals = intervals;
+            this.numIndexed = numIndexed;
+        }
+    }
+
+    private static class Index {
+        /**
+         * map from the duration group to the Intervals in that group, ordered by start time.
+         */
+        private final TreeMap<Integer, TreeSet<Interval>> groups = new TreeMap<Integer, TreeSet<Interval>>();
+
+        private final Map<Long, Interval> byID = new HashMap<Long, Interval>();
+
+        /**
+         * While the index is being loaded from RBB_EVENTS, this holds the IDs changed by triggers
+         * so the (possibly out-of-date) rows from the initial load don't overwrite them.
+         */
+        private Set<Long> changedWhileLoading = new HashSet<Long>();
+
+        synchronized void put(long id, double start, double end) {
+            if(changedWhileLoading != null)
+                changedWhileLoading.add(id);
+            putUnchecked(id, start, end);
+        }
+
+        synchronized void remove(long id) {
+            if(changedWhileLoading != null)
+                changedWhileLoading.add(id);
+            Interval old = byID.remove(id);
+            if(old != null)
+                groups.get(old.group()).remove(old);
+        }
+
+        synchronized void load(long id, double start, double end) {
+            if(!changedWhileLoading.contains(id))
+                putUnchecked(id, start, end);
+        }
+
+        synchronized void doneLoading() {
+            changedWhileLoading = null;
+        }
+
+        private void putUnchecked(long id, double start, double end) {
+            Interval old = byID.remove(id);
+            if(old != null)
+                groups.get(old.group()).remove(old);
+
+            Interval interval = new Interval(id, start, end);
+            byID.put(id, interval);
+            TreeSet<Interval> group = groups.get(interval.group());
+            if(group == null) {
+                group = new TreeSet<Interval>();
+                groups.put(interval.group(), group);
+            }
+            group.add(interval);
+        }
+
+        synchronized Found find(double start, double end) {
+            if(changedWhileLoading != null)
+                return null; // not ready yet.
+
+            // If more than this many Events are found, the caller is better off scanning RBB_EVENTS.
+            // Past about half the table, fetching each row by ID costs more than one sequential scan.
+            final int maxResults = byID.size() / 2 + 100;
+
+            ArrayList<Interval> result = new ArrayList<Interval>();
+            for(Map.Entry<Integer, TreeSet<Interval>> entry : groups.entrySet()) {
+                // nothing in this group can be longer than this.
+                final double maxDuration = Math.scalb(1.0, entry.getKey()+1);
+                final Interval from = new Interval(Long.MIN_VALUE, start - maxDuration, 0);
+                final Interval to = new Interval(Long.MAX_VALUE, end, 0);
+                if(from.compareTo(to) > 0)
+                    continue;
+                for(Interval interval : entry.getValue().subSet(from, true, to, true)) {
+                    if(interval.end < start)
+                        continue;
+                    result.add(interval);
+                    if(result.size() > maxResults)
+                        return null;
+                }
+            }
+
+            return new Found(result.toArray(new Interval[result.size()]), byID.size());
+        }
+
+        /**
+         * The Intervals currently indexed for the IDs of those found earlier
+         * (except any that have been removed since), and the number indexed now.
+         */
+        synchronized Found recheck(Found found) {
+            ArrayList<Interval> result = new ArrayList<Interval>();
+            for(Interval interval : found.intervals) {
+                Interval current = byID.get(interval.id);
+                if(current != null)
+                    result.add(current);
+            }
+            return new Found(result.toArray(new Interval[result.size()]), byID.size());
+        }
+    }
+}
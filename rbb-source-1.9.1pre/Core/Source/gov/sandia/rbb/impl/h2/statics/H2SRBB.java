@@ -35,6 +35,9 @@ public class H2SRBB
         org.h2.tools.RunScript.execute(conn, new java.io.InputStreamReader(
             script));
 
+        createVersion10Aliases(conn);
+        conn.createStatement().execute("UPDATE RBB_DESCRIPTOR set RBB_SCHEMA_VERSION = "+schemaVersion());
+
         if(name == null)
             name = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date());
         setName(conn, name);
@@ -50,11 +53,69 @@ public class H2SRBB
     public static String getUUID(Connection conn)
         throws java.sql.SQLException
     {
+        // The UUID of an RBB never changes, so it is retrieved only once per database.
+        final Object key = uuidKey(conn);
+        synchronized(uuids) {
+            String uuid = uuids.get(key);
+            if(uuid != null)
+                return uuid;
+        }
+
         ResultSet rs = conn.createStatement().executeQuery(
             "select RBB_UUID from RBB_DESCRIPTOR");
         if (!rs.next())
             throw new java.sql.SQLException("failed to retrieve RBB UUID!");
-        return rs.getString(1);
+        final String uuid = rs.getString(1);
+        rs.close();
+        uuidQueries.incrementAndGet();
+
+        synchronized(uuids) {
+            uuids.put(key, uuid);
+        }
+        return uuid;
+    }
+
+    /**
+     * The number of times getUUID has had to query RBB_DESCRIPTOR, i.e. missed its cache.
+     */
+    public static long getUUIDQueries() {
+        return uuidQueries.get();
+    }
+
+    private static final java.util.concurrent.atomic.AtomicLong uuidQueries = new java.util.concurrent.atomic.AtomicLong();
+
+    /**
+     * The key under which the UUID for conn is cached.
+     * H2 passes a new Connection instance to each call of a SQL alias or trigger,
+     * so for an embedded connection the key is the H2 Database it is connected to,
+     * which all of those share.  Otherwise (e.g. a client connection to a server)
+     * it is the Connection itself.
+     */
+    private static Object uuidKey(Connection conn) {
+        if(conn instanceof org.h2.jdbc.JdbcConnection) {
+            org.h2.engine.SessionInterface session = ((org.h2.jdbc.JdbcConnection) conn).getSession();
+            if(session instanceof org.h2.engine.Session)
+                return ((org.h2.engine.Session) session).getDatabase();
+        }
+        return conn;
+    }
+
+    /**
+     * Map from the key of a Connection (see uuidKey) to the UUID of the RBB it is connected to.
+     * A WeakHashMap is used because H2 creates Connection instances for triggers etc.
+     * that are never explicitly closed, and a Database outlives its closed Connections.
+     */
+    private static final Map<Object, String> uuids = new WeakHashMap<Object, String>();
+
+    /**
+     * Forget the cached UUID for a Connection, e.g. because it is being closed or the
+     * RBB it was connected to is being deleted.
+     */
+    public static void forgetUUID(Connection conn) {
+        final Object key = uuidKey(conn);
+        synchronized(uuids) {
+            uuids.remove(key);
+        }
     }
 
     /**
@@ -66,7 +127,26 @@ public class H2SRBB
      * one stored in the RBB.
      */
     public static int schemaVersion() {
-        return 9;
+        return 10;
+    }
+
+    /**
+     * Create the aliases added in schema version 10.
+     * This is called by create(), after create_rbb.sql (which predates them), and by
+     * UpdateSchema to upgrade an RBB from version 9.
+     */
+    public static void createVersion10Aliases(Connection conn) throws SQLException {
+        final String[][] aliases = {
+            { "RBB_ADD_SAMPLES", "gov.sandia.rbb.impl.h2.statics.H2STimeseries.addSamplesByIDs" },
+            { "RBB_TIMESERIES_ROLLUP", "gov.sandia.rbb.impl.h2.statics.H2STimeseriesRollups.getRollup" },
+            { "RBB_EVENT_QUEUE_STATS", "gov.sandia.rbb.impl.h2.H2EventQueue.getStats" },
+            { "RBB_EVENT_TCP_PROTOCOL_VERSION", "gov.sandia.rbb.impl.h2.H2EventTCPServer.getProtocolVersion" },
+            { "RBB_ENABLE_EVENT_JOURNAL", "gov.sandia.rbb.impl.h2.statics.H2SEventJournal.serverEnable" },
+            { "RBB_DISABLE_EVENT_JOURNAL", "gov.sandia.rbb.impl.h2.statics.H2SEventJournal.serverDisable" },
+            { "RBB_EVENT_JOURNAL_CHANGES", "gov.sandia.rbb.impl.h2.statics.H2SEventJournal.getChangesResultSet" }
+        };
+        for(String[] alias : aliases)
+            conn.createStatement().execute("CREATE ALIAS IF NOT EXISTS "+alias[0]+" FOR \""+alias[1]+"\"");
     }
 
     /**
@@ -133,6 +213,35 @@ public class H2SRBB
         conn.createStatement().executeQuery("call rbb_stop_event_tcp_server();");
     }
 
+    /**
+     * Get the highest version of the binary protocol spoken by the Event TCP Server,
+     * or 0 if the server predates it (or the RBB was created before it), in which
+     * case clients must use the text protocol, with one connection per listener.
+     */
+    public static int getEventTCPProtocolVersion(Connection conn) throws SQLException {
+        // Call through a query because this must be answered by the server process, as with startEventTCPServer().
+        ResultSet rs;
+        try {
+            rs = conn.createStatement().executeQuery("call RBB_EVENT_TCP_PROTOCOL_VERSION();");
+        }
+        catch(SQLException e) {
+            return 0; // the alias, or the function it calls, doesn't exist.
+        }
+        rs.next();
+        final int version = rs.getInt(1);
+        rs.close();
+        return version;
+    }
+
+    /**
+     * Get the counters of the queues feeding listeners of this RBB in the server process,
+     * one row per queue.  See H2EventQueue.getStats for the columns.
+     */
+    public static ResultSet getEventQueueStats(Connection conn) throws SQLException {
+        // Call through a query because the queues for remote listeners are in the server process, as with startEventTCPServer().
+        return conn.createStatement().executeQuery("call RBB_EVENT_QUEUE_STATS();");
+    }
+
     /**
      * Get the name of the host on which the server is running.
      */
@@ -10,11 +10,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 /**
@@ -46,7 +47,8 @@ public class H2SString {
         if(s==null)
             return 0L;
 
-        Long id = cacheGet(conn, s);
+        final Dictionary dict = dictionary(conn);
+        Long id = dict.getID(s);
         if(id != null)
             return id;
 
@@ -57,7 +59,7 @@ public class H2SString {
         if (!rs.next())
             return null;
         id = rs.getLong(1);
-        cachePut(conn, s, id); // was in RBB but not cache
+        dict.put(s, id); // was in RBB but not cache
         rs.close();
 
         return id;
@@ -81,10 +83,32 @@ public class H2SString {
      * Like findEach but returns result as a hash from Strings to their IDs.
      */
     public static Map<String,Long> findSet(Connection conn, Object[] s) throws SQLException {
-        ResultSet rs = H2SString.findEach(conn, s);
+        final Dictionary dict = dictionary(conn);
         Map<String, Long> result = new HashMap<String,Long>();
-        while(rs.next())
-            result.put(rs.getString("STRING"), rs.getLong("ID"));
+
+        // only query the strings that aren't already in the cache.
+        ArrayList<String> uncached = new ArrayList<String>();
+        for(Object o : s) {
+            if(o == null)
+                continue;
+            final String str = o.toString();
+            final Long id = dict.getID(str);
+            if(id == null)
+                uncached.add(str);
+            else
+                result.put(str, id);
+        }
+        if(uncached.isEmpty())
+            return result;
+
+        ResultSet rs = H2SString.findEach(conn, uncached.toArray());
+        while(rs.next()) {
+            final String str = rs.getString("STRING");
+            final long id = rs.getLong("ID");
+            dict.put(str, id);
+            result.put(str, id);
+        }
+        rs.close();
         return result;
     }
 
@@ -165,14 +189,20 @@ public class H2SString {
         if(id==0)
             return null;
 
+        final Dictionary dict = dictionary(conn);
+        String s = dict.getString(id);
+        if(s != null)
+            return s;
+
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
 
         q.addAlt("select STRING from RBB_STRINGS where ID=", id);
         ResultSet rs = q.getPreparedStatement().executeQuery();
         if(!rs.next())
             throw new SQLException("H2SString error: invalid id "+id);
-        final String s = rs.getString(1);
+        s = rs.getString(1);
         rs.close();
+        dict.put(s, id);
         return s;
     }
 
@@ -181,46 +211,180 @@ public class H2SString {
      * @throws SQLException
      */
     public static String[] fromIDs(Connection conn, Object[] ids) throws SQLException {
+        final Dictionary dict = dictionary(conn);
+        String[] result = new String[ids.length];
+
+        // fill in what we can from the cache, and note the rest.
+        ArrayList<Object> uncached = new ArrayList<Object>();
+        for(int i = 0; i < result.length; ++i) {
+            if(ids[i] == null)
+                continue;
+            final long id = ((Number) ids[i]).longValue();
+            if(id == 0)
+                continue;
+            result[i] = dict.getString(id);
+            if(result[i] == null)
+                uncached.add(id);
+        }
+        if(uncached.isEmpty())
+            return result;
+
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-        q.add("select STRING from table(id2 long=");
-        q.addParamArray(ids);
+        q.add("select ID2, STRING from table(id2 long=");
+        q.addParamArray(uncached.toArray());
         q.add(") left outer join rbb_strings on id=id2;");
         // System.err.println(q);
         PreparedStatement ps = q.getPreparedStatement();
         ResultSet rs = ps.executeQuery();
-        String[] result = new String[ids.length];
-        for(int i = 0; i < result.length; ++i) {
+        Map<Long, String> found = new HashMap<Long, String>();
+        for(int i = 0; i < uncached.size(); ++i) {
             if(!rs.next())
-                throw new SQLException("H2SString.fromIDs error: expected "+result.length+" results but got only "+i);
-            result[i] = rs.getString(1);
+                throw new SQLException("H2SString.fromIDs error: expected "+uncached.size()+" results but got only "+i);
+            final String s = rs.getString(2);
+            if(s == null) // invalid id
+                continue;
+            final long id = rs.getLong(1);
+            dict.put(s, id);
+            found.put(id, s);
         }
         rs.close();
+
+        for(int i = 0; i < result.length; ++i)
+            if(result[i] == null && ids[i] != null)
+                result[i] = found.get(((Number) ids[i]).longValue());
+
         return result;
     }
 
 
-    private static final HashMap<String, Long> cache = new HashMap<String, Long>();
-    private synchronized static void cachePut(Connection conn, String s, Long ID) throws SQLException {
-        if(cache.size() >= 5000)
-            decimate();
-        cache.put(s+H2SRBB.getUUID(conn), ID);
+    /**
+     * The maximum number of entries cached in each direction (string to ID, and ID to string) for each RBB.
+     * A larger cache saves more RBB_STRINGS lookups for tag-heavy workloads, at the cost of
+     * holding that many strings in memory for every open RBB.
+     */
+    private static int cacheSize = 5000;
+
+    /**
+     * Set the maximum number of strings cached for each RBB.
+     * If the cache is already larger, the least-recently used strings are dropped immediately.
+     */
+    public static void setCacheSize(int n) {
+        synchronized(dictionaries) {
+            cacheSize = n;
+            for(Dictionary dict : dictionaries.values())
+                dict.trim();
+        }
     }
-    private synchronized static Long cacheGet(Connection conn, String s) throws SQLException {
-        return cache.get(s+H2SRBB.getUUID(conn));
+
+    public static int getCacheSize() {
+        return cacheSize;
     }
+
     /**
-     * There is no way to remove a random element from a set or hashmap in java.util, so instead
-     * remove a fraction of all entries periodically.
+     * The number of lookups (by string or by ID) satisfied from the cache for this RBB.
      */
-    private synchronized static void decimate() {
-        Random rand = new Random();
-        Iterator<Map.Entry<String,Long>> iter = cache.entrySet().iterator();
-        while(iter.hasNext()) {
-            final String tc = iter.next().getKey();
-            if(rand.nextInt(10)!=0)
-                continue;
-            // System.err.println("un-caching "+tc);
-            iter.remove();
+    public static long getCacheHits(Connection conn) throws SQLException {
+        return dictionary(conn).getHits();
+    }
+
+    /**
+     * The number of lookups (by string or by ID) that had to go to RBB_STRINGS for this RBB.
+     */
+    public static long getCacheMisses(Connection conn) throws SQLException {
+        return dictionary(conn).getMisses();
+    }
+
+    /**
+     * Discard all cached strings (and the hit/miss counts) for this RBB.
+     */
+    public static void clearCache(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(dictionaries) {
+            dictionaries.remove(uuid);
+        }
+    }
+
+    /**
+     * Map from the RBB UUID to the Dictionary for that RBB.
+     */
+    private static final Map<String, Dictionary> dictionaries = new HashMap<String, Dictionary>();
+
+    private static Dictionary dictionary(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(dictionaries) {
+            Dictionary dict = dictionaries.get(uuid);
+            if(dict == null) {
+                dict = new Dictionary();
+                dictionaries.put(uuid, dict);
+            }
+            return dict;
+        }
+    }
+
+    /**
+     * A Dictionary caches the mapping between Strings and IDs in both directions for one RBB.
+     * Each direction is kept in access order so the least-recently used entry is evicted
+     * once there are more than cacheSize.
+     */
+    private static class Dictionary {
+        private long hits, misses;
+
+        private final LinkedHashMap<String, Long> ids = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        private final LinkedHashMap<Long, String> strings = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        synchronized Long getID(String s) {
+            final Long id = ids.get(s);
+            if(id == null)
+                ++misses;
+            else
+                ++hits;
+            return id;
+        }
+
+        synchronized String getString(long id) {
+            final String s = strings.get(id);
+            if(s == null)
+                ++misses;
+            else
+                ++hits;
+            return s;
+        }
+
+        synchronized void put(String s, long id) {
+            ids.put(s, id);
+            strings.put(id, s);
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Evict least-recently used entries until within cacheSize.
+         */
+        synchronized void trim() {
+            trim(ids.keySet().iterator(), ids.size());
+            trim(strings.keySet().iterator(), strings.size());
+        }
+
+        private static void trim(Iterator<?> iter, int size) {
+            for(; size > cacheSize && iter.hasNext(); --size) {
+                iter.next();
+                iter.remove();
+            }
         }
     }
 
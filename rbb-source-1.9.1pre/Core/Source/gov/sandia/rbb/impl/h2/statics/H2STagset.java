@@ -78,6 +78,14 @@ public class H2STagset
         }
         ps.executeBatch();
 
+        if(H2STagsetIndex.isEnabled(conn)) {
+            for(String name : tagset.getNames()) {
+                final long nameID = H2SString.find(conn, name);
+                for(String value : tagset.getValues(name))
+                    H2STagsetIndex.add(conn, nameID, H2SString.toID(conn, value), id);
+            }
+        }
+
         return id;
     }
 
@@ -106,6 +114,10 @@ public class H2STagset
         // each element of IDs is the String ID of the corresponding tag name/value in tags
         Object[] IDs = H2SString.findArray(conn, tagArray);
 
+        // use the in-memory index instead of a self-join if it's available.
+        if(H2STagsetIndex.hasTagsQuery(conn, IDs, q))
+            return;
+
         UNION: for(int u = 0; u < tags.length; ++u) {
             if(u > 0)
                 q.add(" union ");
@@ -0,0 +1,359 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.PreparedStatementCache;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * H2STagsetIndex is an optional in-memory inverted index of RBB_TAGSETS.
+ * For each (NAME_ID, VALUE_ID) it keeps the sorted list of TAGSET_IDs containing
+ * that name/value pair, and for each NAME_ID the sorted list of TAGSET_IDs containing
+ * that name with any value (for null-valued "don't care" tags in queries).
+ *<p>
+ * When enabled for an RBB, H2STagset.hasTagsQuery resolves the tagset IDs by
+ * intersecting (and for multiple tagsets, merging) these lists instead of generating
+ * a self-join of RBB_TAGSETS for each name/value pair.
+ *<p>
+ * The index is kept current by H2STagset.toID.  RBB_TAGSETS may also be added to by
+ * other processes, so before each use the number of rows in RBB_TAGSETS is compared
+ * to the number indexed.  If they differ, the new rows are loaded from RBB_TAGSETS.
+ * If the counts still differ (e.g. because a transaction that called toID was rolled back)
+ * the index is rebuilt from RBB_TAGSETS.  If even that can't reconcile it, hasTagsQuery
+ * falls back to SQL for that query.
+ *<p>
+ * The index resides in the process that called enable(), so it only benefits
+ * queries made from that process.
+ *
+ * @author rgabbot
+ */
+public class H2STagsetIndex {
+
+    /**
+     * Build the index for this RBB (if it wasn't already) and keep it current from then on.
+     */
+    public static void enable(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(indexes) {
+            if(indexes.containsKey(uuid))
+                return;
+        }
+
+        // build it before adding it, so other threads never see a partial index.
+        // The lock is not held while querying, since the database might be calling toID concurrently.
+        Index index = new Index();
+        index.sync(conn);
+
+        synchronized(indexes) {
+            if(!indexes.containsKey(uuid))
+                indexes.put(uuid, index);
+        }
+    }
+
+    /**
+     * Discard the index for this RBB (if any).
+     */
+    public static void disable(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(indexes) {
+            indexes.remove(uuid);
+        }
+    }
+
+    public static boolean isEnabled(Connection conn) throws SQLException {
+        return getIndex(conn) != null;
+    }
+
+    /**
+     * Record that the tagset tagsetID contains the name/value pair.
+     * This is called by H2STagset.toID after inserting into RBB_TAGSETS.
+     */
+    static void add(Connection conn, long nameID, long valueID, long tagsetID) throws SQLException {
+        Index index = getIndex(conn);
+        if(index != null)
+            index.add(nameID, valueID, tagsetID);
+    }
+
+    /**
+     * Adds a query that produces a table of TAGSET_ID, like H2STagset.hasTagsQuery.
+     * IDs is the String IDs of the names and values in each tagset, as
+     * computed by hasTagsQuery.
+     * <p>
+     * Returns false (and leaves q unaltered) if the index is not enabled, or could
+     * not be brought up to date, so the caller must use SQL instead.
+     */
+    static boolean hasTagsQuery(Connection conn, Object[] IDs, PreparedStatementCache.Query q) throws SQLException {
+        Index index = getIndex(conn);
+        if(index == null)
+            return false;
+
+        for(Object id : IDs)
+            if(((Object[]) id).length == 0)
+                return false; // leave the empty tagset to the SQL implementation.
+
+        if(!index.sync(conn))
+            return false;
+
+        long[] result = new long[0];
+        for(Object id : IDs)
+            result = IDList.union(result, index.find((Object[]) id));
+
+        Object[] tagsetIDs = new Object[result.length];
+        for(int i = 0; i < result.length; ++i)
+            tagsetIDs[i] = result[i];
+
+        // the list of IDs is passed as a single array parameter so the prepared statement can be re-used.
+        q.add("SELECT * FROM TABLE(TAGSET_ID BIGINT=");
+        q.addParam(tagsetIDs);
+        q.add(")");
+
+        return true;
+    }
+
+    private static Index getIndex(Connection conn) throws SQLException {
+        synchronized(indexes) {
+            if(indexes.isEmpty())
+                return null; // avoid getUUID in the usual case of no indexes at all.
+        }
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(indexes) {
+            return indexes.get(uuid);
+        }
+    }
+
+    /**
+     * Map from the RBB UUID to the Index for that RBB.
+     */
+    private static final Map<String, Index> indexes = new HashMap<String, Index>();
+
+    private static class Index {
+        /**
+         * map from NAME_ID to VALUE_ID to TAGSET_IDs
+         */
+        private Map<Long, Map<Long, IDList>> byNameValue = new HashMap<Long, Map<Long, IDList>>();
+
+        /**
+         * map from NAME_ID to TAGSET_IDs with any value for the name.
+         */
+        private Map<Long, IDList> byName = new HashMap<Long, IDList>();
+
+        /**
+         * The number of rows of RBB_TAGSETS in the index.
+         */
+        private long numRows;
+
+        /**
+         * All tagsets up to and including this one have been loaded.
+         */
+        private long maxTagsetID;
+
+        synchronized void add(long nameID, long valueID, long tagsetID) {
+            Map<Long, IDList> values = byNameValue.get(nameID);
+            if(values == null) {
+                values = new HashMap<Long, IDList>();
+                byNameValue.put(nameID, values);
+                byName.put(nameID, new IDList());
+            }
+            IDList ids = values.get(valueID);
+            if(ids == null) {
+                ids = new IDList();
+                values.put(valueID, ids);
+            }
+            if(!ids.add(tagsetID))
+                return; // already had it.
+            ++numRows;
+            byName.get(nameID).add(tagsetID);
+            if(tagsetID > maxTagsetID)
+                maxTagsetID = tagsetID;
+        }
+
+        /**
+         * Find tagsets with all the name/value pairs in id, which alternates
+         * name and value String IDs.  A value ID of 0 means any value.
+         */
+        synchronized long[] find(Object[] id) {
+            IDList[] lists = new IDList[id.length/2];
+            for(int i = 0; i < id.length; i += 2) {
+                if(id[i] == null || id[i+1] == null)
+                    return new long[0]; // the string isn't in the RBB, so no tagset has it.
+                final long nameID = (Long) id[i];
+                final long valueID = (Long) id[i+1];
+                IDList ids;
+                if(valueID == 0L) // a string ID of 0 means the string was null, which means "don't care"
+                    ids = byName.get(nameID);
+                else {
+                    Map<Long, IDList> values = byNameValue.get(nameID);
+                    ids = values == null ? null : values.get(valueID);
+                }
+                if(ids == null)
+                    return new long[0];
+                lists[i/2] = ids;
+            }
+
+            // start with the shortest list so the intermediate results are as small as possible.
+            Arrays.sort(lists, new Comparator<IDList>() {
+                public int compare(IDList x, IDList y) {
+                    return x.n < y.n ? -1 : x.n > y.n ? 1 : 0;
+                }
+            });
+            long[] result = lists[0].toArray();
+            for(int i = 1; i < lists.length && result.length > 0; ++i)
+                result = IDList.intersect(result, lists[i]);
+            return result;
+        }
+
+        synchronized long getNumRows() {
+            return numRows;
+        }
+
+        synchronized long getMaxTagsetID() {
+            return maxTagsetID;
+        }
+
+        /**
+         * Load any rows of RBB_TAGSETS that are not in the index.
+         * Returns false if the index could not be reconciled with RBB_TAGSETS.
+         *<p>
+         * This is intentionally not synchronized while querying the database, since
+         * a thread in the database (e.g. executing RBB_TAGSET_TO_ID) may be waiting to call add().
+         * add() ignores rows that are already indexed, so concurrent syncs are harmless.
+         */
+        boolean sync(Connection conn) throws SQLException {
+            if(getNumRows() == countRows(conn))
+                return true;
+
+            // Normally new tagsets have higher IDs, so first try loading only those.
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("select NAME_ID, VALUE_ID, TAGSET_ID from RBB_TAGSETS where TAGSET_ID > ", getMaxTagsetID());
+            q.add(" order by TAGSET_ID");
+            ResultSet rs = q.getPreparedStatement().executeQuery();
+            while(rs.next())
+                add(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+            rs.close();
+
+            if(getNumRows() == countRows(conn))
+                return true;
+
+            // Either tagset IDs were allocated concurrently by more than one process, so they
+            // were not inserted in order, or a transaction that called toID was rolled back
+            // and left rows in the index that are not in RBB_TAGSETS.  Adding to the index
+            // can't remove those, so build a new one from the whole table and replace this one.
+            Index rebuilt = new Index();
+            rs = conn.createStatement().executeQuery("select NAME_ID, VALUE_ID, TAGSET_ID from RBB_TAGSETS order by TAGSET_ID");
+            while(rs.next())
+                rebuilt.add(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+            rs.close();
+            replaceWith(rebuilt);
+
+            // rows could have been added concurrently, in which case the caller falls back
+            // to SQL this time; they will be loaded next time.
+            return getNumRows() == countRows(conn);
+        }
+
+        /**
+         * Discard the contents of this index and take those of other instead.
+         */
+        private synchronized void replaceWith(Index other) {
+            synchronized(other) {
+                byNameValue = other.byNameValue;
+                byName = other.byName;
+                numRows = other.numRows;
+                maxTagsetID = other.maxTagsetID;
+            }
+        }
+
+        private static long countRows(Connection conn) throws SQLException {
+            ResultSet rs = conn.createStatement().executeQuery("select count(*) from RBB_TAGSETS");
+            rs.next();
+            final long n = rs.getLong(1);
+            rs.close();
+            return n;
+        }
+    }
+
+    /**
+     * A sorted set of IDs stored in a growable array.
+     * TAGSET_IDs come from a sequence, so nearly all additions are appends.
+     */
+    static class IDList {
+        private long[] a = new long[4];
+        private int n;
+
+        /**
+         * Returns false if id was already in the list.
+         */
+        boolean add(long id) {
+            int i;
+            if(n == 0 || a[n-1] < id)
+                i = n; // the usual case of appending a new ID
+            else {
+                i = Arrays.binarySearch(a, 0, n, id);
+                if(i >= 0)
+                    return false;
+                i = -(i+1);
+            }
+            if(n == a.length)
+                a = Arrays.copyOf(a, n*2);
+            System.arraycopy(a, i, a, i+1, n-i);
+            a[i] = id;
+            ++n;
+            return true;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(a, n);
+        }
+
+        /**
+         * The IDs in x that are also in y.
+         */
+        static long[] intersect(long[] x, IDList y) {
+            long[] result = new long[Math.min(x.length, y.n)];
+            int k = 0;
+            for(int i = 0, j = 0; i < x.length && j < y.n;) {
+                if(x[i] < y.a[j])
+                    ++i;
+                else if(x[i] > y.a[j])
+                    ++j;
+                else {
+                    result[k++] = x[i];
+                    ++i;
+                    ++j;
+                }
+            }
+            return Arrays.copyOf(result, k);
+        }
+
+        /**
+         * The IDs in either x or y, without duplicates.
+         */
+        static long[] union(long[] x, long[] y) {
+            if(x.length == 0)
+                return y;
+            if(y.length == 0)
+                return x;
+            long[] result = new long[x.length+y.length];
+            int i = 0, j = 0, k = 0;
+            while(i < x.length && j < y.length) {
+                if(x[i] < y[j])
+                    result[k++] = x[i++];
+                else if(x[i] > y[j])
+                    result[k++] = y[j++];
+                else {
+                    result[k++] = x[i++];
+                    ++j;
+                }
+            }
+            while(i < x.length)
+                result[k++] = x[i++];
+            while(j < y.length)
+                result[k++] = y[j++];
+            return Arrays.copyOf(result, k);
+        }
+    }
+}
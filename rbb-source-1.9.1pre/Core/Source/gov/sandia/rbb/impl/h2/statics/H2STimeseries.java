@@ -12,6 +12,7 @@ import gov.sandia.rbb.Tagset;
 import gov.sandia.rbb.Timeseries;
 import gov.sandia.rbb.Timeseries.Sample;
 import gov.sandia.rbb.PreparedStatementCache;
+import gov.sandia.rbb.impl.h2.H2EventDataTrigger;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -41,6 +42,22 @@ public class H2STimeseries
         double time,
         String tags)
         throws SQLException
+    {
+        return start(conn, dim, time, tags, false);
+    }
+
+    /**
+     * Start a new timeseries.
+     * If chunked is true, the samples are stored in compressed chunks (see H2STimeseriesChunks)
+     * instead of one row per sample.  This takes much less space and is faster to read sequentially,
+     * but each addition must re-write the most recent chunk.
+     */
+    public static long start(Connection conn,
+        int dim,
+        double time,
+        String tags,
+        boolean chunked)
+        throws SQLException
     {
         // must create the ID for the new event *last*, then add it to the
         // table only after creating and attaching its rows table.
@@ -50,15 +67,20 @@ public class H2STimeseries
 
         //// create a table for timeseries rows
 
-        final String tableName = "TF" + dim; // TF2 = Timeseries Floats 2D
-
-        PreparedStatementCache.Query createTable = PreparedStatementCache.startQuery(conn);
-        createTable.add("CREATE SCHEMA if not exists ",schemaName,";");
-        createTable.add("CREATE TABLE if not exists ",schemaName,".",tableName,"(EVENT_ID BIGINT, TIME DOUBLE, PRIMARY KEY (EVENT_ID,TIME)");
-        for (int i = 1; i <= dim; ++i)
-            createTable.add(",C",Integer.toString(i)," REAL");
-        createTable.add(");");
-        createTable.getPreparedStatement().execute();
+        final String tableName;
+        if(chunked)
+            tableName = H2STimeseriesChunks.createTable(conn, dim);
+        else {
+            tableName = "TF" + dim; // TF2 = Timeseries Floats 2D
+
+            PreparedStatementCache.Query createTable = PreparedStatementCache.startQuery(conn);
+            createTable.add("CREATE SCHEMA if not exists ",schemaName,";");
+            createTable.add("CREATE TABLE if not exists ",schemaName,".",tableName,"(EVENT_ID BIGINT, TIME DOUBLE, PRIMARY KEY (EVENT_ID,TIME)");
+            for (int i = 1; i <= dim; ++i)
+                createTable.add(",C",Integer.toString(i)," REAL");
+            createTable.add(");");
+            createTable.getPreparedStatement().execute();
+        }
 
         // the "unsafe" version of attach data doesn't remove any previously attached
         // data first.  But since this is a brand new event, there cannot be any
@@ -72,7 +94,14 @@ public class H2STimeseries
      * Create and populate a timeseries.
      */
     public static long create(Connection conn, int dim, double start, double end, String tags, Object[] times, Object[] samples) throws SQLException {
-        long id = start(conn, dim, start, tags);
+        return create(conn, dim, start, end, tags, times, samples, false);
+    }
+
+    /*
+     * Create and populate a timeseries, optionally using chunked storage (see start())
+     */
+    public static long create(Connection conn, int dim, double start, double end, String tags, Object[] times, Object[] samples, boolean chunked) throws SQLException {
+        long id = start(conn, dim, start, tags, chunked);
         addSamplesByID(conn, id, times, samples, null, end);
         return id;
     }
@@ -202,43 +231,359 @@ public class H2STimeseries
         if(minTimeDelta != null)
             lastTime = lastTime(conn, tableName, id);
 
-        if(data.length != 0) {
-            if(!(data[0] instanceof Object[]))
-                throw new SQLException("H2STimeseries.addSamplesByID error: row 0 of the data is not an array!");
-            Object[] dataRow = (Object[]) data[0];
+        // summaries (if any) are written once per bucket rather than per sample.
+        H2STimeseriesRollups.startBatch();
+        try {
+            if(H2STimeseriesChunks.isChunkTable(tableName)) {
+                final int dim = H2STimeseriesChunks.getDim(tableName);
+                double[] t = new double[data.length];
+                float[][] x = new float[data.length][];
+                for(int i = 0; i < data.length; ++i) {
+                    t[numBatch] = toDouble(time[i], i);
+                    if(minTimeDelta != null && lastTime != null && t[numBatch]-lastTime < minTimeDelta)
+                        continue;
+                    if(!(data[i] instanceof Object[]))
+                        throw new SQLException("H2STimeseries.addSamplesByID error: row "+i+" of the data is not an array!");
+                    Object[] dataRow = (Object[]) data[i];
+                    if(dataRow.length != dim)
+                        throw new SQLException("H2STimeseries.addSamplesByID error: sample "+i+" has "+dataRow.length+" dimensions but timeseries "+id+" has "+dim);
+                    x[numBatch] = new float[dataRow.length];
+                    for(int j = 0; j < dataRow.length; ++j)
+                        x[numBatch][j] = toFloat(dataRow[j], i, j);
+                    lastTime = t[numBatch];
+                    ++numBatch;
+                }
+                H2STimeseriesChunks.addSamples(conn, tableName, id, Arrays.copyOf(t, numBatch), Arrays.copyOf(x, numBatch));
+            }
+            else if(data.length != 0) {
+                if(!(data[0] instanceof Object[]))
+                    throw new SQLException("H2STimeseries.addSamplesByID error: row 0 of the data is not an array!");
+                Object[] dataRow = (Object[]) data[0];
+                PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+                q.addAlt("insert into "+schemaName+"."+tableName+" values (", id, ",", time[0]);
+                for (int i = 0; i < dataRow.length; ++i)
+                    q.addAlt(",", dataRow[i]);
+                q.add(");");
+                PreparedStatement ps = q.getPreparedStatement();
+
+                for(int i = 0; i < data.length; ++i) {
+                    final double t = toDouble(time[i], i);
+
+                    if(minTimeDelta != null && lastTime != null && t-lastTime < minTimeDelta)
+                        continue;
+
+                    if(!(data[i] instanceof Object[]))
+                        throw new SQLException("H2STimeseries.addSamplesByID error: row "+i+" of the data is not an array!");
+                    dataRow = (Object[]) data[i];
+                    ps.setObject(2, t);
+                    for(int j = 0; j < dataRow.length; ++j)
+                        ps.setObject(3+j, dataRow[j]); // 3 because setObject is 1-based, and [1] is timeseries ID and [2] is time.
+                    ps.addBatch();
+                    lastTime = t;
+                    ++numBatch;
+                }
+                ps.executeBatch();
+            }
+        }
+        finally {
+            H2STimeseriesRollups.endBatch(conn);
+        }
+
+        // System.err.println(sw.toString());
+
+        if(newEndTime != null && numBatch > 0) { // don't update the end time if there were no samples or none exceeded minTimeDelta, since the purpose of minTimeDelta is to reduce constant writes when samples are overly dense.
+          H2SEvent.setEndByID(conn, id, newEndTime);
+        }
+    }
+
+    /**
+     * The time of sample i, which may be any Number (e.g. an Integer or BigDecimal
+     * if passed through SQL) or a String.
+     */
+    private static double toDouble(Object time, int i) throws SQLException {
+        if(time == null)
+            throw new SQLException("H2STimeseries error: the time of sample "+i+" is null");
+        if(time instanceof Number)
+            return ((Number) time).doubleValue();
+        try {
+            return Double.parseDouble(time.toString());
+        }
+        catch(NumberFormatException e) {
+            throw new SQLException("H2STimeseries error: the time of sample "+i+" is not a number: "+time);
+        }
+    }
+
+    /**
+     * Dimension j of sample i, for storage as a float.
+     * Unlike a TF table, which stores a null as NULL, a float can't be null.
+     */
+    private static float toFloat(Object x, int i, int j) throws SQLException {
+        if(x == null)
+            throw new SQLException("H2STimeseries error: dimension "+j+" of sample "+i+" is null, which can't be stored in this timeseries");
+        if(x instanceof Number)
+            return ((Number) x).floatValue();
+        try {
+            return Float.parseFloat(x.toString());
+        }
+        catch(NumberFormatException e) {
+            throw new SQLException("H2STimeseries error: dimension "+j+" of sample "+i+" is not a number: "+x);
+        }
+    }
+
+    /**
+     * Add samples to any number of timeseries at once.
+     * values[i] is the sample at times[i] for the timeseries ids[i].
+     *<p>
+     * This is for ingesting many timeseries that are all updated frequently, where
+     * calling addSamplesByID for each would be dominated by per-call overhead.
+     * The rows are grouped by the table holding each timeseries, with one
+     * batch executed per table.  Event listeners are sent one RBBEventChange.DataBatchAdded
+     * per timeseries, rather than a DataAdded per sample.
+     *
+     * @param setEndTimes: if true, the end time of each timeseries is extended to the time
+     * of its latest sample in this call (one batch of updates, instead of one per sample).
+     * It is never moved earlier, except from H2SRBB.maxDouble() (i.e. open-ended), so a call with
+     * samples earlier than those already stored (e.g. a flush that arrived late) leaves it alone.
+     * Unlike H2SEvent.setEndByID, no samples are deleted.
+     */
+    public static void addSamples(Connection conn,
+        long[] ids,
+        double[] times,
+        float[][] values,
+        boolean setEndTimes)
+        throws SQLException
+    {
+        if(ids.length != times.length || ids.length != values.length)
+            throw new SQLException("H2STimeseries.addSamples error: the number of ids, times, and samples do not match!");
+
+        final Map<Long, String> tableNames = getTableNames(conn, ids);
+
+        // group the rows by table, and within each table by timeseries, preserving order.
+        Map<String, Map<Long, List<Integer>>> byTable = new LinkedHashMap<String, Map<Long, List<Integer>>>();
+        for(int i = 0; i < ids.length; ++i) {
+            final String tableName = tableNames.get(ids[i]);
+            Map<Long, List<Integer>> byID = byTable.get(tableName);
+            if(byID == null) {
+                byID = new LinkedHashMap<Long, List<Integer>>();
+                byTable.put(tableName, byID);
+            }
+            List<Integer> rows = byID.get(ids[i]);
+            if(rows == null) {
+                rows = new ArrayList<Integer>();
+                byID.put(ids[i], rows);
+            }
+            rows.add(i);
+        }
+
+        // listeners get one notification per timeseries rather than per sample,
+        // and summaries (if any) are written once per bucket.
+        H2EventDataTrigger.startBatch();
+        H2STimeseriesRollups.startBatch();
+        try {
+            for(Map.Entry<String, Map<Long, List<Integer>>> table : byTable.entrySet()) {
+                final String tableName = table.getKey();
+                final boolean chunked = H2STimeseriesChunks.isChunkTable(tableName);
+                // tables are named TF or TC followed by the dimension.
+                final int dim = Integer.parseInt(tableName.substring(2));
+
+                PreparedStatement ps = null;
+                if(!chunked) {
+                    PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+                    q.add("insert into "+schemaName+"."+tableName+" values (?,?");
+                    for(int j = 0; j < dim; ++j)
+                        q.add(",?");
+                    q.add(");");
+                    ps = q.getPreparedStatement();
+                }
+
+                for(Map.Entry<Long, List<Integer>> series : table.getValue().entrySet()) {
+                    final long id = series.getKey();
+                    final List<Integer> rows = series.getValue();
+                    for(int i : rows)
+                        if(values[i].length != dim)
+                            throw new SQLException("H2STimeseries.addSamples error: sample "+i+" has "+values[i].length+" dimensions but timeseries "+id+" has "+dim);
+
+                    if(chunked) {
+                        double[] t = new double[rows.size()];
+                        float[][] x = new float[rows.size()][];
+                        for(int k = 0; k < t.length; ++k) {
+                            t[k] = times[rows.get(k)];
+                            x[k] = values[rows.get(k)];
+                        }
+                        H2STimeseriesChunks.addSamples(conn, tableName, id, t, x);
+                    }
+                    else {
+                        for(int i : rows) {
+                            ps.setLong(1, id);
+                            ps.setDouble(2, times[i]);
+                            for(int j = 0; j < dim; ++j)
+                                ps.setFloat(3+j, values[i][j]);
+                            ps.addBatch();
+                        }
+                    }
+                }
+
+                if(ps != null)
+                    ps.executeBatch();
+            }
+        }
+        finally {
+            try {
+                H2STimeseriesRollups.endBatch(conn);
+            }
+            finally {
+                H2EventDataTrigger.endBatch(conn);
+            }
+        }
+
+        if(setEndTimes) {
+            // Setting an earlier end with H2SEvent.setEndByID would delete the later samples already stored.
             PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-            q.addAlt("insert into "+schemaName+"."+tableName+" values (", id, ",", time[0]);
-            for (int i = 0; i < dataRow.length; ++i)
-                q.addAlt(",", dataRow[i]);
-            q.add(");");
+            q.addAlt("update RBB_EVENTS set END_TIME=", 0.0, " where ID=", 0L, " and (END_TIME < ", 0.0, " or END_TIME=", H2SRBB.maxDouble(), ")");
             PreparedStatement ps = q.getPreparedStatement();
+            for(Map<Long, List<Integer>> byID : byTable.values()) {
+                for(Map.Entry<Long, List<Integer>> series : byID.entrySet()) {
+                    double end = Double.NEGATIVE_INFINITY;
+                    for(int i : series.getValue())
+                        end = Math.max(end, times[i]);
+                    ps.setDouble(1, end);
+                    ps.setLong(2, series.getKey());
+                    ps.setDouble(3, end);
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * addSamples without modifying the end times of the timeseries.
+     */
+    public static void addSamples(Connection conn,
+        long[] ids,
+        double[] times,
+        float[][] values)
+        throws SQLException
+    {
+        addSamples(conn, ids, times, values, false);
+    }
 
-            for(int i = 0; i < data.length; ++i) {
-                final double t = (Double) time[i];
+    /**
+     * This is addSamples for calling through SQL, since H2 has no SQL mapping for
+     * primitive arrays.  The syntax for calling it from SQL is:
+     * call rbb_add_samples((1, 2, 1), (9.63, 9.63, 9.64), ((3.1, 2.4), (0.5,), (3.2, 2.5)), true);
+     */
+    public static void addSamplesByIDs(Connection conn,
+        Object[] ids,
+        Object[] times,
+        Object[] data,
+        Boolean setEndTimes)
+        throws SQLException
+    {
+        if(ids.length != times.length || ids.length != data.length)
+            throw new SQLException("H2STimeseries.addSamplesByIDs error: the number of ids, times, and samples do not match!");
+
+        long[] id = new long[ids.length];
+        double[] t = new double[times.length];
+        float[][] x = new float[data.length][];
+        for(int i = 0; i < ids.length; ++i) {
+            id[i] = ((Number) ids[i]).longValue();
+            t[i] = toDouble(times[i], i);
+            if(!(data[i] instanceof Object[]))
+                throw new SQLException("H2STimeseries.addSamplesByIDs error: row "+i+" of the data is not an array!");
+            Object[] dataRow = (Object[]) data[i];
+            x[i] = new float[dataRow.length];
+            for(int j = 0; j < dataRow.length; ++j)
+                x[i][j] = toFloat(dataRow[j], i, j);
+        }
 
-                if(minTimeDelta != null && lastTime != null && t-lastTime < minTimeDelta)
-                    continue;
+        addSamples(conn, id, t, x, setEndTimes != null && setEndTimes);
+    }
 
-                if(!(data[i] instanceof Object[]))
-                    throw new SQLException("H2STimeseries.addSamplesByID error: row "+i+" of the data is not an array!");
-                dataRow = (Object[]) data[i];
-                ps.setObject(2, t);
-                for(int j = 0; j < dataRow.length; ++j)
-                    ps.setObject(3+j, dataRow[j]); // 3 because setObject is 1-based, and [1] is timeseries ID and [2] is time.
-                ps.addBatch();
-                lastTime = t;
-                ++numBatch;
+    /**
+     * Get the name of the table holding each timeseries.
+     * These are cached, since the table of a timeseries never changes
+     * until its data is deleted, at which point forgetTableNames is called.
+     */
+    private static Map<Long, String> getTableNames(Connection conn, long[] ids) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        Map<Long, String> cache;
+        synchronized(tableNameCache) {
+            cache = tableNameCache.get(uuid);
+            if(cache == null) {
+                // an entry is only a few dozen bytes, so this covers all the Timeseries most sessions touch.
+                cache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+                    @Override protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                        return size() > 10000;
+                    }
+                };
+                tableNameCache.put(uuid, cache);
             }
-            ps.executeBatch();
         }
 
-        // System.err.println(sw.toString());
+        Map<Long, String> result = new HashMap<Long, String>();
+        Set<Long> missing = new LinkedHashSet<Long>();
+        synchronized(cache) {
+            for(long id : ids) {
+                if(result.containsKey(id))
+                    continue;
+                final String tableName = cache.get(id);
+                if(tableName == null)
+                    missing.add(id);
+                else
+                    result.put(id, tableName);
+            }
+        }
 
-        if(newEndTime != null && numBatch > 0) { // don't update the end time if there were no samples or none exceeded minTimeDelta, since the purpose of minTimeDelta is to reduce constant writes when samples are overly dense.
-          H2SEvent.setEndByID(conn, id, newEndTime);
+        if(missing.isEmpty())
+            return result;
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select EVENT_ID, TABLE_NAME from RBB_EVENT_DATA where SCHEMA_NAME=");
+        q.addParam(schemaName);
+        q.add(" and EVENT_ID in (select * from TABLE(X BIGINT=");
+        q.addParam(missing.toArray());
+        q.add("))");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        Map<Long, String> found = new HashMap<Long, String>();
+        while(rs.next()) {
+            final long id = rs.getLong(1);
+            if(found.put(id, rs.getString(2)) != null)
+                throw new SQLException("H2STimeseries: multiple timeseries have been linked to event " + id + ".  This is not supported");
+        }
+        rs.close();
+
+        for(Long id : missing)
+            if(!found.containsKey(id))
+                throw new NoSuchTimeseries("H2STimeseries: no timeseries has been linked to event " + id);
+
+        synchronized(cache) {
+            cache.putAll(found);
+        }
+        result.putAll(found);
+        return result;
+    }
+
+    /**
+     * Discard the cached table names used by addSamples.
+     * This is called by H2SEvent when the data of an event is deleted.
+     */
+    static void forgetTableNames(Connection conn) throws SQLException {
+        synchronized(tableNameCache) {
+            if(tableNameCache.isEmpty())
+                return; // avoid getUUID in the usual case of addSamples never having been called.
+        }
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(tableNameCache) {
+            tableNameCache.remove(uuid);
         }
     }
 
+    /**
+     * Map from the RBB UUID to the cache of event ID to timeseries table name for that RBB.
+     */
+    private static final Map<String, Map<Long, String>> tableNameCache = new HashMap<String, Map<Long, String>>();
+
     /**
      * add a new observation to all timeseries that match a tagset
      * The rows is passed as a list.  The length of the list must equal the dimension of the timeseries.  The syntax for calling this from SQL is:
@@ -299,6 +644,8 @@ public class H2STimeseries
     private static Double lastTime(Connection conn, String tableName, long id)
         throws SQLException
     {
+            if(H2STimeseriesChunks.isChunkTable(tableName))
+                return H2STimeseriesChunks.lastTime(conn, tableName, id);
             synchronized(conn) {
             PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
 
@@ -323,12 +670,17 @@ public class H2STimeseries
     public static Integer getDim(Connection conn, long id) throws SQLException
     {
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-        q.addAlt("select count(*) from information_schema.columns C join rbb_event_data E on EVENT_ID=",id," and C.table_name=E.table_name and C.table_schema=",schemaName," and E.SCHEMA_NAME=",schemaName,";");
+        q.addAlt("select E.TABLE_NAME, count(*) from information_schema.columns C join rbb_event_data E on EVENT_ID=",id," and C.table_name=E.table_name and C.table_schema=",schemaName," and E.SCHEMA_NAME=",schemaName," group by E.TABLE_NAME;");
         final ResultSet rs = q.getPreparedStatement().executeQuery();
-        rs.next();
-        Integer n = rs.getInt(1)-2; // -2 because first col is ID and second is TIME; the rest are data columns.
+        Integer n = null;
+        if(rs.next()) {
+            if(H2STimeseriesChunks.isChunkTable(rs.getString(1)))
+                n = H2STimeseriesChunks.getDim(rs.getString(1));
+            else
+                n = rs.getInt(2)-2; // -2 because first col is ID and second is TIME; the rest are data columns.
+        }
         rs.close();
-        if(n<0)
+        if(n != null && n<0)
             n = null;
         return n;
     }
@@ -352,15 +704,61 @@ public class H2STimeseries
     public static ResultSet getDims(Connection conn, Object[] ids) throws SQLException
     {
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-        q.add("select EVENT_ID, (select count(*) from information_schema.columns C where C.table_name=D.table_name and C.table_schema='RBB_TIMESERIES')-2 as DIM from rbb_event_data D where D.EVENT_ID in ");
+        // the dimensionality of a chunk table is in its name, e.g. TC2; otherwise it's the number of data columns.
+        q.add("select EVENT_ID, case when D.table_name like 'TC%' then cast(substring(D.table_name, 3) as int) else (select count(*) from information_schema.columns C where C.table_name=D.table_name and C.table_schema='RBB_TIMESERIES')-2 end as DIM from rbb_event_data D where D.SCHEMA_NAME='RBB_TIMESERIES' and D.EVENT_ID in ");
+        q.addParamArray(ids);
+        return q.getPreparedStatement().executeQuery();
+    }
+
+    /**
+     * Return the names of the tables holding the samples of the specified Timeseries IDs,
+     * e.g. TF2, or TC2 for chunked Timeseries (see H2STimeseriesChunks)
+     * The resulting table has columns: EVENT_ID | TABLE_NAME
+     * IDs that are not Timeseries are not in the result.
+     *<p>
+     * To read the samples of many Timeseries, group their IDs by table and use getSamplesByIDs.
+     *
+     * @param ids: passed as Object[] because H2 cannot send a Long[]
+     */
+    public static ResultSet getTableNames(Connection conn, Object[] ids) throws SQLException
+    {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select EVENT_ID, TABLE_NAME from rbb_event_data where SCHEMA_NAME=");
+        q.addParam(schemaName);
+        q.add(" and EVENT_ID in ");
         q.addParamArray(ids);
         return q.getPreparedStatement().executeQuery();
     }
 
+    /**
+     * Return all the samples of the specified Timeseries IDs, which must all have their samples
+     * in the same (non-chunked) table (see getTableNames), in a single query.
+     * The resulting table has columns: EVENT_ID | TIME | C1 | ... | Cn (for n dimensions)
+     * and is ordered by EVENT_ID then TIME.
+     *<p>
+     * Repeating an ID in ids has no effect, so callers may pad the array to a fixed length
+     * so the PreparedStatement is reused.
+     *
+     * @param ids: passed as Object[] because H2 cannot send a Long[]
+     */
+    public static ResultSet getSamplesByIDs(Connection conn, String tableName, Object[] ids) throws SQLException
+    {
+        if(H2STimeseriesChunks.isChunkTable(tableName))
+            throw new SQLException("H2STimeseries.getSamplesByIDs: "+tableName+" is a chunked Timeseries table, which is not supported.");
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("select * from ",schemaName,".",tableName," where EVENT_ID in ");
+        q.addParamArray(ids);
+        q.add(" order by EVENT_ID, TIME");
+        return q.getPreparedStatement().executeQuery();
+    }
+
     public static int getNumObservations(Connection conn, long id) throws SQLException
     {
+        final String tableName = getTableName(conn, id);
+        if(H2STimeseriesChunks.isChunkTable(tableName))
+            return H2STimeseriesChunks.getNumObservations(conn, tableName, id);
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
-        q.add("SELECT count(*) FROM ",schemaName,".",getTableName(conn,id)," where EVENT_ID=");
+        q.add("SELECT count(*) FROM ",schemaName,".",tableName," where EVENT_ID=");
         q.addParam(id);
         final ResultSet rs = q.getPreparedStatement().executeQuery();
         rs.next();
@@ -441,12 +839,16 @@ public class H2STimeseries
      */
     public static ResultSet getSamples(Connection conn, long eventID, Integer iStart, Integer n) throws SQLException
     {
+        final String tableName = getTableName(conn, eventID);
+        if(H2STimeseriesChunks.isChunkTable(tableName))
+            return H2STimeseriesChunks.getSamples(conn, tableName, eventID, iStart, n);
+
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
         q.add("select TIME");
         final int dim = getDim(conn, eventID);
         for(int i=0; i < dim; ++i)
             q.add(",C"+(i+1));
-        q.add(" from ", schemaName, ".", getTableName(conn,eventID), " where EVENT_ID=");
+        q.add(" from ", schemaName, ".", tableName, " where EVENT_ID=");
         q.addParam(Long.toString(eventID));
 
         // in H2, you can only specify an OFFSET if you've specified a LIMIT
@@ -569,7 +971,7 @@ public class H2STimeseries
 
             // now set the result for each timestep.
             for(int t = 0; t < n; ++t) {
-                while(q.getSample(q.getNumSamples()-1).getTime() < times[t] && samples.next()) {
+                while(q.getTime(q.getNumSamples()-1) < times[t] && samples.next()) {
                     q.add(new Sample(samples));
                     if(q.getNumSamples() > 1000) // arbitrary number; don't keep too many unnecessarily but don't resize too often.
                         q.keepNewest(2); // at most two samples needed to interpolate a value.
@@ -631,7 +1033,11 @@ public class H2STimeseries
                 convertTime = H2STime.getConversionParameters(conn, tags, timeCoordinate_);
         }
 
-        final String tableAndSchema=schemaName+"."+getTableName(conn, id);
+        final String tableName = getTableName(conn, id);
+        if(H2STimeseriesChunks.isChunkTable(tableName))
+            return H2STimeseriesChunks.getSamples(conn, tableName, id, start, end, numBefore, numAfter, convertTime);
+
+        final String tableAndSchema=schemaName+"."+tableName;
 
         PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
 
@@ -701,7 +1107,7 @@ public class H2STimeseries
         q = PreparedStatementCache.startQuery(conn);
         q.addAlt("select min(TIME) from (select * from "+schemaAndTableName+" where EVENT_ID=", id, " and time < ", time, " order by time desc limit ", n, ");");
         ResultSet rs = q.getPreparedStatement().executeQuery();
-        if(rs.next())
+        if(rs.next() && rs.getObject(1) != null) // min() of no rows is null
             time = rs.getDouble(1); // if no result, just return the time passed in.
         rs.close();
         return time;
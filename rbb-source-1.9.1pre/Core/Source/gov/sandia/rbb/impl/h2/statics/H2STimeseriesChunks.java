@@ -0,0 +1,706 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.PreparedStatementCache;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.h2.tools.SimpleResultSet;
+
+/**
+ *
+ * H2STimeseriesChunks is an alternative storage format for Timeseries samples,
+ * selected when the Timeseries is created by H2STimeseries.start(..., chunked=true).
+ *<p>
+ * Instead of one row per sample in RBB_TIMESERIES.TF[dim], samples are stored in
+ * RBB_TIMESERIES.TC[dim] (Timeseries Chunks) with one row per chunk of up to
+ * chunkSize samples:
+ *<pre>
+ * EVENT_ID BIGINT, CHUNK INT, TMIN DOUBLE, TMAX DOUBLE, N INT, DATA VARBINARY
+ *</pre>
+ * TMIN and TMAX are the first and last sample times in the chunk, so the
+ * chunks overlapping a time window are found from the (EVENT_ID, TMIN) index without
+ * reading the DATA.  Chunks of a Timeseries never overlap in time.
+ *<p>
+ * DATA is a bit stream compressed in the manner of the Gorilla time series database:
+ * each sample time is encoded as the XOR of its delta from the previous time with the previous delta
+ * (so a regular sample rate costs 1 bit per sample), and each value is
+ * encoded as the XOR with the previous value in the same dimension (so an unchanging value costs 1 bit).
+ * Since times are doubles rather than integers, a time that isn't exactly reproduced
+ * by adding its delta to the previous time is stored verbatim instead.
+ *<p>
+ * Samples are normally appended to the last chunk until it is full, and then a new chunk is started.
+ * A sample older than the last chunk is inserted in the chunk spanning its time,
+ * which may make that chunk larger than chunkSize.
+ *<p>
+ * H2STimeseries dispatches to this class for tables named by isChunkTable(), so getSamples,
+ * valueLinear, resampleValues etc. work the same with either format.
+ * H2TimeseriesChunkTrigger notifies listeners of each new sample with a row in the
+ * same format as the rows of a TF table (EVENT_ID, TIME, C1...Cn).
+ *
+ * @author rgabbot
+ */
+public class H2STimeseriesChunks {
+
+    /**
+     * The maximum number of samples appended to a chunk before a new chunk is started.
+     * Bigger chunks mean fewer rows to scan, but each append rewrites a longer array
+     * and a query for a short time range decodes more samples it then discards.
+     */
+    private static int chunkSize = 1024;
+
+    public static void setChunkSize(int n) {
+        chunkSize = n;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    public static String getTableName(int dim) {
+        return "TC" + dim; // TC2 = Timeseries Chunks 2D
+    }
+
+    /**
+     * True if the table (in H2STimeseries.schemaName) holds chunked samples.
+     */
+    public static boolean isChunkTable(String tableName) {
+        return tableName.length() > 2 && tableName.startsWith("TC") && Character.isDigit(tableName.charAt(2));
+    }
+
+    /**
+     * Dimensionality of the samples in a table for which isChunkTable is true.
+     */
+    public static int getDim(String tableName) {
+        return Integer.parseInt(tableName.substring(2));
+    }
+
+    /**
+     * Create the table for chunks of samples of the specified dimension (if it doesn't already exist)
+     * and return its name.
+     */
+    static String createTable(Connection conn, int dim) throws SQLException {
+        final String tableName = getTableName(dim);
+        final String schemaTable = H2STimeseries.schemaName+"."+tableName;
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.add("CREATE SCHEMA if not exists ",H2STimeseries.schemaName,";");
+        q.add("CREATE TABLE if not exists ",schemaTable,"(EVENT_ID BIGINT, CHUNK INT, TMIN DOUBLE, TMAX DOUBLE, N INT, DATA VARBINARY, PRIMARY KEY (EVENT_ID, CHUNK));");
+        q.add("CREATE INDEX if not exists ",H2STimeseries.schemaName,".RBB_",tableName,"_TMIN on ",schemaTable,"(EVENT_ID, TMIN);");
+        // H2SEvent.attachDataUnchecked creates an insert-only trigger of this name if it doesn't already exist.
+        // Appending to a chunk is an update, so this trigger must be created first.
+        q.add("CREATE TRIGGER if not exists RBB",tableName,"INS AFTER INSERT, UPDATE ON ",schemaTable,
+            " FOR EACH ROW CALL \"gov.sandia.rbb.impl.h2.H2TimeseriesChunkTrigger\";");
+        q.getPreparedStatement().execute();
+
+        return tableName;
+    }
+
+    /**
+     * Add samples to a chunked timeseries.
+     * values[i] is the sample at times[i], and must have the dimensionality of the table.
+     *<p>
+     * As with a TF table, it is an error to add a sample at the same time as an existing sample.
+     */
+    static void addSamples(Connection conn, String tableName, long id, final double[] times, float[][] values) throws SQLException {
+        if(times.length == 0)
+            return;
+        final int dim = getDim(tableName);
+
+        List<ChunkInfo> chunks = getChunkInfo(conn, tableName, id);
+        int maxChunk = -1;
+        for(ChunkInfo c : chunks)
+            maxChunk = Math.max(maxChunk, c.chunk);
+
+        // add in time order so appended samples fill each chunk before starting the next.
+        Integer[] order = new Integer[times.length];
+        for(int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(times[a], times[b]);
+            }
+        });
+
+        ArrayList<ChunkInfo> modified = new ArrayList<ChunkInfo>();
+        for(int i : order) {
+            if(values[i].length != dim)
+                throw new SQLException("H2STimeseriesChunks.addSamples error: sample "+i+" has "+values[i].length+" dimensions but timeseries "+id+" has "+dim);
+            final double t = times[i];
+
+            ChunkInfo target;
+            final ChunkInfo last = chunks.isEmpty() ? null : chunks.get(chunks.size()-1);
+            if(last == null || (t > last.tmax && last.n >= chunkSize)) {
+                target = new ChunkInfo(++maxChunk);
+                target.samples = new Samples(dim);
+                chunks.add(target);
+            }
+            else if(t > last.tmax)
+                target = last;
+            else
+                target = chunks.get(Math.max(0, lastStartingAtOrBefore(chunks, t)));
+
+            if(target.samples == null)
+                target.samples = getChunk(conn, tableName, id, target, dim);
+            if(!target.samples.insert(t, values[i]))
+                throw new SQLException("H2STimeseriesChunks.addSamples error: timeseries "+id+" already has a sample at time "+t);
+            target.tmin = target.samples.times[0];
+            target.tmax = target.samples.times[target.samples.n-1];
+            target.n = target.samples.n;
+            if(!target.modified) {
+                target.modified = true;
+                modified.add(target);
+            }
+        }
+
+        for(ChunkInfo c : modified)
+            putChunk(conn, tableName, id, c);
+    }
+
+    /**
+     * Delete the samples before start or after end (either of which may be null).
+     * This is called by H2SEvent when the start or end time of the timeseries is changed.
+     */
+    static void deleteSamplesOutside(Connection conn, String tableName, long id, Double start, Double end) throws SQLException {
+        final int dim = getDim(tableName);
+        for(ChunkInfo c : getChunkInfo(conn, tableName, id)) {
+            if((start == null || c.tmin >= start) && (end == null || c.tmax <= end))
+                continue; // all inside
+
+            Samples kept = new Samples(dim);
+            if(!((start != null && c.tmax < start) || (end != null && c.tmin > end))) {
+                Samples s = getChunk(conn, tableName, id, c, dim);
+                for(int i = 0; i < s.n; ++i)
+                    if((start == null || s.times[i] >= start) && (end == null || s.times[i] <= end))
+                        kept.append(s.times[i], s.values, i*dim);
+            }
+
+            if(kept.n == 0) {
+                PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+                q.addAlt("delete from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id, " and CHUNK=", c.chunk);
+                q.getPreparedStatement().execute();
+            }
+            else {
+                c.samples = kept;
+                c.tmin = kept.times[0];
+                c.tmax = kept.times[kept.n-1];
+                c.n = kept.n;
+                putChunk(conn, tableName, id, c);
+            }
+        }
+    }
+
+    static int getNumObservations(Connection conn, String tableName, long id) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select sum(N) from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        rs.next();
+        final int n = rs.getInt(1); // sum of no rows is null, which is 0 from getInt
+        rs.close();
+        return n;
+    }
+
+    /**
+     * The time of the last sample, or null if there are none.
+     */
+    static Double lastTime(Connection conn, String tableName, long id) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select max(TMAX) from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        rs.next();
+        Double t = rs.getDouble(1);
+        if(rs.wasNull())
+            t = null;
+        rs.close();
+        return t;
+    }
+
+    /**
+     * Implements H2STimeseries.getSamples(conn, id, start, end, numBefore, numAfter, ...) for a chunked timeseries,
+     * returning the same columns: TIME, SAMPLE.
+     * start and end (either of which may be null) are in the output time coordinate,
+     * and convertTime maps from the timeseries time coordinate to it.
+     */
+    static ResultSet getSamples(Connection conn, String tableName, long id, Double start, Double end,
+        int numBefore, int numAfter, H2STime.TimeCoordinateParameters convertTime) throws SQLException {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("TIME", java.sql.Types.DOUBLE, 20, 0);
+        result.addColumn("SAMPLE", java.sql.Types.ARRAY, 20, 0);
+
+        final int dim = getDim(tableName);
+        final Double s = start == null ? null : convertTime.unmap(start);
+        final Double e = end == null ? null : convertTime.unmap(end);
+
+        //// find the chunks that may hold the samples, including numBefore / numAfter outside the window.
+        List<ChunkInfo> chunks = getChunkInfo(conn, tableName, id);
+        int lo = 0, hi = chunks.size()-1;
+        if(s != null) {
+            while(lo < chunks.size() && chunks.get(lo).tmax < s)
+                ++lo;
+            for(int need = numBefore; need > 0 && lo > 0;)
+                need -= chunks.get(--lo).n;
+        }
+        if(e != null) {
+            hi = lastStartingAtOrBefore(chunks, e);
+            for(int need = numAfter; need > 0 && hi < chunks.size()-1;)
+                need -= chunks.get(++hi).n;
+        }
+        if(lo > hi)
+            return result;
+
+        Samples samples = getChunks(conn, tableName, id, chunks.get(lo).tmin, chunks.get(hi).tmin, dim);
+
+        //// now find the first and last sample to return, with the same semantics as
+        // H2STimeseries.timeOfNthBefore and timeOfNthAfter.
+        int first = 0, last = samples.n-1;
+        if(s != null) {
+            first = samples.lowerBound(s);
+            if(numBefore > 0)
+                first = Math.max(0, first - numBefore);
+        }
+        if(e != null) {
+            last = samples.upperBound(e) - 1;
+            if(numAfter > 0)
+                last = Math.min(samples.n-1, last + numAfter);
+        }
+
+        for(int i = first; i <= last; ++i) {
+            Float[] x = new Float[dim];
+            for(int j = 0; j < dim; ++j)
+                x[j] = samples.values[i*dim+j];
+            result.addRow(convertTime.map(samples.times[i]), x);
+        }
+
+        return result;
+    }
+
+    /**
+     * Implements H2STimeseries.getSamples(conn, id, iStart, n) for a chunked timeseries,
+     * returning the same columns: TIME, C1...Cn
+     */
+    static ResultSet getSamples(Connection conn, String tableName, long id, Integer iStart, Integer n) throws SQLException {
+        final int dim = getDim(tableName);
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("TIME", java.sql.Types.DOUBLE, 20, 0);
+        for(int j = 0; j < dim; ++j)
+            result.addColumn("C"+(j+1), java.sql.Types.REAL, 20, 0);
+
+        Samples samples = getChunks(conn, tableName, id, null, null, dim);
+        final int first = iStart == null ? 0 : iStart;
+        final int end = n == null ? samples.n : Math.min(samples.n, first + n);
+        for(int i = first; i < end; ++i) {
+            Object[] row = new Object[dim+1];
+            row[0] = samples.times[i];
+            for(int j = 0; j < dim; ++j)
+                row[j+1] = samples.values[i*dim+j];
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    /**
+     * Called by H2TimeseriesChunkTrigger with a row of a chunk table before and after
+     * it was inserted or updated (oldRow is null for an insert).
+     * Returns the samples that are new in newRow, each in the format of a row of a TF table:
+     * EVENT_ID, TIME, C1...Cn
+     */
+    public static Object[][] getNewRows(String tableName, Object[] oldRow, Object[] newRow) {
+        final int dim = getDim(tableName);
+        final Long id = (Long) newRow[0];
+        Samples newSamples = new Samples(dim);
+        decode((byte[]) newRow[5], (Integer) newRow[4], newSamples);
+        Samples oldSamples = new Samples(dim);
+        if(oldRow != null)
+            decode((byte[]) oldRow[5], (Integer) oldRow[4], oldSamples);
+
+        ArrayList<Object[]> result = new ArrayList<Object[]>();
+        for(int i = 0; i < newSamples.n; ++i) {
+            final int j = oldSamples.lowerBound(newSamples.times[i]);
+            if(j < oldSamples.n && oldSamples.times[j] == newSamples.times[i])
+                continue; // not new.
+            Object[] row = new Object[dim+2];
+            row[0] = id;
+            row[1] = newSamples.times[i];
+            for(int k = 0; k < dim; ++k)
+                row[k+2] = newSamples.values[i*dim+k];
+            result.add(row);
+        }
+        return result.toArray(new Object[result.size()][]);
+    }
+
+    /**
+     * The CHUNK, TMIN, TMAX and N of a chunk.  The samples are retrieved only as needed.
+     */
+    private static class ChunkInfo {
+        final int chunk;
+        double tmin, tmax;
+        int n;
+        Samples samples;
+        boolean isNew, modified;
+
+        ChunkInfo(int chunk) {
+            this.chunk = chunk;
+            isNew = true;
+        }
+
+        ChunkInfo(ResultSet rs) throws SQLException {
+            chunk = rs.getInt(1);
+            tmin = rs.getDouble(2);
+            tmax = rs.getDouble(3);
+            n = rs.getInt(4);
+        }
+    }
+
+    /**
+     * Get the chunks of a timeseries in time order, without their samples.
+     */
+    private static List<ChunkInfo> getChunkInfo(Connection conn, String tableName, long id) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select CHUNK, TMIN, TMAX, N from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id);
+        q.add(" order by TMIN");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        ArrayList<ChunkInfo> result = new ArrayList<ChunkInfo>();
+        while(rs.next())
+            result.add(new ChunkInfo(rs));
+        rs.close();
+        return result;
+    }
+
+    /**
+     * The index of the last chunk with TMIN <= t, or -1 if there is none.
+     */
+    private static int lastStartingAtOrBefore(List<ChunkInfo> chunks, double t) {
+        int lo = 0, hi = chunks.size();
+        while(lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if(chunks.get(mid).tmin <= t)
+                lo = mid+1;
+            else
+                hi = mid;
+        }
+        return lo-1;
+    }
+
+    private static Samples getChunk(Connection conn, String tableName, long id, ChunkInfo c, int dim) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select DATA, N from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id, " and CHUNK=", c.chunk);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        Samples result = new Samples(dim);
+        if(rs.next())
+            decode(rs.getBytes(1), rs.getInt(2), result);
+        rs.close();
+        return result;
+    }
+
+    /**
+     * Get the samples from all chunks with TMIN between tmin1 and tmin2 (either of which may be null)
+     */
+    private static Samples getChunks(Connection conn, String tableName, long id, Double tmin1, Double tmin2, int dim) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select DATA, N from "+H2STimeseries.schemaName+"."+tableName+" where EVENT_ID=", id);
+        if(tmin1 != null)
+            q.addAlt(" and TMIN >= ", tmin1);
+        if(tmin2 != null)
+            q.addAlt(" and TMIN <= ", tmin2);
+        q.add(" order by TMIN");
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        Samples result = new Samples(dim);
+        while(rs.next())
+            decode(rs.getBytes(1), rs.getInt(2), result);
+        rs.close();
+        return result;
+    }
+
+    private static void putChunk(Connection conn, String tableName, long id, ChunkInfo c) throws SQLException {
+        final byte[] data = encode(c.samples);
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        if(c.isNew)
+            q.addAlt("insert into "+H2STimeseries.schemaName+"."+tableName+" values (", id, ",", c.chunk, ",", c.tmin, ",", c.tmax, ",", c.n, ",", data, ")");
+        else
+            q.addAlt("update "+H2STimeseries.schemaName+"."+tableName+" set TMIN=", c.tmin, ", TMAX=", c.tmax, ", N=", c.n, ", DATA=", data,
+                " where EVENT_ID=", id, " and CHUNK=", c.chunk);
+        q.getPreparedStatement().execute();
+        c.isNew = false;
+    }
+
+    /**
+     * Decoded samples in time order.  values[i*dim+j] is dimension j of sample i.
+     */
+    private static class Samples {
+        final int dim;
+        int n;
+        double[] times = new double[16];
+        float[] values;
+
+        Samples(int dim) {
+            this.dim = dim;
+            values = new float[16*dim];
+        }
+
+        void ensureCapacity(int size) {
+            if(size <= times.length)
+                return;
+            final int capacity = Math.max(size, times.length*2);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity*dim);
+        }
+
+        void append(double t, float[] x, int offset) {
+            ensureCapacity(n+1);
+            times[n] = t;
+            System.arraycopy(x, offset, values, n*dim, dim);
+            ++n;
+        }
+
+        /**
+         * Insert a sample in time order.  Returns false if there is already a sample at time t.
+         */
+        boolean insert(double t, float[] x) {
+            final int i = lowerBound(t);
+            if(i < n && times[i] == t)
+                return false;
+            ensureCapacity(n+1);
+            System.arraycopy(times, i, times, i+1, n-i);
+            System.arraycopy(values, i*dim, values, (i+1)*dim, (n-i)*dim);
+            times[i] = t;
+            System.arraycopy(x, 0, values, i*dim, dim);
+            ++n;
+            return true;
+        }
+
+        /**
+         * Index of the first sample with time >= t (n if none).
+         */
+        int lowerBound(double t) {
+            int lo = 0, hi = n;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(times[mid] < t)
+                    lo = mid+1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Index of the first sample with time > t (n if none).
+         */
+        int upperBound(double t) {
+            int lo = 0, hi = n;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(times[mid] <= t)
+                    lo = mid+1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    //// encoding
+
+    static byte[] encode(Samples s) {
+        final int dim = s.dim;
+        BitWriter out = new BitWriter(8 + s.n * (1 + dim));
+        if(s.n == 0)
+            return out.toByteArray();
+
+        long prevTime = Double.doubleToRawLongBits(s.times[0]);
+        out.write(prevTime, 64);
+        long prevDelta = Double.doubleToRawLongBits(0.0);
+        int timeLead = -1, timeTrail = 0;
+
+        int[] prevValue = new int[dim];
+        int[] lead = new int[dim];
+        int[] trail = new int[dim];
+        for(int j = 0; j < dim; ++j) {
+            prevValue[j] = Float.floatToRawIntBits(s.values[j]);
+            out.write(prevValue[j], 32);
+            lead[j] = -1;
+        }
+
+        for(int i = 1; i < s.n; ++i) {
+            //// time
+            final double t0 = Double.longBitsToDouble(prevTime);
+            final double t = s.times[i];
+            final double delta = t - t0;
+            final long deltaBits = Double.doubleToRawLongBits(delta);
+            if(Double.doubleToRawLongBits(t0 + delta) != Double.doubleToRawLongBits(t)) {
+                out.write(7, 3); // 111: the time is stored verbatim.
+                out.write(Double.doubleToRawLongBits(t), 64);
+            }
+            else {
+                final long xor = deltaBits ^ prevDelta;
+                if(xor == 0)
+                    out.write(0, 1);
+                else {
+                    final int l = Long.numberOfLeadingZeros(xor);
+                    final int r = Long.numberOfTrailingZeros(xor);
+                    if(timeLead >= 0 && l >= timeLead && r >= timeTrail) {
+                        out.write(2, 2); // 10: meaningful bits fit the previous window.
+                        out.write(xor >>> timeTrail, 64 - timeLead - timeTrail);
+                    }
+                    else {
+                        out.write(6, 3); // 110: new window.
+                        timeLead = l;
+                        timeTrail = r;
+                        out.write(l, 6);
+                        out.write(64 - l - r - 1, 6);
+                        out.write(xor >>> r, 64 - l - r);
+                    }
+                }
+            }
+            prevDelta = deltaBits;
+            prevTime = Double.doubleToRawLongBits(t);
+
+            //// values
+            for(int j = 0; j < dim; ++j) {
+                final int x = Float.floatToRawIntBits(s.values[i*dim+j]);
+                final int xor = x ^ prevValue[j];
+                prevValue[j] = x;
+                if(xor == 0) {
+                    out.write(0, 1);
+                    continue;
+                }
+                final int l = Integer.numberOfLeadingZeros(xor);
+                final int r = Integer.numberOfTrailingZeros(xor);
+                if(lead[j] >= 0 && l >= lead[j] && r >= trail[j]) {
+                    out.write(2, 2); // 10: meaningful bits fit the previous window.
+                    out.write(xor >>> trail[j], 32 - lead[j] - trail[j]);
+                }
+                else {
+                    out.write(3, 2); // 11: new window
+                    lead[j] = l;
+                    trail[j] = r;
+                    out.write(l, 5);
+                    out.write(32 - l - r - 1, 5);
+                    out.write(xor >>> r, 32 - l - r);
+                }
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode n samples from data, appending them to result.
+     */
+    static void decode(byte[] data, int n, Samples result) {
+        if(n == 0)
+            return;
+        final int dim = result.dim;
+        result.ensureCapacity(result.n + n);
+        BitReader in = new BitReader(data);
+
+        long prevTime = in.read(64);
+        long prevDelta = Double.doubleToRawLongBits(0.0);
+        int timeLead = 0, timeTrail = 0;
+
+        int[] prevValue = new int[dim];
+        int[] lead = new int[dim];
+        int[] trail = new int[dim];
+        for(int j = 0; j < dim; ++j)
+            prevValue[j] = (int) in.read(32);
+
+        int k = result.n;
+        result.times[k] = Double.longBitsToDouble(prevTime);
+        for(int j = 0; j < dim; ++j)
+            result.values[k*dim+j] = Float.intBitsToFloat(prevValue[j]);
+        ++k;
+
+        for(int i = 1; i < n; ++i, ++k) {
+            //// time
+            final double t0 = Double.longBitsToDouble(prevTime);
+            double t;
+            if(in.read(1) == 0)
+                t = t0 + Double.longBitsToDouble(prevDelta);
+            else if(in.read(1) == 0)
+                t = t0 + Double.longBitsToDouble(prevDelta ^ (in.read(64 - timeLead - timeTrail) << timeTrail));
+            else if(in.read(1) == 0) {
+                timeLead = (int) in.read(6);
+                final int len = (int) in.read(6) + 1;
+                timeTrail = 64 - timeLead - len;
+                t = t0 + Double.longBitsToDouble(prevDelta ^ (in.read(len) << timeTrail));
+            }
+            else
+                t = Double.longBitsToDouble(in.read(64));
+            prevDelta = Double.doubleToRawLongBits(t - t0);
+            prevTime = Double.doubleToRawLongBits(t);
+            result.times[k] = t;
+
+            //// values
+            for(int j = 0; j < dim; ++j) {
+                if(in.read(1) != 0) {
+                    if(in.read(1) != 0) {
+                        lead[j] = (int) in.read(5);
+                        final int len = (int) in.read(5) + 1;
+                        trail[j] = 32 - lead[j] - len;
+                    }
+                    prevValue[j] ^= (int) (in.read(32 - lead[j] - trail[j]) << trail[j]);
+                }
+                result.values[k*dim+j] = Float.intBitsToFloat(prevValue[j]);
+            }
+        }
+
+        result.n = k;
+    }
+
+    private static class BitWriter {
+        private byte[] buf;
+        private int nBits;
+
+        BitWriter(int initialBytes) {
+            buf = new byte[initialBytes];
+        }
+
+        /**
+         * Write the low n bits of x, most significant first.  0 <= n <= 64
+         */
+        void write(long x, int n) {
+            if(((nBits + n + 7) >> 3) > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length*2, ((nBits + n + 7) >> 3)));
+            while(n > 0) {
+                final int free = 8 - (nBits & 7);
+                final int take = Math.min(free, n);
+                final int bits = (int) (x >>> (n - take)) & ((1 << take) - 1);
+                buf[nBits >> 3] |= bits << (free - take);
+                nBits += take;
+                n -= take;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (nBits + 7) >> 3);
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] buf;
+        private int pos;
+
+        BitReader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Read n bits, 0 <= n <= 64
+         */
+        long read(int n) {
+            long result = 0;
+            while(n > 0) {
+                final int avail = 8 - (pos & 7);
+                final int take = Math.min(avail, n);
+                final int bits = ((buf[pos >> 3] & 0xff) >>> (avail - take)) & ((1 << take) - 1);
+                result = (result << take) | bits;
+                pos += take;
+                n -= take;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.PreparedStatementCache;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.h2.tools.SimpleResultSet;
+
+/**
+ *
+ * H2STimeseriesRollups optionally keeps multi-resolution summaries of chosen Timeseries,
+ * so drawing or computing statistics over long stretches of a densely-sampled Timeseries
+ * needn't read every sample.
+ *<p>
+ * The samples are summarized in buckets of time, at several levels: the buckets at
+ * level 0 are the width specified in enable(), and at each level above that, the
+ * buckets are FACTOR times wider.  For each bucket and each component (i.e. dimension)
+ * of the samples, the count, min, max, sum, and sum of squares of the (non-NaN) values
+ * are stored in RBB_ROLLUPS, from which the mean and variance can be computed.
+ * Bucket boundaries are multiples of the bucket width in the time coordinate of the
+ * Timeseries itself.
+ *<p>
+ * The summaries are updated by H2TimeseriesRollupTrigger as samples are added,
+ * whether by H2STimeseries.addSamplesByID, addSamples, or inserting rows directly.
+ * Between startBatch and endBatch the changes are accumulated per bucket, and each
+ * bucket is written once when the batch ends, rather than once per sample.
+ * If samples are removed (e.g. by changing the start or end time of the Timeseries),
+ * the summaries are marked stale and re-computed by the next getRollup.
+ * If the data of the Timeseries is deleted, its summaries are deleted too.
+ *<p>
+ * The public functions here only accept / return datatypes for which H2 has a SQL mapping.
+ *
+ * @author rgabbot
+ */
+public class H2STimeseriesRollups {
+
+    /**
+     * Each level's buckets are this many times wider than those of the level below it.
+     * A larger factor stores fewer levels, but a query whose resolution falls between
+     * two levels reads up to this many times more buckets than it needs.
+     */
+    public static final int FACTOR = 4;
+
+    /**
+     * Start keeping summaries of the specified Timeseries, with buckets of the specified
+     * width at the finest level, and the specified number of levels.
+     * The summaries of the existing samples are computed immediately.
+     * If the Timeseries already had summaries, they are replaced.
+     */
+    public static void enable(Connection conn, long id, double width, int levels) throws SQLException {
+        if(!(width > 0.0))
+            throw new SQLException("H2STimeseriesRollups.enable: the bucket width must be positive, not "+width);
+        if(levels < 1)
+            throw new SQLException("H2STimeseriesRollups.enable: there must be at least 1 level, not "+levels);
+        final String tableName = getTableName(conn, id);
+
+        Statement s = conn.createStatement();
+        s.execute("create table if not exists RBB_ROLLUP_TIMESERIES(EVENT_ID BIGINT PRIMARY KEY, TABLE_NAME VARCHAR, WIDTH DOUBLE, LEVELS INT, STALE BOOLEAN)");
+        s.execute("create table if not exists RBB_ROLLUPS(EVENT_ID BIGINT, LEVEL INT, BUCKET BIGINT, COMPONENT INT, N BIGINT, MIN REAL, MAX REAL, SUM DOUBLE, SUMSQ DOUBLE, PRIMARY KEY(EVENT_ID, LEVEL, BUCKET, COMPONENT))");
+        setTablesExist(conn);
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("merge into RBB_ROLLUP_TIMESERIES key(EVENT_ID) values(", id, ", ", tableName, ", ", width, ", ", levels, ", true)");
+        q.getPreparedStatement().execute();
+
+        createTrigger(conn, tableName);
+
+        rebuild(conn, id, tableName, width, levels);
+    }
+
+    /**
+     * Stop keeping summaries of the specified Timeseries, and delete them.
+     */
+    public static void disable(Connection conn, long id) throws SQLException {
+        final String tableName = getRegisteredTableName(conn, id);
+        if(tableName == null)
+            return;
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("delete from RBB_ROLLUP_TIMESERIES where EVENT_ID=", id);
+        q.getPreparedStatement().execute();
+
+        deleteRollups(conn, id);
+
+        createTrigger(conn, tableName);
+    }
+
+    /**
+     * Disable the summaries of a Timeseries (if any) because its data is being deleted,
+     * or of all Timeseries if id is null.
+     * This is called by H2SEvent.
+     */
+    static void dataDeleted(Connection conn, Long id) throws SQLException {
+        if(!tablesExist(conn))
+            return;
+
+        if(id != null) {
+            disable(conn, id);
+            return;
+        }
+
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ResultSet rs = conn.createStatement().executeQuery("select EVENT_ID from RBB_ROLLUP_TIMESERIES");
+        while(rs.next())
+            ids.add(rs.getLong(1));
+        rs.close();
+        for(Long i : ids)
+            disable(conn, i);
+    }
+
+    public static boolean isEnabled(Connection conn, long id) throws SQLException {
+        return getRegisteredTableName(conn, id) != null;
+    }
+
+    /**
+     * Get summaries of the samples of the Timeseries between start and end
+     * (either of which may be null for no limit), from the coarsest level
+     * whose buckets are no wider than 'resolution'.
+     *<p>
+     * The columns are START_TIME, END_TIME (of the bucket), and N, MIN, MAX, SUM, SUMSQ,
+     * each of which is an array with an element for each component of the samples.
+     * Only buckets containing samples are returned.
+     *<p>
+     * If even the finest level is too coarse for the requested resolution, or the Timeseries
+     * has no summaries, the samples themselves are returned in the same format (i.e. a
+     * "bucket" for each sample, with START_TIME == END_TIME and N of 1).
+     */
+    public static ResultSet getRollup(Connection conn, long id, Double start, Double end, double resolution) throws SQLException {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("START_TIME", java.sql.Types.DOUBLE, 20, 0);
+        result.addColumn("END_TIME", java.sql.Types.DOUBLE, 20, 0);
+        result.addColumn("N", java.sql.Types.ARRAY, 20, 0);
+        result.addColumn("MIN", java.sql.Types.ARRAY, 20, 0);
+        result.addColumn("MAX", java.sql.Types.ARRAY, 20, 0);
+        result.addColumn("SUM", java.sql.Types.ARRAY, 20, 0);
+        result.addColumn("SUMSQ", java.sql.Types.ARRAY, 20, 0);
+
+        ResultSet rs = null;
+        if(tablesExist(conn)) {
+            PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+            q.addAlt("select TABLE_NAME, WIDTH, LEVELS, STALE from RBB_ROLLUP_TIMESERIES where EVENT_ID=", id);
+            rs = q.getPreparedStatement().executeQuery();
+        }
+
+        int level = -1;
+        double width = 0.0;
+        if(rs != null && rs.next()) {
+            final String tableName = rs.getString(1);
+            width = rs.getDouble(2);
+            final int levels = rs.getInt(3);
+            final boolean stale = rs.getBoolean(4);
+            rs.close();
+            while(level+1 < levels && width*Math.pow(FACTOR, level+1) <= resolution)
+                ++level;
+            if(level >= 0 && stale)
+                rebuild(conn, id, tableName, width, levels);
+        }
+        else if(rs != null)
+            rs.close();
+
+        if(level < 0) {
+            addSampleRows(conn, id, start, end, result);
+            return result;
+        }
+
+        width *= Math.pow(FACTOR, level);
+        final int dim = H2STimeseries.getDim(conn, id);
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select BUCKET, COMPONENT, N, MIN, MAX, SUM, SUMSQ from RBB_ROLLUPS where EVENT_ID=", id, " and LEVEL=", level);
+        if(start != null)
+            q.addAlt(" and BUCKET >= ", bucket(start, width));
+        if(end != null)
+            q.addAlt(" and BUCKET <= ", bucket(end, width));
+        q.add(" order by BUCKET, COMPONENT");
+        rs = q.getPreparedStatement().executeQuery();
+        Bucket b = null;
+        while(rs.next()) {
+            final long i = rs.getLong(1);
+            if(b == null || b.bucket != i) {
+                if(b != null)
+                    b.addRow(result, width);
+                b = new Bucket(i, dim);
+            }
+            final int j = rs.getInt(2);
+            b.n[j] = rs.getLong(3);
+            b.min[j] = rs.getFloat(4);
+            b.max[j] = rs.getFloat(5);
+            b.sum[j] = rs.getDouble(6);
+            b.sumsq[j] = rs.getDouble(7);
+        }
+        rs.close();
+        if(b != null)
+            b.addRow(result, width);
+
+        return result;
+    }
+
+    /**
+     * Get the EVENT_ID, WIDTH and LEVELS of each summarized Timeseries in a table.
+     * This is for H2TimeseriesRollupTrigger.
+     */
+    public static Map<Long, double[]> getEnabled(Connection conn, String tableName) throws SQLException {
+        // the trigger exists, so the tables do too, though perhaps enable was called in another process.
+        setTablesExist(conn);
+        Map<Long, double[]> result = new HashMap<Long, double[]>();
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select EVENT_ID, WIDTH, LEVELS from RBB_ROLLUP_TIMESERIES where TABLE_NAME=", tableName);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        while(rs.next())
+            result.put(rs.getLong(1), new double[]{ rs.getDouble(2), rs.getInt(3) });
+        rs.close();
+        return result;
+    }
+
+    /**
+     * Add a sample to the summaries at each level.
+     * This is called by H2TimeseriesRollupTrigger with the WIDTH and LEVELS from getEnabled.
+     * If a batch has been started in this thread, the summaries are written when it ends.
+     */
+    public static void sampleAdded(Connection conn, long id, double width, int levels, double time, Object[] values) throws SQLException {
+        startBatch();
+        try {
+            Batch b = batch.get();
+            ArrayList<Map<Long, Bucket>> byLevel = b.buckets.get(id);
+            if(byLevel == null) {
+                byLevel = new ArrayList<Map<Long, Bucket>>();
+                for(int level = 0; level < levels; ++level)
+                    byLevel.add(new HashMap<Long, Bucket>());
+                b.buckets.put(id, byLevel);
+            }
+            for(int level = 0; level < levels; ++level, width *= FACTOR) {
+                final long i = bucket(time, width);
+                Bucket bucket = byLevel.get(level).get(i);
+                if(bucket == null) {
+                    bucket = new Bucket(i, values.length);
+                    byLevel.get(level).put(i, bucket);
+                }
+                for(int j = 0; j < values.length; ++j)
+                    bucket.add(j, ((Number) values[j]).floatValue());
+            }
+        }
+        finally {
+            endBatch(conn);
+        }
+    }
+
+    /**
+     * The changes to the summaries made in this thread since startBatch was called,
+     * by Timeseries ID, level, and bucket.
+     */
+    private static class Batch {
+        int depth = 1;
+        final Map<Long, ArrayList<Map<Long, Bucket>>> buckets = new HashMap<Long, ArrayList<Map<Long, Bucket>>>();
+    }
+
+    private static final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Until the matching call to endBatch, accumulate the changes to the summaries made in
+     * this thread, and then write each bucket that changed once, instead of once per sample.
+     * Calls may be nested; the summaries are written when the outermost batch ends.
+     * <p>
+     * As with H2EventDataTrigger.startBatch, this only has an effect in the process running
+     * the triggers, i.e. the server or a process using an embedded database.
+     */
+    public static void startBatch() {
+        Batch b = batch.get();
+        if(b == null)
+            batch.set(new Batch());
+        else
+            ++b.depth;
+    }
+
+    /**
+     * See startBatch.  This should be called in a finally block, so the changes
+     * to the summaries are written even if adding the samples failed part way through.
+     */
+    public static void endBatch(Connection conn) throws SQLException {
+        Batch b = batch.get();
+        if(b == null || --b.depth > 0)
+            return;
+        batch.remove();
+
+        for(Map.Entry<Long, ArrayList<Map<Long, Bucket>>> e : b.buckets.entrySet()) {
+            final long id = e.getKey();
+            for(int level = 0; level < e.getValue().size(); ++level) {
+                for(Bucket bucket : e.getValue().get(level).values()) {
+                    for(int j = 0; j < bucket.n.length; ++j) {
+                        if(bucket.n[j] == 0)
+                            continue;
+                        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+                        q.addAlt("update RBB_ROLLUPS set N=N+", bucket.n[j], ", MIN=least(MIN,", bucket.min[j], "), MAX=greatest(MAX,", bucket.max[j],
+                            "), SUM=SUM+", bucket.sum[j], ", SUMSQ=SUMSQ+", bucket.sumsq[j],
+                            " where EVENT_ID=", id, " and LEVEL=", level, " and BUCKET=", bucket.bucket, " and COMPONENT=", j);
+                        if(q.getPreparedStatement().executeUpdate() > 0)
+                            continue;
+                        q = PreparedStatementCache.startQuery(conn);
+                        q.addAlt("insert into RBB_ROLLUPS values(", id, ", ", level, ", ", bucket.bucket, ", ", j, ", ", bucket.n[j], ", ",
+                            bucket.min[j], ", ", bucket.max[j], ", ", bucket.sum[j], ", ", bucket.sumsq[j], ")");
+                        q.getPreparedStatement().execute();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Note that samples have been removed from the Timeseries, so its summaries must be re-computed.
+     * This is called by H2TimeseriesRollupTrigger.
+     */
+    public static void samplesRemoved(Connection conn, long id) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("update RBB_ROLLUP_TIMESERIES set STALE=true where EVENT_ID=", id);
+        q.getPreparedStatement().execute();
+    }
+
+    /**
+     * Re-compute all the summaries of a Timeseries from its samples.
+     */
+    private static void rebuild(Connection conn, long id, String tableName, double width, int levels) throws SQLException {
+        // clear STALE first, so if samples are removed while rebuilding, it will be rebuilt again.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("update RBB_ROLLUP_TIMESERIES set STALE=false where EVENT_ID=", id);
+        q.getPreparedStatement().execute();
+
+        deleteRollups(conn, id);
+
+        String[] tableNames = H2SEvent.attachedDataTables(conn, id, H2STimeseries.schemaName);
+        if(tableNames.length != 1 || !tableNames[0].equals(tableName)) {
+            // the Timeseries was deleted.
+            disable(conn, id);
+            return;
+        }
+
+        final int dim = H2STimeseries.getDim(conn, id);
+        ArrayList<TreeMap<Long, Bucket>> buckets = new ArrayList<TreeMap<Long, Bucket>>();
+        for(int level = 0; level < levels; ++level)
+            buckets.add(new TreeMap<Long, Bucket>());
+        ResultSet rs = H2STimeseries.getSamples(conn, id, null, null);
+        float[] x = new float[dim];
+        while(rs.next()) {
+            final double t = rs.getDouble(1);
+            for(int j = 0; j < dim; ++j)
+                x[j] = rs.getFloat(j+2);
+            double w = width;
+            for(int level = 0; level < levels; ++level, w *= FACTOR) {
+                final long i = bucket(t, w);
+                Bucket b = buckets.get(level).get(i);
+                if(b == null) {
+                    b = new Bucket(i, dim);
+                    buckets.get(level).put(i, b);
+                }
+                for(int j = 0; j < dim; ++j)
+                    b.add(j, x[j]);
+            }
+        }
+        rs.close();
+
+        PreparedStatement ps = conn.prepareStatement("insert into RBB_ROLLUPS values(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        int n = 0;
+        for(int level = 0; level < levels; ++level) {
+            for(Bucket b : buckets.get(level).values()) {
+                for(int j = 0; j < dim; ++j) {
+                    if(b.n[j] == 0)
+                        continue;
+                    ps.setLong(1, id);
+                    ps.setInt(2, level);
+                    ps.setLong(3, b.bucket);
+                    ps.setInt(4, j);
+                    ps.setLong(5, b.n[j]);
+                    ps.setFloat(6, b.min[j]);
+                    ps.setFloat(7, b.max[j]);
+                    ps.setDouble(8, b.sum[j]);
+                    ps.setDouble(9, b.sumsq[j]);
+                    ps.addBatch();
+                    if(++n % 1000 == 0) // keeps the pending batch small without a round trip per bucket
+                        ps.executeBatch();
+                }
+            }
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    /**
+     * Add the samples themselves to the result of getRollup, in the same format as a summary.
+     */
+    private static void addSampleRows(Connection conn, long id, Double start, Double end, SimpleResultSet result) throws SQLException {
+        ResultSet rs = H2STimeseries.getSamples(conn, id, start, end, 0, 0, null, null);
+        while(rs.next()) {
+            final double t = rs.getDouble(1);
+            Object[] x = (Object[]) rs.getArray(2).getArray();
+            Bucket b = new Bucket(0, x.length);
+            for(int j = 0; j < x.length; ++j)
+                b.add(j, ((Number) x[j]).floatValue());
+            b.addRow(result, t, t);
+        }
+        rs.close();
+    }
+
+    private static void deleteRollups(Connection conn, long id) throws SQLException {
+        // changes accumulated in this thread are also obsolete.
+        Batch b = batch.get();
+        if(b != null)
+            b.buckets.remove(id);
+
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("delete from RBB_ROLLUPS where EVENT_ID=", id);
+        q.getPreparedStatement().execute();
+    }
+
+    private static long bucket(double time, double width) {
+        return (long) Math.floor(time / width);
+    }
+
+    private static String getTableName(Connection conn, long id) throws SQLException {
+        String[] tableNames = H2SEvent.attachedDataTables(conn, id, H2STimeseries.schemaName);
+        if(tableNames.length != 1)
+            throw new SQLException("H2STimeseriesRollups: event " + id + " is not a timeseries");
+        return tableNames[0];
+    }
+
+    /**
+     * The table of a summarized Timeseries, or null if it is not summarized.
+     */
+    private static String getRegisteredTableName(Connection conn, long id) throws SQLException {
+        if(!tablesExist(conn))
+            return null; // nothing was ever summarized in this RBB.
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(conn);
+        q.addAlt("select TABLE_NAME from RBB_ROLLUP_TIMESERIES where EVENT_ID=", id);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        final String tableName = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return tableName;
+    }
+
+    /**
+     * True if RBB_ROLLUP_TIMESERIES and RBB_ROLLUPS have been created in this RBB,
+     * i.e. anything was ever summarized in it.
+     * This is checked in INFORMATION_SCHEMA only once per RBB, since the tables are never dropped.
+     */
+    private static boolean tablesExist(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(tablesExist) {
+            Boolean exist = tablesExist.get(uuid);
+            if(exist != null)
+                return exist;
+        }
+        ResultSet rs = conn.createStatement().executeQuery(
+            "select count(*) from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA='PUBLIC' and TABLE_NAME='RBB_ROLLUP_TIMESERIES'");
+        rs.next();
+        final boolean exist = rs.getInt(1) > 0;
+        rs.close();
+        synchronized(tablesExist) {
+            if(!tablesExist.containsKey(uuid))
+                tablesExist.put(uuid, exist);
+            return tablesExist.get(uuid);
+        }
+    }
+
+    private static void setTablesExist(Connection conn) throws SQLException {
+        final String uuid = H2SRBB.getUUID(conn);
+        synchronized(tablesExist) {
+            tablesExist.put(uuid, true);
+        }
+    }
+
+    /**
+     * Map from the RBB UUID to whether the summary tables exist in that RBB.
+     */
+    private static final Map<String, Boolean> tablesExist = new HashMap<String, Boolean>();
+
+    /**
+     * (Re-)create the trigger that maintains the summaries of Timeseries in a table,
+     * or drop it if none of them are summarized.
+     * This is done every time the set of summarized Timeseries in the table changes,
+     * since each trigger reads the set only once.
+     */
+    private static void createTrigger(Connection conn, String tableName) throws SQLException {
+        final String triggerName = H2STimeseries.schemaName+".RBB"+tableName+"ROLLUP";
+        Statement s = conn.createStatement();
+        s.execute("drop trigger if exists "+triggerName);
+
+        if(getEnabled(conn, tableName).isEmpty())
+            return;
+
+        s.execute("create trigger "+triggerName+" after insert, update, delete on "+H2STimeseries.schemaName+"."+tableName+
+            " for each row call \"gov.sandia.rbb.impl.h2.H2TimeseriesRollupTrigger\"");
+    }
+
+    /**
+     * The summary of the samples in a single bucket.
+     */
+    private static class Bucket {
+        final long bucket;
+        final long[] n;
+        final float[] min, max;
+        final double[] sum, sumsq;
+
+        Bucket(long bucket, int dim) {
+            this.bucket = bucket;
+            n = new long[dim];
+            min = new float[dim];
+            max = new float[dim];
+            sum = new double[dim];
+            sumsq = new double[dim];
+            Arrays.fill(min, Float.NaN);
+            Arrays.fill(max, Float.NaN);
+        }
+
+        void add(int j, float x) {
+            if(Float.isNaN(x))
+                return;
+            if(n[j]++ == 0)
+                min[j] = max[j] = x;
+            else {
+                min[j] = Math.min(min[j], x);
+                max[j] = Math.max(max[j], x);
+            }
+            sum[j] += x;
+            sumsq[j] += (double) x*x;
+        }
+
+        void addRow(SimpleResultSet result, double width) {
+            addRow(result, bucket*width, (bucket+1)*width);
+        }
+
+        void addRow(SimpleResultSet result, double start, double end) {
+            Long[] N = new Long[n.length];
+            Float[] MIN = new Float[n.length], MAX = new Float[n.length];
+            Double[] SUM = new Double[n.length], SUMSQ = new Double[n.length];
+            for(int j = 0; j < n.length; ++j) {
+                N[j] = n[j];
+                MIN[j] = min[j];
+                MAX[j] = max[j];
+                SUM[j] = sum[j];
+                SUMSQ[j] = sumsq[j];
+            }
+            result.addRow(start, end, N, MIN, MAX, SUM, SUMSQ);
+        }
+    }
+}
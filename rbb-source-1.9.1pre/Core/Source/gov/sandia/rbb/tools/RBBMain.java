@@ -81,6 +81,7 @@ public class RBBMain
             System.err.println("    delete - (Permanently) delete events from the RBB.");
             System.err.println("    deleteAttachments - delete data attached to an RBB event, e.g. with attachBlob");
             System.err.println("    deleteRBB - delete the entire RBB and the file(s) it was stored in.");
+            System.err.println("    eventQueues - print the depth, drops and lag of the queues feeding event listeners.");
             System.err.println("    findEventSequences - find patterns in time-ordered events.");
             System.err.println("    ml <subcommand> - RBB ML (machine learning) (rbbml.jar must be in classpath)");
             System.err.println("    server - Runs the H2 server with RBB extensions available (i.e. in the classpath), and passing any arguments to the H2 server.");
@@ -160,6 +161,23 @@ public class RBBMain
             RBB rbb = RBB.connect(args[0]);
             rbb.deleteRBB();
         }
+        else if (cmd.equalsIgnoreCase("eventQueues"))
+        {
+            if(args.length != 1)
+                throw new Exception("Usage: eventQueues <rbbURL>");
+            RBB rbb = RBB.connect(args[0]);
+            ResultSet rs = H2SRBB.getEventQueueStats(rbb.db());
+            final int n = rs.getMetaData().getColumnCount();
+            for(int i = 1; i <= n; ++i)
+                System.out.print((i > 1 ? "\t" : "") + rs.getMetaData().getColumnName(i));
+            System.out.println();
+            while(rs.next()) {
+                for(int i = 1; i <= n; ++i)
+                    System.out.print((i > 1 ? "\t" : "") + rs.getString(i));
+                System.out.println();
+            }
+            rbb.disconnect();
+        }
         else if (cmd.equalsIgnoreCase("findEventSequences"))
         {
             FindEventSequences.main(args);
@@ -58,6 +58,10 @@ public class UpdateSchema
                     db.createStatement().execute(q);
                     oldVersion=5;
                 }
+                else if(oldVersion == 9) {
+                    H2SRBB.createVersion10Aliases(db);
+                    oldVersion=10;
+                }
                 else {
                     System.err.println("Don't know how to upgrade from schema version "+oldVersion);
                     System.exit(1);
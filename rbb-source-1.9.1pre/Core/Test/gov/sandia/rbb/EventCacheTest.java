@@ -297,4 +297,254 @@ public class EventCacheTest {
         rbb.disconnect();
     }
 
+    /*
+     * findEvents uses indexes instead of checking every Event; make sure it finds the same Events as Event.find.
+     */
+    @Test
+    public void testIndexedFind() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        for(int i = 0; i < 20; ++i)
+            new Event(rbb.db(), i, i+(i%4), TC("a="+(i%3)+",b="+(i%2)+",c="+i));
+        new Event(rbb.db(), -0.0, 0.0, TC("a=1,d=x"));
+
+        EventCache rbbCache = new EventCache(rbb);
+        rbbCache.initCache(byTags("a"));
+
+        RBBFilter[] filters = new RBBFilter[] {
+            new RBBFilter(),
+            byTags("a=1"),
+            byTags("b"),
+            byTags("a=1,b=0"),
+            byTags(new Tagset[]{ TC("a=0,b=1"), TC("c=5") }),
+            byTags("nosuchtag=1"),
+            byTags("a=99"),
+            byTime(3.0, 6.0),
+            byStart(15.0),
+            byEnd(0.0),
+            byStart(0.0),
+            new RBBFilter(byTags("b=1"), byTime(4.0, 10.0)),
+            new RBBFilter(byID(1L, 2L, 3L, 99L), byTags("b=0")),
+            new RBBFilter(byID(5L), byTime(100.0, 200.0))
+        };
+
+        checkIndexedFind(rbb, rbbCache, filters);
+
+        // changes are reflected in the indexes.
+        H2SEvent.setTagsByID(rbb.db(), 1L, "a=1,b=7");
+        H2SEvent.setEndByID(rbb.db(), 2L, 50.0);
+        H2SEvent.deleteByID(rbb.db(), 3L);
+        Event last = new Event(rbb.db(), 16.0, 17.0, TC("a=1,b=0"));
+
+        // this tcp-based notification is asynchronous!  Wait for the last change to arrive.
+        for(int i = 0; i < 50 && rbbCache.getEventsByID(last.getID())[0] == null; ++i)
+            Thread.sleep(100);
+
+        checkIndexedFind(rbb, rbbCache, filters);
+        assertEquals(1, rbbCache.findEvents(byTags("b=7")).length);
+        assertEquals(0, rbbCache.findEvents(byID(3L)).length);
+
+        rbbCache.disconnect();
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        Event e1 = new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+
+        EventCache rbbCache = new EventCache(rbb);
+        rbbCache.initCache(byTags("n"));
+        Thread.sleep(500); // let the server read the request.
+
+        EventCache.Snapshot s1 = rbbCache.getSnapshot();
+        assertSame(s1, rbbCache.getSnapshot()); // nothing changed.
+        assertEquals(1, s1.getNumCachedEvents());
+
+        Event e2 = new Event(rbb.db(), 3.0, 4.0, TC("n=2"));
+        // this tcp-based notification is asynchronous!
+        for(int i = 0; i < 50 && rbbCache.getNumCachedEvents() < 2; ++i)
+            Thread.sleep(100);
+
+        // the old snapshot is unaffected by the change.
+        EventCache.Snapshot s2 = rbbCache.getSnapshot();
+        assertTrue(s2.getVersion() > s1.getVersion());
+        assertEquals(1, s1.findEvents().length);
+        assertEquals(0, s1.findEvents(byTags("n=2")).length);
+        assertEquals(2, s2.findEvents().length);
+        assertEquals(1, s2.findEvents(byTags("n=2")).length);
+        assertEquals(e1.getID(), s2.getEventsByID(e1.getID())[0].getID());
+
+        // the index of a snapshot shares postings with the next, but is unaffected by removals from it.
+        H2SEvent.deleteByID(rbb.db(), e2.getID());
+        for(int i = 0; i < 50 && rbbCache.getNumCachedEvents() > 1; ++i)
+            Thread.sleep(100);
+        EventCache.Snapshot s3 = rbbCache.getSnapshot();
+        assertEquals(0, s3.findEvents(byTags("n=2")).length);
+        assertEquals(1, s3.findEvents(byTags("n=1")).length);
+        assertEquals(1, s2.findEvents(byTags("n=2")).length);
+        assertEquals(2, s2.findEvents(byTags("n")).length);
+
+        // recent snapshots can be retrieved by version.
+        assertSame(s1, rbbCache.getSnapshot(s1.getVersion()));
+        assertSame(s2, rbbCache.getSnapshot(s2.getVersion()));
+        assertNull(rbbCache.getSnapshot(s3.getVersion()+1));
+
+        rbbCache.disconnect();
+        try {
+            rbbCache.getSnapshot();
+            fail("getSnapshot should fail after disconnect");
+        }
+        catch(IllegalStateException e) {
+        }
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        Timeseries[] ts = new Timeseries[3];
+        for(int i = 0; i < ts.length; ++i) {
+            ts[i] = new Timeseries(rbb, 1, 0.0, TC("n="+i));
+            for(int j = 0; j < 100; ++j)
+                ts[i].add(rbb, j, (float) j);
+        }
+
+        EventCache rbbCache = new EventCache(rbb);
+        rbbCache.setMaxBytes(2000L); // room for the samples of one of the Timeseries, but not two.
+        rbbCache.initCache(byTags("n"));
+        Thread.sleep(500); // let the server read the request.
+
+        // the Timeseries are all there, but without samples until requested.
+        assertEquals(3, rbbCache.getNumCachedEvents());
+        Timeseries ts0 = rbbCache.getTimeseriesByID(ts[0].getID())[0];
+        assertEquals(0, ts0.getNumSamples());
+        assertEquals(0, rbbCache.getMemoryStats().residentTimeseries);
+
+        assertSame(ts0, rbbCache.getTimeseriesWithSamples(ts[0].getID(), null, null));
+        assertEquals(100, ts0.getNumSamples());
+        EventCache.MemoryStats stats = rbbCache.getMemoryStats();
+        assertEquals(1, stats.residentTimeseries);
+        assertEquals(1, stats.reloads);
+        assertTrue(stats.sampleBytes > 0 && stats.sampleBytes <= 2000);
+
+        // loading another evicts the first.
+        Timeseries ts1 = rbbCache.getTimeseriesWithSamples(ts[1].getID(), null, null);
+        assertEquals(100, ts1.getNumSamples());
+        assertEquals(0, ts0.getNumSamples());
+        stats = rbbCache.getMemoryStats();
+        assertEquals(1, stats.residentTimeseries);
+        assertEquals(1, stats.evictions);
+
+        // no need to reload samples already loaded.
+        rbbCache.getTimeseriesWithSamples(ts[1].getID(), 10.0, 20.0);
+        assertEquals(2, rbbCache.getMemoryStats().reloads);
+
+        // reload only a time window.
+        rbbCache.getTimeseriesWithSamples(ts[0].getID(), 10.0, 19.0);
+        assertEquals(10, ts0.getNumSamples());
+        assertEquals(10.0, ts0.getTime(0), 0.0);
+        assertEquals(3, rbbCache.getMemoryStats().reloads);
+
+        // new samples are kept only if loaded up to the present.
+        assertEquals(2, rbbCache.getMemoryStats().residentTimeseries);
+        ts[0].add(rbb, 100.0, 1.0f);
+        ts[1].add(rbb, 100.0, 1.0f);
+        for(int i = 0; i < 50 && ts1.getNumSamples() < 101; ++i)
+            Thread.sleep(100); // this tcp-based notification is asynchronous!
+        assertEquals(101, ts1.getNumSamples());
+        assertEquals(10, ts0.getNumSamples());
+
+        // receiving samples didn't make ts1 more recently used than ts0, which was read after it,
+        // so loading another evicts ts1 first.
+        Timeseries ts2 = rbbCache.getTimeseriesWithSamples(ts[2].getID(), null, null);
+        assertEquals(100, ts2.getNumSamples());
+        assertEquals(0, ts1.getNumSamples());
+        assertEquals(10, ts0.getNumSamples());
+
+        assertNull(rbbCache.getTimeseriesWithSamples(-1L, null, null));
+
+        rbbCache.disconnect();
+        rbb.disconnect();
+    }
+
+    /*
+     * The thread delivering a change waits for the EventCache monitor, which disconnect() holds
+     * while removing the listener, so removing the listener must not wait for that delivery.
+     */
+    @Test
+    public void testDisconnectWhileReceiving() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final Timeseries ts = new Timeseries(rbb, 1, 0.0, TC("n=1"));
+
+        final java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override public void run() {
+                try {
+                    for(int i = 1; !stop.get(); ++i)
+                        ts.add(rbb, i, (float) i);
+                }
+                catch(Exception e) {
+                    System.err.println(e);
+                }
+            }
+        };
+        writer.start();
+
+        for(int i = 0; i < 5; ++i) {
+            final EventCache rbbCache = new EventCache(rbb);
+            final java.util.concurrent.CountDownLatch receiving = new java.util.concurrent.CountDownLatch(1);
+            rbbCache.addEventListener(new RBBEventListener.Adapter() {
+                @Override public void eventChanged(RBB rbb, RBBEventChange eventChange) {
+                    receiving.countDown();
+                }
+            });
+            rbbCache.initCache(byTags("n"));
+            assertTrue(receiving.await(10, java.util.concurrent.TimeUnit.SECONDS));
+
+            Thread disconnector = new Thread() {
+                @Override public void run() {
+                    try {
+                        synchronized(rbbCache) {
+                            Thread.sleep(200); // so the delivery of the next change is waiting for the monitor.
+                            rbbCache.disconnect();
+                        }
+                    }
+                    catch(Exception e) {
+                        System.err.println(e);
+                    }
+                }
+            };
+            disconnector.start();
+            disconnector.join(10000);
+            assertFalse("EventCache.disconnect deadlocked with the delivery of a change", disconnector.isAlive());
+        }
+
+        stop.set(true);
+        writer.join();
+        rbb.disconnect();
+    }
+
+    private static void checkIndexedFind(RBB rbb, EventCache rbbCache, RBBFilter[] filters) throws Exception {
+        for(RBBFilter f : filters) {
+            Event[] expected = Event.find(rbb.db(), f); // every Event has tag a, so all are in the cache.
+            Event[] found = rbbCache.findEvents(f);
+            assertEquals(f.toString(), expected.length, found.length);
+            java.util.Set<Long> ids = new java.util.HashSet<Long>(java.util.Arrays.asList(Event.getIDs(expected)));
+            for(Event e : found)
+                assertTrue(f.toString(), ids.contains(e.getID()));
+        }
+    }
 }
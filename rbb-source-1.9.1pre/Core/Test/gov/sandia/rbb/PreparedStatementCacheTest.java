@@ -1,7 +1,10 @@
 
 package gov.sandia.rbb;
 
+import java.lang.ref.WeakReference;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import gov.sandia.rbb.PreparedStatementCache.Query;
 import gov.sandia.rbb.impl.h2.statics.H2SEvent;
 import gov.sandia.rbb.RBB;
@@ -90,4 +93,208 @@ public class PreparedStatementCacheTest {
         rbb2.disconnect();
         rbb.disconnect();
     }
+
+    @Test
+    public void testThreads() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final long id1 = H2SEvent.create(rbb.db(), 0.0, 1.0, "x=1,y=2");
+
+        PreparedStatementCache.Stats before = PreparedStatementCache.getStats();
+
+        Query q = PreparedStatementCache.startQuery(rbb.db());
+        q.addAlt("select * from RBB_EVENTS where ID=", id1);
+        final PreparedStatement ps = q.getPreparedStatement();
+
+        // the same thread gets the same PreparedStatement again.
+        q = PreparedStatementCache.startQuery(rbb.db());
+        q.addAlt("select * from RBB_EVENTS where ID=", id1);
+        assertSame(ps, q.getPreparedStatement());
+
+        // the counters are for the whole process, so other threads may have added to them.
+        PreparedStatementCache.Stats after = PreparedStatementCache.getStats();
+        assertTrue(after.misses - before.misses >= 1);
+        assertTrue(after.hits - before.hits >= 1);
+        assertTrue(after.prepares - before.prepares >= 1);
+
+        // another thread gets its own, so it can read a ResultSet while this thread reads another.
+        ResultSet rs = ps.executeQuery();
+        final PreparedStatement[] other = new PreparedStatement[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    Query q = PreparedStatementCache.startQuery(rbb.db());
+                    q.addAlt("select * from RBB_EVENTS where ID=", id1);
+                    other[0] = q.getPreparedStatement();
+                    ResultSet rs = other[0].executeQuery();
+                    assertTrue(rs.next());
+                    rs.close();
+                }
+                catch(SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame(ps, other[0]);
+        assertTrue(rs.next()); // still usable.
+        assertEquals(id1, rs.getLong("ID"));
+
+        // disconnect closes the PreparedStatements.
+        rbb.disconnect();
+        assertTrue(ps.isClosed());
+        assertTrue(other[0].isClosed());
+        assertTrue(PreparedStatementCache.getStats().closes - after.closes >= 2);
+    }
+
+    @Test
+    public void testFinishedThreads() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final long id1 = H2SEvent.create(rbb.db(), 0.0, 1.0, "x=1,y=2");
+
+        final PreparedStatement[] stmt = new PreparedStatement[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    Query q = PreparedStatementCache.startQuery(rbb.db());
+                    q.addAlt("select * from RBB_EVENTS where ID=", id1);
+                    stmt[0] = q.getPreparedStatement();
+                    stmt[0].executeQuery().close();
+                }
+                catch(SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertFalse(stmt[0].isClosed());
+
+        // the cache doesn't keep the finished thread reachable.
+        WeakReference<Thread> ref = new WeakReference<Thread>(t);
+        t = null;
+        for(int i = 0; i < 50 && ref.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+
+        // the finished thread's lease has ended, so the next thread (e.g. the next task of a thread-per-task executor)
+        // gets the same PreparedStatement instead of preparing another.
+        final PreparedStatement[] next = new PreparedStatement[1];
+        Thread t2 = new Thread() {
+            @Override public void run() {
+                try {
+                    Query q = PreparedStatementCache.startQuery(rbb.db());
+                    q.addAlt("select * from RBB_EVENTS where ID=", id1);
+                    next[0] = q.getPreparedStatement();
+                    next[0].executeQuery().close();
+                }
+                catch(SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t2.start();
+        t2.join();
+        assertSame(stmt[0], next[0]);
+        assertFalse(stmt[0].isClosed());
+
+        rbb.disconnect();
+        assertTrue(stmt[0].isClosed());
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final long id1 = H2SEvent.create(rbb.db(), 0.0, 1.0, "x=1,y=2");
+
+        Query q = PreparedStatementCache.startQuery(rbb.db());
+        q.addAlt("select * from RBB_EVENTS where ID=", id1);
+        final PreparedStatement ps = q.getPreparedStatement();
+        ps.executeQuery().close();
+
+        // while this thread holds the lease, another thread gets a different one.
+        assertNotSame(ps, getInOtherThread(rbb, id1));
+
+        // once released, the other thread gets it.
+        q.release();
+        assertSame(ps, getInOtherThread(rbb, id1));
+
+        rbb.disconnect();
+    }
+
+    private static PreparedStatement getInOtherThread(final RBB rbb, final long id) throws Exception {
+        final PreparedStatement[] result = new PreparedStatement[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    Query q = PreparedStatementCache.startQuery(rbb.db());
+                    q.addAlt("select * from RBB_EVENTS where ID=", id);
+                    result[0] = q.getPreparedStatement();
+                    result[0].executeQuery().close();
+                    q.release();
+                }
+                catch(SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        return result[0];
+    }
+
+    @Test
+    public void testEvictionKeepsLeased() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final long id1 = H2SEvent.create(rbb.db(), 0.0, 1.0, "x=1,y=2");
+
+        // another thread gets a PreparedStatement, but doesn't execute it until this one has filled the cache.
+        final java.util.concurrent.CountDownLatch leased = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch filled = new java.util.concurrent.CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    Query q = PreparedStatementCache.startQuery(rbb.db());
+                    q.addAlt("select * from RBB_EVENTS where ID=", id1);
+                    PreparedStatement ps = q.getPreparedStatement();
+                    leased.countDown();
+                    filled.await();
+                    ResultSet rs = ps.executeQuery();
+                    assertTrue(rs.next());
+                    rs.close();
+                }
+                catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        t.start();
+        leased.await();
+
+        PreparedStatementCache.Stats before = PreparedStatementCache.getStats();
+        for(int i = 0; i < 1100; ++i) { // more distinct queries than are cached for a Connection.
+            Query q = PreparedStatementCache.startQuery(rbb.db());
+            q.addAlt("select "+i+" from RBB_EVENTS where ID=", id1);
+            q.getPreparedStatement().executeQuery().close();
+        }
+        assertTrue(PreparedStatementCache.getStats().evictions - before.evictions >= 100);
+
+        filled.countDown();
+        t.join();
+        assertNull(error[0]);
+
+        rbb.disconnect();
+    }
 }
@@ -0,0 +1,162 @@
+package gov.sandia.rbb;
+
+import gov.sandia.rbb.impl.h2.H2EventQueue;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static gov.sandia.rbb.Tagset.TC;
+import static gov.sandia.rbb.RBBFilter.*;
+
+/**
+ *
+ * @author rgabbot
+ */
+
+public class RBBEventPublisherTest {
+
+    /**
+     * Keeps everything it receives, and requests more only when told to.
+     */
+    static class Collector<T> implements Flow.Subscriber<T> {
+        final ArrayList<T> items = new ArrayList<T>();
+        Flow.Subscription subscription;
+        Throwable error;
+
+        @Override public synchronized void onSubscribe(Flow.Subscription s) { subscription = s; }
+        @Override public synchronized void onNext(T item) { items.add(item); }
+        @Override public synchronized void onError(Throwable t) { error = t; }
+        @Override public void onComplete() { }
+
+        synchronized ArrayList<T> take() {
+            ArrayList<T> result = new ArrayList<T>(items);
+            items.clear();
+            return result;
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        Collector<RBBEventChange> c = new Collector<RBBEventChange>();
+        rbb.changes(byTags("n")).subscribe(c);
+        Thread.sleep(500); // let the server read the request.
+
+        for(int i = 0; i < 5; ++i)
+            new Event(rbb.db(), i, i+1, TC("n="+i));
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        // nothing is delivered until requested.
+        assertEquals(0, c.take().size());
+
+        c.subscription.request(2);
+        Thread.sleep(200);
+        ArrayList<RBBEventChange> got = c.take();
+        assertEquals(2, got.size());
+        assertEquals(0.0, got.get(0).event.getStart(), 0.0);
+
+        c.subscription.request(10);
+        Thread.sleep(200);
+        got = c.take();
+        assertEquals(3, got.size());
+        assertEquals(4.0, got.get(2).event.getStart(), 0.0);
+
+        // the rest of the demand is used by new changes.
+        new Event(rbb.db(), 9, 10, TC("n=9"));
+        Thread.sleep(1000);
+        assertEquals(1, c.take().size());
+
+        // a non-positive request is an error.
+        c.subscription.request(0);
+        Thread.sleep(200);
+        assertTrue(c.error instanceof IllegalArgumentException);
+
+        rbb.disconnect();
+    }
+
+    /**
+     * A Subscriber that requests nothing while its BLOCK queue is full is eventually given up on.
+     */
+    @Test
+    public void testStalledSubscriber() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        final long blockTimeout = H2EventQueue.getBlockTimeoutMillis();
+        try {
+            H2EventQueue.setBlockTimeoutMillis(500);
+            Collector<RBBEventChange> c = new Collector<RBBEventChange>();
+            rbb.changes(byTags("n")).buffer(2, H2EventQueue.OverflowPolicy.BLOCK).subscribe(c);
+            Thread.sleep(500); // let the server read the request.
+
+            for(int i = 0; i < 4; ++i)
+                new Event(rbb.db(), i, i+1, TC("n="+i));
+            Thread.sleep(2000);
+
+            assertTrue(c.error instanceof IllegalStateException);
+        }
+        finally {
+            H2EventQueue.setBlockTimeoutMillis(blockTimeout);
+        }
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testOperators() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        Collector<RBBEventChange> data = new Collector<RBBEventChange>();
+        rbb.changes(byTags("n")).ofType(RBBEventChange.DataAdded.class).conflate(1).subscribe(data);
+
+        Collector<RBBEventChange[]> batches = new Collector<RBBEventChange[]>();
+        rbb.changes(byTags("n")).batch(500).subscribe(batches);
+        batches.subscription.request(Long.MAX_VALUE);
+
+        Thread.sleep(500); // let the server read the requests.
+
+        Timeseries ts = new Timeseries(rbb, 1, 0.0, TC("n=1"));
+        for(int i = 0; i < 10; ++i)
+            ts.add(rbb, i, (float) i);
+        ts.setEnd(rbb.db(), 10.0);
+
+        Thread.sleep(1500);
+
+        // only the latest sample was kept, and the other types of changes were dropped.
+        data.subscription.request(100);
+        Thread.sleep(200);
+        ArrayList<RBBEventChange> got = data.take();
+        assertEquals(1, got.size());
+        assertEquals(9.0f, ((Number) ((RBBEventChange.DataAdded) got.get(0)).data[2]).floatValue(), 0.0f);
+
+        // everything arrived in a few arrays, in order.
+        ArrayList<RBBEventChange> all = new ArrayList<RBBEventChange>();
+        ArrayList<RBBEventChange[]> b = batches.take();
+        assertTrue(b.size() >= 1 && b.size() <= 3);
+        for(RBBEventChange[] a : b)
+            all.addAll(java.util.Arrays.asList(a));
+        assertEquals(12, all.size());
+        assertTrue(all.get(0) instanceof RBBEventChange.Added);
+        assertTrue(all.get(11) instanceof RBBEventChange.Modified);
+
+        // once cancelled, nothing more is received.
+        data.subscription.cancel();
+        batches.subscription.cancel();
+        new Event(rbb.db(), 1.0, 2.0, TC("n=2"));
+        Thread.sleep(1500);
+        data.subscription.request(100);
+        assertEquals(0, data.take().size());
+        assertEquals(0, batches.take().size());
+
+        rbb.disconnect();
+    }
+}
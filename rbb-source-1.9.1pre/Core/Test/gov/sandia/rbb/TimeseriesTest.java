@@ -88,6 +88,46 @@ public class TimeseriesTest {
         assertEquals(5.0, t.getSample(1).getTime(), 1e-8);
     }
 
+    @Test
+    public void testPrimitiveAccessors() throws SQLException {
+        Timeseries t = new Timeseries(0.0, 100.0, TC("n=1"), 2);
+
+        // a sliding window, so dropped samples are reclaimed as the arrays fill.
+        for(int i = 0; i < 100; ++i) {
+            t.add(i, (float) i, (float) -i);
+            t.keepNewest(10);
+        }
+        assertEquals(10, t.getNumSamples());
+        for(int i = 0; i < 10; ++i) {
+            assertEquals(90.0+i, t.getTime(i), 0);
+            assertEquals(t.getSample(i).getTime(), t.getTime(i), 0);
+            assertEquals(-(90.0f+i), t.getValue(i, 1), 0);
+            assertEquals(i, t.binarySearch(90.0+i));
+        }
+        assertEquals(-1, t.binarySearch(89.5));
+        assertEquals(-2, t.binarySearch(90.5));
+        assertEquals(-11, t.binarySearch(99.5));
+
+        // the allocation-free versions give the same results as those returning Float[]
+        float[] x = new float[2];
+        for(double time = 85.0; time < 101.0; time += 0.25) {
+            Float[] expected = t.extrapolateValueLinear(time);
+            t.extrapolateValueLinear(time, x);
+            assertEquals(expected[0], x[0], 0);
+            assertEquals(expected[1], x[1], 0);
+            expected = t.valuePrev(time);
+            t.valuePrev(time, x);
+            assertEquals(expected[0], x[0], 0);
+            assertEquals(expected[1], x[1], 0);
+            assertEquals(t.valueLinear(time) != null, t.valueLinear(time, x));
+        }
+
+        // Samples returned for compatibility are copies, in time order.
+        Sample[] samples = t.getSamples(92.0, 94.0);
+        assertEquals(3, samples.length);
+        assertEquals(new Sample(93.0, new Float[]{ 93.0f, -93.0f }), samples[1]);
+    }
+
     @Test
     public void testGet() throws SQLException {
         final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
@@ -348,4 +388,54 @@ public class TimeseriesTest {
         rbb.disconnect();
     }
 
+    @Test
+    public void testLoadAllSamplesBulk() throws SQLException {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // more Timeseries than are read in one query, in tables for different dimensions,
+        // plus a chunked Timeseries, an empty one, and an Event that isn't a Timeseries.
+        for(int i = 0; i < 300; ++i) {
+            Timeseries ts = new Timeseries(rbb, 1+i%2, 0.0, TC("n="+i));
+            for(int j = 0; j < i%5; ++j) {
+                if(ts.getDim() == 1)
+                    ts.add(rbb, j, (float) i);
+                else
+                    ts.add(rbb, j, (float) i, (float) j);
+            }
+        }
+        final long chunked = H2STimeseries.start(rbb.db(), 2, 0.0, "n=chunked", true);
+        for(int j = 0; j < 3; ++j)
+            H2STimeseries.addSampleByID(rbb.db(), chunked, j, new Float[]{ (float) j, 0.0f }, null, null);
+        new Event(rbb.db(), 0.0, 1.0, TC("n=event"));
+
+        Timeseries[] bulk = Timeseries.findWithSamples(rbb.db(), byTags("n"));
+        assertEquals(301, bulk.length);
+
+        Timeseries[] separate = Timeseries.findWithoutSamples(rbb.db(), byTags("n"));
+        for(Timeseries ts : separate)
+            ts.loadAllSamples(rbb.db());
+
+        int numSamples = 0;
+        for(int i = 0; i < bulk.length; ++i) {
+            assertEquals(separate[i].getID(), bulk[i].getID());
+            assertEquals(separate[i].getDim(), bulk[i].getDim());
+            assertArrayEquals(separate[i].getSamples(), bulk[i].getSamples());
+            numSamples += bulk[i].getNumSamples();
+            if(bulk[i].getID() == chunked)
+                assertEquals(3, bulk[i].getNumSamples());
+        }
+        assertEquals(60*(0+1+2+3+4)+3, numSamples);
+
+        // the same Timeseries twice.
+        Timeseries a = Timeseries.getByIDWithoutSamples(rbb.db(), chunked);
+        Timeseries b = Timeseries.getByIDWithoutSamples(rbb.db(), chunked);
+        Timeseries.loadAllSamples(rbb.db(), a, b);
+        assertEquals(3, a.getNumSamples());
+        assertArrayEquals(a.getSamples(), b.getSamples());
+
+        rbb.disconnect();
+    }
 }
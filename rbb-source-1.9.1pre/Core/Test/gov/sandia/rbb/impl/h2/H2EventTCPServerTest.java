@@ -2,10 +2,21 @@ package gov.sandia.rbb.impl.h2;
 
 import gov.sandia.rbb.Event;
 import gov.sandia.rbb.RBB;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBEventListener;
 import gov.sandia.rbb.Tagset;
+import gov.sandia.rbb.Timeseries;
 import static gov.sandia.rbb.Tagset.TC;
+import static gov.sandia.rbb.RBBFilter.*;
+import gov.sandia.rbb.impl.h2.statics.H2SEvent;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.net.ServerSocket;
+import java.net.Socket;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -44,4 +55,410 @@ public class H2EventTCPServerTest {
         rbb3.disconnect();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testManyClients() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        final int numClients = 50;
+        EventCounter[] counters = new EventCounter[numClients];
+        for(int i = 0; i < numClients; ++i)
+            counters[i] = new EventCounter(rbb, true, TC("n="+(i%2)));
+
+        // a client speaking the text protocol directly, ending its request with CRLF as telnet would.
+        final int port = H2SRBB.startEventTCPServer(rbb.db());
+        Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write("n=1\r\n".getBytes());
+        socket.getOutputStream().flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        Thread.sleep(500); // let the server read all the requests.
+
+        new Event(rbb.db(), 0.0, 1.0, TC("n=0"));
+        new Event(rbb.db(), 0.0, 1.0, TC("n=1"));
+
+        assertTrue(in.readLine().startsWith("Added\t"));
+
+        // no longer has a thread per client.
+        for(Thread t : Thread.getAllStackTraces().keySet())
+            assertFalse(t.getName().startsWith("H2EventTCPServer ClientConnection"));
+
+        // a client disconnecting doesn't bother the others.
+        socket.close();
+        Thread.sleep(200);
+        new Event(rbb.db(), 0.0, 1.0, TC("n=1"));
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        for(int i = 0; i < numClients; ++i)
+            counters[i].assertCMDA(i%2==0 ? 1 : 2, 0, 0, 0);
+
+        rbb.disconnect();
+    }
+
+    /**
+     * A client that stops reading makes the thread modifying the RBB wait (with the default BLOCK policy),
+     * but only until the block timeout, after which the client is disconnected.
+     * Meanwhile other clients are unaffected.
+     */
+    @Test
+    public void testStalledClient() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        final RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        final int port = H2SRBB.startEventTCPServer(rbb.db());
+
+        Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new java.net.InetSocketAddress("localhost", port));
+        stalled.getOutputStream().write((H2EventTCPProtocol.queueRequest + "4 BLOCK\nn\n").getBytes());
+        stalled.getOutputStream().flush();
+        Thread.sleep(500); // let the server read the request.
+
+        // another client that keeps reading.
+        Socket other = new Socket("localhost", port);
+        other.getOutputStream().write("m=1\n".getBytes());
+        other.getOutputStream().flush();
+        Thread.sleep(500);
+
+        // fill up the socket buffers and then the queue.  The writer blocks until
+        // the queue's block timeout, then the stalled client is dropped and the writer continues.
+        final long blockTimeout = H2EventQueue.getBlockTimeoutMillis();
+        final long overruns = H2EventQueue.getOverruns();
+        final StringBuilder pad = new StringBuilder();
+        for(int i = 0; i < 4000; ++i)
+            pad.append('x');
+        try {
+            H2EventQueue.setBlockTimeoutMillis(1000);
+            final long start = System.currentTimeMillis();
+            for(int i = 0; i < 2000; ++i)
+                new Event(rbb.db(), 0.0, 1.0, TC("n="+i+",pad="+pad));
+            assertTrue(System.currentTimeMillis() - start < 30000);
+        }
+        finally {
+            H2EventQueue.setBlockTimeoutMillis(blockTimeout);
+        }
+        assertEquals(overruns+1, H2EventQueue.getOverruns());
+
+        // the stalled client finds it has been disconnected once it reads what was sent before.
+        stalled.setSoTimeout(5000);
+        java.io.InputStream stalledIn = stalled.getInputStream();
+        byte[] buf = new byte[65536];
+        while(stalledIn.read(buf) >= 0)
+            ;
+        stalled.close();
+
+        // and the other client gets changes.
+        new Event(rbb.db(), 0.0, 1.0, TC("m=1"));
+        other.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream()));
+        assertTrue(in.readLine().startsWith("Added\t"));
+
+        other.close();
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        RBBEventListener.Accumulator binary = new RBBEventListener.Accumulator();
+        H2EventTCPClient binaryClient = new H2EventTCPClient(rbb, binary, byTags("n=1"));
+        binaryClient.start();
+
+        RBBEventListener.Accumulator text = new RBBEventListener.Accumulator();
+        H2EventTCPClient textClient = new H2EventTCPClient(rbb, text, byTags("n=1"));
+        textClient.binaryProtocol = false;
+        textClient.start();
+
+        Thread.sleep(500); // let the server read the requests.
+
+        Timeseries ts = new Timeseries(rbb, 2, 0.0, TC("n=1,name=x y"));
+        ts.add(rbb, 1.5, 2.5f, -3.25f);
+        ts.add(rbb, 2.5, Float.NaN, 1e-7f);
+        H2SEvent.addTagsByID(rbb.db(), ts.getID(), "color=red");
+        H2SEvent.deleteByID(rbb.db(), ts.getID());
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        RBBEventChange[] b = binary.getEventChanges();
+        RBBEventChange[] t = text.getEventChanges();
+        assertEquals(5, b.length);
+        assertEquals(t.length, b.length);
+        for(int i = 0; i < b.length; ++i) {
+            assertEquals(t[i].getClass(), b[i].getClass());
+            assertEquals(t[i].event.getID(), b[i].event.getID());
+            assertEquals(t[i].event.getTagset(), b[i].event.getTagset());
+        }
+        assertTrue(((RBBEventChange.Added) b[0]).wasCreated);
+        assertEquals("red", b[3].event.getTagset().getValue("color"));
+        assertTrue(((RBBEventChange.Removed) b[4]).wasDeleted);
+
+        // the binary protocol delivers the samples with their original types.
+        RBBEventChange.DataAdded d = (RBBEventChange.DataAdded) b[2];
+        assertEquals(ts.getID(), d.data[0]);
+        assertEquals(2.5, d.data[1]);
+        assertTrue(Float.isNaN((Float) d.data[2]));
+        assertEquals(1e-7f, d.data[3]);
+        assertArrayEquals(H2STimeseries.getSampleFromRow(((RBBEventChange.DataAdded) t[1]).data),
+            H2STimeseries.getSampleFromRow(((RBBEventChange.DataAdded) b[1]).data));
+
+        // each client has a queue in the server.
+        java.sql.ResultSet rs = H2SRBB.getEventQueueStats(rbb.db());
+        for(int i = 0; i < 2; ++i) {
+            assertTrue(rs.next());
+            assertTrue(rs.getString("NAME").startsWith("TCP "));
+            assertEquals(5, rs.getLong("DELIVERED"));
+            assertEquals(0, rs.getLong("DROPPED"));
+        }
+        assertFalse(rs.next());
+
+        binaryClient.close();
+        textClient.close();
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testServerWithoutBinaryProtocol() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        assertEquals(H2EventTCPProtocol.version, H2SRBB.getEventTCPProtocolVersion(rbb.db()));
+
+        // an RBB created before the binary protocol has no way to ask for the version...
+        rbb.db().createStatement().execute("drop alias RBB_EVENT_TCP_PROTOCOL_VERSION");
+        assertEquals(0, H2SRBB.getEventTCPProtocolVersion(rbb.db()));
+
+        // ...so the client sends only the filter line, as the server would expect.
+        RBBEventListener.Accumulator text = new RBBEventListener.Accumulator();
+        H2EventTCPClient client = new H2EventTCPClient(rbb, text, byTags("n=1"));
+        client.start();
+
+        Thread.sleep(500); // let the server read the request.
+
+        new Event(rbb.db(), 0.0, 1.0, TC("n=1"));
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        RBBEventChange[] t = text.getEventChanges();
+        assertEquals(1, t.length);
+        assertTrue(t[0] instanceof RBBEventChange.Added);
+
+        client.close();
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testServerWithoutMultiplexing() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        rbb.db().createStatement().execute("drop alias RBB_EVENT_TCP_PROTOCOL_VERSION");
+        assertFalse(H2EventTCPMultiplexClient.isSupported(rbb));
+
+        // each listener gets its own connection instead of receiving nothing.
+        RBBEventListener.Accumulator one = new RBBEventListener.Accumulator();
+        RBBEventListener.Accumulator two = new RBBEventListener.Accumulator();
+        rbb.addEventListener(one, byTags("n=1"));
+        rbb.addEventListener(two, byTags("n"), java.util.concurrent.Executors.newSingleThreadExecutor());
+
+        try {
+            rbb.addEventListener(new RBBEventListener.Accumulator(), byTags("n"), 0L);
+            fail("resuming requires multiplexing");
+        }
+        catch(java.sql.SQLException e) {
+        }
+
+        Thread.sleep(500); // let the server read the requests.
+
+        new Event(rbb.db(), 0.0, 1.0, TC("n=1"));
+        new Event(rbb.db(), 0.0, 1.0, TC("n=2"));
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        assertEquals(1, one.getEventChanges().length);
+        assertEquals(2, two.getEventChanges().length);
+
+        rbb.removeEventListener(one);
+        rbb.removeEventListener(two);
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testMultiplexedListeners() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        RBBEventListener.Accumulator one = new RBBEventListener.Accumulator();
+        RBBEventListener.Accumulator two = new RBBEventListener.Accumulator();
+        RBBEventListener.Accumulator any = new RBBEventListener.Accumulator();
+        rbb.addEventListener(one, byTags("n=1"));
+        rbb.addEventListener(two, byTags("n=2"));
+        rbb.addEventListener(any, byTags("n"));
+
+        Thread.sleep(500); // let the server read the requests.
+
+        Event e1 = new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+        Event e2 = new Event(rbb.db(), 1.0, 2.0, TC("n=2"));
+        // an update can be a different type of change for different subscriptions.
+        H2SEvent.setTagsByID(rbb.db(), e1.getID(), "n=2");
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        RBBEventChange[] c = one.getEventChanges();
+        assertEquals(2, c.length);
+        assertTrue(c[0] instanceof RBBEventChange.Added);
+        assertTrue(c[1] instanceof RBBEventChange.Removed);
+        assertEquals(e1.getID(), c[1].event.getID());
+
+        c = two.getEventChanges();
+        assertEquals(2, c.length);
+        assertEquals(e2.getID(), c[0].event.getID());
+        assertTrue(c[1] instanceof RBBEventChange.Added);
+        assertEquals(e1.getID(), c[1].event.getID());
+
+        c = any.getEventChanges();
+        assertEquals(3, c.length);
+        assertTrue(c[2] instanceof RBBEventChange.Modified);
+
+        // all the listeners share one connection, and each change was queued once;
+        // the update to e1 went out once for Removed and once for Added/Modified.
+        java.sql.ResultSet rs = H2SRBB.getEventQueueStats(rbb.db());
+        assertTrue(rs.next());
+        assertTrue(rs.getString("NAME").endsWith("multiplexed"));
+        assertEquals(5, rs.getLong("DELIVERED"));
+        assertFalse(rs.next());
+
+        // removing a listener removes only its subscriptions.
+        rbb.removeEventListener(one);
+        new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+        Thread.sleep(1000);
+        assertEquals(0, one.getEventChanges().length);
+        assertEquals(1, any.getEventChanges().length);
+
+        rbb.removeEventListener(two);
+        rbb.removeEventListener(any);
+
+        // once the last listener is removed, the connection is closed.
+        Thread.sleep(500);
+        assertFalse(H2SRBB.getEventQueueStats(rbb.db()).next());
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testExecutors() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // the thread reading from the server runs on one executor, and a listener is notified by another.
+        final java.util.concurrent.ExecutorService readers = java.util.concurrent.Executors.newCachedThreadPool();
+        final java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+        H2EventTCPClient.setReaderExecutor(readers);
+        try {
+            final java.util.Set<Thread> threads = java.util.Collections.synchronizedSet(new java.util.HashSet<Thread>());
+            RBBEventListener.Accumulator onPool = new RBBEventListener.Accumulator() {
+                @Override public void eventChanged(RBB rbb, RBBEventChange ec) {
+                    threads.add(Thread.currentThread());
+                    super.eventChanged(rbb, ec);
+                }
+            };
+            RBBEventListener.Accumulator onReader = new RBBEventListener.Accumulator();
+            rbb.addEventListener(onPool, byTags("n"), pool);
+            rbb.addEventListener(onReader, byTags("n=1"));
+
+            Thread.sleep(500); // let the server read the requests.
+
+            for(int i = 0; i < 10; ++i)
+                new Event(rbb.db(), i, i+1, TC("n="+(i%2)));
+
+            Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+            // the changes arrive in order.
+            RBBEventChange[] c = onPool.getEventChanges();
+            assertEquals(10, c.length);
+            for(int i = 0; i < c.length; ++i)
+                assertEquals(i, c[i].event.getStart(), 0.0);
+            assertEquals(5, onReader.getEventChanges().length);
+
+            for(Thread t : threads)
+                assertTrue(t.getName().startsWith("pool"));
+
+            rbb.removeEventListener(onPool);
+            new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+            Thread.sleep(1000);
+            assertEquals(0, onPool.getEventChanges().length);
+            assertEquals(1, onReader.getEventChanges().length);
+
+            rbb.removeEventListener(onReader);
+        }
+        finally {
+            H2EventTCPClient.setReaderExecutor(null);
+            pool.shutdown();
+            readers.shutdown();
+        }
+        // the reader ends once its connection is closed.
+        assertTrue(readers.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS));
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testBinaryBatch() throws Exception {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        Timeseries ts = new Timeseries(rbb, 1, 0.0, TC("n=1"));
+
+        final java.util.List<RBBEventChange.DataBatchAdded> batches = new java.util.ArrayList<RBBEventChange.DataBatchAdded>();
+        RBBEventListener.Accumulator binary = new RBBEventListener.Accumulator() {
+            @Override public synchronized void eventDataBatchAdded(RBB rbb, RBBEventChange.DataBatchAdded ec) {
+                batches.add(ec);
+            }
+        };
+        H2EventTCPClient binaryClient = new H2EventTCPClient(rbb, binary, byTags("n=1"));
+        binaryClient.start();
+
+        // the text protocol sends a line per row, so the batch arrives unrolled.
+        RBBEventListener.Accumulator text = new RBBEventListener.Accumulator();
+        H2EventTCPClient textClient = new H2EventTCPClient(rbb, text, byTags("n=1"));
+        textClient.binaryProtocol = false;
+        textClient.start();
+
+        Thread.sleep(500); // let the server read the requests.
+
+        H2STimeseries.addSamples(rbb.db(), new long[]{ ts.getID(), ts.getID(), ts.getID() },
+            new double[]{ 1, 2, 3 }, new float[][]{ {1f}, {2f}, {3f} });
+
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+
+        synchronized(binary) {
+            assertEquals(1, batches.size());
+            assertEquals(ts.getID(), batches.get(0).event.getID());
+            assertEquals(3, batches.get(0).rows.length);
+            assertEquals(3f, batches.get(0).rows[2][2]);
+        }
+        RBBEventChange[] t = text.getEventChanges();
+        assertEquals(3, t.length);
+        for(RBBEventChange c : t)
+            assertTrue(c instanceof RBBEventChange.DataAdded);
+
+        binaryClient.close();
+        textClient.close();
+        rbb.disconnect();
+    }
+
+}
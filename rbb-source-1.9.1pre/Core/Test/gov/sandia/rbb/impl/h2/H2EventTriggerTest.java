@@ -9,9 +9,11 @@ import static org.junit.Assert.*;
 import gov.sandia.rbb.*;
 import static gov.sandia.rbb.Tagset.TC;
 import gov.sandia.rbb.impl.h2.statics.H2SEvent;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
 import gov.sandia.rbb.impl.h2.statics.H2STagset;
 import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
 import static gov.sandia.rbb.RBBFilter.*;
+import java.sql.ResultSet;
 
 /**
  *
@@ -132,6 +134,377 @@ public class H2EventTriggerTest {
 
         rbb.disconnect();
     }
+
+    @Test
+    public void testBatchedDataListener()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        Timeseries A = new Timeseries(rbb, 1, 0, TC("tag=A"));
+        Timeseries B = new Timeseries(rbb, 1, 0, TC("tag=B"));
+
+        // an ordinary listener gets a DataAdded for each row of a batch.
+        RBBEventListener.Accumulator unrolled = new RBBEventListener.Accumulator();
+        rbb.addLocalEventListener(unrolled, byTags("tag"));
+
+        // a listener that handles batches gets one per timeseries.
+        final java.util.List<RBBEventChange.DataBatchAdded> batches = new java.util.ArrayList<RBBEventChange.DataBatchAdded>();
+        RBBEventListener.Accumulator batched = new RBBEventListener.Accumulator() {
+            @Override public void eventDataBatchAdded(RBB rbb, RBBEventChange.DataBatchAdded ec) {
+                batches.add(ec);
+            }
+        };
+        rbb.addLocalEventListener(batched, byTags("tag"));
+
+        H2STimeseries.addSamples(rbb.db(), new long[]{ A.getID(), B.getID(), A.getID() },
+            new double[]{ 1, 1, 2 }, new float[][]{ {10f}, {20f}, {11f} });
+
+        RBBEventChange[] changes = unrolled.getEventChanges();
+        assertEquals(3, changes.length);
+        for(RBBEventChange c : changes)
+            assertTrue(c instanceof RBBEventChange.DataAdded);
+
+        // a batch of one row is sent as an ordinary DataAdded.
+        changes = batched.getEventChanges();
+        assertEquals(1, changes.length);
+        assertEquals(B.getID(), changes[0].event.getID());
+        assertEquals(1, batches.size());
+        assertEquals(A.getID(), batches.get(0).event.getID());
+        assertEquals(2, batches.get(0).rows.length);
+        assertEquals(11f, H2STimeseries.getSampleFromRow(batches.get(0).rows[1])[0], 0.0f);
+
+        // samples added one at a time are not batched.
+        A.add(rbb, 3, 12f);
+        assertEquals(1, batched.getEventChanges().length);
+        assertEquals(1, batches.size());
+
+        // nor are samples added to a chunked timeseries one at a time...
+        final long C = H2STimeseries.start(rbb.db(), 1, 0.0, "tag=C", true);
+        batched.getEventChanges();
+        H2STimeseries.addSampleByID(rbb.db(), C, 1.0, new Object[]{ 1f }, null, null);
+        assertEquals(1, batched.getEventChanges().length);
+
+        // ...but they are when added together.
+        H2STimeseries.addSamples(rbb.db(), new long[]{ C, C },
+            new double[]{ 2, 3 }, new float[][]{ {2f}, {3f} });
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(1).rows.length);
+        assertEquals(C, batches.get(1).rows[0][0]);
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testEventDataOwnerCache()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        RBBEventListener.Accumulator listener = new RBBEventListener.Accumulator();
+        rbb.addLocalEventListener(listener, byTags("tag=A"));
+
+        Timeseries A = new Timeseries(rbb, 1, 0, new Tagset("tag=A"));
+        A.add(rbb, 1, 1.0f);
+        A.add(rbb, 2, 2.0f);
+        RBBEventChange[] changes = listener.getEventChanges();
+        assertEquals(3, changes.length); // Added, DataAdded, DataAdded
+        assertTrue(changes[1] instanceof RBBEventChange.DataAdded);
+        assertTrue(changes[2] instanceof RBBEventChange.DataAdded);
+        // the second sample didn't need to retrieve the Event again.
+        assertSame(changes[1].event, changes[2].event);
+
+        // modifying the Event must be reflected in subsequent DataAdded notifications.
+        H2SEvent.addTagsByID(rbb.db(), A.getID(), "color=red");
+        A.add(rbb, 3, 3.0f);
+        changes = listener.getEventChanges();
+        assertEquals(2, changes.length); // Modified, DataAdded
+        assertTrue(changes[1] instanceof RBBEventChange.DataAdded);
+        assertEquals("red", changes[1].event.getTagset().getValue("color"));
+
+        H2SEvent.setEndByID(rbb.db(), A.getID(), 10.0);
+        A.add(rbb, 4, 4.0f);
+        changes = listener.getEventChanges();
+        assertEquals(2, changes.length);
+        assertEquals(10.0, changes[1].event.getEnd(), 1e-6);
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testIndexedDispatch()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        long preexisting = H2SEvent.create(rbb.db(), 0, 1, "a=1");
+
+        // filters exercising each way of indexing the listeners.
+        RBBFilter[] filters = new RBBFilter[] {
+            new RBBFilter(),
+            byTags("a=1"),
+            byTags("a"), // name only
+            byTags("a,b=2"),
+            byTags("a=1,b=2"),
+            byTags("a=2;b=2"), // disjunction
+            byTags("c=3"), // no such Event
+            byID(preexisting),
+            new RBBFilter(byTags("b=2"), byTime(0.0, 2.5)),
+        };
+        RBBEventListener.Accumulator[] listeners = new RBBEventListener.Accumulator[filters.length];
+        for(int i = 0; i < filters.length; ++i) {
+            listeners[i] = new RBBEventListener.Accumulator();
+            rbb.addLocalEventListener(listeners[i], filters[i]);
+        }
+
+        String[] tags = { "a=1", "a=2", "b=2", "a=1,b=2", "a=2,b=2", "a=1,a=2,b=1", "x=1" };
+        for(int i = 0; i < tags.length; ++i)
+            H2SEvent.create(rbb.db(), i, i+1, tags[i]);
+
+        // each listener was notified of the creation of exactly the Events matching its filter.
+        for(int i = 0; i < filters.length; ++i) {
+            java.util.Set<Long> expected = new java.util.HashSet<Long>();
+            for(Event e : Event.find(rbb.db(), filters[i]))
+                if(e.getID() != preexisting)
+                    expected.add(e.getID());
+            java.util.Set<Long> notified = new java.util.HashSet<Long>();
+            for(RBBEventChange c : listeners[i].getEventChanges()) {
+                assertTrue(c instanceof RBBEventChange.Added);
+                notified.add(c.event.getID());
+            }
+            assertEquals(filters[i].toString(), expected, notified);
+        }
+
+        // changing the tags of an Event is seen as Added or Removed by the listeners whose interest changed.
+        H2SEvent.setTagsByID(rbb.db(), preexisting, "a=2");
+        assertTrue(listeners[0].getEventChanges()[0] instanceof RBBEventChange.Modified);
+        assertTrue(listeners[1].getEventChanges()[0] instanceof RBBEventChange.Removed);
+        assertTrue(listeners[2].getEventChanges()[0] instanceof RBBEventChange.Modified);
+        assertEquals(0, listeners[3].getEventChanges().length);
+        assertTrue(listeners[5].getEventChanges()[0] instanceof RBBEventChange.Added);
+        assertTrue(listeners[7].getEventChanges()[0] instanceof RBBEventChange.Modified);
+
+        // bySchema needn't look up the attachments of an Event to which data was just added.
+        RBBEventListener.Accumulator schemaListener = new RBBEventListener.Accumulator();
+        rbb.addLocalEventListener(schemaListener, bySchema("RBB_TIMESERIES"));
+        Timeseries ts = new Timeseries(rbb, 1, 0, new Tagset("d=4"));
+        ts.add(rbb, 1, 1.0f);
+        RBBEventChange[] changes = schemaListener.getEventChanges();
+        assertEquals(2, changes.length);
+        assertTrue(changes[0] instanceof RBBEventChange.Added);
+        assertTrue(changes[1] instanceof RBBEventChange.DataAdded);
+
+        // removing a listener removes it from the index.
+        rbb.removeLocalEventListener(listeners[1]);
+        H2SEvent.create(rbb.db(), 0, 1, "a=1");
+        assertEquals(0, listeners[1].getEventChanges().length);
+        assertEquals(1, listeners[2].getEventChanges().length);
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testAsyncListener()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // the listener won't return until released, so if it were called synchronously the inserts would never finish.
+        SlowListener listener = new SlowListener();
+        rbb.addLocalEventListener(listener, byTags("type=async"), true);
+
+        final int numSamples = 100;
+        Timeseries[] ts = new Timeseries[3];
+        for(int i = 0; i < ts.length; ++i)
+            ts[i] = new Timeseries(rbb, 1, 0, new Tagset("type=async,i="+i));
+        for(int j = 0; j < numSamples; ++j)
+            for(int i = 0; i < ts.length; ++i)
+                ts[i].add(rbb, j, (float) j);
+        assertEquals(0, listener.getEventChanges().length);
+
+        listener.release.countDown();
+        rbb.flushLocalEventListeners();
+
+        // every change was delivered, and those to each Event in order.
+        RBBEventChange[] changes = listener.getEventChanges();
+        assertEquals(ts.length * (numSamples+1), changes.length);
+        java.util.Map<Long, Integer> next = new java.util.HashMap<Long, Integer>();
+        for(RBBEventChange c : changes) {
+            Integer n = next.get(c.event.getID());
+            if(n == null) {
+                assertTrue(c instanceof RBBEventChange.Added);
+                n = 0;
+            }
+            else {
+                assertEquals(n.doubleValue(), H2STimeseries.getTimeFromRow(((RBBEventChange.DataAdded) c).data), 0);
+                ++n;
+            }
+            next.put(c.event.getID(), n);
+        }
+        assertEquals(ts.length, next.size());
+
+        rbb.removeLocalEventListener(listener);
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testAsyncListenerOverflow()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        // more changes to one Event than a dispatcher ring holds, while the listener is stalled on the first.
+        final int numChanges = 70000;
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        final java.util.List<Double> received = new java.util.ArrayList<Double>();
+        final java.util.concurrent.atomic.AtomicInteger active = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.atomic.AtomicBoolean wrong = new java.util.concurrent.atomic.AtomicBoolean();
+        RBBEventListener listener = new RBBEventListener.Adapter() {
+            @Override public void eventChanged(RBB rbb, RBBEventChange eventChange) {
+                if(active.incrementAndGet() != 1 || !Thread.currentThread().getName().startsWith("H2EventDispatcher"))
+                    wrong.set(true);
+                if(received.isEmpty()) {
+                    started.countDown();
+                    try {
+                        release.await(10, java.util.concurrent.TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                    }
+                }
+                received.add(eventChange.event.getStart());
+                active.decrementAndGet();
+            }
+        };
+
+        final Tagset tags = new Tagset("type=overflow");
+        H2EventDispatcher.publish(null, listener, new RBBEventChange.Modified(new Event(1L, 0.0, 0.0, tags)));
+        assertTrue(started.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        // none of these may wait for the stalled listener, or deliver in this thread.
+        for(int i = 1; i < numChanges; ++i)
+            H2EventDispatcher.publish(null, listener, new RBBEventChange.Modified(new Event(1L, (double) i, (double) i, tags)));
+
+        release.countDown();
+        H2EventDispatcher.flush();
+
+        assertFalse(wrong.get());
+        assertEquals(numChanges, received.size());
+        for(int i = 0; i < numChanges; ++i)
+            assertEquals(i, received.get(i), 0);
+    }
+
+    /**
+     * A listener that waits to be released before handling its first change.
+     */
+    static class SlowListener extends RBBEventListener.Accumulator {
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        @Override public void eventChanged(RBB rbb, RBBEventChange eventChange) {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+            }
+            super.eventChanged(rbb, eventChange);
+        }
+    }
+
+    private static RBBEventChange[] waitForChanges(RBBEventListener.Accumulator listener, int n) throws Exception {
+        java.util.ArrayList<RBBEventChange> changes = new java.util.ArrayList<RBBEventChange>();
+        for(int i = 0; i < 100 && changes.size() < n; ++i) {
+            changes.addAll(java.util.Arrays.asList(listener.getEventChanges()));
+            if(changes.size() < n)
+                Thread.sleep(20);
+        }
+        return changes.toArray(new RBBEventChange[0]);
+    }
+
+    @Test
+    public void testQueuedListener()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // DROP_OLDEST
+        SlowListener dropper = new SlowListener();
+        rbb.addLocalEventListener(dropper, byTags("type=drop"), 3, H2EventQueue.OverflowPolicy.DROP_OLDEST);
+        long[] ids = new long[10];
+        for(int i = 0; i < ids.length; ++i) {
+            ids[i] = H2SEvent.create(rbb.db(), i, i+1, "type=drop,i="+i);
+            if(i == 0)
+                dropper.started.await(); // so the dispatcher takes the first change before the rest are queued.
+        }
+        // the modifying thread wasn't held up by the listener, which is still waiting on its first change.
+        dropper.release.countDown();
+        RBBEventChange[] changes = waitForChanges(dropper, 4);
+        assertEquals(4, changes.length);
+        assertEquals(ids[0], changes[0].event.getID().longValue()); // the dispatcher already had this one
+        for(int i = 1; i < 4; ++i)
+            assertEquals(ids[i+6], changes[i].event.getID().longValue()); // then the 3 most recent.
+
+        // COALESCE
+        SlowListener coalescer = new SlowListener();
+        rbb.addLocalEventListener(coalescer, byTags("type=ts"), 3, H2EventQueue.OverflowPolicy.COALESCE);
+        Timeseries ts = new Timeseries(rbb, 1, 0, new Tagset("type=ts"));
+        coalescer.started.await();
+        for(int i = 0; i < 10; ++i)
+            ts.add(rbb, i, (float) i);
+
+        // check the counters, through SQL.
+        ResultSet rs = H2SRBB.getEventQueueStats(rbb.db());
+        int numQueues = 0;
+        while(rs.next()) {
+            ++numQueues;
+            if(rs.getString("NAME").contains("type=drop")) {
+                assertEquals("DROP_OLDEST", rs.getString("POLICY"));
+                assertEquals(6, rs.getLong("DROPPED"));
+                assertEquals(0, rs.getInt("DEPTH"));
+                assertEquals(4, rs.getLong("DELIVERED"));
+            }
+            else {
+                assertEquals("COALESCE", rs.getString("POLICY"));
+                assertEquals(3, rs.getInt("CAPACITY"));
+                assertEquals(3, rs.getInt("DEPTH"));
+                assertEquals(7, rs.getLong("COALESCED"));
+                assertEquals(0, rs.getLong("BLOCKED"));
+                assertTrue(rs.getDouble("LAG_MS") > 0);
+            }
+        }
+        assertEquals(2, numQueues);
+
+        coalescer.release.countDown();
+        changes = waitForChanges(coalescer, 4);
+        assertEquals(4, changes.length);
+        assertTrue(changes[0] instanceof RBBEventChange.Added);
+        // samples 0, 1 and 2 filled the queue, then the later ones replaced the latest.
+        assertEquals(0.0, H2STimeseries.getTimeFromRow(((RBBEventChange.DataAdded) changes[1]).data), 0);
+        assertEquals(1.0, H2STimeseries.getTimeFromRow(((RBBEventChange.DataAdded) changes[2]).data), 0);
+        assertEquals(9.0, H2STimeseries.getTimeFromRow(((RBBEventChange.DataAdded) changes[3]).data), 0);
+
+        // removing the listeners removes their queues.
+        rbb.removeLocalEventListener(dropper);
+        rbb.removeLocalEventListener(coalescer);
+        assertFalse(H2SRBB.getEventQueueStats(rbb.db()).next());
+
+        rbb.disconnect();
+    }
 }
 
 
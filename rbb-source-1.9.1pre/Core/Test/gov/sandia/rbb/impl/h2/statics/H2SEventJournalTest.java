@@ -0,0 +1,186 @@
+package gov.sandia.rbb.impl.h2.statics;
+
+import gov.sandia.rbb.Event;
+import gov.sandia.rbb.RBB;
+import gov.sandia.rbb.RBBEventChange;
+import gov.sandia.rbb.RBBEventListener;
+import gov.sandia.rbb.Timeseries;
+import static gov.sandia.rbb.Tagset.TC;
+import static gov.sandia.rbb.RBBFilter.*;
+import java.sql.SQLException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rgabbot
+ */
+public class H2SEventJournalTest
+{
+    @Test
+    public void testGetChanges()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        assertFalse(H2SEventJournal.isEnabled(rbb.db()));
+        try {
+            H2SEventJournal.getChanges(rbb.db(), 0, byTags("n"));
+            fail("getChanges should fail if the journal isn't enabled");
+        }
+        catch(SQLException e) {
+        }
+
+        new Event(rbb.db(), 0.0, 1.0, TC("n=0")); // before the journal was enabled.
+
+        H2SEventJournal.enable(rbb.db(), 100);
+        assertTrue(H2SEventJournal.isEnabled(rbb.db()));
+
+        Event e1 = new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+        Timeseries ts = new Timeseries(rbb, 1, 3.0, TC("n=2"));
+        ts.add(rbb, 3.0, 1.0f);
+        ts.add(rbb, 4.0, 2.0f);
+        H2SEvent.setTagsByID(rbb.db(), e1.getID(), "n=2");
+        H2SEvent.deleteByID(rbb.db(), e1.getID());
+
+        RBBEventChange[] c = H2SEventJournal.getChanges(rbb.db(), 0, byTags("n=1"));
+        assertEquals(2, c.length);
+        assertTrue(c[0] instanceof RBBEventChange.Added);
+        assertTrue(((RBBEventChange.Added) c[0]).wasCreated);
+        assertTrue(c[1] instanceof RBBEventChange.Removed);
+        assertFalse(((RBBEventChange.Removed) c[1]).wasDeleted); // removed from n=1 by the tag change.
+        assertEquals(e1.getID(), c[1].event.getID());
+
+        c = H2SEventJournal.getChanges(rbb.db(), 0, byTags("n"));
+        assertEquals(6, c.length);
+        assertTrue(c[2] instanceof RBBEventChange.DataAdded);
+        assertEquals(2.0f, ((Number) ((RBBEventChange.DataAdded) c[3]).data[2]).floatValue(), 0.0f);
+        assertTrue(c[4] instanceof RBBEventChange.Modified);
+        assertTrue(((RBBEventChange.Removed) c[5]).wasDeleted);
+        for(int i = 1; i < c.length; ++i)
+            assertTrue(c[i].journalSeq > c[i-1].journalSeq);
+        assertEquals(c[5].journalSeq, H2SEventJournal.getLastSeq(rbb.db()));
+
+        // resume after the first 4.
+        RBBEventChange[] rest = H2SEventJournal.getChanges(rbb.db(), c[3].journalSeq, byTags("n"));
+        assertEquals(2, rest.length);
+        assertEquals(c[4].journalSeq, rest[0].journalSeq);
+
+        // nothing new.
+        assertEquals(0, H2SEventJournal.getChanges(rbb.db(), c[5].journalSeq, byTags("n")).length);
+
+        H2SEventJournal.disable(rbb.db());
+        assertFalse(H2SEventJournal.isEnabled(rbb.db()));
+        new Event(rbb.db(), 0.0, 1.0, TC("n=3")); // not recorded.
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testBatchJournalSeq()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        H2SEventJournal.enable(rbb.db(), H2SEventJournal.defaultMaxChanges);
+        Timeseries a = new Timeseries(rbb, 1, 0.0, TC("n=a"));
+        Timeseries b = new Timeseries(rbb, 1, 0.0, TC("n=b"));
+
+        RBBEventListener.Accumulator listener = new RBBEventListener.Accumulator();
+        rbb.addLocalEventListener(listener, byTags("n"));
+        H2STimeseries.addSamples(rbb.db(), new long[]{ a.getID(), b.getID(), a.getID(), b.getID() },
+            new double[]{ 1.0, 1.0, 2.0, 2.0 }, new float[][]{ {1.0f}, {1.0f}, {2.0f}, {2.0f} }, false);
+
+        // each Event's rows carry the journalSeq of the last of its own rows, not the last in the whole batch.
+        // (the Accumulator receives each DataBatchAdded as a DataAdded per row.)
+        RBBEventChange[] c = listener.getEventChanges();
+        assertEquals(4, c.length);
+        for(RBBEventChange change : c) {
+            assertTrue(change instanceof RBBEventChange.DataAdded);
+            RBBEventChange[] journaled = H2SEventJournal.getChanges(rbb.db(), 0, byID(change.event.getID()));
+            assertEquals(journaled[journaled.length-1].journalSeq, change.journalSeq);
+        }
+        assertTrue(c[0].journalSeq < c[3].journalSeq);
+
+        // so resuming from the first Event's still gets the rows of the second.
+        RBBEventChange[] rest = H2SEventJournal.getChanges(rbb.db(), c[0].journalSeq, byID(c[3].event.getID()));
+        assertEquals(2, rest.length);
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testTrim()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        H2SEventJournal.enable(rbb.db(), 10);
+
+        // the oldest changes are trimmed periodically, not necessarily right away.
+        for(int i = 0; i < 1100; ++i)
+            new Event(rbb.db(), i, i, TC("n="+i));
+
+        try {
+            H2SEventJournal.getChanges(rbb.db(), 0, byTags("n"));
+            fail("getChanges should fail if changes were trimmed");
+        }
+        catch(SQLException e) {
+        }
+
+        // the latest 10 are always retained.
+        final long last = H2SEventJournal.getLastSeq(rbb.db());
+        assertEquals(1100, last);
+        assertEquals(10, H2SEventJournal.getChanges(rbb.db(), last-10, byTags("n")).length);
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testResumeListener()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        H2SEventJournal.enable(rbb.db(), H2SEventJournal.defaultMaxChanges);
+
+        RBBEventListener.Accumulator a = new RBBEventListener.Accumulator();
+        rbb.addEventListener(a, byTags("n"));
+        Thread.sleep(500); // let the server read the request.
+        new Event(rbb.db(), 1.0, 2.0, TC("n=1"));
+        Thread.sleep(1000); // this tcp-based notification is asynchronous!
+        RBBEventChange[] c = a.getEventChanges();
+        assertEquals(1, c.length);
+        final long lastSeen = c[0].journalSeq;
+        assertTrue(lastSeen > 0);
+
+        // miss some changes while disconnected
+        rbb.removeEventListener(a);
+        Event e2 = new Event(rbb.db(), 2.0, 3.0, TC("n=2"));
+        new Event(rbb.db(), 3.0, 4.0, TC("n=3"));
+
+        rbb.addEventListener(a, byTags("n"), lastSeen);
+        c = a.getEventChanges(); // the missed changes were delivered before addEventListener returned.
+        assertEquals(2, c.length);
+        assertEquals(e2.getID(), c[0].event.getID());
+
+        // then new changes.
+        new Event(rbb.db(), 4.0, 5.0, TC("n=4"));
+        Thread.sleep(1000);
+        c = a.getEventChanges();
+        assertEquals(1, c.length);
+        assertTrue(c[0].journalSeq > lastSeen+2);
+
+        rbb.removeEventListener(a);
+        rbb.disconnect();
+    }
+}
@@ -305,6 +305,100 @@ public class H2SEventTest
         rbb.disconnect();
     }
 
+    @Test
+    public void testIntervalIndex()
+        throws java.sql.SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // events of widely varying durations, including open-ended ones.
+        Random rand = new Random(1);
+        for(int i = 0; i < 300; ++i) {
+            final double start = rand.nextDouble()*1000;
+            final double duration = i % 50 == 0 ? H2SRBB.maxDouble()-start : Math.pow(10, rand.nextInt(5)-1)*rand.nextDouble();
+            H2SEvent.create(rbb.db(), start, start+duration, "n="+i);
+        }
+
+        double[][] windows = new double[100][2];
+        for(double[] w : windows) {
+            w[0] = rand.nextDouble()*1100-50;
+            w[1] = w[0]+rand.nextDouble()*rand.nextDouble()*100;
+        }
+
+        H2SIntervalIndex.enable(rbb.db());
+        assertTrue(H2SIntervalIndex.isEnabled(rbb.db()));
+        Event[] created = Event.find(rbb.db()); // before any changes.
+
+        // the index is updated as events are created, modified, deleted.
+        H2SEvent.create(rbb.db(), 500, 500, "n=zeroLength");
+        created[0].setStart(rbb.db(), 501.0);
+        created[1].setEnd(rbb.db(), created[1].getStart()+2000);
+        H2SEvent.deleteByID(rbb.db(), created[2].getID());
+
+        Event[][] withIndex = new Event[windows.length][];
+        for(int i = 0; i < windows.length; ++i)
+            withIndex[i] = Event.find(rbb.db(), byTime(windows[i][0], windows[i][1]));
+
+        H2SIntervalIndex.disable(rbb.db());
+        assertFalse(H2SIntervalIndex.isEnabled(rbb.db()));
+
+        for(int i = 0; i < windows.length; ++i) {
+            Event[] withoutIndex = Event.find(rbb.db(), byTime(windows[i][0], windows[i][1]));
+            assertEquals(withoutIndex.length, withIndex[i].length);
+            HashSet<Long> ids = new HashSet<Long>();
+            for(Event e : withoutIndex)
+                ids.add(e.getID());
+            for(Event e : withIndex[i])
+                assertTrue(ids.contains(e.getID()));
+        }
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testIntervalIndexRollback()
+        throws java.sql.SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        final long x = H2SEvent.create(rbb.db(), 10, 11, "n=x");
+        final long y = H2SEvent.create(rbb.db(), 20, 21, "n=y");
+        H2SEvent.create(rbb.db(), 30, 31, "n=z");
+
+        H2SIntervalIndex.enable(rbb.db());
+
+        // the trigger moves x in the index, but the change is then rolled back.
+        rbb.db().setAutoCommit(false);
+        rbb.db().createStatement().execute("update RBB_EVENTS set START_TIME=500, END_TIME=501 where ID="+x);
+        rbb.db().rollback();
+
+        // x is found where it was indexed, but RBB_EVENTS disagrees so the index is rebuilt...
+        assertEquals(0, Event.find(rbb.db(), byTime(500.0, 502.0)).length);
+        // ...and from then on x is found where it really is.
+        Event[] found = Event.find(rbb.db(), byTime(10.0, 11.0));
+        assertEquals(1, found.length);
+        assertEquals(x, found[0].getID().longValue());
+
+        // a rolled-back delete leaves fewer Events indexed than in RBB_EVENTS.
+        rbb.db().createStatement().execute("delete from RBB_EVENTS where ID="+y);
+        rbb.db().rollback();
+        rbb.db().setAutoCommit(true);
+
+        found = Event.find(rbb.db(), byTime(20.0, 21.0));
+        assertEquals(1, found.length);
+        assertEquals(y, found[0].getID().longValue());
+
+        assertTrue(H2SIntervalIndex.isEnabled(rbb.db()));
+
+        rbb.disconnect();
+    }
+
     @Test
     public void testFindWithTimeConversion()
         throws java.sql.SQLException
@@ -350,6 +444,72 @@ public class H2SEventTest
         rbb.disconnect();
     }
 
+    @Test
+    public void testFindWithMaterializedTimes()
+        throws java.sql.SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        H2STime.defineCoordinate(rbb.db(), "timeCoordinate=secondsSinceMidnight", 1, 0);
+        H2STime.defineCoordinate(rbb.db(), "timeCoordinate=minAfterHour,hour=1am", 1 / 60.0, -1 * 60);
+
+        Event evt = new Event(rbb.db(), 0, 61, new Tagset("test=x,name=1amTo201am,timeCoordinate=minAfterHour,hour=1am"));
+
+        H2SEventTimes.materialize(rbb.db(), "timeCoordinate=secondsSinceMidnight");
+
+        ResultSet rs = H2SEvent.find(rbb.db(), "test=x", 0.0, 60.0, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(0, countRemainingRows(rs));
+
+        rs = H2SEvent.find(rbb.db(), "test=x", 3610.0, 3611.0, "timeCoordinate=secondsSinceMidnight");
+        assertTrue(rs.next());
+        assertEquals(evt.getID(), rs.getLong(1), 1e-8);
+        assertEquals(3600.0, rs.getDouble(2), 1e-8);
+        assertEquals(7260.0, rs.getDouble(3), 1e-8);
+        assertEquals("hour=1am,name=1amTo201am,test=x,timeCoordinate=secondsSinceMidnight", rs.getString("TAGS"));
+        assertFalse(rs.next());
+
+        // events created after materialization are found, in order of converted start time.
+        new Event(rbb.db(), 0, 1, new Tagset("test=x,timeCoordinate=secondsSinceMidnight"));
+        Event evt3 = new Event(rbb.db(), 59, 60, new Tagset("test=x,timeCoordinate=minAfterHour,hour=1am"));
+        rs = H2SEvent.find(rbb.db(), "test=x", null, null, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(3, countRemainingRows(rs));
+        rs = H2SEvent.find(rbb.db(), "test=x", 3610.0, 3611.0, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(1, countRemainingRows(rs));
+
+        // modified events
+        evt3.setStart(rbb.db(), 0);
+        rs = H2SEvent.find(rbb.db(), "test=x", 3610.0, 3611.0, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(2, countRemainingRows(rs));
+
+        // changing the time coordinate is reflected in the results.
+        H2STime.deleteCoordinates(rbb.db(), "timeCoordinate=minAfterHour");
+        H2STime.defineCoordinate(rbb.db(), "timeCoordinate=minAfterHour,hour=1am", 1 / 60.0, -2 * 60);
+        rs = H2SEvent.find(rbb.db(), "test=x", 7210.0, 7211.0, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(2, countRemainingRows(rs));
+
+        // deleted events
+        H2SEvent.deleteByID(rbb.db(), evt3.getID());
+        rs = H2SEvent.find(rbb.db(), "test=x", 7210.0, 7211.0, "timeCoordinate=secondsSinceMidnight");
+        assertEquals(1, countRemainingRows(rs));
+
+        // an event that can't be converted raises an error just as without materialization.
+        new Event(rbb.db(), 0, 1, new Tagset("test=x,timeCoordinate=minAfterHour"));
+        try {
+            H2SEvent.find(rbb.db(), "test=x", null, null, "timeCoordinate=secondsSinceMidnight");
+            fail("Finding an event whose time can't be converted should have raised an exception.");
+        }
+        catch(SQLException e) {
+        }
+
+        H2SEventTimes.dematerialize(rbb.db(), "timeCoordinate=secondsSinceMidnight");
+        assertNull(H2SEventTimes.findMaterialized(rbb.db(), new Tagset("timeCoordinate=secondsSinceMidnight")));
+
+        rbb.disconnect();
+    }
+
     @Test
     public void testDefineTimeCoordinatesForEventCombinations()
         throws java.sql.SQLException
@@ -788,6 +948,71 @@ public class H2SEventTest
         rbb.disconnect();
     }
 
+    @Test
+    public void testFindConcurrentSweep()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        Random r = new Random(1);
+        for(int i = 0; i < 60; ++i) {
+            final double start = r.nextInt(100);
+            new Event(rbb.db(), start, start + r.nextInt(20), TC("set="+"abc".charAt(r.nextInt(3))+",n="+r.nextInt(3)));
+        }
+        final Long firstA = Event.find(rbb.db(), byTags("set=a"))[0].getID();
+        final Long firstB = Event.find(rbb.db(), byTags("set=b"))[0].getID();
+
+        final Object[][] queries = new Object[][]{
+            { "set=a", "set=b" },
+            { "set=a", "set=b,n=", "set=a;set=c" }, // OR, inherited tag values, and events matching multiple columns
+            { "set=a", "set", "set" },
+        };
+        final Object[][] skips = new Object[][]{ null, { new Object[]{ firstA, firstB }, new Object[]{ firstA } } };
+        final Double[] bounds = new Double[]{ null, 30.0, 60.0 };
+
+        int numResults = 0;
+        for(Object[] query : queries)
+        for(Object[] skip : skips)
+        for(int i = 0; i+1 < bounds.length; ++i) {
+            H2SEvent.setRecursiveFindConcurrent(true);
+            HashSet<String> expected = concurrentResults(H2SEvent.findConcurrent(rbb.db(), query, skip, bounds[i], bounds[i+1], null, null));
+            H2SEvent.setRecursiveFindConcurrent(false);
+            ResultSet rs = H2SEvent.findConcurrent(rbb.db(), query, skip, bounds[i], bounds[i+1], null, null);
+            HashSet<String> actual = concurrentResults(rs);
+            assertEquals(expected, actual);
+            numResults += actual.size();
+
+            // results from the sweep are in order of start time.
+            rs.beforeFirst();
+            double prev = Double.NEGATIVE_INFINITY;
+            while(rs.next()) {
+                assertTrue(rs.getDouble("START_TIME") >= prev);
+                prev = rs.getDouble("START_TIME");
+            }
+        }
+        assertTrue(numResults > 100); // otherwise this isn't much of a test.
+
+        rbb.disconnect();
+    }
+
+    /**
+     * The rows of a findConcurrent result, with the IDs in each row sorted so
+     * the results of different implementations can be compared.
+     * (When Events start at the same time, which permutation is returned is arbitrary.)
+     */
+    private static HashSet<String> concurrentResults(ResultSet rs) throws SQLException {
+        HashSet<String> result = new HashSet<String>();
+        while(rs.next()) {
+            Object[] ids = (Object[]) rs.getArray("IDS").getArray();
+            java.util.Arrays.sort(ids);
+            assertTrue(result.add(rs.getDouble("START_TIME")+" "+rs.getDouble("END_TIME")+" "+java.util.Arrays.toString(ids)));
+        }
+        return result;
+    }
+
     @Test
     public void testFindConcurrentWithOr()
         throws Exception
@@ -128,6 +128,50 @@ public class H2SStringTest
 
 
 
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testCache() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        final Long a = H2SString.toID(rbb.db(), "a"); // miss, then cached by newID
+        final long misses = H2SString.getCacheMisses(rbb.db());
+        final long hits = H2SString.getCacheHits(rbb.db());
+
+        // lookups in both directions are now satisfied without going to RBB_STRINGS.
+        assertEquals(a, H2SString.find(rbb.db(), "a"));
+        assertEquals("a", H2SString.fromID(rbb.db(), a));
+        assertArrayEquals(new String[]{"a", null, "a"}, H2SString.fromIDs(rbb.db(), new Long[]{a, null, a}));
+        assertEquals(misses, H2SString.getCacheMisses(rbb.db()));
+        assertEquals(hits+4, H2SString.getCacheHits(rbb.db()));
+
+        // a different RBB has its own cache, even though string IDs collide.
+        RBB rbb2 = RBB.create("jdbc:h2:mem:"+methodName+"2", null);
+        final Long b = H2SString.toID(rbb2.db(), "b");
+        assertEquals("b", H2SString.fromID(rbb2.db(), b));
+        assertEquals("a", H2SString.fromID(rbb.db(), a));
+        assertNull(H2SString.find(rbb2.db(), "a"));
+
+        // shrinking the cache evicts the least-recently used strings, but they can still be found.
+        final int cacheSize = H2SString.getCacheSize();
+        try {
+            final Long c = H2SString.toID(rbb.db(), "c");
+            H2SString.setCacheSize(1);
+            final long misses2 = H2SString.getCacheMisses(rbb.db());
+            assertEquals(c, H2SString.find(rbb.db(), "c"));
+            assertEquals(misses2, H2SString.getCacheMisses(rbb.db()));
+            assertEquals(a, H2SString.find(rbb.db(), "a"));
+            assertEquals(misses2+1, H2SString.getCacheMisses(rbb.db()));
+        }
+        finally {
+            H2SString.setCacheSize(cacheSize);
+        }
+
+        rbb2.disconnect();
         rbb.disconnect();
     }
 }
@@ -252,6 +252,93 @@ public class H2STagsetTest
 
     }
 
+    private static Set<Long> hasTags(RBB rbb, String tags) throws SQLException {
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(rbb.db());
+        H2STagset.hasTagsQuery(rbb.db(), tags, q);
+        ResultSet rs = q.getPreparedStatement().executeQuery();
+        Set<Long> results = new HashSet<Long>();
+        while(rs.next())
+            results.add(rs.getLong("TAGSET_ID"));
+        return results;
+    }
+
+    @Test
+    public void testTagsetIndex()
+        throws java.sql.SQLException
+    {
+        final String methodName =
+            java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        H2STagset.toID(rbb.db(), "a=1,b=2");
+        H2STagset.toID(rbb.db(), "a=1,c=3");
+        H2STagset.toID(rbb.db(), "a=2,c=4,c=5");
+
+        String[] queries = { "a=1", "X=1", "a=1,c", "c", "a=2,c=5", "c=4,c=5", "b=2;c=3", "a=1;a", "a=3" };
+        Set[] expected = new Set[queries.length];
+        for(int i = 0; i < queries.length; ++i)
+            expected[i] = hasTags(rbb, queries[i]);
+
+        H2STagsetIndex.enable(rbb.db());
+        assertTrue(H2STagsetIndex.isEnabled(rbb.db()));
+        for(int i = 0; i < queries.length; ++i)
+            assertEquals(queries[i], expected[i], hasTags(rbb, queries[i]));
+
+        // the index is updated by toID
+        final long id4 = H2STagset.toID(rbb.db(), "a=3,c");
+        assertEquals(1, hasTags(rbb, "a=3").size());
+        assertTrue(hasTags(rbb, "c").contains(id4));
+
+        // rows added to RBB_TAGSETS without going through toID in this process (e.g. by another process) are picked up.
+        rbb.db().createStatement().execute("insert into RBB_TAGSETS values(RBB_STRING_TO_ID('a'), RBB_STRING_TO_ID('3'), 1)");
+        assertEquals(2, hasTags(rbb, "a=3").size());
+
+        H2STagsetIndex.disable(rbb.db());
+        assertFalse(H2STagsetIndex.isEnabled(rbb.db()));
+        assertEquals(2, hasTags(rbb, "a=3").size());
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testTagsetIndexRollback()
+        throws java.sql.SQLException
+    {
+        final String methodName =
+            java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        final long id1 = H2STagset.toID(rbb.db(), "a=1,b=2");
+        H2STagsetIndex.enable(rbb.db());
+
+        // the index is updated by toID before the transaction commits, so rolling it back
+        // leaves rows in the index that are not in RBB_TAGSETS.
+        rbb.db().setAutoCommit(false);
+        H2STagset.toID(rbb.db(), "a=1,c=3");
+        rbb.db().rollback();
+        rbb.db().setAutoCommit(true);
+
+        // the index is rebuilt rather than being abandoned in favor of SQL.
+        Object[] IDs = H2SString.findArray(rbb.db(), new Object[] { new Tagset("a=1").toArray() });
+        PreparedStatementCache.Query q = PreparedStatementCache.startQuery(rbb.db());
+        assertTrue(H2STagsetIndex.hasTagsQuery(rbb.db(), IDs, q));
+
+        Set<Long> expected = new HashSet<Long>();
+        expected.add(id1);
+        assertEquals(expected, hasTags(rbb, "a=1"));
+
+        // and is kept current from then on.
+        final long id3 = H2STagset.toID(rbb.db(), "a=1,d=4");
+        expected.add(id3);
+        assertEquals(expected, hasTags(rbb, "a=1"));
+        q = PreparedStatementCache.startQuery(rbb.db());
+        assertTrue(H2STagsetIndex.hasTagsQuery(rbb.db(), IDs, q));
+
+        rbb.disconnect();
+    }
+
     @Test
     public void IDTest()
         throws java.sql.SQLException
@@ -413,4 +500,27 @@ public class H2STagsetTest
 
     }
 
+    @Test
+    public void testFromIDScanUsesCachedUUID() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        for(int i = 0; i < 100; ++i)
+            H2STagset.toID(rbb.db(), "n="+i);
+
+        // the UUID is needed for every row, but H2 passes RBB_ID_TO_TAGSET a new Connection each time.
+        final long queries = H2SRBB.getUUIDQueries();
+        ResultSet rs = rbb.db().createStatement().executeQuery("select RBB_ID_TO_TAGSET(TAGSET_ID) from (select distinct TAGSET_ID from RBB_TAGSETS)");
+        int n = 0;
+        while(rs.next())
+            ++n;
+        assertTrue(n >= 100);
+        assertTrue(H2SRBB.getUUIDQueries() - queries <= 1);
+
+        rbb.disconnect();
+    }
+
 }
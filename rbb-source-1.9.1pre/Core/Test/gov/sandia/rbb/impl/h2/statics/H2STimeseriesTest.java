@@ -372,6 +372,347 @@ public class H2STimeseriesTest
         rbb.disconnect();
     }
 
+    @Test
+    public void testChunkedTimeseries() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        RBBEventListener.Accumulator listener = new RBBEventListener.Accumulator();
+        rbb.addLocalEventListener(listener, RBBFilter.byTags("storage=chunks"));
+
+        // each operation is done to a timeseries in each format, and the results must be the same.
+        final int chunkSize = H2STimeseriesChunks.getChunkSize();
+        try {
+            H2STimeseriesChunks.setChunkSize(16); // so there are many chunks.
+            final long rows = H2STimeseries.start(rbb.db(), 2, 0.0, "storage=rows");
+            final long chunks = H2STimeseries.start(rbb.db(), 2, 0.0, "storage=chunks", true);
+            assertEquals("TC2", H2SEvent.attachedDataTables(rbb.db(), chunks, H2STimeseries.schemaName)[0]);
+
+            // a regular sample rate, with irregular and repeated values.
+            for(int i = 0; i < 100; ++i) {
+                final Object[] x = new Object[]{ (float) (i/3), (float) Math.sin(i) };
+                H2STimeseries.addSampleByID(rbb.db(), rows, i*0.1, x, null, null);
+                H2STimeseries.addSampleByID(rbb.db(), chunks, i*0.1, x, null, null);
+            }
+            // samples added in a batch, out of order, and before and among the existing samples.
+            final Object[] times = new Object[]{ 20.0, -5.0, 3.05, 10.0, 1e6, 3.0e-9 };
+            final Object[] data = new Object[times.length];
+            for(int i = 0; i < times.length; ++i)
+                data[i] = new Object[]{ (float) i, Float.NaN };
+            H2STimeseries.addSamplesByID(rbb.db(), rows, times, data, null, null);
+            H2STimeseries.addSamplesByID(rbb.db(), chunks, times, data, null, null);
+
+            // each new sample was sent to the listener in the same format as un-chunked timeseries.
+            RBBEventChange[] changes = listener.getEventChanges();
+            assertEquals(1+100+times.length, changes.length);
+            RBBEventChange.DataAdded added = (RBBEventChange.DataAdded) changes[changes.length-1];
+            assertEquals(chunks, (long) added.event.getID());
+            assertEquals(H2STimeseries.schemaName, added.schemaName);
+            assertEquals(4, added.data.length); // EVENT_ID, TIME, C1, C2
+            assertArrayEquals(new Float[]{ 4.0f, Float.NaN }, H2STimeseries.getSampleFromRow(added.data)); // the new chunk at 1e6 is written last.
+
+            // a sample can't be added twice.
+            try {
+                H2STimeseries.addSampleByID(rbb.db(), chunks, 3.05, new Object[]{ 1.0f, 1.0f }, null, null);
+                fail("Adding a sample at the same time as another sample should fail");
+            }
+            catch(SQLException e) {
+            }
+
+            assertEquals(H2STimeseries.getNumObservations(rbb.db(), rows), H2STimeseries.getNumObservations(rbb.db(), chunks));
+            assertEquals(2, (int) H2STimeseries.getDim(rbb.db(), chunks));
+            ResultSet rs = H2STimeseries.getDims(rbb.db(), new Object[]{ rows, chunks });
+            while(rs.next())
+                assertEquals(2, rs.getInt("DIM"));
+
+            assertSameResults(H2STimeseries.getSamples(rbb.db(), rows, 3, 50), H2STimeseries.getSamples(rbb.db(), chunks, 3, 50));
+            assertSameResults(H2STimeseries.getSamples(rbb.db(), rows, null, null), H2STimeseries.getSamples(rbb.db(), chunks, null, null));
+
+            final Double[] bounds = new Double[]{ null, -10.0, -5.0, 0.0, 1.65, 3.0, 3.05, 9.9, 10.0, 15.0, 1e7 };
+            for(Double start : bounds)
+            for(Double end : bounds)
+            for(int n = 0; n < 3; ++n)
+                assertSameResults(H2STimeseries.getSamples(rbb.db(), rows, start, end, n, n, null, null),
+                    H2STimeseries.getSamples(rbb.db(), chunks, start, end, n, n, null, null));
+
+            for(int i = -20; i < 120; ++i)
+                assertArrayEquals(H2STimeseries.valueLinear(rbb.db(), rows, i*0.13, null), H2STimeseries.valueLinear(rbb.db(), chunks, i*0.13, null));
+
+            assertSameResults(H2STimeseries.resampleValues(rbb.db(), new Object[]{ rows }, 0.0, 0.37, 30, null),
+                H2STimeseries.resampleValues(rbb.db(), new Object[]{ chunks }, 0.0, 0.37, 30, null));
+
+            // moving the start / end time removes samples outside the new bounds.
+            H2SEvent.setByID(rbb.db(), rows, 1.0, 8.0, null);
+            H2SEvent.setByID(rbb.db(), chunks, 1.0, 8.0, null);
+            assertEquals(H2STimeseries.getNumObservations(rbb.db(), rows), H2STimeseries.getNumObservations(rbb.db(), chunks));
+            assertSameResults(H2STimeseries.getSamples(rbb.db(), rows, null, null), H2STimeseries.getSamples(rbb.db(), chunks, null, null));
+        }
+        finally {
+            H2STimeseriesChunks.setChunkSize(chunkSize);
+        }
+
+        rbb.removeLocalEventListener(listener);
+        rbb.disconnect();
+    }
+
+    /**
+     * Assert the ResultSets have the same values, with columns compared by their String representation.
+     */
+    private static void assertSameResults(ResultSet expected, ResultSet actual) throws SQLException {
+        final int n = expected.getMetaData().getColumnCount();
+        assertEquals(n, actual.getMetaData().getColumnCount());
+        while(expected.next()) {
+            assertTrue(actual.next());
+            for(int i = 1; i <= n; ++i) {
+                Object x = expected.getObject(i), y = actual.getObject(i);
+                if(x instanceof java.sql.Array)
+                    x = java.util.Arrays.asList((Object[]) ((java.sql.Array) x).getArray());
+                if(y instanceof java.sql.Array)
+                    y = java.util.Arrays.asList((Object[]) ((java.sql.Array) y).getArray());
+                if(x instanceof Object[])
+                    x = java.util.Arrays.asList((Object[]) x);
+                if(y instanceof Object[])
+                    y = java.util.Arrays.asList((Object[]) y);
+                assertEquals(String.valueOf(x), String.valueOf(y));
+            }
+        }
+        assertFalse(actual.next());
+    }
+
+    @Test
+    public void testAddSamplesByIDThroughSQL() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+        rbb.db().createStatement().execute("CREATE ALIAS ADD_SAMPLES_BY_ID FOR \"gov.sandia.rbb.impl.h2.statics.H2STimeseries.addSamplesByID\"");
+
+        final long rows = H2STimeseries.start(rbb.db(), 2, 0.0, "storage=rows");
+        final long chunks = H2STimeseries.start(rbb.db(), 2, 0.0, "storage=chunks", true);
+
+        // through SQL, the times and values arrive as Integer and BigDecimal rather than Double and Float.
+        for(long id : new long[]{ rows, chunks })
+            rbb.db().createStatement().execute("call ADD_SAMPLES_BY_ID("+id+", (1, 2.5), ((1.5, 2), (3, 4.25)), null, null)");
+        assertSameResults(H2STimeseries.getSamples(rbb.db(), rows, null, null), H2STimeseries.getSamples(rbb.db(), chunks, null, null));
+        assertArrayEquals(new Float[]{ 3.0f, 4.25f }, H2STimeseries.valueLinear(rbb.db(), chunks, 2.5, null));
+
+        // a null value can't be stored in a chunk, and the dimension must match.
+        final String[] bad = { "((5, null),)", "((5, 6, 7),)" };
+        for(String data : bad) {
+            try {
+                rbb.db().createStatement().execute("call ADD_SAMPLES_BY_ID("+chunks+", (3,), "+data+", null, null)");
+                fail("Adding "+data+" to a chunked timeseries should fail");
+            }
+            catch(SQLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("H2STimeseries"));
+            }
+        }
+        assertEquals(2, (int) H2STimeseries.getNumObservations(rbb.db(), chunks));
+
+        rbb.disconnect();
+    }
+
+    @Test
+    public void testRollups() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // summaries enabled before adding samples are updated incrementally,
+        // and those enabled afterwards are computed from the existing samples.
+        final long rowsBefore = H2STimeseries.start(rbb.db(), 2, 0.0, "n=1");
+        final long chunksBefore = H2STimeseries.start(rbb.db(), 2, 0.0, "n=2", true);
+        final long rowsAfter = H2STimeseries.start(rbb.db(), 2, 0.0, "n=3");
+        final long[] ids = new long[]{ rowsBefore, chunksBefore, rowsAfter };
+        H2STimeseriesRollups.enable(rbb.db(), rowsBefore, 1.0, 3);
+        H2STimeseriesRollups.enable(rbb.db(), chunksBefore, 1.0, 3);
+
+        for(int i = 0; i < 400; ++i)
+            for(long id : ids)
+                H2STimeseries.addSampleByID(rbb.db(), id, i*0.25, new Object[]{ (float) (i%7), i == 5 ? Float.NaN : (float) Math.sin(i) }, null, null);
+        H2STimeseriesRollups.enable(rbb.db(), rowsAfter, 1.0, 3);
+
+        for(long id : ids) {
+            // buckets of 4.0 are the coarsest no wider than 5.
+            assertRollupMatchesSamples(rbb, id, 10.0, 30.0, 5.0, 4.0);
+            assertRollupMatchesSamples(rbb, id, null, null, 100.0, 16.0);
+            // finer than the finest level, so the samples themselves are returned.
+            ResultSet rs = H2STimeseriesRollups.getRollup(rbb.db(), id, 1.0, 2.0, 0.5);
+            for(int i = 0; i < 5; ++i) {
+                assertTrue(rs.next());
+                assertEquals(1.0+i*0.25, rs.getDouble("START_TIME"), 0.0);
+                assertEquals(rs.getDouble("START_TIME"), rs.getDouble("END_TIME"), 0.0);
+            }
+            assertFalse(rs.next());
+        }
+
+        // removing samples causes the summaries to be re-computed.
+        for(long id : ids) {
+            H2SEvent.setByID(rbb.db(), id, 10.3, 60.0, null);
+            assertRollupMatchesSamples(rbb, id, null, null, 5.0, 4.0);
+        }
+
+        // through SQL
+        ResultSet rs = rbb.db().createStatement().executeQuery("call rbb_timeseries_rollup("+rowsAfter+", null, null, 20.0)");
+        assertTrue(rs.next());
+        assertEquals(0.0, rs.getDouble("START_TIME"), 0.0);
+        assertEquals(16.0, rs.getDouble("END_TIME"), 0.0);
+
+        H2STimeseriesRollups.disable(rbb.db(), rowsAfter);
+        assertFalse(H2STimeseriesRollups.isEnabled(rbb.db(), rowsAfter));
+        assertTrue(H2STimeseriesRollups.isEnabled(rbb.db(), rowsBefore));
+
+        // samples added in a batch update each bucket once, with the same result.
+        for(long id : new long[]{ rowsBefore, chunksBefore })
+            H2SEvent.setByID(rbb.db(), id, null, 200.0, null);
+        final int n = 40;
+        long[] batchIDs = new long[2*n];
+        double[] batchTimes = new double[2*n];
+        float[][] batchValues = new float[2*n][];
+        for(int i = 0; i < n; ++i) {
+            batchIDs[2*i] = rowsBefore;
+            batchIDs[2*i+1] = chunksBefore;
+            batchTimes[2*i] = batchTimes[2*i+1] = 100.0 + i*0.5;
+            batchValues[2*i] = batchValues[2*i+1] = new float[]{ (float) i, (float) -i };
+        }
+        H2STimeseries.addSamples(rbb.db(), batchIDs, batchTimes, batchValues, false);
+        for(long id : new long[]{ rowsBefore, chunksBefore })
+            assertRollupMatchesSamples(rbb, id, 90.0, 130.0, 5.0, 4.0);
+
+        // deleting a timeseries deletes its summaries.
+        H2SEvent.deleteByID(rbb.db(), rowsBefore);
+        assertFalse(H2STimeseriesRollups.isEnabled(rbb.db(), rowsBefore));
+        assertEquals(0, H2SRBBTest.countQueryResults(rbb.db(), "select * from RBB_ROLLUPS where EVENT_ID="+rowsBefore));
+        assertTrue(H2STimeseriesRollups.isEnabled(rbb.db(), chunksBefore));
+
+        rbb.disconnect();
+    }
+
+    /**
+     * Assert the summaries of a timeseries are the width expected for the resolution,
+     * and match the samples.
+     */
+    private static void assertRollupMatchesSamples(RBB rbb, long id, Double start, Double end, double resolution, double width) throws SQLException {
+        ResultSet rollup = H2STimeseriesRollups.getRollup(rbb.db(), id, start, end, resolution);
+        int numBuckets = 0;
+        while(rollup.next()) {
+            ++numBuckets;
+            final double t0 = rollup.getDouble("START_TIME");
+            assertEquals(t0+width, rollup.getDouble("END_TIME"), 0.0);
+            Object[] n = (Object[]) rollup.getArray("N").getArray();
+            Object[] min = (Object[]) rollup.getArray("MIN").getArray();
+            Object[] max = (Object[]) rollup.getArray("MAX").getArray();
+            Object[] sum = (Object[]) rollup.getArray("SUM").getArray();
+            Object[] sumsq = (Object[]) rollup.getArray("SUMSQ").getArray();
+            for(int j = 0; j < 2; ++j) {
+                long expectedN = 0;
+                float expectedMin = Float.MAX_VALUE, expectedMax = -Float.MAX_VALUE;
+                double expectedSum = 0, expectedSumsq = 0;
+                ResultSet samples = H2STimeseries.getSamples(rbb.db(), id, null, null);
+                while(samples.next()) {
+                    final double t = samples.getDouble(1);
+                    final float x = samples.getFloat(2+j);
+                    if(t < t0 || t >= t0+width || Float.isNaN(x))
+                        continue;
+                    ++expectedN;
+                    expectedMin = Math.min(expectedMin, x);
+                    expectedMax = Math.max(expectedMax, x);
+                    expectedSum += x;
+                    expectedSumsq += (double) x*x;
+                }
+                assertEquals(expectedN, ((Number) n[j]).longValue());
+                assertEquals(expectedMin, ((Number) min[j]).floatValue(), 0.0f);
+                assertEquals(expectedMax, ((Number) max[j]).floatValue(), 0.0f);
+                assertEquals(expectedSum, ((Number) sum[j]).doubleValue(), 1e-4);
+                assertEquals(expectedSumsq, ((Number) sumsq[j]).doubleValue(), 1e-4);
+            }
+        }
+
+        // every bucket with samples in the window was returned.
+        Double[] times = H2STimeseries.getSampleTimes(rbb.db(), id, null, null, null, null);
+        java.util.Set<Long> expectedBuckets = new java.util.HashSet<Long>();
+        for(double t : times) {
+            final long bucket = (long) Math.floor(t/width);
+            if((start == null || (bucket+1)*width > start) && (end == null || bucket*width <= end))
+                expectedBuckets.add(bucket);
+        }
+        assertEquals(expectedBuckets.size(), numBuckets);
+    }
+
+    @Test
+    public void testAddSamples() throws SQLException
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering " + methodName);
+
+        RBB rbb = RBB.create("jdbc:h2:mem:"+methodName, null);
+
+        // timeseries in different tables: 2d rows, 1d rows, and 2d chunks.
+        final long a = H2STimeseries.start(rbb.db(), 2, 0.0, "n=a");
+        final long b = H2STimeseries.start(rbb.db(), 1, 0.0, "n=b");
+        final long c = H2STimeseries.start(rbb.db(), 2, 0.0, "n=c", true);
+
+        H2STimeseries.addSamples(rbb.db(),
+            new long[]{ a, b, c, a, c, b },
+            new double[]{ 1.0, 1.0, 1.0, 2.0, 2.0, 3.0 },
+            new float[][]{ {1,2}, {3}, {4,5}, {6,7}, {8,9}, {10} },
+            true);
+
+        assertEquals(2, H2STimeseries.getNumObservations(rbb.db(), a));
+        assertEquals(2, H2STimeseries.getNumObservations(rbb.db(), b));
+        assertEquals(2, H2STimeseries.getNumObservations(rbb.db(), c));
+        assertArrayEquals(new Float[]{ 6f, 7f }, H2STimeseries.valuePrev(rbb.db(), a, 2.5, null));
+        assertArrayEquals(new Float[]{ 10f }, H2STimeseries.valuePrev(rbb.db(), b, 3.5, null));
+        assertArrayEquals(new Float[]{ 4f, 5f }, H2STimeseries.valuePrev(rbb.db(), c, 1.5, null));
+
+        // the end time of each was set to its last sample time.
+        assertEquals(2.0, Event.getByID(rbb.db(), a).getEnd(), 0.0);
+        assertEquals(3.0, Event.getByID(rbb.db(), b).getEnd(), 0.0);
+        assertEquals(2.0, Event.getByID(rbb.db(), c).getEnd(), 0.0);
+
+        // through SQL, without changing end times.
+        rbb.db().createStatement().execute("call rbb_add_samples(("+a+","+b+"), (1.5, 1.5), ((11, 12), (13,)), false)");
+        assertArrayEquals(new Float[]{ 11f, 12f }, H2STimeseries.valuePrev(rbb.db(), a, 1.7, null));
+        assertArrayEquals(new Float[]{ 13f }, H2STimeseries.valuePrev(rbb.db(), b, 1.7, null));
+        assertEquals(2.0, Event.getByID(rbb.db(), a).getEnd(), 0.0);
+
+        // flushes arriving out of order only ever extend the end time, so the later samples aren't deleted.
+        H2STimeseries.addSamples(rbb.db(), new long[]{ b, c }, new double[]{ 2.5, 0.5 }, new float[][]{ {14}, {15,16} }, true);
+        assertEquals(3.0, Event.getByID(rbb.db(), b).getEnd(), 0.0);
+        assertEquals(2.0, Event.getByID(rbb.db(), c).getEnd(), 0.0);
+        assertEquals(4, H2STimeseries.getNumObservations(rbb.db(), b));
+        assertEquals(3, H2STimeseries.getNumObservations(rbb.db(), c));
+        assertArrayEquals(new Float[]{ 10f }, H2STimeseries.valuePrev(rbb.db(), b, 3.5, null));
+        H2STimeseries.addSamples(rbb.db(), new long[]{ b }, new double[]{ 5.0 }, new float[][]{ {17} }, true);
+        assertEquals(5.0, Event.getByID(rbb.db(), b).getEnd(), 0.0);
+        assertEquals(5, H2STimeseries.getNumObservations(rbb.db(), b));
+
+        // the dimensionality must match.
+        try {
+            H2STimeseries.addSamples(rbb.db(), new long[]{ b }, new double[]{ 4.0 }, new float[][]{ {1,2} });
+            fail("Adding a 2d sample to a 1d timeseries should fail");
+        }
+        catch(SQLException e) {
+        }
+
+        // the cached table of a deleted timeseries is not used.
+        H2SEvent.deleteByID(rbb.db(), a);
+        try {
+            H2STimeseries.addSamples(rbb.db(), new long[]{ a }, new double[]{ 4.0 }, new float[][]{ {1,2} });
+            fail("Adding a sample to a deleted timeseries should fail");
+        }
+        catch(SQLException e) {
+        }
+
+        rbb.disconnect();
+    }
+
     @Test
     public void testFindTimeseries() throws SQLException
     {
@@ -0,0 +1,55 @@
+package gov.sandia.rbb.tools;
+
+import java.sql.ResultSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import gov.sandia.rbb.*;
+import gov.sandia.rbb.impl.h2.statics.H2SRBB;
+import gov.sandia.rbb.impl.h2.statics.H2STimeseries;
+
+/**
+ *
+ * @author rgabbot
+ */
+public class UpdateSchemaTest {
+    @Test
+    public void testUpdateFromVersion9()
+        throws Exception
+    {
+        final String methodName = java.lang.Thread.currentThread().getStackTrace()[1].getMethodName();
+        System.err.println("Entering "+methodName);
+
+        final String dbURL = "jdbc:h2:mem:"+methodName;
+        RBB rbb = RBB.create(dbURL, null);
+
+        // a new RBB is stamped with the current version.
+        ResultSet rs = rbb.db().createStatement().executeQuery("select RBB_SCHEMA_VERSION from RBB_DESCRIPTOR");
+        assertTrue(rs.next());
+        assertEquals(H2SRBB.schemaVersion(), rs.getInt(1));
+
+        // make it look like an RBB created with version 9.
+        for(String alias : new String[]{ "RBB_ADD_SAMPLES", "RBB_TIMESERIES_ROLLUP", "RBB_EVENT_QUEUE_STATS",
+            "RBB_EVENT_TCP_PROTOCOL_VERSION", "RBB_ENABLE_EVENT_JOURNAL", "RBB_DISABLE_EVENT_JOURNAL", "RBB_EVENT_JOURNAL_CHANGES" })
+            rbb.db().createStatement().execute("DROP ALIAS "+alias);
+        rbb.db().createStatement().execute("UPDATE RBB_DESCRIPTOR set RBB_SCHEMA_VERSION = 9");
+        assertEquals(0, H2SRBB.getEventTCPProtocolVersion(rbb.db()));
+
+        try {
+            RBB.connect(dbURL).disconnect();
+            fail("Connecting to an RBB with an older schema version should fail");
+        }
+        catch(java.sql.SQLException e) {
+        }
+
+        UpdateSchema.main(new String[]{ dbURL });
+
+        RBB upgraded = RBB.connect(dbURL);
+        assertTrue(H2SRBB.getEventTCPProtocolVersion(upgraded.db()) > 0);
+        final long id = new Timeseries(upgraded, 1, 0.0, new Tagset("n=1")).getID();
+        upgraded.db().createStatement().execute("call RBB_ADD_SAMPLES(("+id+",), (1.0,), ((2.0,),), false)");
+        assertEquals(1, H2STimeseries.getNumObservations(upgraded.db(), id));
+        upgraded.disconnect();
+
+        rbb.disconnect();
+    }
+}